@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+/**
+ * In-memory {@link HttpExchange} carrying a push request, so that {@link PushHandler} can be
+ * benchmarked without sockets. The response body is discarded.
+ */
+final class BenchmarkExchange extends HttpExchange {
+
+  private static final URI URI = java.net.URI.create("/");
+  private static final InetSocketAddress ADDRESS = new InetSocketAddress("localhost", 8080);
+
+  private final Headers requestHeaders = new Headers();
+  private final Headers responseHeaders = new Headers();
+  private InputStream requestBody;
+  private OutputStream responseBody = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+  private int responseCode = -1;
+
+  BenchmarkExchange(byte[] body) {
+    this.requestBody = new ByteArrayInputStream(body);
+  }
+
+  @Override
+  public Headers getRequestHeaders() {
+    return requestHeaders;
+  }
+
+  @Override
+  public Headers getResponseHeaders() {
+    return responseHeaders;
+  }
+
+  @Override
+  public URI getRequestURI() {
+    return URI;
+  }
+
+  @Override
+  public String getRequestMethod() {
+    return "POST";
+  }
+
+  @Override
+  public HttpContext getHttpContext() {
+    return null;
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public InputStream getRequestBody() {
+    return requestBody;
+  }
+
+  @Override
+  public OutputStream getResponseBody() {
+    return responseBody;
+  }
+
+  @Override
+  public void sendResponseHeaders(int code, long responseLength) {
+    this.responseCode = code;
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return ADDRESS;
+  }
+
+  @Override
+  public int getResponseCode() {
+    return responseCode;
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return ADDRESS;
+  }
+
+  @Override
+  public String getProtocol() {
+    return "HTTP/1.1";
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return null;
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+  }
+
+  @Override
+  public void setStreams(InputStream in, OutputStream out) {
+    if (in != null) {
+      requestBody = in;
+    }
+    if (out != null) {
+      responseBody = out;
+    }
+  }
+
+  @Override
+  public HttpPrincipal getPrincipal() {
+    return null;
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.AppRestrictionsSchemaChangeEvent;
+import com.google.android.work.pubsub.EmmPubsub.AppUpdateEvent;
+import com.google.android.work.pubsub.EmmPubsub.InstallFailureEvent;
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+import com.google.android.work.pubsub.EmmPubsub.NewPermissionsEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductApprovalEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductAvailabilityChangeEvent;
+import com.google.android.work.pubsub.EmmPubsub.TestPushNotification;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.pubsub.model.PubsubMessage;
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures each stage of handling a push request separately, then the whole {@link PushHandler}
+ * path, for notifications with a growing number of events and event sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PushPipelineBenchmark {
+
+  // Kept as fields so that the loggers, and their levels, aren't garbage collected.
+  private static final Logger PROCESSOR_LOG =
+      Logger.getLogger(NotificationProcessor.class.getName());
+  private static final Logger HANDLER_LOG = Logger.getLogger(PushHandler.class.getName());
+
+  /** Number of events in the notification, spread over all the event types. */
+  @Param({"1", "10", "100"})
+  public int events;
+
+  /** Length of the failure details of install failure events, to grow the payload. */
+  @Param({"16", "1024"})
+  public int detailsLength;
+
+  private byte[] envelope;
+  private PubsubMessage pubsubMessage;
+  private byte[] data;
+  private PushMessage pushMessage;
+  private PushHandler handler;
+
+  @Setup
+  public void setUp() throws IOException {
+    data = newNotification(events, detailsLength).toByteArray();
+    envelope = ("{\"message\":{"
+        + "\"data\":\"" + BaseEncoding.base64().encode(data) + "\","
+        + "\"attributes\":{\"source\":\"benchmark\"},"
+        + "\"messageId\":\"1234567890\",\"message_id\":\"1234567890\","
+        + "\"publishTime\":\"2015-02-27T13:40:02.123Z\","
+        + "\"publish_time\":\"2015-02-27T13:40:02.123Z\"},"
+        + "\"subscription\":\"projects/benchmark/subscriptions/default\"}")
+        .getBytes(StandardCharsets.UTF_8);
+    pubsubMessage = parseWithJacksonFactory();
+    pushMessage = PushMessageDecoder.decode(new ByteArrayInputStream(envelope));
+
+    // Each push is logged at INFO, writing the log lines out would dominate the measurement.
+    PROCESSOR_LOG.setLevel(Level.WARNING);
+    HANDLER_LOG.setLevel(Level.WARNING);
+    handler = new PushHandler(
+        new NotificationProcessor(),
+        MoreExecutors.directExecutor(),
+        WorkerPool.ShedPolicy.REJECT,
+        new Metrics());
+  }
+
+  /** The envelope parsing of the original push handler, binding to the API client's model. */
+  @Benchmark
+  public PubsubMessage parseEnvelopeWithJacksonFactory() throws IOException {
+    return parseWithJacksonFactory();
+  }
+
+  /** The streaming envelope parsing of {@link PushMessageDecoder}, base64 decode included. */
+  @Benchmark
+  public PushMessage decodeEnvelope() throws IOException {
+    return PushMessageDecoder.decode(new ByteArrayInputStream(envelope));
+  }
+
+  @Benchmark
+  public byte[] decodeBase64Data() {
+    return pubsubMessage.decodeData();
+  }
+
+  @Benchmark
+  public MdmPushNotification parseNotification() throws InvalidProtocolBufferException {
+    return MdmPushNotification.parseFrom(data);
+  }
+
+  /** Decodes the notification in place, as {@link EventDispatcher} does for its listeners. */
+  @Benchmark
+  public MdmPushNotification parseNotificationFromPushMessage() throws IOException {
+    return MdmPushNotification.parseFrom(pushMessage.newCodedInputStream());
+  }
+
+  /** Reads the routing fields only, the way {@link NotificationProcessor} does. */
+  @Benchmark
+  public NotificationView scanNotification() throws IOException {
+    return NotificationView.parse(pushMessage);
+  }
+
+  /** The whole push path, from the request body to the response status. */
+  @Benchmark
+  public int handlePush() throws IOException {
+    BenchmarkExchange exchange = new BenchmarkExchange(envelope);
+    handler.handle(exchange);
+    return exchange.getResponseCode();
+  }
+
+  private PubsubMessage parseWithJacksonFactory() throws IOException {
+    JsonParser parser = JacksonFactory.getDefaultInstance()
+        .createJsonParser(new ByteArrayInputStream(envelope), StandardCharsets.UTF_8);
+    parser.skipToKey(PushSubscriber.MESSAGE_FIELD);
+    return parser.parseAndClose(PubsubMessage.class);
+  }
+
+  static MdmPushNotification newNotification(int events, int detailsLength) {
+    MdmPushNotification.Builder notification = MdmPushNotification.newBuilder()
+        .setEnterpriseId("12321321")
+        .setEventNotificationSentTimestampMillis(1425044402123L);
+    String details = Strings.repeat("x", detailsLength);
+    for (int i = 0; i < events; i++) {
+      String productId = "app:com.example.app" + i;
+      switch (EventType.values()[i % EventType.values().length]) {
+        case TEST_PUSH_NOTIFICATION:
+          notification.addTestPushNotification(TestPushNotification.getDefaultInstance());
+          break;
+        case PRODUCT_APPROVAL:
+          notification.addProductApprovalEvent(ProductApprovalEvent.newBuilder()
+              .setProductId(productId)
+              .setApproved(ProductApprovalEvent.ApprovalStatus.APPROVED));
+          break;
+        case INSTALL_FAILURE:
+          notification.addInstallFailureEvent(InstallFailureEvent.newBuilder()
+              .setProductId(productId)
+              .setDeviceId("3a5c7e9b1d2f4a6c")
+              .setUserId("user-" + i)
+              .setFailureReason(InstallFailureEvent.InstallFailureReason.TIMEOUT)
+              .setFailureDetails(details));
+          break;
+        case APP_UPDATE:
+          notification.addAppUpdateEvent(AppUpdateEvent.newBuilder().setProductId(productId));
+          break;
+        case NEW_PERMISSIONS:
+          notification.addNewPermissionsEvent(NewPermissionsEvent.newBuilder()
+              .setProductId(productId)
+              .addRequestedPermissions("android.permission.CAMERA")
+              .addApprovedPermissions("android.permission.INTERNET"));
+          break;
+        case APP_RESTRICTIONS_SCHEMA_CHANGE:
+          notification.addAppRestrictionsSchemaChangeEvent(
+              AppRestrictionsSchemaChangeEvent.newBuilder().setProductId(productId));
+          break;
+        case PRODUCT_AVAILABILITY_CHANGE:
+          notification.addProductAvailabilityChangeEvent(ProductAvailabilityChangeEvent.newBuilder()
+              .setProductId(productId)
+              .setAvailabilityStatus(ProductAvailabilityChangeEvent.AvailabilityStatus.AVAILABLE));
+          break;
+        default:
+          throw new AssertionError();
+      }
+    }
+    return notification.build();
+  }
+}
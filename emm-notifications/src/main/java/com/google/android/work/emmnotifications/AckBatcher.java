@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.services.pubsub.Pubsub;
+import com.google.api.services.pubsub.model.AcknowledgeRequest;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Groups acknowledgements of pulled messages into batched {@code acknowledge} calls.
+ *
+ * <p>A batch is sent as soon as it holds {@code maxBatchSize} ack IDs, or {@code flushMillis}
+ * after its first ack ID was added, whichever comes first. If a call fails the messages are
+ * not acknowledged and Cloud Pub/Sub will deliver them again once their deadline expires.
+ */
+public class AckBatcher {
+
+  private static final Logger LOG = Logger.getLogger(AckBatcher.class.getName());
+
+  private final Pubsub client;
+  private final String subscriptionName;
+  private final int maxBatchSize;
+  private final long flushNanos;
+  private final BlockingQueue<String> pending = new LinkedBlockingQueue<String>();
+  private final Thread flusher;
+
+  private volatile boolean running = true;
+
+  public AckBatcher(Pubsub client, String subscriptionName, int maxBatchSize, long flushMillis) {
+    Preconditions.checkArgument(maxBatchSize > 0, "Ack batch size must be positive");
+    Preconditions.checkArgument(flushMillis >= 0, "Ack flush interval must not be negative");
+    this.client = Preconditions.checkNotNull(client);
+    this.subscriptionName = Preconditions.checkNotNull(subscriptionName);
+    this.maxBatchSize = maxBatchSize;
+    this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+    this.flusher = new Thread(new Runnable() {
+      public void run() {
+        flushLoop();
+      }
+    }, "ack-batcher");
+    this.flusher.setDaemon(true);
+  }
+
+  public void start() {
+    flusher.start();
+  }
+
+  /** Schedules the message with the given ack ID to be acknowledged. */
+  public void ack(String ackId) {
+    pending.add(ackId);
+  }
+
+  /** Stops batching and sends all pending acknowledgements. */
+  public void close() throws InterruptedException {
+    running = false;
+    flusher.interrupt();
+    flusher.join();
+    List<String> batch = new ArrayList<String>(maxBatchSize);
+    while (pending.drainTo(batch, maxBatchSize) > 0) {
+      send(batch);
+      batch.clear();
+    }
+  }
+
+  private void flushLoop() {
+    List<String> batch = new ArrayList<String>(maxBatchSize);
+    try {
+      while (running) {
+        batch.add(pending.take());
+        long deadline = System.nanoTime() + flushNanos;
+        while (batch.size() < maxBatchSize) {
+          pending.drainTo(batch, maxBatchSize - batch.size());
+          long remaining = deadline - System.nanoTime();
+          if (batch.size() >= maxBatchSize || remaining <= 0) {
+            break;
+          }
+          String next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        send(batch);
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      // Closing, whatever is left in the batch goes back to be sent by close().
+      pending.addAll(batch);
+    }
+  }
+
+  private void send(List<String> ackIds) {
+    try {
+      client
+          .projects()
+          .subscriptions()
+          .acknowledge(subscriptionName, new AcknowledgeRequest().setAckIds(ackIds))
+          .execute();
+      LOG.fine("Acknowledged " + ackIds.size() + " messages");
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not acknowledge " + ackIds.size() + " messages", e);
+    }
+  }
+}
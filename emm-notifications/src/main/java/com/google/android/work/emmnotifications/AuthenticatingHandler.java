@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.common.base.Preconditions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Passes the requests authenticated by a {@link PushAuthenticator} on to another handler, and
+ * answers the others with 401 or 403 on the server's thread, without reading their body.
+ *
+ * <p>Besides the pushes, it guards the queries of a subscription's products, install failures
+ * and events, and the metrics, with the same secrets or tokens as the pushes.
+ */
+public class AuthenticatingHandler implements HttpHandler {
+
+  private static final Logger LOG = Logger.getLogger(AuthenticatingHandler.class.getName());
+
+  private final PushAuthenticator authenticator;
+  private final HttpHandler delegate;
+
+  public AuthenticatingHandler(PushAuthenticator authenticator, HttpHandler delegate) {
+    this.authenticator = Preconditions.checkNotNull(authenticator);
+    this.delegate = Preconditions.checkNotNull(delegate);
+  }
+
+  public void handle(HttpExchange httpExchange) throws IOException {
+    PushAuthenticator.Rejection rejection = authenticator.authenticate(
+        httpExchange.getRequestHeaders().getFirst("Authorization"),
+        httpExchange.getRequestURI().getRawQuery());
+    if (rejection == null) {
+      delegate.handle(httpExchange);
+      return;
+    }
+    LOG.fine("Rejecting " + httpExchange.getRequestURI().getPath() + " from "
+        + httpExchange.getRemoteAddress() + ": " + rejection);
+    try {
+      httpExchange.sendResponseHeaders(
+          rejection == PushAuthenticator.Rejection.MISSING_CREDENTIALS
+              ? HttpStatusCodes.STATUS_CODE_UNAUTHORIZED
+              : HttpStatusCodes.STATUS_CODE_FORBIDDEN,
+          -1);
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Could not reject request", e);
+    } finally {
+      httpExchange.close();
+    }
+  }
+}
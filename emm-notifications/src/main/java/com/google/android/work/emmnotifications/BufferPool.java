@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized direct buffers. Direct buffers are expensive to allocate and are only
+ * freed by the garbage collector, so they are reused instead of being allocated per connection.
+ */
+final class BufferPool {
+
+  private final int bufferSize;
+  private final int maxPooled;
+  private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+  private final AtomicInteger pooled = new AtomicInteger();
+
+  BufferPool(int bufferSize, int maxPooled) {
+    Preconditions.checkArgument(bufferSize > 0, "Buffer size must be positive");
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  /** Returns a cleared buffer, from the pool if there is one. */
+  ByteBuffer acquire() {
+    ByteBuffer buffer = free.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    pooled.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  /** Gives a buffer back. It is dropped if the pool is full. */
+  void release(ByteBuffer buffer) {
+    if (pooled.incrementAndGet() <= maxPooled) {
+      free.offer(buffer);
+    } else {
+      pooled.decrementAndGet();
+    }
+  }
+
+  int getPooledCount() {
+    return pooled.get();
+  }
+}
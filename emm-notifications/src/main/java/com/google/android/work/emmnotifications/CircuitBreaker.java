@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Stops sending requests to a service while most of them fail, so that callers fail fast
+ * instead of piling retries onto an outage.
+ *
+ * <p>While {@link State#CLOSED}, outcomes are counted in fixed windows. Once a window has seen
+ * enough requests and the share of failures reaches the threshold, the breaker opens and
+ * rejects all requests. After the open period it lets a single probe request through: if the
+ * probe succeeds the breaker closes again, otherwise it stays open for another period.
+ */
+final class CircuitBreaker {
+
+  private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getName());
+
+  enum State {
+    CLOSED,
+    HALF_OPEN,
+    OPEN
+  }
+
+  private final String name;
+  private final double failureRateThreshold;
+  private final int minimumRequests;
+  private final long windowNanos;
+  private final long openNanos;
+
+  private State state = State.CLOSED;
+  private long windowStartNanos;
+  private int requests;
+  private int failures;
+  // When the breaker last opened, or when the last probe was let through while half open.
+  private long sinceNanos;
+
+  private final Metrics.Counter opened;
+  private final Metrics.Counter rejected;
+
+  CircuitBreaker(
+      String name,
+      double failureRateThreshold,
+      int minimumRequests,
+      long windowMillis,
+      long openMillis,
+      Metrics metrics) {
+    Preconditions.checkArgument(failureRateThreshold > 0 && failureRateThreshold <= 1,
+        "Failure rate threshold must be in (0, 1], was %s", failureRateThreshold);
+    this.name = name;
+    this.failureRateThreshold = failureRateThreshold;
+    this.minimumRequests = minimumRequests;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    this.windowStartNanos = System.nanoTime();
+
+    this.opened = metrics.counter("emm_circuit_breaker_opened_total",
+        "Times the circuit breaker opened.", "breaker", name);
+    this.rejected = metrics.counter("emm_circuit_breaker_rejected_total",
+        "Requests failed fast because the circuit breaker was open.", "breaker", name);
+    metrics.gauge("emm_circuit_breaker_state",
+        "State of the circuit breaker: 0 closed, 1 half open, 2 open.", "breaker", name,
+        new Metrics.Gauge() {
+          public double value() {
+            return getState().ordinal();
+          }
+        });
+  }
+
+  /** Returns whether a request may be sent now, counting it as rejected otherwise. */
+  synchronized boolean allowRequest() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    long now = System.nanoTime();
+    if (now - sinceNanos >= openNanos) {
+      // Lets one probe through. If its outcome is never reported, another one goes after the
+      // same period.
+      state = State.HALF_OPEN;
+      sinceNanos = now;
+      return true;
+    }
+    rejected.increment();
+    return false;
+  }
+
+  synchronized void onSuccess() {
+    if (state == State.HALF_OPEN) {
+      LOG.info("Circuit breaker " + name + " closed");
+      state = State.CLOSED;
+      resetWindow(System.nanoTime());
+    } else if (state == State.CLOSED) {
+      rollWindow();
+      requests++;
+    }
+  }
+
+  synchronized void onFailure() {
+    if (state == State.HALF_OPEN) {
+      open("the probe request failed");
+    } else if (state == State.CLOSED) {
+      rollWindow();
+      requests++;
+      failures++;
+      if (requests >= minimumRequests && failures >= failureRateThreshold * requests) {
+        open(failures + " of " + requests + " requests failed");
+      }
+    }
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+
+  private void open(String reason) {
+    LOG.warning("Circuit breaker " + name + " opened, " + reason);
+    state = State.OPEN;
+    sinceNanos = System.nanoTime();
+    opened.increment();
+  }
+
+  private void rollWindow() {
+    long now = System.nanoTime();
+    if (now - windowStartNanos >= windowNanos) {
+      resetWindow(now);
+    }
+  }
+
+  private void resetWindow(long now) {
+    windowStartNanos = now;
+    requests = 0;
+    failures = 0;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * Count-min sketch: estimates the count of each of an unbounded number of keys in fixed memory.
+ *
+ * <p>Keys are given as 64-bit hashes. An estimate is never below the true count, and exceeds it
+ * by at most {@code e / width} of the total count with probability {@code 1 - exp(-depth)}.
+ * Sketches of the same size can be merged, which gives the sketch of both streams.
+ */
+final class CountMinSketch {
+
+  private final int depth;
+  private final int width;
+  private final long[] counts;
+
+  /**
+   * @param depth number of rows, each hashing the keys independently
+   * @param width number of counters per row, a power of 2
+   */
+  CountMinSketch(int depth, int width) {
+    Preconditions.checkArgument(depth > 0, "Depth must be positive");
+    Preconditions.checkArgument(width > 0 && Integer.bitCount(width) == 1,
+        "Width must be a power of 2, was %s", width);
+    this.depth = depth;
+    this.width = width;
+    this.counts = new long[depth * width];
+  }
+
+  void add(long hash, long count) {
+    for (int row = 0; row < depth; row++) {
+      counts[index(row, hash)] += count;
+    }
+  }
+
+  long estimate(long hash) {
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      estimate = Math.min(estimate, counts[index(row, hash)]);
+    }
+    return estimate;
+  }
+
+  void merge(CountMinSketch other) {
+    Preconditions.checkArgument(depth == other.depth && width == other.width,
+        "Cannot merge sketches of different sizes");
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+  }
+
+  void clear() {
+    Arrays.fill(counts, 0);
+  }
+
+  // Rows are indexed by h1 + row * h2, which is as good as independent hash functions.
+  private int index(int row, long hash) {
+    int combined = (int) hash + row * (int) (hash >>> 32);
+    return row * width + (combined & (width - 1));
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Limits the rate of pushes admitted per enterprise, so that one enterprise sending a burst of
+ * notifications cannot take all the processing capacity.
+ *
+ * <p>Each enterprise has a token bucket refilled at its rate, the default one or its override,
+ * and holding at most its burst. A push takes a token; without one it is throttled and should be
+ * answered with a non-2xx status so that Cloud Pub/Sub redelivers it later.
+ */
+public class EnterpriseRateLimiter {
+
+  private static final Logger LOG = Logger.getLogger(EnterpriseRateLimiter.class.getName());
+
+  // Above this many buckets, the full ones are dropped as they are the same as new ones.
+  private static final int MAX_BUCKETS = 100000;
+  // Enterprises beyond this many are counted together, to bound the number of series.
+  private static final int MAX_ENTERPRISE_SERIES = 1000;
+  private static final String OTHER_ENTERPRISES = "other";
+
+  private volatile Limits limits;
+  private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+  private final Metrics metrics;
+  private final Metrics.Counter throttled;
+  private final ConcurrentMap<String, Metrics.Counter> enterpriseCounters =
+      new ConcurrentHashMap<String, Metrics.Counter>();
+
+  /**
+   * @param defaultRate pushes per second admitted for each enterprise, 0 for no limit
+   * @param burstSeconds seconds of its rate an enterprise may send at once after being idle
+   * @param rates rates overriding the default one, by enterprise ID, 0 for no limit
+   */
+  public EnterpriseRateLimiter(
+      double defaultRate, double burstSeconds, Map<String, Double> rates, Metrics metrics) {
+    this.limits = new Limits(defaultRate, burstSeconds, rates);
+    this.metrics = metrics;
+    this.throttled = metrics.counter(
+        "emm_enterprise_throttled_total", "Pushes throttled by the per-enterprise rate limits.");
+    metrics.gauge("emm_enterprise_rate_limit_buckets", "Enterprises with a rate limit bucket.",
+        new Metrics.Gauge() {
+          public double value() {
+            return buckets.size();
+          }
+        });
+  }
+
+  /**
+   * Creates the rate limiter configured in {@link Settings}, or returns null if no enterprise
+   * is limited.
+   */
+  public static EnterpriseRateLimiter fromSettings(Settings settings, Metrics metrics) {
+    if (settings.getEnterpriseRateLimit() == 0 && settings.getEnterpriseRateLimits().isEmpty()) {
+      return null;
+    }
+    return new EnterpriseRateLimiter(
+        settings.getEnterpriseRateLimit(),
+        settings.getEnterpriseBurstSeconds(),
+        settings.getEnterpriseRateLimits(),
+        metrics);
+  }
+
+  /**
+   * Changes the rates and the burst. The buckets are refilled at the new rates from now on, and
+   * start full.
+   */
+  public void setLimits(double defaultRate, double burstSeconds, Map<String, Double> rates) {
+    limits = new Limits(defaultRate, burstSeconds, rates);
+    buckets.clear();
+  }
+
+  /** Throws {@link IllegalArgumentException} if the limits can't be set. */
+  static void checkLimits(double defaultRate, double burstSeconds) {
+    Preconditions.checkArgument(defaultRate >= 0, "Enterprise rate limit must not be negative");
+    Preconditions.checkArgument(burstSeconds > 0, "Enterprise burst must be positive");
+  }
+
+  /** Takes a token of the enterprise's bucket. Returns false if the push is throttled. */
+  public boolean tryAcquire(String enterpriseId) {
+    Limits current = limits;
+    Double override = current.rates.get(enterpriseId);
+    double rate = override == null ? current.defaultRate : override;
+    if (rate <= 0) {
+      return true;
+    }
+    Bucket bucket = buckets.get(enterpriseId);
+    if (bucket == null || bucket.ratePerSecond != rate) {
+      if (buckets.size() >= MAX_BUCKETS) {
+        evictFullBuckets();
+      }
+      // A bucket made with the rates from before a change is replaced.
+      Bucket created = new Bucket(rate, Math.max(1, rate * current.burstSeconds));
+      boolean won = bucket == null
+          ? buckets.putIfAbsent(enterpriseId, created) == null
+          : buckets.replace(enterpriseId, bucket, created);
+      bucket = won ? created : buckets.get(enterpriseId);
+      if (bucket == null) {
+        bucket = created;
+      }
+    }
+    if (bucket.tryAcquire(System.nanoTime())) {
+      return true;
+    }
+    throttled.increment();
+    counterOf(enterpriseId).increment();
+    return false;
+  }
+
+  private void evictFullBuckets() {
+    long now = System.nanoTime();
+    int evicted = 0;
+    for (Iterator<Bucket> i = buckets.values().iterator(); i.hasNext(); ) {
+      if (i.next().isFull(now)) {
+        i.remove();
+        evicted++;
+      }
+    }
+    LOG.fine("Evicted " + evicted + " idle rate limit buckets");
+  }
+
+  private Metrics.Counter counterOf(String enterpriseId) {
+    Metrics.Counter counter = enterpriseCounters.get(enterpriseId);
+    if (counter == null) {
+      boolean ownSeries = enterpriseCounters.size() < MAX_ENTERPRISE_SERIES;
+      counter = metrics.counter("emm_enterprise_throttled_by_enterprise_total",
+          "Pushes throttled by the per-enterprise rate limits, by enterprise.",
+          "enterprise", ownSeries ? enterpriseId : OTHER_ENTERPRISES);
+      if (ownSeries) {
+        enterpriseCounters.putIfAbsent(enterpriseId, counter);
+      }
+    }
+    return counter;
+  }
+
+  /** Rates and burst, replaced as a whole when they change. */
+  private static final class Limits {
+    final double defaultRate;
+    final double burstSeconds;
+    final Map<String, Double> rates;
+
+    Limits(double defaultRate, double burstSeconds, Map<String, Double> rates) {
+      checkLimits(defaultRate, burstSeconds);
+      this.defaultRate = defaultRate;
+      this.burstSeconds = burstSeconds;
+      this.rates = Collections.unmodifiableMap(new HashMap<String, Double>(rates));
+    }
+  }
+
+  /** Token bucket refilled continuously, starting full. */
+  private static final class Bucket {
+    private final double ratePerSecond;
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long refilledNanos;
+
+    Bucket(double ratePerSecond, double capacity) {
+      this.ratePerSecond = ratePerSecond;
+      this.tokensPerNano = ratePerSecond / 1e9;
+      this.capacity = capacity;
+      this.tokens = capacity;
+      this.refilledNanos = System.nanoTime();
+    }
+
+    synchronized boolean tryAcquire(long now) {
+      refill(now);
+      if (tokens < 1) {
+        return false;
+      }
+      tokens--;
+      return true;
+    }
+
+    synchronized boolean isFull(long now) {
+      refill(now);
+      return tokens >= capacity;
+    }
+
+    private void refill(long now) {
+      tokens = Math.min(capacity, tokens + (now - refilledNanos) * tokensPerNano);
+      refilledNanos = now;
+    }
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.AppRestrictionsSchemaChangeEvent;
+import com.google.android.work.pubsub.EmmPubsub.AppUpdateEvent;
+import com.google.android.work.pubsub.EmmPubsub.InstallFailureEvent;
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+import com.google.android.work.pubsub.EmmPubsub.NewPermissionsEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductApprovalEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductAvailabilityChangeEvent;
+import com.google.android.work.pubsub.EmmPubsub.TestPushNotification;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers the events of each notification to the registered {@link NotificationListener}s.
+ *
+ * <p>Notifications are partitioned by the hash of their enterprise ID over single-threaded
+ * executors. The events of one enterprise are therefore delivered in order, one at a time, while
+ * different enterprises are handled in parallel. Each partition has a bounded queue; when it is
+ * full, {@link #dispatch} blocks until there is room, which slows down the intake.
+ *
+ * <p>Listeners implementing {@link NotificationFilter} are asked first, and a notification is
+ * only decoded in full if at least one listener accepts it.
+ *
+ * <p>By default {@link #dispatch} only queues the notification, so the message is acknowledged
+ * before any listener ran: listeners see a notification at most once. A notification still
+ * queued when the process crashes, or when {@link #close} times out, is lost, and an exception
+ * thrown by a listener is only logged. When the dispatcher awaits its listeners,
+ * {@link #dispatch} waits until every listener ran and throws if one of them failed, so that the
+ * message is not acknowledged and is delivered again: listeners then see a notification at least
+ * once, and must tolerate seeing it more than once. The thread processing the push is held
+ * meanwhile.
+ */
+public class EventDispatcher {
+
+  private static final Logger LOG = Logger.getLogger(EventDispatcher.class.getName());
+
+  private final List<NotificationListener> listeners =
+      new CopyOnWriteArrayList<NotificationListener>();
+  private final ThreadPoolExecutor[] partitions;
+  private final boolean awaitListeners;
+  private final Metrics.Counter decoded;
+  private final Metrics.Counter filtered;
+
+  public EventDispatcher(int partitionCount, int queueCapacity, Metrics metrics) {
+    this(partitionCount, queueCapacity, false, metrics);
+  }
+
+  /**
+   * @param awaitListeners whether {@link #dispatch} waits for the listeners and reports their
+   *     failures, so that they see each notification at least once
+   */
+  public EventDispatcher(
+      int partitionCount, int queueCapacity, boolean awaitListeners, Metrics metrics) {
+    Preconditions.checkArgument(partitionCount > 0, "Partition count must be positive");
+    Preconditions.checkArgument(queueCapacity > 0, "Dispatch queue capacity must be positive");
+    this.awaitListeners = awaitListeners;
+    partitions = new ThreadPoolExecutor[partitionCount];
+    for (int i = 0; i < partitionCount; i++) {
+      partitions[i] = new ThreadPoolExecutor(
+          1,
+          1,
+          0L,
+          TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(queueCapacity),
+          new ThreadFactoryBuilder().setNameFormat("dispatch-" + i).setDaemon(true).build(),
+          new BlockWhenFull());
+    }
+    this.decoded = metrics.counter(
+        "emm_dispatch_decoded_total", "Notifications decoded in full for the listeners.");
+    this.filtered = metrics.counter("emm_dispatch_filtered_total",
+        "Notifications no listener accepted, which were not decoded in full.");
+    metrics.gauge("emm_dispatch_queued", "Notifications waiting to be dispatched.",
+        new Metrics.Gauge() {
+          public double value() {
+            long queued = 0;
+            for (ThreadPoolExecutor partition : partitions) {
+              queued += partition.getQueue().size();
+            }
+            return queued;
+          }
+        });
+  }
+
+  /**
+   * Creates the dispatcher configured in {@link Settings}, with the listeners named in its
+   * {@code NotificationListeners} property.
+   */
+  public static EventDispatcher fromSettings(Settings settings, Metrics metrics) {
+    EventDispatcher dispatcher = new EventDispatcher(
+        settings.getDispatchPartitions(),
+        settings.getDispatchQueueCapacity(),
+        settings.isDispatchAwaitListeners(),
+        metrics);
+    for (String className : settings.getNotificationListeners()) {
+      try {
+        dispatcher.addListener((NotificationListener) Class.forName(className).newInstance());
+      } catch (Exception e) {
+        throw new IllegalArgumentException("Could not create listener " + className, e);
+      }
+    }
+    return dispatcher;
+  }
+
+  public void addListener(NotificationListener listener) {
+    listeners.add(Preconditions.checkNotNull(listener));
+  }
+
+  public void removeListener(NotificationListener listener) {
+    listeners.remove(listener);
+  }
+
+  /** Queues the events of the notification for delivery to the listeners. */
+  public void dispatch(MdmPushNotification notification) throws IOException {
+    dispatch(NotificationView.of(notification));
+  }
+
+  /**
+   * Queues the events of the notification for delivery to the listeners. A view over the
+   * message's buffer is copied first, so it may be reused as soon as this returns.
+   *
+   * @throws IOException if the dispatcher awaits its listeners and one of them failed
+   */
+  public void dispatch(NotificationView notification) throws IOException {
+    if (listeners.isEmpty()) {
+      return;
+    }
+    final NotificationView view = notification.copy();
+    ThreadPoolExecutor partition = partitionOf(view.getEnterpriseId());
+    if (!awaitListeners) {
+      partition.execute(new Runnable() {
+        public void run() {
+          deliver(view);
+        }
+      });
+      return;
+    }
+    FutureTask<Boolean> delivery = new FutureTask<Boolean>(new Callable<Boolean>() {
+      public Boolean call() {
+        return deliver(view);
+      }
+    });
+    partition.execute(delivery);
+    try {
+      if (!delivery.get()) {
+        throw new IOException("A listener failed on a notification for enterprise "
+            + view.getEnterpriseId());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the listeners");
+    } catch (ExecutionException e) {
+      throw new IOException("Could not deliver a notification", e.getCause());
+    }
+  }
+
+  /** Stops accepting notifications and waits for the queued ones to be delivered. */
+  public void close(long timeout, TimeUnit unit) throws InterruptedException {
+    for (ThreadPoolExecutor partition : partitions) {
+      partition.shutdown();
+    }
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (ThreadPoolExecutor partition : partitions) {
+      partition.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private ThreadPoolExecutor partitionOf(String enterpriseId) {
+    int hash = enterpriseId.hashCode();
+    // Spreads the bits, String.hashCode of similar IDs differ mostly in the low bits.
+    hash ^= (hash >>> 16);
+    return partitions[(hash & Integer.MAX_VALUE) % partitions.length];
+  }
+
+  /** Returns whether no listener failed. */
+  private boolean deliver(NotificationView view) {
+    MdmPushNotification notification = null;
+    boolean delivered = true;
+    for (NotificationListener listener : listeners) {
+      try {
+        if (listener instanceof NotificationFilter
+            && !((NotificationFilter) listener).accept(view)) {
+          continue;
+        }
+        if (notification == null) {
+          notification = view.getNotification();
+          decoded.increment();
+        }
+        deliver(notification, listener);
+      } catch (InvalidProtocolBufferException e) {
+        LOG.log(Level.WARNING, "Could not decode the events of a notification for enterprise "
+            + view.getEnterpriseId(), e);
+        // Delivering the notification again won't make it decodable.
+        return true;
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Listener " + listener + " failed on a notification for enterprise "
+            + view.getEnterpriseId(), e);
+        delivered = false;
+      }
+    }
+    if (notification == null) {
+      filtered.increment();
+    }
+    return delivered;
+  }
+
+  private static void deliver(MdmPushNotification notification, NotificationListener listener) {
+    for (TestPushNotification event : notification.getTestPushNotificationList()) {
+      listener.onTestPushNotification(notification, event);
+    }
+    for (ProductApprovalEvent event : notification.getProductApprovalEventList()) {
+      listener.onProductApproval(notification, event);
+    }
+    for (InstallFailureEvent event : notification.getInstallFailureEventList()) {
+      listener.onInstallFailure(notification, event);
+    }
+    for (AppUpdateEvent event : notification.getAppUpdateEventList()) {
+      listener.onAppUpdate(notification, event);
+    }
+    for (NewPermissionsEvent event : notification.getNewPermissionsEventList()) {
+      listener.onNewPermissions(notification, event);
+    }
+    for (AppRestrictionsSchemaChangeEvent event
+        : notification.getAppRestrictionsSchemaChangeEventList()) {
+      listener.onAppRestrictionsSchemaChange(notification, event);
+    }
+    for (ProductAvailabilityChangeEvent event
+        : notification.getProductAvailabilityChangeEventList()) {
+      listener.onProductAvailabilityChange(notification, event);
+    }
+  }
+
+  /** Makes the submitting thread wait for room in the partition's queue. */
+  private static final class BlockWhenFull implements RejectedExecutionHandler {
+    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        throw new RejectedExecutionException("Dispatcher is closed");
+      }
+      try {
+        executor.getQueue().put(task);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException("Interrupted while waiting to dispatch", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,1024 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.AppRestrictionsSchemaChangeEvent;
+import com.google.android.work.pubsub.EmmPubsub.AppUpdateEvent;
+import com.google.android.work.pubsub.EmmPubsub.InstallFailureEvent;
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+import com.google.android.work.pubsub.EmmPubsub.NewPermissionsEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductApprovalEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductAvailabilityChangeEvent;
+import com.google.android.work.pubsub.EmmPubsub.TestPushNotification;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.MessageLite;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Embedded, append-only history of the events received, to find which events an enterprise or
+ * a product received in a time range without searching the logs.
+ *
+ * <p>Events are grouped by the time their notification was sent into segment files, one per slot
+ * of {@code segmentMinutes}. Within a segment, events are buffered in memory and written as a
+ * compressed block once about {@code blockSize} bytes are buffered, or once they were buffered
+ * for the flush interval. Each block is laid out as
+ * <pre>
+ *   int magic | int keys length | int data length | int inflated data length | int event count
+ *   | int event type mask | long min sent millis | long max sent millis | int crc32(keys, data)
+ *   | keys | data
+ * </pre>
+ * where keys lists the enterprise and product IDs of the block and data holds the deflated
+ * events. The keys of the blocks are kept in memory as secondary indexes from enterprise and
+ * product IDs to the blocks containing them. Together with the type mask and the time range of
+ * each block, a query only reads and inflates the blocks which may hold matching events.
+ *
+ * <p>In the background, buffered events are flushed, segments whose slot ended are compacted into
+ * full blocks, and segments older than the retention period are deleted. On startup, a segment is
+ * truncated after its last intact block. Events still buffered are lost if the process crashes:
+ * this is a history to query, not a {@link Journal}.
+ */
+public class EventStore extends NotificationListenerAdapter implements NotificationFilter {
+
+  private static final Logger LOG = Logger.getLogger(EventStore.class.getName());
+
+  private static final String SEGMENT_PREFIX = "events-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final int BLOCK_MAGIC = 0x454d4556; // "EMEV"
+  private static final int HEADER_SIZE = 6 * 4 + 2 * 8 + 4;
+  // Compacting is off the ingest path, so it can afford a better compression.
+  private static final int INGEST_COMPRESSION = Deflater.BEST_SPEED;
+  private static final int COMPACTION_COMPRESSION = Deflater.BEST_COMPRESSION;
+
+  private static final Comparator<StoredEvent> BY_SENT_TIME = new Comparator<StoredEvent>() {
+    public int compare(StoredEvent a, StoredEvent b) {
+      return a.sentTimestampMillis < b.sentTimestampMillis ? -1
+          : a.sentTimestampMillis == b.sentTimestampMillis ? 0 : 1;
+    }
+  };
+
+  private final File directory;
+  private final long segmentMillis;
+  private final long retentionMillis;
+  private final int blockSize;
+  private final long flushNanos;
+
+  // Segments by the start of their slot.
+  private final ConcurrentNavigableMap<Long, Segment> segments =
+      new ConcurrentSkipListMap<Long, Segment>();
+  private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("event-store").setDaemon(true).build());
+
+  private final Metrics.Counter stored;
+  private final Metrics.Counter dropped;
+  private final Metrics.Counter failures;
+  private final Metrics.Counter blocksWritten;
+  private final Metrics.Counter blocksRead;
+  private final Histogram queryLatency;
+
+  /**
+   * Opens the store in {@code directory}, creating it if needed, and indexes the segments written
+   * by a previous run.
+   *
+   * @param segmentMinutes duration of the slot of events grouped in a segment
+   * @param retentionHours how long events are kept after they were sent
+   * @param blockSize number of bytes of events compressed together
+   * @param flushSeconds longest time events are buffered before being written
+   */
+  public EventStore(File directory, int segmentMinutes, int retentionHours, int blockSize,
+      int flushSeconds, Metrics metrics) throws IOException {
+    Preconditions.checkArgument(segmentMinutes > 0, "Segment duration must be positive");
+    Preconditions.checkArgument(retentionHours > 0, "Retention must be positive");
+    Preconditions.checkArgument(blockSize > 0, "Block size must be positive");
+    Preconditions.checkArgument(flushSeconds > 0, "Flush interval must be positive");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create event store directory " + directory);
+    }
+    this.directory = directory;
+    this.segmentMillis = TimeUnit.MINUTES.toMillis(segmentMinutes);
+    this.retentionMillis = TimeUnit.HOURS.toMillis(retentionHours);
+    this.blockSize = blockSize;
+    this.flushNanos = TimeUnit.SECONDS.toNanos(flushSeconds);
+
+    this.stored = metrics.counter("emm_event_store_events_total", "Events stored.");
+    this.dropped = metrics.counter("emm_event_store_dropped_total",
+        "Events not stored because they were sent before the retention period or in the future.");
+    this.failures = metrics.counter(
+        "emm_event_store_failures_total", "Events which could not be written.");
+    this.blocksWritten = metrics.counter(
+        "emm_event_store_blocks_written_total", "Blocks written, including by compactions.");
+    this.blocksRead = metrics.counter(
+        "emm_event_store_blocks_read_total", "Blocks read and inflated by queries.");
+    this.queryLatency = metrics.histogram(
+        "emm_event_store_query_seconds", "Time taken by event store queries.");
+    metrics.gauge("emm_event_store_segments", "Segment files of the event store.",
+        new Metrics.Gauge() {
+          public double value() {
+            return segments.size();
+          }
+        });
+    metrics.gauge("emm_event_store_bytes", "Bytes written to the segment files of the event store.",
+        new Metrics.Gauge() {
+          public double value() {
+            long bytes = 0;
+            for (Segment segment : segments.values()) {
+              bytes += segment.size;
+            }
+            return bytes;
+          }
+        });
+
+    open();
+  }
+
+  /** Opens the store configured in {@link Settings}, or returns null if it is disabled. */
+  public static EventStore fromSettings(Settings settings, Metrics metrics) throws IOException {
+    String directory = settings.getEventStoreDirectory();
+    if (directory == null) {
+      return null;
+    }
+    EventStore store = new EventStore(
+        new File(directory),
+        settings.getEventStoreSegmentMinutes(),
+        settings.getEventStoreRetentionHours(),
+        settings.getEventStoreBlockKb() * 1024,
+        settings.getEventStoreFlushSeconds(),
+        metrics);
+    store.start();
+    return store;
+  }
+
+  /** Starts flushing, compacting and deleting segments in the background. */
+  public void start() {
+    long intervalNanos = flushNanos / 2;
+    maintenance.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        maintain();
+      }
+    }, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public boolean accept(NotificationView notification) {
+    return !notification.getEventTypes().isEmpty();
+  }
+
+  @Override
+  public void onTestPushNotification(
+      MdmPushNotification notification, TestPushNotification event) {
+    add(notification, EventType.TEST_PUSH_NOTIFICATION, "", event);
+  }
+
+  @Override
+  public void onProductApproval(MdmPushNotification notification, ProductApprovalEvent event) {
+    add(notification, EventType.PRODUCT_APPROVAL, event.getProductId(), event);
+  }
+
+  @Override
+  public void onInstallFailure(MdmPushNotification notification, InstallFailureEvent event) {
+    add(notification, EventType.INSTALL_FAILURE, event.getProductId(), event);
+  }
+
+  @Override
+  public void onAppUpdate(MdmPushNotification notification, AppUpdateEvent event) {
+    add(notification, EventType.APP_UPDATE, event.getProductId(), event);
+  }
+
+  @Override
+  public void onNewPermissions(MdmPushNotification notification, NewPermissionsEvent event) {
+    add(notification, EventType.NEW_PERMISSIONS, event.getProductId(), event);
+  }
+
+  @Override
+  public void onAppRestrictionsSchemaChange(
+      MdmPushNotification notification, AppRestrictionsSchemaChangeEvent event) {
+    add(notification, EventType.APP_RESTRICTIONS_SCHEMA_CHANGE, event.getProductId(), event);
+  }
+
+  @Override
+  public void onProductAvailabilityChange(
+      MdmPushNotification notification, ProductAvailabilityChangeEvent event) {
+    add(notification, EventType.PRODUCT_AVAILABILITY_CHANGE, event.getProductId(), event);
+  }
+
+  private void add(
+      MdmPushNotification notification, EventType type, String productId, MessageLite event) {
+    try {
+      add(new StoredEvent(notification.getEventNotificationSentTimestampMillis(),
+          notification.getEnterpriseId(), productId, type, event.toByteArray()));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not store a " + type + " event of enterprise "
+          + notification.getEnterpriseId(), e);
+      failures.increment();
+    }
+  }
+
+  /**
+   * Stores an event. Events sent before the retention period, or more than a segment's duration
+   * in the future, are dropped.
+   */
+  public void add(StoredEvent event) throws IOException {
+    long now = System.currentTimeMillis();
+    long sentMillis = event.getSentTimestampMillis();
+    if (sentMillis < now - retentionMillis || sentMillis > now + segmentMillis) {
+      dropped.increment();
+      return;
+    }
+    if (segmentFor(sentMillis - sentMillis % segmentMillis).add(event)) {
+      stored.increment();
+    } else {
+      // The segment expired while the event was being added.
+      dropped.increment();
+    }
+  }
+
+  /**
+   * Returns the events sent in {@code [fromMillis, toMillis)} matching the given IDs and type,
+   * ordered by the time they were sent.
+   *
+   * @param enterpriseId enterprise of the events, or null for any
+   * @param productId product of the events, or null for any
+   * @param type type of the events, or null for any
+   * @param limit largest number of events returned, the earliest ones are kept
+   */
+  public List<StoredEvent> query(long fromMillis, long toMillis, String enterpriseId,
+      String productId, EventType type, int limit) throws IOException {
+    Preconditions.checkArgument(limit > 0, "Limit must be positive");
+    long start = System.nanoTime();
+    List<StoredEvent> events = new ArrayList<StoredEvent>();
+    if (fromMillis < toMillis) {
+      long firstSlot = Math.max(0, fromMillis - fromMillis % segmentMillis);
+      // Slots don't overlap, so once a segment completed the limit later ones can't add to it.
+      for (Segment segment : segments.subMap(firstSlot, true, toMillis, false).values()) {
+        segment.query(fromMillis, toMillis, enterpriseId, productId, type,
+            limit - events.size(), events);
+        if (events.size() >= limit) {
+          break;
+        }
+      }
+    }
+    Collections.sort(events, BY_SENT_TIME);
+    queryLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    return events;
+  }
+
+  /** Stops the background tasks and writes the buffered events. */
+  public void close() throws IOException {
+    // Not interrupted, as that would close the channel a compaction is writing to.
+    maintenance.shutdown();
+    try {
+      maintenance.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    IOException failure = null;
+    for (Segment segment : segments.values()) {
+      try {
+        segment.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void open() throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Could not list event store directory " + directory);
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(SEGMENT_SUFFIX + ".tmp")) {
+        // Left over by a compaction which did not complete.
+        file.delete();
+      } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+        long slot;
+        try {
+          slot = Long.parseLong(
+              name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+          LOG.warning("Ignoring unexpected file " + file);
+          continue;
+        }
+        Segment segment = new Segment(slot, file);
+        segments.put(slot, segment);
+      }
+    }
+    LOG.info("Opened event store " + directory + " with " + segments.size() + " segments");
+  }
+
+  private Segment segmentFor(long slot) throws IOException {
+    Segment segment = segments.get(slot);
+    if (segment == null) {
+      synchronized (segments) {
+        segment = segments.get(slot);
+        if (segment == null) {
+          segment = new Segment(slot, new File(directory,
+              SEGMENT_PREFIX + String.format("%013d", slot) + SEGMENT_SUFFIX));
+          segments.put(slot, segment);
+        }
+      }
+    }
+    return segment;
+  }
+
+  private void maintain() {
+    long now = System.currentTimeMillis();
+    for (Segment segment : segments.values()) {
+      try {
+        long slotEnd = segment.slot + segmentMillis;
+        if (slotEnd <= now - retentionMillis) {
+          segments.remove(segment.slot);
+          segment.delete();
+          LOG.info("Deleted expired event store segment " + segment.file);
+          continue;
+        }
+        segment.flushIfOlderThan(flushNanos);
+        // Events are rarely sent this late, so the slot is complete.
+        if (slotEnd + segmentMillis <= now && segment.needsCompaction()) {
+          segment.compact();
+        }
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Error when maintaining event store segment " + segment.file, e);
+      }
+    }
+  }
+
+  /** An event as stored, with the serialized event message. */
+  public static final class StoredEvent {
+    private final long sentTimestampMillis;
+    private final String enterpriseId;
+    private final String productId;
+    private final EventType type;
+    private final byte[] event;
+
+    public StoredEvent(long sentTimestampMillis, String enterpriseId, String productId,
+        EventType type, byte[] event) {
+      this.sentTimestampMillis = sentTimestampMillis;
+      this.enterpriseId = Preconditions.checkNotNull(enterpriseId);
+      this.productId = Preconditions.checkNotNull(productId);
+      this.type = Preconditions.checkNotNull(type);
+      this.event = Preconditions.checkNotNull(event);
+    }
+
+    /** Time at which the notification of the event was sent. */
+    public long getSentTimestampMillis() {
+      return sentTimestampMillis;
+    }
+
+    public String getEnterpriseId() {
+      return enterpriseId;
+    }
+
+    /** Product the event is about, empty for test notifications. */
+    public String getProductId() {
+      return productId;
+    }
+
+    public EventType getType() {
+      return type;
+    }
+
+    /** The serialized event message, for instance a {@link ProductApprovalEvent}. */
+    public byte[] getEvent() {
+      return event;
+    }
+
+    boolean matches(long fromMillis, long toMillis, String enterpriseId, String productId,
+        EventType type) {
+      return sentTimestampMillis >= fromMillis && sentTimestampMillis < toMillis
+          && (enterpriseId == null || enterpriseId.equals(this.enterpriseId))
+          && (productId == null || productId.equals(this.productId))
+          && (type == null || type == this.type);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      out.writeLong(sentTimestampMillis);
+      out.writeUTF(enterpriseId);
+      out.writeUTF(productId);
+      out.writeByte(type.ordinal());
+      out.writeInt(event.length);
+      out.write(event);
+    }
+
+    static StoredEvent readFrom(DataInputStream in) throws IOException {
+      long sentTimestampMillis = in.readLong();
+      String enterpriseId = in.readUTF();
+      String productId = in.readUTF();
+      int type = in.readUnsignedByte();
+      if (type >= EventType.values().length) {
+        throw new IOException("Unknown event type " + type);
+      }
+      byte[] event = new byte[in.readInt()];
+      in.readFully(event);
+      return new StoredEvent(
+          sentTimestampMillis, enterpriseId, productId, EventType.values()[type], event);
+    }
+
+    @Override
+    public String toString() {
+      return "StoredEvent{sentTimestampMillis=" + sentTimestampMillis + ", enterpriseId="
+          + enterpriseId + ", productId=" + productId + ", type=" + type + "}";
+    }
+  }
+
+  /** The events of a time slot: blocks in a file, their indexes and the buffered events. */
+  private final class Segment {
+    final long slot;
+    final File file;
+    // Appends, flushes and the swap of a compacted file take the write lock, queries the read
+    // lock. Compaction reads the blocks without it, the channel is only replaced or closed by
+    // the maintenance thread.
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // All guarded by lock.
+    FileChannel channel;
+    volatile long size;
+    List<Block> blocks;
+    Map<String, BitSet> enterpriseIndex;
+    Map<String, BitSet> productIndex;
+    final PendingBlock pending = new PendingBlock();
+    boolean compacted;
+    // Set once the segment was deleted or closed.
+    boolean closed;
+
+    Segment(long slot, File file) throws IOException {
+      this.slot = slot;
+      this.file = file;
+      this.channel = new RandomAccessFile(file, "rw").getChannel();
+      load();
+      // Compacting a complete segment once more is harmless, only its fragmentation matters.
+      this.compacted = !fragmented(blocks);
+    }
+
+    /** Indexes the blocks of the file, truncating it after the last intact one. */
+    private void load() throws IOException {
+      blocks = new ArrayList<Block>();
+      enterpriseIndex = new HashMap<String, BitSet>();
+      productIndex = new HashMap<String, BitSet>();
+      long fileSize = channel.size();
+      long position = 0;
+      while (position + HEADER_SIZE <= fileSize) {
+        Block block = readHeader(channel, position);
+        if (block == null || block.end() > fileSize) {
+          break;
+        }
+        ByteBuffer keys = ByteBuffer.allocate(block.keysLength);
+        readFully(channel, keys, position + HEADER_SIZE);
+        List<String> enterpriseIds = new ArrayList<String>();
+        List<String> productIds = new ArrayList<String>();
+        try {
+          DataInputStream in = new DataInputStream(new ByteArrayInputStream(keys.array()));
+          readStrings(in, enterpriseIds);
+          readStrings(in, productIds);
+        } catch (IOException e) {
+          break;
+        }
+        index(block, enterpriseIds, productIds);
+        position = block.end();
+      }
+      if (position < fileSize) {
+        LOG.warning("Truncating event store segment " + file + " after its last intact block at "
+            + position);
+        channel.truncate(position);
+      }
+      size = position;
+    }
+
+    boolean add(StoredEvent event) throws IOException {
+      lock.writeLock().lock();
+      try {
+        if (closed) {
+          return false;
+        }
+        pending.add(event);
+        compacted = false;
+        if (pending.size() >= blockSize) {
+          flush();
+        }
+        return true;
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    void flushIfOlderThan(long nanos) throws IOException {
+      lock.writeLock().lock();
+      try {
+        if (!closed && pending.count > 0 && System.nanoTime() - pending.startNanos >= nanos) {
+          flush();
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    // Called with the write lock held.
+    private void flush() throws IOException {
+      Block block = pending.writeTo(channel, size, INGEST_COMPRESSION);
+      index(block, pending.enterpriseIds, pending.productIds);
+      size = block.end();
+      pending.clear();
+      blocksWritten.increment();
+    }
+
+    private void index(Block block, Collection<String> enterpriseIds,
+        Collection<String> productIds) {
+      int number = blocks.size();
+      blocks.add(block);
+      for (String enterpriseId : enterpriseIds) {
+        mark(enterpriseIndex, enterpriseId, number);
+      }
+      for (String productId : productIds) {
+        mark(productIndex, productId, number);
+      }
+    }
+
+    /**
+     * Adds the earliest {@code limit} matching events of the segment to {@code results}. Blocks
+     * are not ordered by time, but once {@code limit} events were found, the blocks starting
+     * after the latest of them can't hold earlier ones and are not read.
+     */
+    void query(long fromMillis, long toMillis, String enterpriseId, String productId,
+        EventType type, int limit, List<StoredEvent> results) throws IOException {
+      List<StoredEvent> found = new ArrayList<StoredEvent>();
+      // Sent time of the latest event kept once the limit was reached.
+      long cutoffMillis = Long.MAX_VALUE;
+      lock.readLock().lock();
+      try {
+        if (closed) {
+          return;
+        }
+        // Null when any block may match.
+        BitSet candidates = null;
+        if (enterpriseId != null) {
+          candidates = intersect(candidates, enterpriseIndex.get(enterpriseId));
+        }
+        if (productId != null) {
+          candidates = intersect(candidates, productIndex.get(productId));
+        }
+        for (int i = next(candidates, 0); i >= 0 && i < blocks.size();
+            i = next(candidates, i + 1)) {
+          Block block = blocks.get(i);
+          if (block.minMillis < cutoffMillis && block.mayContain(fromMillis, toMillis, type)) {
+            blocksRead.increment();
+            for (StoredEvent event : readEvents(channel, block)) {
+              if (event.matches(fromMillis, toMillis, enterpriseId, productId, type)) {
+                found.add(event);
+              }
+            }
+            cutoffMillis = keepEarliest(found, limit);
+          }
+        }
+        if (pending.count > 0) {
+          for (StoredEvent event : pending.events()) {
+            if (event.matches(fromMillis, toMillis, enterpriseId, productId, type)) {
+              found.add(event);
+            }
+          }
+          keepEarliest(found, limit);
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+      results.addAll(found);
+    }
+
+    /**
+     * Drops all but the earliest {@code limit} events, and returns the sent time of the latest
+     * one kept, or {@link Long#MAX_VALUE} if there are fewer.
+     */
+    private long keepEarliest(List<StoredEvent> events, int limit) {
+      if (events.size() < limit) {
+        return Long.MAX_VALUE;
+      }
+      Collections.sort(events, BY_SENT_TIME);
+      events.subList(limit, events.size()).clear();
+      return events.get(limit - 1).sentTimestampMillis;
+    }
+
+    boolean needsCompaction() {
+      lock.readLock().lock();
+      try {
+        return !closed && !compacted;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    /**
+     * Rewrites the blocks into full ones in a new file, which replaces the segment. Blocks
+     * appended meanwhile are copied over as they are.
+     */
+    void compact() throws IOException {
+      List<Block> snapshot;
+      long snapshotSize;
+      lock.writeLock().lock();
+      try {
+        if (pending.count > 0) {
+          flush();
+        }
+        snapshot = new ArrayList<Block>(blocks);
+        snapshotSize = size;
+        if (!fragmented(snapshot)) {
+          compacted = true;
+          return;
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+
+      File temp = new File(file.getPath() + ".tmp");
+      FileChannel out = new RandomAccessFile(temp, "rw").getChannel();
+      try {
+        out.truncate(0);
+        PendingBlock merged = new PendingBlock();
+        long position = 0;
+        for (Block block : snapshot) {
+          List<StoredEvent> events;
+          try {
+            events = readEvents(channel, block);
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "Dropping corrupt block at " + block.offset + " of " + file, e);
+            continue;
+          }
+          for (StoredEvent event : events) {
+            merged.add(event);
+            if (merged.size() >= blockSize) {
+              position = merged.writeTo(out, position, COMPACTION_COMPRESSION).end();
+              merged.clear();
+              blocksWritten.increment();
+            }
+          }
+        }
+        if (merged.count > 0) {
+          position = merged.writeTo(out, position, COMPACTION_COMPRESSION).end();
+          blocksWritten.increment();
+        }
+
+        lock.writeLock().lock();
+        try {
+          if (closed) {
+            return;
+          }
+          long appended = size - snapshotSize;
+          long copied = 0;
+          while (copied < appended) {
+            copied += channel.transferTo(snapshotSize + copied, appended - copied, out);
+          }
+          out.force(true);
+          out.close();
+          if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file + " with its compacted copy");
+          }
+          channel.close();
+          channel = new RandomAccessFile(file, "rw").getChannel();
+          load();
+          compacted = true;
+          LOG.fine("Compacted event store segment " + file + " into " + blocks.size()
+              + " blocks, " + size + " bytes");
+        } finally {
+          lock.writeLock().unlock();
+        }
+      } finally {
+        out.close();
+        temp.delete();
+      }
+    }
+
+    void delete() throws IOException {
+      lock.writeLock().lock();
+      try {
+        closed = true;
+        channel.close();
+        if (!file.delete()) {
+          throw new IOException("Could not delete " + file);
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    void close() throws IOException {
+      lock.writeLock().lock();
+      try {
+        if (closed) {
+          return;
+        }
+        if (pending.count > 0) {
+          flush();
+        }
+        channel.force(true);
+        channel.close();
+        closed = true;
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    // Whether at least two blocks are less than half full, which compaction would merge.
+    private boolean fragmented(List<Block> blocks) {
+      int small = 0;
+      for (Block block : blocks) {
+        if (block.inflatedLength < blockSize / 2 && ++small >= 2) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /** Location and summary of a block written to a segment. */
+  private static final class Block {
+    final long offset;
+    final int keysLength;
+    final int dataLength;
+    final int inflatedLength;
+    final int count;
+    final int typeMask;
+    final long minMillis;
+    final long maxMillis;
+    final int crc;
+
+    Block(long offset, int keysLength, int dataLength, int inflatedLength, int count,
+        int typeMask, long minMillis, long maxMillis, int crc) {
+      this.offset = offset;
+      this.keysLength = keysLength;
+      this.dataLength = dataLength;
+      this.inflatedLength = inflatedLength;
+      this.count = count;
+      this.typeMask = typeMask;
+      this.minMillis = minMillis;
+      this.maxMillis = maxMillis;
+      this.crc = crc;
+    }
+
+    long end() {
+      return offset + HEADER_SIZE + keysLength + dataLength;
+    }
+
+    boolean mayContain(long fromMillis, long toMillis, EventType type) {
+      return maxMillis >= fromMillis && minMillis < toMillis
+          && (type == null || (typeMask & (1 << type.ordinal())) != 0);
+    }
+  }
+
+  /** Events buffered until they are written as a block. */
+  private static final class PendingBlock {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    final Set<String> enterpriseIds = new HashSet<String>();
+    final Set<String> productIds = new HashSet<String>();
+    int count;
+    int typeMask;
+    long minMillis = Long.MAX_VALUE;
+    long maxMillis = Long.MIN_VALUE;
+    long startNanos;
+
+    void add(StoredEvent event) throws IOException {
+      if (count == 0) {
+        startNanos = System.nanoTime();
+      }
+      event.writeTo(out);
+      enterpriseIds.add(event.getEnterpriseId());
+      productIds.add(event.getProductId());
+      count++;
+      typeMask |= 1 << event.getType().ordinal();
+      minMillis = Math.min(minMillis, event.getSentTimestampMillis());
+      maxMillis = Math.max(maxMillis, event.getSentTimestampMillis());
+    }
+
+    int size() {
+      return bytes.size();
+    }
+
+    List<StoredEvent> events() throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+      List<StoredEvent> events = new ArrayList<StoredEvent>(count);
+      for (int i = 0; i < count; i++) {
+        events.add(StoredEvent.readFrom(in));
+      }
+      return events;
+    }
+
+    /** Compresses the events and writes them as a block at the given position. */
+    Block writeTo(FileChannel channel, long position, int level) throws IOException {
+      ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+      DataOutputStream keys = new DataOutputStream(keyBytes);
+      writeStrings(keys, enterpriseIds);
+      writeStrings(keys, productIds);
+      keys.flush();
+      byte[] keysArray = keyBytes.toByteArray();
+      byte[] inflated = bytes.toByteArray();
+      byte[] data = deflate(inflated, level);
+
+      CRC32 crc = new CRC32();
+      crc.update(keysArray);
+      crc.update(data);
+      Block block = new Block(position, keysArray.length, data.length, inflated.length, count,
+          typeMask, minMillis, maxMillis, (int) crc.getValue());
+      ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + keysArray.length + data.length);
+      buffer.putInt(BLOCK_MAGIC)
+          .putInt(block.keysLength)
+          .putInt(block.dataLength)
+          .putInt(block.inflatedLength)
+          .putInt(block.count)
+          .putInt(block.typeMask)
+          .putLong(block.minMillis)
+          .putLong(block.maxMillis)
+          .putInt(block.crc)
+          .put(keysArray)
+          .put(data);
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, position + buffer.position());
+      }
+      return block;
+    }
+
+    void clear() {
+      bytes.reset();
+      enterpriseIds.clear();
+      productIds.clear();
+      count = 0;
+      typeMask = 0;
+      minMillis = Long.MAX_VALUE;
+      maxMillis = Long.MIN_VALUE;
+    }
+  }
+
+  /** Reads the header of the block at the position, or returns null if there is none. */
+  private static Block readHeader(FileChannel channel, long position) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    readFully(channel, header, position);
+    header.flip();
+    if (header.getInt() != BLOCK_MAGIC) {
+      return null;
+    }
+    int keysLength = header.getInt();
+    int dataLength = header.getInt();
+    int inflatedLength = header.getInt();
+    int count = header.getInt();
+    int typeMask = header.getInt();
+    long minMillis = header.getLong();
+    long maxMillis = header.getLong();
+    int crc = header.getInt();
+    if (keysLength < 0 || dataLength < 0 || inflatedLength < 0 || count < 0) {
+      return null;
+    }
+    return new Block(position, keysLength, dataLength, inflatedLength, count, typeMask,
+        minMillis, maxMillis, crc);
+  }
+
+  private static List<StoredEvent> readEvents(FileChannel channel, Block block)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(block.keysLength + block.dataLength);
+    readFully(channel, buffer, block.offset + HEADER_SIZE);
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), 0, buffer.capacity());
+    if ((int) crc.getValue() != block.crc) {
+      throw new IOException("Checksum mismatch in block at " + block.offset);
+    }
+    byte[] inflated = inflate(buffer.array(), block.keysLength, block.dataLength,
+        block.inflatedLength);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(inflated));
+    List<StoredEvent> events = new ArrayList<StoredEvent>(block.count);
+    for (int i = 0; i < block.count; i++) {
+      events.add(StoredEvent.readFrom(in));
+    }
+    return events;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Unexpected end of segment at " + (position + buffer.position()));
+      }
+    }
+  }
+
+  private static byte[] deflate(byte[] input, int level) {
+    Deflater deflater = new Deflater(level);
+    try {
+      deflater.setInput(input);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 64);
+      byte[] chunk = new byte[8192];
+      while (!deflater.finished()) {
+        out.write(chunk, 0, deflater.deflate(chunk));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] input, int offset, int length, int inflatedLength)
+      throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(input, offset, length);
+      byte[] out = new byte[inflatedLength];
+      int inflated = 0;
+      while (inflated < inflatedLength && !inflater.finished() && !inflater.needsInput()) {
+        inflated += inflater.inflate(out, inflated, inflatedLength - inflated);
+      }
+      if (inflated != inflatedLength) {
+        throw new IOException("Block inflated to " + inflated + " bytes instead of "
+            + inflatedLength);
+      }
+      return out;
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt block", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static void writeStrings(DataOutputStream out, Collection<String> strings)
+      throws IOException {
+    out.writeInt(strings.size());
+    for (String string : strings) {
+      out.writeUTF(string);
+    }
+  }
+
+  private static void readStrings(DataInputStream in, List<String> strings) throws IOException {
+    for (int i = in.readInt(); i > 0; i--) {
+      strings.add(in.readUTF());
+    }
+  }
+
+  private static void mark(Map<String, BitSet> index, String key, int block) {
+    BitSet blocks = index.get(key);
+    if (blocks == null) {
+      blocks = new BitSet();
+      index.put(key, blocks);
+    }
+    blocks.set(block);
+  }
+
+  // Intersects the blocks of a key with the candidates, null meaning all blocks.
+  private static BitSet intersect(BitSet candidates, BitSet blocks) {
+    if (blocks == null) {
+      return new BitSet();
+    }
+    if (candidates == null) {
+      return (BitSet) blocks.clone();
+    }
+    candidates.and(blocks);
+    return candidates;
+  }
+
+  private static int next(BitSet candidates, int from) {
+    return candidates == null ? from : candidates.nextSetBit(from);
+  }
+}
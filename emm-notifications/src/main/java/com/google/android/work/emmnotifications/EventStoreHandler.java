@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.common.base.Preconditions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves queries of an {@link EventStore} as JSON.
+ *
+ * <p>{@code GET /events?enterprise=E&product=P&type=T&from=F&to=T&limit=N} returns the events of
+ * enterprise E about product P of type T, sent from F included to T excluded, in milliseconds
+ * since the epoch, ordered by the time they were sent. Each parameter is optional: the window is
+ * the last hour by default, and at most 100 events are returned unless a limit up to 10000 is
+ * given. {@code truncated} tells whether more events matched. Each event message is returned
+ * base64 encoded.
+ *
+ * <p>A query reads and inflates blocks from disk, so it is served through an
+ * {@link ExecutingHandler}, not on the thread accepting pushes.
+ */
+public class EventStoreHandler implements HttpHandler {
+
+  static final String PATH = "/events";
+
+  private static final int DEFAULT_LIMIT = 100;
+  private static final int MAX_LIMIT = 10000;
+  private static final long DEFAULT_WINDOW_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private final EventStore store;
+  private final JsonFactory jsonFactory = new JsonFactory();
+
+  public EventStoreHandler(EventStore store) {
+    this.store = Preconditions.checkNotNull(store);
+  }
+
+  public void handle(HttpExchange httpExchange) throws IOException {
+    try {
+      if (!"GET".equals(httpExchange.getRequestMethod())) {
+        httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_METHOD_NOT_ALLOWED, -1);
+        return;
+      }
+      Map<String, String> query =
+          QueryStrings.parse(httpExchange.getRequestURI().getRawQuery());
+      long toMillis;
+      long fromMillis;
+      int limit;
+      EventType type = null;
+      try {
+        toMillis = query.containsKey("to")
+            ? Long.parseLong(query.get("to"))
+            : System.currentTimeMillis();
+        fromMillis = query.containsKey("from")
+            ? Long.parseLong(query.get("from"))
+            : toMillis - DEFAULT_WINDOW_MILLIS;
+        limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_LIMIT;
+        if (query.containsKey("type")) {
+          type = EventType.valueOf(query.get("type"));
+        }
+      } catch (IllegalArgumentException e) {
+        // Also thrown for a number which can't be parsed.
+        httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_BAD_REQUEST, -1);
+        return;
+      }
+      if (limit <= 0 || limit > MAX_LIMIT) {
+        httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_BAD_REQUEST, -1);
+        return;
+      }
+
+      // One more than the limit tells whether the result was truncated.
+      List<EventStore.StoredEvent> events = store.query(fromMillis, toMillis,
+          query.get("enterprise"), query.get("product"), type, limit + 1);
+
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      JsonGenerator json = jsonFactory.createJsonGenerator(body);
+      json.writeStartObject();
+      json.writeNumberField("from", fromMillis);
+      json.writeNumberField("to", toMillis);
+      json.writeArrayFieldStart("events");
+      for (EventStore.StoredEvent event : events.subList(0, Math.min(limit, events.size()))) {
+        json.writeStartObject();
+        json.writeNumberField("sent", event.getSentTimestampMillis());
+        json.writeStringField("enterpriseId", event.getEnterpriseId());
+        json.writeStringField("productId", event.getProductId());
+        json.writeStringField("type", event.getType().name());
+        json.writeFieldName("event");
+        json.writeBinary(event.getEvent());
+        json.writeEndObject();
+      }
+      json.writeEndArray();
+      json.writeBooleanField("truncated", events.size() > limit);
+      json.writeEndObject();
+      json.close();
+
+      byte[] bytes = body.toByteArray();
+      httpExchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_OK, bytes.length);
+      OutputStream out = httpExchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    } finally {
+      httpExchange.close();
+    }
+  }
+}
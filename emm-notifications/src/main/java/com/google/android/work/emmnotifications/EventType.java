@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+
+/**
+ * The kinds of events an {@link MdmPushNotification} can carry, each stored in its own repeated
+ * field of the notification.
+ */
+public enum EventType {
+  TEST_PUSH_NOTIFICATION(MdmPushNotification.TEST_PUSH_NOTIFICATION_FIELD_NUMBER),
+  PRODUCT_APPROVAL(MdmPushNotification.PRODUCT_APPROVAL_EVENT_FIELD_NUMBER),
+  INSTALL_FAILURE(MdmPushNotification.INSTALL_FAILURE_EVENT_FIELD_NUMBER),
+  APP_UPDATE(MdmPushNotification.APP_UPDATE_EVENT_FIELD_NUMBER),
+  NEW_PERMISSIONS(MdmPushNotification.NEW_PERMISSIONS_EVENT_FIELD_NUMBER),
+  APP_RESTRICTIONS_SCHEMA_CHANGE(
+      MdmPushNotification.APP_RESTRICTIONS_SCHEMA_CHANGE_EVENT_FIELD_NUMBER),
+  PRODUCT_AVAILABILITY_CHANGE(
+      MdmPushNotification.PRODUCT_AVAILABILITY_CHANGE_EVENT_FIELD_NUMBER);
+
+  private static final EventType[] BY_FIELD_NUMBER;
+
+  static {
+    int maxFieldNumber = 0;
+    for (EventType type : values()) {
+      maxFieldNumber = Math.max(maxFieldNumber, type.fieldNumber);
+    }
+    BY_FIELD_NUMBER = new EventType[maxFieldNumber + 1];
+    for (EventType type : values()) {
+      BY_FIELD_NUMBER[type.fieldNumber] = type;
+    }
+  }
+
+  private final int fieldNumber;
+
+  private EventType(int fieldNumber) {
+    this.fieldNumber = fieldNumber;
+  }
+
+  /** Number of the field of {@link MdmPushNotification} holding events of this type. */
+  public int getFieldNumber() {
+    return fieldNumber;
+  }
+
+  /** Returns the type stored in the field of {@link MdmPushNotification}, or null if none. */
+  public static EventType forFieldNumber(int fieldNumber) {
+    return fieldNumber >= 0 && fieldNumber < BY_FIELD_NUMBER.length
+        ? BY_FIELD_NUMBER[fieldNumber]
+        : null;
+  }
+
+  /** Returns the number of events of this type in the notification. */
+  public int countIn(MdmPushNotification notification) {
+    switch (this) {
+      case TEST_PUSH_NOTIFICATION:
+        return notification.getTestPushNotificationCount();
+      case PRODUCT_APPROVAL:
+        return notification.getProductApprovalEventCount();
+      case INSTALL_FAILURE:
+        return notification.getInstallFailureEventCount();
+      case APP_UPDATE:
+        return notification.getAppUpdateEventCount();
+      case NEW_PERMISSIONS:
+        return notification.getNewPermissionsEventCount();
+      case APP_RESTRICTIONS_SCHEMA_CHANGE:
+        return notification.getAppRestrictionsSchemaChangeEventCount();
+      case PRODUCT_AVAILABILITY_CHANGE:
+        return notification.getProductAvailabilityChangeEventCount();
+      default:
+        throw new AssertionError(this);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs another handler on an executor instead of the thread that accepted the request, the way
+ * {@link PushHandler} hands pushes to its worker pool.
+ *
+ * <p>The queries of the products, install failures and events read from disk or build their
+ * response from large in-memory state. Run on the server's dispatcher thread, or on the selector
+ * thread of a {@link NioIngress}, they would hold up every push on the port meanwhile. When the
+ * executor is saturated the request is answered 503 at once.
+ */
+public class ExecutingHandler implements HttpHandler {
+
+  private static final Logger LOG = Logger.getLogger(ExecutingHandler.class.getName());
+
+  private static final int QUERY_THREADS = 2;
+  private static final int QUERY_QUEUE_CAPACITY = 64;
+
+  private final Executor executor;
+  private final HttpHandler delegate;
+
+  public ExecutingHandler(Executor executor, HttpHandler delegate) {
+    this.executor = Preconditions.checkNotNull(executor);
+    this.delegate = Preconditions.checkNotNull(delegate);
+  }
+
+  /** Creates a small bounded pool for the query handlers, which rejects queries when full. */
+  public static ThreadPoolExecutor newQueryExecutor() {
+    return new ThreadPoolExecutor(
+        QUERY_THREADS,
+        QUERY_THREADS,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(QUERY_QUEUE_CAPACITY),
+        new ThreadFactoryBuilder().setNameFormat("query-%d").setDaemon(true).build());
+  }
+
+  public void handle(final HttpExchange httpExchange) {
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            delegate.handle(httpExchange);
+          } catch (IOException e) {
+            LOG.log(Level.FINE, "Could not answer " + httpExchange.getRequestURI(), e);
+          } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, "Unexpected error when answering "
+                + httpExchange.getRequestURI(), e);
+            respond(httpExchange, HttpStatusCodes.STATUS_CODE_SERVER_ERROR);
+          } finally {
+            httpExchange.close();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.warning("Query executor is saturated, rejecting " + httpExchange.getRequestURI());
+      respond(httpExchange, HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE);
+    }
+  }
+
+  private static void respond(HttpExchange httpExchange, int statusCode) {
+    try {
+      httpExchange.sendResponseHeaders(statusCode, -1);
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Could not send response " + statusCode, e);
+    } finally {
+      httpExchange.close();
+    }
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on a fixed pool of threads, sharing the threads fairly between keys such as
+ * enterprise IDs instead of in arrival order.
+ *
+ * <p>Tasks are ordered by self-clocked weighted fair queuing: a task of key k gets the finish
+ * tag {@code max(V, F(k)) + 1 / weight(k)}, where F(k) is the tag of the last task of k and V the
+ * tag of the last task started, and the task with the smallest tag runs next. A key with many
+ * queued tasks thus gets its weight's share of the threads, while the tasks of a key with few
+ * run almost at once.
+ *
+ * <p>At most one task of a key runs at a time, so that the tasks of a key run in submission
+ * order even with several threads. The others wait behind it, and only the next one of each key
+ * competes by its tag for the threads. A key thus uses at most one thread, however large its
+ * weight; the weights decide which key's task runs next when the threads are contended.
+ */
+public class FairScheduler {
+
+  private static final Logger LOG = Logger.getLogger(FairScheduler.class.getName());
+
+  private final int capacity;
+  private final Thread[] threads;
+
+  // Guarded by this.
+  private Map<String, Double> weights;
+  // The next task of each key with none running.
+  private final PriorityQueue<Task> queue = new PriorityQueue<Task>();
+  // Keys with a task running or in the queue, and the tasks of each waiting behind that one.
+  private final Set<String> activeKeys = new HashSet<String>();
+  private final Map<String, Queue<Task>> waiting = new HashMap<String, Queue<Task>>();
+  private int queuedCount;
+  private final Map<String, Double> lastFinishTags = new HashMap<String, Double>();
+  private double virtualTime;
+  private long sequence;
+  private boolean shutdown;
+
+  /**
+   * @param capacity maximum number of queued tasks
+   * @param weights weights of the keys with a share other than 1
+   */
+  public FairScheduler(
+      String name, int threadCount, int capacity, Map<String, Double> weights, Metrics metrics) {
+    Preconditions.checkArgument(threadCount > 0, "Fair scheduler threads must be positive");
+    Preconditions.checkArgument(capacity > 0, "Fair scheduler capacity must be positive");
+    this.capacity = capacity;
+    setWeights(weights);
+
+    ThreadFactory threadFactory =
+        new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build();
+    this.threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] = threadFactory.newThread(new Runnable() {
+        public void run() {
+          runTasks();
+        }
+      });
+      threads[i].start();
+    }
+    LOG.info("Starting " + name + " fair scheduler of " + threadCount
+        + " threads with a queue of " + capacity);
+
+    metrics.gauge("emm_fair_queue_queued", "Tasks waiting in the fair scheduler.",
+        new Metrics.Gauge() {
+          public double value() {
+            return getQueuedCount();
+          }
+        });
+  }
+
+  /**
+   * Creates the scheduler configured in {@link Settings}, or returns null if fair scheduling
+   * is disabled.
+   */
+  public static FairScheduler fromSettings(String name, Settings settings, Metrics metrics) {
+    if (settings.getFairSchedulerThreads() == 0) {
+      return null;
+    }
+    return new FairScheduler(
+        name,
+        settings.getFairSchedulerThreads(),
+        settings.getFairSchedulerQueueCapacity(),
+        settings.getEnterpriseWeights(),
+        metrics);
+  }
+
+  /**
+   * Changes the weights of the keys. Tasks already queued keep their place, the new weights
+   * apply to the tasks queued from now on.
+   */
+  public synchronized void setWeights(Map<String, Double> weights) {
+    checkWeights(weights);
+    this.weights = Collections.unmodifiableMap(new HashMap<String, Double>(weights));
+  }
+
+  /** Throws {@link IllegalArgumentException} if the weights can't be set. */
+  static void checkWeights(Map<String, Double> weights) {
+    for (Map.Entry<String, Double> weight : weights.entrySet()) {
+      Preconditions.checkArgument(weight.getValue() > 0,
+          "Weight of %s must be positive, was %s", weight.getKey(), weight.getValue());
+    }
+  }
+
+  /**
+   * Queues a task of the key.
+   *
+   * @throws RejectedExecutionException if the queue is full or the scheduler is shut down
+   */
+  public synchronized void execute(String key, Runnable task) {
+    if (shutdown) {
+      throw new RejectedExecutionException("Fair scheduler is shut down");
+    }
+    if (queuedCount >= capacity) {
+      throw new RejectedExecutionException("Fair scheduler queue is full");
+    }
+    Double weight = weights.get(key);
+    Double lastFinishTag = lastFinishTags.get(key);
+    double startTag = lastFinishTag == null ? virtualTime : Math.max(virtualTime, lastFinishTag);
+    double finishTag = startTag + 1 / (weight == null ? 1 : weight);
+    lastFinishTags.put(key, finishTag);
+    Task queued = new Task(key, finishTag, sequence++, task);
+    queuedCount++;
+    if (activeKeys.add(key)) {
+      queue.add(queued);
+      notify();
+    } else {
+      Queue<Task> behind = waiting.get(key);
+      if (behind == null) {
+        behind = new ArrayDeque<Task>();
+        waiting.put(key, behind);
+      }
+      behind.add(queued);
+    }
+  }
+
+  public synchronized int getQueuedCount() {
+    return queuedCount;
+  }
+
+  /** Stops the threads once the queued tasks ran. */
+  public synchronized void shutdown() {
+    shutdown = true;
+    notifyAll();
+  }
+
+  /**
+   * Waits for the threads to stop after {@link #shutdown}. Returns false if some still run after
+   * the timeout.
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (Thread thread : threads) {
+      long remainingNanos = deadline - System.nanoTime();
+      if (remainingNanos > 0) {
+        TimeUnit.NANOSECONDS.timedJoin(thread, remainingNanos);
+      }
+      if (thread.isAlive()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private synchronized Task take() throws InterruptedException {
+    while (queue.isEmpty()) {
+      // Tasks waiting behind a running one of their key are queued once it ran.
+      if (shutdown && queuedCount == 0) {
+        return null;
+      }
+      wait();
+    }
+    Task task = queue.poll();
+    queuedCount--;
+    // A task that waited behind one of its key may have a tag below the last one started.
+    virtualTime = Math.max(virtualTime, task.finishTag);
+    if (lastFinishTags.size() > 2 * queuedCount + 1024) {
+      // Keys whose tasks all started no longer push their next task back.
+      for (Iterator<Double> i = lastFinishTags.values().iterator(); i.hasNext(); ) {
+        if (i.next() <= virtualTime) {
+          i.remove();
+        }
+      }
+    }
+    return task;
+  }
+
+  /** Queues the next task of the key, now that its task ran. */
+  private synchronized void finished(String key) {
+    Queue<Task> behind = waiting.get(key);
+    if (behind == null) {
+      activeKeys.remove(key);
+      if (shutdown && queuedCount == 0) {
+        notifyAll();
+      }
+      return;
+    }
+    queue.add(behind.poll());
+    if (behind.isEmpty()) {
+      waiting.remove(key);
+    }
+    notify();
+  }
+
+  private void runTasks() {
+    while (true) {
+      Task task;
+      try {
+        task = take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (task == null) {
+        return;
+      }
+      try {
+        task.runnable.run();
+      } catch (RuntimeException e) {
+        LOG.log(Level.SEVERE, "Fair scheduler task failed", e);
+      } finally {
+        finished(task.key);
+      }
+    }
+  }
+
+  private static final class Task implements Comparable<Task> {
+    final String key;
+    final double finishTag;
+    final long sequence;
+    final Runnable runnable;
+
+    Task(String key, double finishTag, long sequence, Runnable runnable) {
+      this.key = key;
+      this.finishTag = finishTag;
+      this.sequence = sequence;
+      this.runnable = runnable;
+    }
+
+    public int compareTo(Task other) {
+      int byTag = Double.compare(finishTag, other.finishTag);
+      if (byTag != 0) {
+        return byTag;
+      }
+      return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+    }
+  }
+}
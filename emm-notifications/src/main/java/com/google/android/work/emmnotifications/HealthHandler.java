@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.common.base.Preconditions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Serves the liveness and readiness of the subscriber.
+ *
+ * <p>{@link #LIVENESS_PATH} answers 200 as long as the server accepts requests.
+ * {@link #READINESS_PATH} answers 200 once all subscriptions are verified and 503 before, with
+ * the verification progress of each subscription as body.
+ */
+public class HealthHandler implements HttpHandler {
+
+  static final String LIVENESS_PATH = "/healthz";
+  static final String READINESS_PATH = "/readyz";
+
+  private final List<SubscriptionVerifier> verifiers;
+
+  public HealthHandler(List<SubscriptionVerifier> verifiers) {
+    this.verifiers = Preconditions.checkNotNull(verifiers);
+  }
+
+  public void handle(HttpExchange httpExchange) throws IOException {
+    try {
+      if (READINESS_PATH.equals(httpExchange.getRequestURI().getPath())) {
+        boolean ready = true;
+        StringBuilder text = new StringBuilder();
+        for (SubscriptionVerifier verifier : verifiers) {
+          SubscriptionVerifier.Status status = verifier.getStatus();
+          ready &= status == SubscriptionVerifier.Status.READY;
+          text.append(status).append(": ").append(verifier.getDetail()).append('\n');
+        }
+        respond(httpExchange,
+            ready
+                ? HttpStatusCodes.STATUS_CODE_OK
+                : HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE,
+            text.toString());
+      } else {
+        respond(httpExchange, HttpStatusCodes.STATUS_CODE_OK, "OK\n");
+      }
+    } finally {
+      httpExchange.close();
+    }
+  }
+
+  private static void respond(HttpExchange httpExchange, int statusCode, String text)
+      throws IOException {
+    byte[] body = text.getBytes(StandardCharsets.UTF_8);
+    httpExchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    httpExchange.sendResponseHeaders(statusCode, body.length);
+    OutputStream out = httpExchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+}
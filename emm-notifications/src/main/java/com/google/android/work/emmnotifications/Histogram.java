@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative long values, such as latencies in microseconds.
+ *
+ * <p>Values are counted in log-linear buckets: every power of two is split into 16 buckets, so
+ * a bucket is at most 1/16 of its lower bound wide and percentiles are reported within about 6%
+ * of the true value. Recording a value is a couple of shifts, one atomic increment of its bucket
+ * and two {@link LongAdder} additions for the count and sum, which spread over per-thread cells
+ * when contended. The max is only written when it grows, which soon becomes rare.
+ */
+public final class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(bucketOf(value));
+    count.increment();
+    sum.add(value);
+    long currentMax;
+    // Reads first, so that the shared max is not written for most values.
+    while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+      // Retry until the max is at least the value.
+    }
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSum() {
+    return sum.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Returns an upper bound of the value below which the given fraction of the recorded values
+   * falls, for example {@code getPercentile(0.99)} for the 99th percentile. Returns 0 if nothing
+   * was recorded.
+   */
+  public long getPercentile(double fraction) {
+    long total = count.sum();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(fraction * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= Math.max(1, rank)) {
+        return Math.min(upperBoundOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Returns how many recorded values are at most {@code value}, counting the buckets entirely at
+   * or below it. Values sharing a bucket with {@code value} are left out even if they are not
+   * greater, so the count may miss values up to 1/16 below it, but never includes a greater one.
+   */
+  public long getCountAtMost(long value) {
+    if (value < 0) {
+      return 0;
+    }
+    int last = bucketOf(value);
+    if (upperBoundOf(last) > value) {
+      last--;
+    }
+    long seen = 0;
+    for (int i = 0; i <= last; i++) {
+      seen += counts.get(i);
+    }
+    return seen;
+  }
+
+  /** Returns e.g. "p50=120 p90=300 p99=950 max=2000 n=100", for log lines. */
+  public String summary() {
+    return "p50=" + getPercentile(0.5)
+        + " p90=" + getPercentile(0.9)
+        + " p99=" + getPercentile(0.99)
+        + " p999=" + getPercentile(0.999)
+        + " max=" + getMax()
+        + " n=" + getCount();
+  }
+
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    long lowerBound = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+}
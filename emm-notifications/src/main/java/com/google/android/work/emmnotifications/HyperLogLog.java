@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog: estimates the number of distinct keys added, in {@code 2^precision} bytes.
+ *
+ * <p>Keys are given as 64-bit hashes. The relative standard error is about
+ * {@code 1.04 / sqrt(2^precision)}, e.g. 0.8% for a precision of 14, and small cardinalities are
+ * estimated by linear counting. Sketches of the same precision can be merged, which gives the
+ * sketch of the union.
+ */
+final class HyperLogLog {
+
+  private final int precision;
+  private final byte[] registers;
+
+  HyperLogLog(int precision) {
+    Preconditions.checkArgument(precision >= 4 && precision <= 16,
+        "Precision must be between 4 and 16, was %s", precision);
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  void add(long hash) {
+    int index = (int) (hash >>> (64 - precision));
+    // The guard bit bounds the rank when the remaining bits are all zero.
+    long remaining = (hash << precision) | (1L << (precision - 1));
+    int rank = Long.numberOfLeadingZeros(remaining) + 1;
+    if (rank > registers[index]) {
+      registers[index] = (byte) rank;
+    }
+  }
+
+  long estimate() {
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += Math.scalb(1.0, -register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+    double estimate = alpha * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  void merge(HyperLogLog other) {
+    Preconditions.checkArgument(precision == other.precision,
+        "Cannot merge sketches of different precisions");
+    for (int i = 0; i < registers.length; i++) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  void clear() {
+    Arrays.fill(registers, (byte) 0);
+  }
+}
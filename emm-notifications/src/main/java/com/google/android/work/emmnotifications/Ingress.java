@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP server receiving pushes, and serving the metrics and health endpoints.
+ *
+ * <p>Handlers are plain {@link HttpHandler}s whichever implementation serves them, so that the
+ * same push handling runs behind the JDK's server or the NIO one.
+ */
+public interface Ingress {
+
+  /** Implementation of the server. */
+  enum Type {
+    // com.sun.net.httpserver.HttpServer, see JdkIngress.
+    JDK,
+    // Selector-based server with pooled buffers and keep-alive, see NioIngress.
+    NIO
+  }
+
+  /** Routes the requests whose path starts with {@code path} to {@code handler}. */
+  void createContext(String path, HttpHandler handler);
+
+  /** Starts accepting connections. */
+  void start() throws IOException;
+
+  /** Stops accepting connections and closes the open ones. */
+  void stop();
+
+  /**
+   * Stops accepting connections, waits up to the timeout for the requests being served to be
+   * answered, then stops. Returns whether they all were.
+   */
+  boolean drain(long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.InstallFailureEvent;
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates {@link InstallFailureEvent}s over a sliding window, per enterprise, product and
+ * failure reason, in bounded memory, so that failure spikes of a rollout show without storing
+ * every event.
+ *
+ * <p>The window is a ring of buckets of a fixed duration, each holding:
+ * <ul>
+ *   <li>a {@link CountMinSketch} of the failures per (enterprise, product, reason) and per
+ *       enterprise, so that the count of any key can be estimated;
+ *   <li>the heaviest keys, tracked with the Space-Saving algorithm, each with a small
+ *       {@link HyperLogLog} of its devices;
+ *   <li>a {@link HyperLogLog} of all the devices with failures.
+ * </ul>
+ * A query merges the buckets of the requested window and, if the ring is long enough, of the
+ * window before it, so that each count comes with the previous one to compare it to. The
+ * heaviest keys of the window are the union of the heaviest keys of its buckets, counted with the
+ * merged sketch; a key is only missed if it was never among the heaviest of any bucket.
+ */
+public class InstallFailureAggregator extends NotificationListenerAdapter
+    implements NotificationFilter {
+
+  // Each failure is counted for its key and its enterprise, so the error is at most about 0.5%
+  // of the failures of the window, with a 98% probability.
+  private static final int SKETCH_DEPTH = 4;
+  private static final int SKETCH_WIDTH = 1024;
+  // 0.8% error on the devices of the window, 6.5% on the devices of a heavy key.
+  private static final int DEVICE_PRECISION = 14;
+  private static final int KEY_DEVICE_PRECISION = 8;
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final long bucketMillis;
+  private final Bucket[] buckets;
+  private final int topK;
+  private final Metrics.Counter failures;
+
+  /**
+   * @param bucketSeconds duration of a bucket, the granularity of the window
+   * @param windowBuckets number of buckets kept, the longest window that can be queried
+   * @param topK number of heavy keys tracked per bucket and returned per query
+   */
+  public InstallFailureAggregator(int bucketSeconds, int windowBuckets, int topK, Metrics metrics) {
+    Preconditions.checkArgument(bucketSeconds > 0, "Bucket duration must be positive");
+    Preconditions.checkArgument(windowBuckets > 0, "Window must have at least one bucket");
+    Preconditions.checkArgument(topK > 0, "Top-K must be positive");
+    this.bucketMillis = bucketSeconds * 1000L;
+    this.buckets = new Bucket[windowBuckets];
+    for (int i = 0; i < windowBuckets; i++) {
+      buckets[i] = new Bucket();
+    }
+    this.topK = topK;
+    this.failures = metrics.counter(
+        "emm_install_failures_total", "Install failure events aggregated.");
+  }
+
+  /** Creates the aggregator configured in {@link Settings}, or returns null if it is disabled. */
+  public static InstallFailureAggregator fromSettings(Settings settings, Metrics metrics) {
+    if (!settings.isInstallFailureAggregationEnabled()) {
+      return null;
+    }
+    return new InstallFailureAggregator(
+        settings.getInstallFailureBucketSeconds(),
+        settings.getInstallFailureWindowBuckets(),
+        settings.getInstallFailureTopK(),
+        metrics);
+  }
+
+  public boolean accept(NotificationView notification) {
+    return notification.hasEvents(EventType.INSTALL_FAILURE);
+  }
+
+  @Override
+  public void onInstallFailure(MdmPushNotification notification, InstallFailureEvent event) {
+    add(notification.getEnterpriseId(), event.getProductId(), event.getFailureReason().name(),
+        event.getDeviceId(), System.currentTimeMillis());
+  }
+
+  /** Counts a failure at the given time. */
+  public synchronized void add(
+      String enterpriseId, String productId, String reason, String deviceId, long nowMillis) {
+    long epoch = nowMillis / bucketMillis;
+    Bucket bucket = buckets[(int) (epoch % buckets.length)];
+    if (bucket.epoch != epoch) {
+      bucket.clear(epoch);
+    }
+    Key key = new Key(enterpriseId, productId, reason);
+    long deviceHash = HASH.hashString(deviceId, StandardCharsets.UTF_8).asLong();
+    bucket.failures++;
+    bucket.counts.add(key.hash, 1);
+    bucket.counts.add(enterpriseHash(enterpriseId), 1);
+    bucket.devices.add(deviceHash);
+    bucket.heavyHitterOf(key, topK).devices.add(deviceHash);
+    failures.increment();
+  }
+
+  /** Duration of a bucket, to which windows are rounded up. */
+  public int getBucketSeconds() {
+    return (int) (bucketMillis / 1000);
+  }
+
+  /** Longest window that can be queried. */
+  public int getMaxWindowSeconds() {
+    return getBucketSeconds() * buckets.length;
+  }
+
+  /**
+   * Summarizes the failures of the last {@code windowSeconds}.
+   *
+   * @param enterpriseId enterprise to summarize the failures of, or null for all of them
+   */
+  public Summary getSummary(int windowSeconds, String enterpriseId) {
+    return getSummary(windowSeconds, enterpriseId, System.currentTimeMillis());
+  }
+
+  /** Summarizes the failures of the window ending at the given time. */
+  synchronized Summary getSummary(int windowSeconds, String enterpriseId, long nowMillis) {
+    long now = nowMillis / bucketMillis;
+    int length = windowBuckets(windowSeconds);
+    CountMinSketch counts = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+    long failures = 0;
+    HyperLogLog devices = new HyperLogLog(DEVICE_PRECISION);
+    Map<Key, HyperLogLog> candidates = new HashMap<Key, HyperLogLog>();
+    for (Bucket bucket : buckets) {
+      if (bucket.epoch > now - length && bucket.epoch <= now) {
+        counts.merge(bucket.counts);
+        failures += bucket.failures;
+        devices.merge(bucket.devices);
+        for (HeavyHitter heavyHitter : bucket.heavyHitters.values()) {
+          if (enterpriseId == null || enterpriseId.equals(heavyHitter.key.enterpriseId)) {
+            HyperLogLog keyDevices = candidates.get(heavyHitter.key);
+            if (keyDevices == null) {
+              keyDevices = new HyperLogLog(KEY_DEVICE_PRECISION);
+              candidates.put(heavyHitter.key, keyDevices);
+            }
+            keyDevices.merge(heavyHitter.devices);
+          }
+        }
+      }
+    }
+    CountMinSketch previous = previousCounts(now, length);
+
+    List<FailureCount> top = new ArrayList<FailureCount>(candidates.size());
+    for (Map.Entry<Key, HyperLogLog> candidate : candidates.entrySet()) {
+      Key key = candidate.getKey();
+      top.add(new FailureCount(key.enterpriseId, key.productId, key.reason,
+          counts.estimate(key.hash), previous == null ? -1 : previous.estimate(key.hash),
+          candidate.getValue().estimate()));
+    }
+    Collections.sort(top, new Comparator<FailureCount>() {
+      public int compare(FailureCount a, FailureCount b) {
+        return a.failures > b.failures ? -1 : a.failures == b.failures ? 0 : 1;
+      }
+    });
+    if (top.size() > topK) {
+      top = new ArrayList<FailureCount>(top.subList(0, topK));
+    }
+
+    if (enterpriseId == null) {
+      return new Summary(length * getBucketSeconds(), failures,
+          previous == null ? -1 : previousFailures(now, length), devices.estimate(), top);
+    }
+    long hash = enterpriseHash(enterpriseId);
+    return new Summary(length * getBucketSeconds(), counts.estimate(hash),
+        previous == null ? -1 : previous.estimate(hash), -1, top);
+  }
+
+  /** Estimates the failures of a product of an enterprise for a reason in the last window. */
+  public FailureCount getFailureCount(
+      int windowSeconds, String enterpriseId, String productId, String reason) {
+    return getFailureCount(
+        windowSeconds, enterpriseId, productId, reason, System.currentTimeMillis());
+  }
+
+  /** Estimates the failures of a key in the window ending at the given time. */
+  synchronized FailureCount getFailureCount(int windowSeconds, String enterpriseId,
+      String productId, String reason, long nowMillis) {
+    long now = nowMillis / bucketMillis;
+    int length = windowBuckets(windowSeconds);
+    Key key = new Key(enterpriseId, productId, reason);
+    long count = 0;
+    HyperLogLog devices = null;
+    for (Bucket bucket : buckets) {
+      if (bucket.epoch > now - length && bucket.epoch <= now) {
+        count += bucket.counts.estimate(key.hash);
+        HeavyHitter heavyHitter = bucket.heavyHitters.get(key);
+        if (heavyHitter != null) {
+          if (devices == null) {
+            devices = new HyperLogLog(KEY_DEVICE_PRECISION);
+          }
+          devices.merge(heavyHitter.devices);
+        }
+      }
+    }
+    CountMinSketch previous = previousCounts(now, length);
+    return new FailureCount(enterpriseId, productId, reason, count,
+        previous == null ? -1 : previous.estimate(key.hash),
+        devices == null ? -1 : devices.estimate());
+  }
+
+  private int windowBuckets(int windowSeconds) {
+    int length = (int) ((windowSeconds * 1000L + bucketMillis - 1) / bucketMillis);
+    return Math.max(1, Math.min(buckets.length, length));
+  }
+
+  // Merges the window of the given length before the current one, or returns null if the ring
+  // doesn't hold it.
+  private CountMinSketch previousCounts(long now, int length) {
+    if (2 * length > buckets.length) {
+      return null;
+    }
+    CountMinSketch previous = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+    for (Bucket bucket : buckets) {
+      if (bucket.epoch > now - 2 * length && bucket.epoch <= now - length) {
+        previous.merge(bucket.counts);
+      }
+    }
+    return previous;
+  }
+
+  private long previousFailures(long now, int length) {
+    long failures = 0;
+    for (Bucket bucket : buckets) {
+      if (bucket.epoch > now - 2 * length && bucket.epoch <= now - length) {
+        failures += bucket.failures;
+      }
+    }
+    return failures;
+  }
+
+  private static long enterpriseHash(String enterpriseId) {
+    // Distinct from the hashes of the keys, which have three fields.
+    return HASH.newHasher()
+        .putString(enterpriseId, StandardCharsets.UTF_8)
+        .putByte((byte) 1)
+        .hash()
+        .asLong();
+  }
+
+  /** Estimated failures of a key, or of all keys, in a window. */
+  public static final class FailureCount {
+    private final String enterpriseId;
+    private final String productId;
+    private final String reason;
+    private final long failures;
+    private final long previousFailures;
+    private final long distinctDevices;
+
+    FailureCount(String enterpriseId, String productId, String reason, long failures,
+        long previousFailures, long distinctDevices) {
+      this.enterpriseId = enterpriseId;
+      this.productId = productId;
+      this.reason = reason;
+      this.failures = failures;
+      this.previousFailures = previousFailures;
+      this.distinctDevices = distinctDevices;
+    }
+
+    public String getEnterpriseId() {
+      return enterpriseId;
+    }
+
+    public String getProductId() {
+      return productId;
+    }
+
+    public String getReason() {
+      return reason;
+    }
+
+    /** Estimated failures in the window, never below the true count. */
+    public long getFailures() {
+      return failures;
+    }
+
+    /** Estimated failures in the window before, or -1 if it is beyond the ring. */
+    public long getPreviousFailures() {
+      return previousFailures;
+    }
+
+    /**
+     * Estimated devices with failures in the buckets where the key was among the heaviest, or -1
+     * if it never was.
+     */
+    public long getDistinctDevices() {
+      return distinctDevices;
+    }
+  }
+
+  /** Failures in a window, and the keys with the most of them. */
+  public static final class Summary {
+    private final int windowSeconds;
+    private final long failures;
+    private final long previousFailures;
+    private final long distinctDevices;
+    private final List<FailureCount> top;
+
+    Summary(int windowSeconds, long failures, long previousFailures, long distinctDevices,
+        List<FailureCount> top) {
+      this.windowSeconds = windowSeconds;
+      this.failures = failures;
+      this.previousFailures = previousFailures;
+      this.distinctDevices = distinctDevices;
+      this.top = Collections.unmodifiableList(top);
+    }
+
+    /** Duration of the window, rounded up to whole buckets. */
+    public int getWindowSeconds() {
+      return windowSeconds;
+    }
+
+    public long getFailures() {
+      return failures;
+    }
+
+    /** Failures in the window before, or -1 if it is beyond the ring. */
+    public long getPreviousFailures() {
+      return previousFailures;
+    }
+
+    /** Estimated devices with failures, or -1 if the summary is of one enterprise. */
+    public long getDistinctDevices() {
+      return distinctDevices;
+    }
+
+    /** Keys with the most failures, most first. */
+    public List<FailureCount> getTop() {
+      return top;
+    }
+  }
+
+  private static final class Key {
+    final String enterpriseId;
+    final String productId;
+    final String reason;
+    final long hash;
+
+    Key(String enterpriseId, String productId, String reason) {
+      this.enterpriseId = enterpriseId;
+      this.productId = productId;
+      this.reason = reason;
+      this.hash = HASH.newHasher()
+          .putString(enterpriseId, StandardCharsets.UTF_8)
+          .putByte((byte) 0)
+          .putString(productId, StandardCharsets.UTF_8)
+          .putByte((byte) 0)
+          .putString(reason, StandardCharsets.UTF_8)
+          .hash()
+          .asLong();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hash == other.hash && enterpriseId.equals(other.enterpriseId)
+          && productId.equals(other.productId) && reason.equals(other.reason);
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) hash;
+    }
+  }
+
+  private static final class HeavyHitter {
+    Key key;
+    long count;
+    final HyperLogLog devices = new HyperLogLog(KEY_DEVICE_PRECISION);
+  }
+
+  private static final class Bucket {
+    long epoch = -1;
+    long failures;
+    final CountMinSketch counts = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+    final HyperLogLog devices = new HyperLogLog(DEVICE_PRECISION);
+    final Map<Key, HeavyHitter> heavyHitters = new HashMap<Key, HeavyHitter>();
+
+    void clear(long newEpoch) {
+      epoch = newEpoch;
+      failures = 0;
+      counts.clear();
+      devices.clear();
+      heavyHitters.clear();
+    }
+
+    // Space-Saving: a new key replaces the one with the lowest count and inherits it, so a key
+    // whose count exceeds 1/k of the bucket's failures is always tracked.
+    HeavyHitter heavyHitterOf(Key key, int k) {
+      HeavyHitter heavyHitter = heavyHitters.get(key);
+      if (heavyHitter == null) {
+        if (heavyHitters.size() < k) {
+          heavyHitter = new HeavyHitter();
+        } else {
+          HeavyHitter lowest = null;
+          for (HeavyHitter candidate : heavyHitters.values()) {
+            if (lowest == null || candidate.count < lowest.count) {
+              lowest = candidate;
+            }
+          }
+          heavyHitters.remove(lowest.key);
+          heavyHitter = lowest;
+          heavyHitter.devices.clear();
+        }
+        heavyHitter.key = key;
+        heavyHitters.put(key, heavyHitter);
+      }
+      heavyHitter.count++;
+      return heavyHitter;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.android.work.pubsub.EmmPubsub.InstallFailureEvent.InstallFailureReason;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.common.base.Preconditions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Serves the windowed install failure counts of an {@link InstallFailureAggregator} as JSON.
+ *
+ * <ul>
+ *   <li>{@code GET /install-failures} returns the failures of all enterprises and the
+ *       (enterprise, product, reason) keys with the most failures.
+ *   <li>{@code GET /install-failures?enterprise=E} returns the same for enterprise E only.
+ *   <li>{@code GET /install-failures?enterprise=E&product=P} returns the failures of product P
+ *       for each reason.
+ * </ul>
+ * {@code window=S} sets the window to the last S seconds, the longest one by default. Each count
+ * comes with the count of the window before it as {@code previousFailures}, unless the window is
+ * longer than half the longest one.
+ *
+ * <p>Each query merges the buckets of the window, so it is served behind an
+ * {@link ExecutingHandler}.
+ */
+public class InstallFailureHandler implements HttpHandler {
+
+  static final String PATH = "/install-failures";
+
+  private final InstallFailureAggregator aggregator;
+  private final JsonFactory jsonFactory = new JsonFactory();
+
+  public InstallFailureHandler(InstallFailureAggregator aggregator) {
+    this.aggregator = Preconditions.checkNotNull(aggregator);
+  }
+
+  public void handle(HttpExchange httpExchange) throws IOException {
+    try {
+      if (!"GET".equals(httpExchange.getRequestMethod())) {
+        httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_METHOD_NOT_ALLOWED, -1);
+        return;
+      }
+      Map<String, String> query =
+          QueryStrings.parse(httpExchange.getRequestURI().getRawQuery());
+      String enterpriseId = query.get("enterprise");
+      String productId = query.get("product");
+      int windowSeconds = aggregator.getMaxWindowSeconds();
+      if (query.containsKey("window")) {
+        try {
+          windowSeconds = Integer.parseInt(query.get("window"));
+        } catch (NumberFormatException e) {
+          httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_BAD_REQUEST, -1);
+          return;
+        }
+      }
+
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      JsonGenerator json = jsonFactory.createJsonGenerator(body);
+      json.writeStartObject();
+      if (enterpriseId != null && productId != null) {
+        json.writeStringField("enterpriseId", enterpriseId);
+        json.writeStringField("productId", productId);
+        json.writeObjectFieldStart("reasons");
+        for (InstallFailureReason reason : InstallFailureReason.values()) {
+          InstallFailureAggregator.FailureCount count = aggregator.getFailureCount(
+              windowSeconds, enterpriseId, productId, reason.name());
+          json.writeObjectFieldStart(reason.name());
+          writeCount(json, count);
+          json.writeEndObject();
+        }
+        json.writeEndObject();
+      } else {
+        InstallFailureAggregator.Summary summary =
+            aggregator.getSummary(windowSeconds, enterpriseId);
+        json.writeNumberField("windowSeconds", summary.getWindowSeconds());
+        if (enterpriseId != null) {
+          json.writeStringField("enterpriseId", enterpriseId);
+        }
+        json.writeNumberField("failures", summary.getFailures());
+        if (summary.getPreviousFailures() >= 0) {
+          json.writeNumberField("previousFailures", summary.getPreviousFailures());
+        }
+        if (summary.getDistinctDevices() >= 0) {
+          json.writeNumberField("distinctDevices", summary.getDistinctDevices());
+        }
+        json.writeArrayFieldStart("top");
+        for (InstallFailureAggregator.FailureCount count : summary.getTop()) {
+          json.writeStartObject();
+          json.writeStringField("enterpriseId", count.getEnterpriseId());
+          json.writeStringField("productId", count.getProductId());
+          json.writeStringField("reason", count.getReason());
+          writeCount(json, count);
+          json.writeEndObject();
+        }
+        json.writeEndArray();
+      }
+      json.writeEndObject();
+      json.close();
+
+      byte[] bytes = body.toByteArray();
+      httpExchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_OK, bytes.length);
+      OutputStream out = httpExchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    } finally {
+      httpExchange.close();
+    }
+  }
+
+  private static void writeCount(JsonGenerator json, InstallFailureAggregator.FailureCount count)
+      throws IOException {
+    json.writeNumberField("failures", count.getFailures());
+    if (count.getPreviousFailures() >= 0) {
+      json.writeNumberField("previousFailures", count.getPreviousFailures());
+    }
+    if (count.getDistinctDevices() >= 0) {
+      json.writeNumberField("distinctDevices", count.getDistinctDevices());
+    }
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.client.http.HttpStatusCodes;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Ingress on the JDK's {@link HttpServer}, which accepts and reads requests on one dispatcher
+ * thread.
+ *
+ * <p>An exchange is in flight from the time it is handed to its handler until it is closed,
+ * which for a push happens on a worker thread after the handler returned. Draining waits for
+ * the exchanges in flight to be closed, answering new requests with 503 meanwhile, and then
+ * stops the server.
+ */
+public class JdkIngress implements Ingress {
+
+  private static final Logger LOG = Logger.getLogger(JdkIngress.class.getName());
+
+  private static final long DRAIN_POLL_MILLIS = 10;
+
+  private final HttpServer server;
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private volatile boolean draining;
+
+  /**
+   * @param backlog maximum number of connections waiting to be accepted, 0 for the system
+   *     default
+   */
+  public JdkIngress(InetSocketAddress address, int backlog) throws IOException {
+    this.server = HttpServer.create(address, backlog);
+    server.setExecutor(null);
+  }
+
+  public void createContext(String path, final HttpHandler handler) {
+    server.createContext(path, new HttpHandler() {
+      public void handle(HttpExchange httpExchange) throws IOException {
+        if (draining) {
+          // Cloud Pub/Sub redelivers the push, to another instance or after the restart.
+          httpExchange.getResponseHeaders().set("Connection", "close");
+          httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE, -1);
+          httpExchange.close();
+          return;
+        }
+        TrackedExchange tracked = new TrackedExchange(httpExchange);
+        inFlight.incrementAndGet();
+        boolean handled = false;
+        try {
+          handler.handle(tracked);
+          handled = true;
+        } finally {
+          if (!handled) {
+            // The server closes the exchange itself, the handler won't.
+            tracked.release();
+          }
+        }
+      }
+    });
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+  }
+
+  /**
+   * Rejects new requests, waits for the exchanges in flight to be closed, then stops the server.
+   */
+  public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    draining = true;
+    while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(DRAIN_POLL_MILLIS);
+    }
+    int remaining = inFlight.get();
+    if (remaining > 0) {
+      LOG.warning("Stopping with " + remaining + " exchanges still in flight after draining");
+    }
+    server.stop(0);
+    return remaining == 0;
+  }
+
+  /** Passes everything on to the server's exchange, and counts it as done once closed. */
+  private final class TrackedExchange extends HttpExchange {
+    private final HttpExchange delegate;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    TrackedExchange(HttpExchange delegate) {
+      this.delegate = delegate;
+    }
+
+    void release() {
+      if (released.compareAndSet(false, true)) {
+        inFlight.decrementAndGet();
+      }
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+      return delegate.getRequestHeaders();
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+      return delegate.getResponseHeaders();
+    }
+
+    @Override
+    public URI getRequestURI() {
+      return delegate.getRequestURI();
+    }
+
+    @Override
+    public String getRequestMethod() {
+      return delegate.getRequestMethod();
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+      return delegate.getHttpContext();
+    }
+
+    @Override
+    public void close() {
+      try {
+        delegate.close();
+      } finally {
+        release();
+      }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+      return delegate.getRequestBody();
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+      return delegate.getResponseBody();
+    }
+
+    @Override
+    public void sendResponseHeaders(int code, long responseLength) throws IOException {
+      delegate.sendResponseHeaders(code, responseLength);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+      return delegate.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+      return delegate.getResponseCode();
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+      return delegate.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+      return delegate.getProtocol();
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      return delegate.getAttribute(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+      delegate.setAttribute(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream in, OutputStream out) {
+      delegate.setStreams(in, out);
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+      return delegate.getPrincipal();
+    }
+  }
+}
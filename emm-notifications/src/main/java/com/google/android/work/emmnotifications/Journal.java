@@ -0,0 +1,458 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of received notifications, stored in memory-mapped segment files.
+ *
+ * <p>Appending only copies the record into the mapped segment. A single flusher thread forces the
+ * segment to disk and then releases every thread waiting for a record written before the flush
+ * started, so concurrent appends share one fsync (group commit). A notification should only be
+ * acknowledged once {@link #awaitDurable} returned for its record.
+ *
+ * <p>The journal is write-only: the subscriber never reads the records back, and keeps what was
+ * received for the retention period, to be inspected or reprocessed offline. A journaled record
+ * only guarantees that the notification was received, not that it was handled: unless the
+ * {@link EventDispatcher} awaits its listeners, a message is acknowledged once its events are
+ * queued for them, and events still queued when the process crashes are not delivered after a
+ * restart even though their records are on disk.
+ *
+ * <p>Each record is laid out as
+ * <pre>
+ *   int payload length + 1 | int crc32(timestamp, payload) | long timestamp millis | payload
+ * </pre>
+ * A zero marks the end of the written part of a segment, an empty payload is stored as 1. On
+ * startup the segments are scanned and the last one is truncated after its last intact record.
+ * Segments older than the retention period are deleted in the background.
+ */
+public class Journal {
+
+  private static final Logger LOG = Logger.getLogger(Journal.class.getName());
+
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final int HEADER_SIZE = 4 + 4 + 8;
+  private static final long RETENTION_CHECK_INTERVAL_MINUTES = 10;
+
+  /** Receives the records found when scanning a segment. */
+  private interface RecordVisitor {
+    void visit(long timestampMillis, ByteBuffer payload);
+  }
+
+  private final File directory;
+  private final int segmentSize;
+  private final long retentionMillis;
+  private final long commitDelayMicros;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition appended = lock.newCondition();
+  private final Condition flushed = lock.newCondition();
+
+  // All guarded by lock.
+  private Segment current;
+  private long appendedSequence;
+  private long durableSequence;
+  private IOException flushFailure;
+  private boolean closed;
+  private long recoveredRecords;
+
+  private final Thread flusher;
+  private final ScheduledExecutorService retention = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("journal-retention").setDaemon(true).build());
+
+  /**
+   * Opens the journal in {@code directory}, creating it if needed, and recovers the segments
+   * written by a previous run.
+   *
+   * @param segmentSize size of each segment file in bytes
+   * @param retentionMillis how long segments are kept after they were last written
+   * @param commitDelayMicros how long the flusher waits for more appends before each fsync
+   */
+  public Journal(File directory, int segmentSize, long retentionMillis, long commitDelayMicros)
+      throws IOException {
+    Preconditions.checkArgument(segmentSize > HEADER_SIZE, "Segment size too small");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create journal directory " + directory);
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.retentionMillis = retentionMillis;
+    this.commitDelayMicros = commitDelayMicros;
+
+    this.current = recover();
+    this.flusher = new Thread(new Runnable() {
+      public void run() {
+        flushLoop();
+      }
+    }, "journal-flusher");
+    this.flusher.setDaemon(true);
+  }
+
+  /** Opens the journal configured in {@link Settings}, or returns null if it is disabled. */
+  public static Journal fromSettings(Settings settings) throws IOException {
+    String directory = settings.getJournalDirectory();
+    if (directory == null) {
+      return null;
+    }
+    long segmentSize = (long) settings.getJournalSegmentSizeMb() << 20;
+    // Segments are mapped as a whole, and a mapping is limited to 2 GB.
+    Preconditions.checkArgument(segmentSize > 0 && segmentSize <= Integer.MAX_VALUE,
+        "JournalSegmentSizeMb must be between 1 and 2047, was %s",
+        settings.getJournalSegmentSizeMb());
+    Journal journal = new Journal(
+        new File(directory),
+        (int) segmentSize,
+        TimeUnit.HOURS.toMillis(settings.getJournalRetentionHours()),
+        settings.getJournalCommitDelayMicros());
+    journal.start();
+    return journal;
+  }
+
+  public void start() {
+    flusher.start();
+    retention.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        deleteExpiredSegments();
+      }
+    }, 0, RETENTION_CHECK_INTERVAL_MINUTES, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Appends a record and returns its sequence number. The record is not durable until
+   * {@link #awaitDurable} returns for that sequence number.
+   */
+  public long append(ByteBuffer payload) throws IOException {
+    int length = payload.remaining();
+    CRC32 crc = new CRC32();
+    long timestamp = System.currentTimeMillis();
+    crc.update(longBytes(timestamp));
+    crc.update(payload.duplicate());
+
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IOException("Journal is closed");
+      }
+      if (current.buffer.remaining() < HEADER_SIZE + length) {
+        roll(HEADER_SIZE + length);
+      }
+      MappedByteBuffer buffer = current.buffer;
+      int start = buffer.position();
+      buffer.position(start + 4);
+      buffer.putInt((int) crc.getValue());
+      buffer.putLong(timestamp);
+      buffer.put(payload.duplicate());
+      // The length goes in last, so that a torn write never looks like a complete record.
+      buffer.putInt(start, length + 1);
+      long sequence = ++appendedSequence;
+      appended.signal();
+      return sequence;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Blocks until the record with the given sequence number has been forced to disk. */
+  public void awaitDurable(long sequence) throws IOException {
+    lock.lock();
+    try {
+      while (durableSequence < sequence) {
+        if (flushFailure != null) {
+          throw new IOException("Could not flush journal", flushFailure);
+        }
+        if (closed) {
+          throw new IOException("Journal closed before the record was flushed");
+        }
+        flushed.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the number of intact records found when the journal was opened. */
+  long getRecoveredRecords() {
+    return recoveredRecords;
+  }
+
+  /** Flushes all appended records, stops the journal and closes the current segment. */
+  public void close() throws InterruptedException {
+    lock.lock();
+    try {
+      closed = true;
+      appended.signal();
+    } finally {
+      lock.unlock();
+    }
+    flusher.join();
+    retention.shutdownNow();
+    lock.lock();
+    try {
+      current.buffer.force();
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Could not flush journal segment " + current.file, e);
+    } finally {
+      current.close();
+      lock.unlock();
+    }
+  }
+
+  private void flushLoop() {
+    while (true) {
+      Segment segment;
+      long sequence;
+      lock.lock();
+      try {
+        while (appendedSequence == durableSequence && !closed) {
+          appended.awaitUninterruptibly();
+        }
+        if (appendedSequence == durableSequence) {
+          flushed.signalAll();
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+
+      if (commitDelayMicros > 0) {
+        // Lets more appends join this flush.
+        try {
+          TimeUnit.MICROSECONDS.sleep(commitDelayMicros);
+        } catch (InterruptedException e) {
+          // Flush right away.
+        }
+      }
+
+      lock.lock();
+      try {
+        segment = current;
+        sequence = appendedSequence;
+      } finally {
+        lock.unlock();
+      }
+
+      IOException failure = null;
+      try {
+        segment.buffer.force();
+      } catch (RuntimeException e) {
+        // MappedByteBuffer reports I/O errors as unchecked exceptions.
+        failure = new IOException(e);
+        LOG.log(Level.SEVERE, "Could not flush journal segment " + segment.file, e);
+      }
+
+      lock.lock();
+      try {
+        if (failure == null) {
+          durableSequence = Math.max(durableSequence, sequence);
+        } else {
+          flushFailure = failure;
+        }
+        flushed.signalAll();
+        if (failure != null) {
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  // Called with the lock held.
+  private void roll(int minimumSize) throws IOException {
+    // Records of the old segment must be durable before anything lands in the new one.
+    current.buffer.force();
+    current.close();
+    current = createSegment(Math.max(segmentSize, minimumSize));
+  }
+
+  private Segment createSegment(int size) throws IOException {
+    File file = new File(directory, String.format(
+        "%s%020d%s", SEGMENT_PREFIX, System.currentTimeMillis(), SEGMENT_SUFFIX));
+    while (file.exists()) {
+      file = new File(directory, file.getName().replace(SEGMENT_SUFFIX, "_" + SEGMENT_SUFFIX));
+    }
+    LOG.info("Starting journal segment " + file);
+    return new Segment(file, size);
+  }
+
+  /** Scans the existing segments and returns the one to append to. */
+  private Segment recover() throws IOException {
+    List<File> segments = listSegments();
+    final long[] records = new long[1];
+    RecordVisitor counter = new RecordVisitor() {
+      public void visit(long timestampMillis, ByteBuffer payload) {
+        records[0]++;
+      }
+    };
+
+    Segment last = null;
+    for (int i = 0; i < segments.size(); i++) {
+      File file = segments.get(i);
+      if (i < segments.size() - 1) {
+        MappedByteBuffer buffer = map(file, file.length());
+        while (readRecord(buffer, counter)) {
+          // Keep counting.
+        }
+      } else {
+        last = new Segment(file, (int) file.length());
+        while (readRecord(last.buffer, counter)) {
+          // Keep counting.
+        }
+        // Wipe whatever is left of a torn write, so that appends continue after the last intact
+        // record.
+        int end = last.buffer.position();
+        for (int p = end; p < Math.min(last.buffer.limit(), end + HEADER_SIZE); p++) {
+          last.buffer.put(p, (byte) 0);
+        }
+        last.buffer.force();
+      }
+    }
+    recoveredRecords = records[0];
+    LOG.info("Recovered " + records[0] + " journal records from " + segments.size()
+        + " segments in " + directory);
+    return last != null && last.buffer.remaining() > HEADER_SIZE
+        ? last
+        : createSegment(segmentSize);
+  }
+
+  /**
+   * Reads the record at the buffer's position. Returns false and leaves the position untouched
+   * if there is no intact record there.
+   */
+  private static boolean readRecord(ByteBuffer buffer, RecordVisitor visitor) {
+    int start = buffer.position();
+    if (buffer.remaining() < HEADER_SIZE) {
+      return false;
+    }
+    // Stored plus one, so that an empty payload differs from the end of the segment.
+    int length = buffer.getInt(start) - 1;
+    if (length < 0 || length > buffer.remaining() - HEADER_SIZE) {
+      return false;
+    }
+    int storedCrc = buffer.getInt(start + 4);
+    long timestamp = buffer.getLong(start + 8);
+
+    ByteBuffer payload = buffer.duplicate();
+    payload.position(start + HEADER_SIZE);
+    payload.limit(start + HEADER_SIZE + length);
+    CRC32 crc = new CRC32();
+    crc.update(longBytes(timestamp));
+    crc.update(payload.duplicate());
+    if ((int) crc.getValue() != storedCrc) {
+      return false;
+    }
+
+    visitor.visit(timestamp, payload.slice());
+    buffer.position(start + HEADER_SIZE + length);
+    return true;
+  }
+
+  private void deleteExpiredSegments() {
+    try {
+      long cutoff = System.currentTimeMillis() - retentionMillis;
+      File active;
+      lock.lock();
+      try {
+        active = current.file;
+      } finally {
+        lock.unlock();
+      }
+      for (File file : listSegments()) {
+        if (!file.equals(active) && file.lastModified() < cutoff) {
+          if (file.delete()) {
+            LOG.info("Deleted expired journal segment " + file);
+          } else {
+            LOG.warning("Could not delete expired journal segment " + file);
+          }
+        }
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Error when deleting expired journal segments", e);
+    }
+  }
+
+  private List<File> listSegments() throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Could not list journal directory " + directory);
+    }
+    List<File> segments = new ArrayList<File>();
+    for (File file : files) {
+      if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+        segments.add(file);
+      }
+    }
+    // Names start with the creation time, so this is oldest first.
+    File[] sorted = segments.toArray(new File[segments.size()]);
+    Arrays.sort(sorted);
+    return Arrays.asList(sorted);
+  }
+
+  private static MappedByteBuffer map(File file, long size) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static byte[] longBytes(long value) {
+    return ByteBuffer.allocate(8).putLong(value).array();
+  }
+
+  private static final class Segment {
+    final File file;
+    final RandomAccessFile raf;
+    final MappedByteBuffer buffer;
+
+    Segment(File file, int size) throws IOException {
+      this.file = file;
+      this.raf = new RandomAccessFile(file, "rw");
+      // Mapping beyond the end of the file grows it with zeros, which read as "no record".
+      this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    void close() {
+      try {
+        raf.close();
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Could not close journal segment " + file, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.services.pubsub.Pubsub;
+import com.google.api.services.pubsub.model.ModifyAckDeadlineRequest;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the leases of pulled messages alive while they are being processed.
+ *
+ * <p>Every message whose ack deadline is about to expire gets its deadline extended with a
+ * batched {@code modifyAckDeadline} call. The extension is derived from the measured processing
+ * time, using a smoothed mean and mean deviation the same way TCP estimates its retransmission
+ * timeout, so that it covers slow messages without holding on to lost ones for too long.
+ * Messages that failed to process are released with a zero deadline to be redelivered at once.
+ */
+public class LeaseManager {
+
+  private static final Logger LOG = Logger.getLogger(LeaseManager.class.getName());
+
+  // Limits imposed by Cloud Pub/Sub on ack deadlines.
+  private static final int MIN_DEADLINE_SECONDS = 10;
+  private static final int MAX_DEADLINE_SECONDS = 600;
+
+  // Leases are extended when they are this close to expiring.
+  private static final long EXTENSION_MARGIN_MILLIS = 5000;
+
+  // Messages still in flight after this long are given up on and will be redelivered.
+  private static final long MAX_LEASE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+  // Maximum number of ack IDs sent in a single modifyAckDeadline call.
+  private static final int MAX_BATCH_SIZE = 1000;
+
+  private final Pubsub client;
+  private final String subscriptionName;
+  private final int initialDeadlineSeconds;
+  private final Map<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+  private final ConcurrentLinkedQueue<String> nacks = new ConcurrentLinkedQueue<String>();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("lease-manager").setDaemon(true).build());
+
+  // Smoothed processing time and its mean deviation in milliseconds, guarded by this.
+  private double smoothedMillis = -1;
+  private double deviationMillis;
+
+  public LeaseManager(Pubsub client, String subscriptionName, int initialDeadlineSeconds) {
+    this.client = Preconditions.checkNotNull(client);
+    this.subscriptionName = Preconditions.checkNotNull(subscriptionName);
+    this.initialDeadlineSeconds = initialDeadlineSeconds;
+  }
+
+  public void start() {
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          extendExpiringLeases();
+          sendNacks();
+        } catch (RuntimeException e) {
+          LOG.log(Level.WARNING, "Error when extending leases", e);
+        }
+      }
+    }, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  public void close() {
+    scheduler.shutdownNow();
+    sendNacks();
+  }
+
+  /** Starts tracking a message that was just pulled. */
+  public void register(String ackId) {
+    long now = System.currentTimeMillis();
+    leases.put(ackId, new Lease(now, now + TimeUnit.SECONDS.toMillis(initialDeadlineSeconds)));
+  }
+
+  /** Stops tracking a message that was processed and records how long the processing took. */
+  public void complete(String ackId) {
+    Lease lease = leases.remove(ackId);
+    if (lease != null) {
+      recordProcessingTime(System.currentTimeMillis() - lease.receivedMillis);
+    }
+  }
+
+  /**
+   * Stops tracking a message without acknowledging it, so that it is redelivered once its lease
+   * expired.
+   */
+  public void release(String ackId) {
+    leases.remove(ackId);
+  }
+
+  /** Stops tracking a message that failed to process and asks for it to be redelivered. */
+  public void nack(String ackId) {
+    if (leases.remove(ackId) != null) {
+      nacks.add(ackId);
+    }
+  }
+
+  /** Deadline in seconds given to leases when they are extended. */
+  synchronized int getExtensionSeconds() {
+    if (smoothedMillis < 0) {
+      return initialDeadlineSeconds;
+    }
+    double estimateMillis = smoothedMillis + 4 * deviationMillis;
+    int seconds = (int) Math.ceil(estimateMillis / 1000);
+    return Math.max(MIN_DEADLINE_SECONDS, Math.min(MAX_DEADLINE_SECONDS, seconds));
+  }
+
+  /** Updates the estimate of the processing time with that of a message. */
+  synchronized void recordProcessingTime(long millis) {
+    if (smoothedMillis < 0) {
+      smoothedMillis = millis;
+      deviationMillis = millis / 2.0;
+    } else {
+      deviationMillis = 0.75 * deviationMillis + 0.25 * Math.abs(smoothedMillis - millis);
+      smoothedMillis = 0.875 * smoothedMillis + 0.125 * millis;
+    }
+  }
+
+  private void extendExpiringLeases() {
+    long now = System.currentTimeMillis();
+    int extensionSeconds = getExtensionSeconds();
+    List<String> expiring = new ArrayList<String>();
+
+    Iterator<Map.Entry<String, Lease>> it = leases.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Lease> entry = it.next();
+      Lease lease = entry.getValue();
+      if (now - lease.receivedMillis > MAX_LEASE_MILLIS) {
+        LOG.warning("Giving up the lease on a message in flight for over "
+            + TimeUnit.MILLISECONDS.toMinutes(MAX_LEASE_MILLIS) + " minutes");
+        it.remove();
+      } else if (lease.deadlineMillis - now < EXTENSION_MARGIN_MILLIS) {
+        lease.deadlineMillis = now + TimeUnit.SECONDS.toMillis(extensionSeconds);
+        expiring.add(entry.getKey());
+      }
+    }
+
+    for (int from = 0; from < expiring.size(); from += MAX_BATCH_SIZE) {
+      List<String> batch = expiring.subList(from, Math.min(expiring.size(), from + MAX_BATCH_SIZE));
+      modifyAckDeadline(batch, extensionSeconds);
+    }
+  }
+
+  private void sendNacks() {
+    List<String> batch = new ArrayList<String>();
+    String ackId;
+    while ((ackId = nacks.poll()) != null) {
+      batch.add(ackId);
+      if (batch.size() == MAX_BATCH_SIZE) {
+        modifyAckDeadline(batch, 0);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      modifyAckDeadline(batch, 0);
+    }
+  }
+
+  private void modifyAckDeadline(List<String> ackIds, int deadlineSeconds) {
+    try {
+      client
+          .projects()
+          .subscriptions()
+          .modifyAckDeadline(subscriptionName, new ModifyAckDeadlineRequest()
+              .setAckIds(new ArrayList<String>(ackIds))
+              .setAckDeadlineSeconds(deadlineSeconds))
+          .execute();
+      LOG.fine("Set ack deadline of " + ackIds.size() + " messages to " + deadlineSeconds + "s");
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not modify ack deadline of " + ackIds.size() + " messages", e);
+    }
+  }
+
+  private static final class Lease {
+    final long receivedMillis;
+    volatile long deadlineMillis;
+
+    Lease(long receivedMillis, long deadlineMillis) {
+      this.receivedMillis = receivedMillis;
+      this.deadlineMillis = deadlineMillis;
+    }
+  }
+}
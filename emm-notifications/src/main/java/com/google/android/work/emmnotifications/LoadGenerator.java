@@ -0,0 +1,383 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub;
+import com.google.api.services.pubsub.Pubsub;
+import com.google.api.services.pubsub.model.AcknowledgeRequest;
+import com.google.api.services.pubsub.model.PublishRequest;
+import com.google.api.services.pubsub.model.PubsubMessage;
+import com.google.api.services.pubsub.model.PullRequest;
+import com.google.api.services.pubsub.model.ReceivedMessage;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes synthetic EMM notifications at a target rate, to capacity-test subscribers.
+ *
+ * <p>Several threads publish batches of messages, sharing one rate limiter. Each notification
+ * carries one event picked from a weighted mix of event types, for an enterprise picked among
+ * a configurable number of enterprises, and the time it was sent in
+ * {@code event_notification_sent_timestamp_millis}. Throughput and publish latency percentiles
+ * are reported periodically. If a subscription of the topic is given, the generator also pulls
+ * from it and reports end-to-end latency from the embedded timestamps.
+ */
+public class LoadGenerator {
+
+  private static final Logger LOG = Logger.getLogger(LoadGenerator.class.getName());
+
+  private static final int PRODUCT_COUNT = 1000;
+  private static final int E2E_PULL_MAX_MESSAGES = 1000;
+  // How long to keep pulling after publishing stopped, for the last messages to arrive.
+  private static final long E2E_DRAIN_SECONDS = 10;
+
+  private final Pubsub client;
+  private final String topicName;
+  private final double rate;
+  private final int concurrency;
+  private final int batchSize;
+  private final int enterprises;
+  private final long durationSeconds;
+  private final long reportIntervalSeconds;
+  private final String e2eSubscription;
+  private final EventType[] mixTypes;
+  private final int[] mixCumulativeWeights;
+
+  private final RateLimiter rateLimiter;
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong received = new AtomicLong();
+  // Microseconds from sending a PublishRequest until its response.
+  private final Histogram publishLatency = new Histogram();
+  // Milliseconds from publishing a message until it was pulled, if measured.
+  private final Histogram endToEndLatency = new Histogram();
+
+  private volatile boolean publishing = true;
+  private volatile boolean pulling = true;
+
+  public LoadGenerator(
+      Pubsub client,
+      String topicName,
+      double rate,
+      int concurrency,
+      int batchSize,
+      int enterprises,
+      Map<EventType, Integer> mix,
+      long durationSeconds,
+      long reportIntervalSeconds,
+      String e2eSubscription) {
+    Preconditions.checkArgument(rate > 0, "Rate must be positive");
+    Preconditions.checkArgument(concurrency > 0, "Concurrency must be positive");
+    Preconditions.checkArgument(batchSize > 0, "Batch size must be positive");
+    Preconditions.checkArgument(enterprises > 0, "Enterprise count must be positive");
+    this.client = client;
+    this.topicName = topicName;
+    this.rate = rate;
+    this.concurrency = concurrency;
+    this.batchSize = batchSize;
+    this.enterprises = enterprises;
+    this.durationSeconds = durationSeconds;
+    this.reportIntervalSeconds = reportIntervalSeconds;
+    this.e2eSubscription = e2eSubscription;
+    this.rateLimiter = RateLimiter.create(rate);
+
+    List<EventType> types = new ArrayList<EventType>();
+    List<Integer> weights = new ArrayList<Integer>();
+    int total = 0;
+    for (Map.Entry<EventType, Integer> entry : mix.entrySet()) {
+      if (entry.getValue() > 0) {
+        total += entry.getValue();
+        types.add(entry.getKey());
+        weights.add(total);
+      }
+    }
+    Preconditions.checkArgument(total > 0, "The event mix must have a positive weight");
+    this.mixTypes = types.toArray(new EventType[types.size()]);
+    this.mixCumulativeWeights = new int[weights.size()];
+    for (int i = 0; i < weights.size(); i++) {
+      mixCumulativeWeights[i] = weights.get(i);
+    }
+  }
+
+  /** Adds the options of the load-generating mode to {@code options}. */
+  public static Options addOptions(Options options) {
+    return options
+        .addOption("r", "rate", true, "Target number of messages published per second")
+        .addOption("c", "concurrency", true, "Number of publishing threads")
+        .addOption("b", "batch", true, "Number of messages per PublishRequest")
+        .addOption("e", "enterprises", true, "Number of distinct enterprise IDs")
+        .addOption("m", "mix", true, "Weighted event mix, for example "
+            + "PRODUCT_APPROVAL=5,INSTALL_FAILURE=2. All event types weigh 1 by default")
+        .addOption("d", "duration", true, "Seconds to publish for")
+        .addOption("i", "report-interval", true, "Seconds between reports")
+        .addOption("s", "e2e-subscription", true,
+            "Pull subscription of the topic to measure end-to-end latency with");
+  }
+
+  /** Creates a generator from options added by {@link #addOptions}. */
+  public static LoadGenerator fromCommandLine(Pubsub client, String topicName, CommandLine cmd) {
+    return new LoadGenerator(
+        client,
+        topicName,
+        Double.parseDouble(cmd.getOptionValue("rate", "100")),
+        Integer.parseInt(cmd.getOptionValue("concurrency", "4")),
+        Integer.parseInt(cmd.getOptionValue("batch", "10")),
+        Integer.parseInt(cmd.getOptionValue("enterprises", "100")),
+        parseMix(cmd.getOptionValue("mix")),
+        Long.parseLong(cmd.getOptionValue("duration", "60")),
+        Long.parseLong(cmd.getOptionValue("report-interval", "5")),
+        cmd.getOptionValue("e2e-subscription"));
+  }
+
+  /** Parses a mix like "PRODUCT_APPROVAL=5,INSTALL_FAILURE=2", or returns equal weights. */
+  static Map<EventType, Integer> parseMix(String mix) {
+    Map<EventType, Integer> weights = new EnumMap<EventType, Integer>(EventType.class);
+    if (mix == null) {
+      for (EventType type : EventType.values()) {
+        weights.put(type, 1);
+      }
+      return weights;
+    }
+    for (String entry : mix.split(",")) {
+      String[] parts = entry.split("=");
+      Preconditions.checkArgument(parts.length == 2, "Invalid event mix entry: %s", entry);
+      weights.put(
+          EventType.valueOf(parts[0].trim().toUpperCase()), Integer.parseInt(parts[1].trim()));
+    }
+    return weights;
+  }
+
+  /** Publishes for the configured duration, then logs a final report. */
+  public void run() throws InterruptedException {
+    LOG.info("Publishing " + rate + " messages/s to " + topicName + " for " + durationSeconds
+        + "s with " + concurrency + " threads in batches of " + batchSize);
+
+    List<Thread> publishers = new ArrayList<Thread>();
+    for (int i = 0; i < concurrency; i++) {
+      publishers.add(startThread("publisher-" + i, new Runnable() {
+        public void run() {
+          publishLoop();
+        }
+      }));
+    }
+    Thread puller = null;
+    if (e2eSubscription != null) {
+      puller = startThread("e2e-puller", new Runnable() {
+        public void run() {
+          pullLoop();
+        }
+      });
+    }
+
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+    long lastPublished = 0;
+    long lastReport = start;
+    while (System.nanoTime() < end) {
+      TimeUnit.NANOSECONDS.sleep(Math.min(
+          end - System.nanoTime(), TimeUnit.SECONDS.toNanos(reportIntervalSeconds)));
+      long now = System.nanoTime();
+      long total = published.get();
+      report("interval", total - lastPublished, now - lastReport);
+      lastPublished = total;
+      lastReport = now;
+    }
+
+    publishing = false;
+    for (Thread publisher : publishers) {
+      publisher.join();
+    }
+    if (puller != null) {
+      long drainEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(E2E_DRAIN_SECONDS);
+      while (received.get() < published.get() && System.nanoTime() < drainEnd) {
+        Thread.sleep(100);
+      }
+      pulling = false;
+      puller.join();
+    }
+    report("total", published.get(), System.nanoTime() - start);
+  }
+
+  private void report(String label, long messages, long elapsedNanos) {
+    double seconds = elapsedNanos / 1e9;
+    StringBuilder report = new StringBuilder()
+        .append(label).append(": published ").append(messages).append(" messages, ")
+        .append(String.format("%.1f", messages / seconds)).append(" messages/s, ")
+        .append(errors.get()).append(" failed requests; publish latency (us) ")
+        .append(publishLatency.summary());
+    if (e2eSubscription != null) {
+      report.append("; received ").append(received.get())
+          .append(", end-to-end latency (ms) ").append(endToEndLatency.summary());
+    }
+    LOG.info(report.toString());
+  }
+
+  private void publishLoop() {
+    while (publishing) {
+      rateLimiter.acquire(batchSize);
+      List<PubsubMessage> messages = new ArrayList<PubsubMessage>(batchSize);
+      long sentMillis = System.currentTimeMillis();
+      for (int i = 0; i < batchSize; i++) {
+        messages.add(new PubsubMessage().encodeData(newNotification(sentMillis).toByteArray()));
+      }
+
+      long start = System.nanoTime();
+      try {
+        client
+            .projects()
+            .topics()
+            .publish(topicName, new PublishRequest().setMessages(messages))
+            .execute();
+        publishLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        published.addAndGet(batchSize);
+      } catch (IOException e) {
+        errors.incrementAndGet();
+        LOG.log(Level.FINE, "Publish failed", e);
+      }
+    }
+  }
+
+  private void pullLoop() {
+    while (pulling) {
+      try {
+        List<ReceivedMessage> messages = client
+            .projects()
+            .subscriptions()
+            .pull(e2eSubscription, new PullRequest()
+                .setReturnImmediately(false)
+                .setMaxMessages(E2E_PULL_MAX_MESSAGES))
+            .execute()
+            .getReceivedMessages();
+        if (messages == null || messages.isEmpty()) {
+          continue;
+        }
+
+        long now = System.currentTimeMillis();
+        List<String> ackIds = new ArrayList<String>(messages.size());
+        for (ReceivedMessage message : messages) {
+          ackIds.add(message.getAckId());
+          try {
+            NotificationView notification =
+                NotificationView.parse(message.getMessage().decodeData());
+            endToEndLatency.record(now - notification.getSentTimestampMillis());
+            received.incrementAndGet();
+          } catch (InvalidProtocolBufferException e) {
+            LOG.log(Level.FINE, "Pulled a message which is not a notification", e);
+          }
+        }
+        client
+            .projects()
+            .subscriptions()
+            .acknowledge(e2eSubscription, new AcknowledgeRequest().setAckIds(ackIds))
+            .execute();
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Pull from " + e2eSubscription + " failed", e);
+      }
+    }
+  }
+
+  EmmPubsub.MdmPushNotification newNotification(long sentMillis) {
+    Random random = ThreadLocalRandom.current();
+    EmmPubsub.MdmPushNotification.Builder notification = EmmPubsub.MdmPushNotification.newBuilder()
+        .setEnterpriseId("enterprise-" + random.nextInt(enterprises))
+        .setEventNotificationSentTimestampMillis(sentMillis);
+    String productId = "app:com.example.app" + random.nextInt(PRODUCT_COUNT);
+
+    switch (pickEventType(random)) {
+      case TEST_PUSH_NOTIFICATION:
+        notification.addTestPushNotification(EmmPubsub.TestPushNotification.getDefaultInstance());
+        break;
+      case PRODUCT_APPROVAL:
+        notification.addProductApprovalEvent(EmmPubsub.ProductApprovalEvent.newBuilder()
+            .setProductId(productId)
+            .setApproved(random.nextBoolean()
+                ? EmmPubsub.ProductApprovalEvent.ApprovalStatus.APPROVED
+                : EmmPubsub.ProductApprovalEvent.ApprovalStatus.UNAPPROVED));
+        break;
+      case INSTALL_FAILURE:
+        notification.addInstallFailureEvent(EmmPubsub.InstallFailureEvent.newBuilder()
+            .setProductId(productId)
+            .setDeviceId(Long.toHexString(random.nextLong()))
+            .setUserId("user-" + random.nextInt(100000))
+            .setFailureReason(random.nextInt(4) == 0
+                ? EmmPubsub.InstallFailureEvent.InstallFailureReason.UNKNOWN
+                : EmmPubsub.InstallFailureEvent.InstallFailureReason.TIMEOUT)
+            .setFailureDetails("Generated by LoadGenerator"));
+        break;
+      case APP_UPDATE:
+        notification.addAppUpdateEvent(EmmPubsub.AppUpdateEvent.newBuilder()
+            .setProductId(productId));
+        break;
+      case NEW_PERMISSIONS:
+        notification.addNewPermissionsEvent(EmmPubsub.NewPermissionsEvent.newBuilder()
+            .setProductId(productId)
+            .addRequestedPermissions("android.permission.CAMERA")
+            .addRequestedPermissions("android.permission.INTERNET")
+            .addRequestedPermissions("android.permission.READ_CONTACTS")
+            .addApprovedPermissions("android.permission.INTERNET"));
+        break;
+      case APP_RESTRICTIONS_SCHEMA_CHANGE:
+        notification.addAppRestrictionsSchemaChangeEvent(
+            EmmPubsub.AppRestrictionsSchemaChangeEvent.newBuilder().setProductId(productId));
+        break;
+      case PRODUCT_AVAILABILITY_CHANGE:
+        EmmPubsub.ProductAvailabilityChangeEvent.AvailabilityStatus[] statuses = {
+            EmmPubsub.ProductAvailabilityChangeEvent.AvailabilityStatus.AVAILABLE,
+            EmmPubsub.ProductAvailabilityChangeEvent.AvailabilityStatus.REMOVED,
+            EmmPubsub.ProductAvailabilityChangeEvent.AvailabilityStatus.UNPUBLISHED};
+        notification.addProductAvailabilityChangeEvent(
+            EmmPubsub.ProductAvailabilityChangeEvent.newBuilder()
+                .setProductId(productId)
+                .setAvailabilityStatus(statuses[random.nextInt(statuses.length)]));
+        break;
+      default:
+        throw new AssertionError();
+    }
+    return notification.build();
+  }
+
+  private EventType pickEventType(Random random) {
+    int pick = random.nextInt(mixCumulativeWeights[mixCumulativeWeights.length - 1]);
+    for (int i = 0; i < mixCumulativeWeights.length; i++) {
+      if (pick < mixCumulativeWeights[i]) {
+        return mixTypes[i];
+      }
+    }
+    throw new AssertionError();
+  }
+
+  private static Thread startThread(String name, Runnable runnable) {
+    Thread thread = new Thread(runnable, name);
+    thread.start();
+    return thread;
+  }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the IDs of recently processed messages, so that messages redelivered by Cloud
+ * Pub/Sub are not processed twice.
+ *
+ * <p>Only a 64-bit hash of each message ID is kept, in an open-addressing table of primitive
+ * longs, together with a ring of the hashes in insertion order. The ring lets the oldest entries
+ * be evicted once the cache is full or their time to live has passed. Two different message IDs
+ * with the same hash would be taken for duplicates, which for 64-bit hashes is negligible.
+ *
+ * <p>A message is only recorded once it was processed. While a delivery is being processed its
+ * ID is claimed, and another delivery of the message is reported as {@link Claim#IN_FLIGHT}: it
+ * must not be acknowledged, as the first delivery may still fail.
+ *
+ * <p>The cache can be written to a snapshot file periodically and warmed from it on startup, so
+ * that redeliveries right after a restart are still recognized.
+ */
+public class MessageDeduplicator {
+
+  private static final Logger LOG = Logger.getLogger(MessageDeduplicator.class.getName());
+
+  private static final int SNAPSHOT_MAGIC = 0x454d4444; // "EMDD"
+  private static final int SNAPSHOT_VERSION = 1;
+
+  /** What {@link #claim} found about a message. */
+  public enum Claim {
+    /** The message is new and now claimed, it should be processed. */
+    NEW,
+    /** The message was processed within the time to live and can be acknowledged. */
+    PROCESSED,
+    /** Another delivery of the message is being processed and may still fail. */
+    IN_FLIGHT
+  }
+
+  private final int capacity;
+  private final long ttlMillis;
+
+  // Open-addressing table of hashes with linear probing, 0 marks an empty slot.
+  private final long[] table;
+  private final int mask;
+
+  // Hashes and insertion times, oldest at head.
+  private final long[] ringHashes;
+  private final long[] ringTimes;
+  private int head;
+  private int size;
+
+  // Hashes of the messages claimed and not completed or released yet, at most one per worker.
+  private final Set<Long> claimed = new HashSet<Long>();
+
+  private final Metrics.Counter lookups;
+  private final Metrics.Counter hits;
+  private final Metrics.Counter inFlightHits;
+  private final Metrics.Counter evictions;
+
+  private ScheduledExecutorService snapshotter;
+  private File snapshotFile;
+
+  public MessageDeduplicator(int capacity, long ttlMillis, Metrics metrics) {
+    Preconditions.checkArgument(capacity > 0, "Dedupe capacity must be positive");
+    this.capacity = capacity;
+    this.ttlMillis = ttlMillis;
+    // Keeps the load factor of the table at or below 0.5.
+    int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+    this.table = new long[tableSize];
+    this.mask = tableSize - 1;
+    this.ringHashes = new long[capacity];
+    this.ringTimes = new long[capacity];
+
+    this.lookups = metrics.counter(
+        "emm_dedupe_lookups_total", "Messages checked against the dedupe cache.");
+    this.hits = metrics.counter(
+        "emm_dedupe_hits_total", "Messages dropped as duplicates.");
+    this.inFlightHits = metrics.counter("emm_dedupe_in_flight_total",
+        "Messages refused because another delivery of them was being processed.");
+    this.evictions = metrics.counter(
+        "emm_dedupe_evictions_total", "Entries evicted from the dedupe cache.");
+    metrics.gauge("emm_dedupe_entries", "Message IDs in the dedupe cache.", new Metrics.Gauge() {
+      public double value() {
+        return size();
+      }
+    });
+    metrics.gauge("emm_dedupe_hit_ratio", "Share of checked messages that were duplicates.",
+        new Metrics.Gauge() {
+          public double value() {
+            long total = lookups.get();
+            return total == 0 ? 0 : (double) hits.get() / total;
+          }
+        });
+    metrics.gauge("emm_dedupe_memory_bytes", "Memory used by the dedupe cache.",
+        new Metrics.Gauge() {
+          public double value() {
+            return getMemoryBytes();
+          }
+        });
+  }
+
+  /**
+   * Creates the deduplicator configured in {@link Settings}, warmed from its snapshot if there
+   * is one, or returns null if deduplication is disabled.
+   */
+  public static MessageDeduplicator fromSettings(Settings settings, Metrics metrics)
+      throws IOException {
+    if (settings.getDedupeCapacity() == 0) {
+      return null;
+    }
+    MessageDeduplicator deduplicator = new MessageDeduplicator(
+        settings.getDedupeCapacity(),
+        TimeUnit.MINUTES.toMillis(settings.getDedupeTtlMinutes()),
+        metrics);
+    String snapshot = settings.getDedupeSnapshotFile();
+    if (snapshot != null) {
+      deduplicator.startSnapshots(new File(snapshot), settings.getDedupeSnapshotIntervalSeconds());
+    }
+    return deduplicator;
+  }
+
+  /**
+   * Claims the message with this ID for processing, unless it was processed within the time to
+   * live or another delivery of it is being processed. A message claimed must then be either
+   * {@link #complete completed} or {@link #release released}.
+   */
+  public synchronized Claim claim(String messageId) {
+    lookups.increment();
+    expire(System.currentTimeMillis());
+    long hash = hash(messageId);
+    if (indexOf(hash) >= 0) {
+      hits.increment();
+      return Claim.PROCESSED;
+    }
+    if (!claimed.add(hash)) {
+      inFlightHits.increment();
+      return Claim.IN_FLIGHT;
+    }
+    return Claim.NEW;
+  }
+
+  /** Records a claimed message as processed, so that its redeliveries are dropped. */
+  public synchronized void complete(String messageId) {
+    long hash = hash(messageId);
+    claimed.remove(hash);
+    if (indexOf(hash) < 0) {
+      insert(hash, System.currentTimeMillis());
+    }
+  }
+
+  /** Releases a claimed message that could not be processed, so that it is processed again. */
+  public synchronized void release(String messageId) {
+    claimed.remove(hash(messageId));
+  }
+
+  /**
+   * Records the message with this ID, unless a message with this ID was recorded within the time
+   * to live. Checking and recording are atomic, so of concurrent deliveries of a message only one
+   * is new.
+   *
+   * @return whether the message is new and should be processed
+   */
+  public synchronized boolean add(String messageId) {
+    lookups.increment();
+    long now = System.currentTimeMillis();
+    expire(now);
+    long hash = hash(messageId);
+    if (indexOf(hash) >= 0) {
+      hits.increment();
+      return false;
+    }
+    insert(hash, now);
+    return true;
+  }
+
+  /**
+   * Forgets the message with this ID, so that its redelivery is processed.
+   */
+  public synchronized void remove(String messageId) {
+    long hash = hash(messageId);
+    if (indexOf(hash) < 0) {
+      return;
+    }
+    remove(hash);
+    // The entry is recent, so it is near the tail of the ring. It stays there as a tombstone
+    // until it is evicted.
+    for (int i = size - 1; i >= 0; i--) {
+      int slot = (head + i) % capacity;
+      if (ringHashes[slot] == hash) {
+        ringHashes[slot] = 0;
+        break;
+      }
+    }
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public long getMemoryBytes() {
+    return 8L * (table.length + ringHashes.length + ringTimes.length);
+  }
+
+  /**
+   * Warms the cache from {@code file} if it exists, then writes the cache back to it every
+   * {@code intervalSeconds} and on {@link #close}.
+   */
+  public void startSnapshots(File file, long intervalSeconds) throws IOException {
+    this.snapshotFile = file;
+    if (file.exists()) {
+      loadSnapshot(file);
+    }
+    snapshotter = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("dedupe-snapshot").setDaemon(true).build());
+    snapshotter.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          writeSnapshot(snapshotFile);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Could not write dedupe snapshot " + snapshotFile, e);
+        }
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /** Stops the snapshots, writing a last one. */
+  public void close() throws IOException {
+    if (snapshotter != null) {
+      snapshotter.shutdownNow();
+      writeSnapshot(snapshotFile);
+    }
+  }
+
+  /** Writes all live entries, oldest first, replacing the file atomically. */
+  public void writeSnapshot(File file) throws IOException {
+    long[] hashes;
+    long[] times;
+    synchronized (this) {
+      expire(System.currentTimeMillis());
+      hashes = new long[size];
+      times = new long[size];
+      int live = 0;
+      for (int i = 0; i < size; i++) {
+        int slot = (head + i) % capacity;
+        if (ringHashes[slot] != 0) {
+          hashes[live] = ringHashes[slot];
+          times[live] = ringTimes[slot];
+          live++;
+        }
+      }
+      hashes = Arrays.copyOf(hashes, live);
+      times = Arrays.copyOf(times, live);
+    }
+
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+      out.writeInt(hashes.length);
+      for (int i = 0; i < hashes.length; i++) {
+        out.writeLong(hashes[i]);
+        out.writeLong(times[i]);
+      }
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file)) {
+      throw new IOException("Could not rename " + temp + " to " + file);
+    }
+  }
+
+  private void loadSnapshot(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    int loaded = 0;
+    try {
+      if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+        LOG.warning("Ignoring dedupe snapshot " + file + " with an unknown format");
+        return;
+      }
+      int count = in.readInt();
+      long cutoff = System.currentTimeMillis() - ttlMillis;
+      synchronized (this) {
+        for (int i = 0; i < count; i++) {
+          long hash = in.readLong();
+          long time = in.readLong();
+          if (time >= cutoff && indexOf(hash) < 0) {
+            insert(hash, time);
+            loaded++;
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+    LOG.info("Warmed dedupe cache with " + loaded + " message IDs from " + file);
+  }
+
+  // Called with the lock held.
+  private void expire(long now) {
+    long cutoff = now - ttlMillis;
+    while (size > 0 && ringTimes[head] < cutoff) {
+      evictOldest();
+    }
+  }
+
+  // Called with the lock held, for a hash that is not in the table yet.
+  private void insert(long hash, long time) {
+    if (size == capacity) {
+      evictOldest();
+    }
+    int slot = home(hash);
+    while (table[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = hash;
+    int tail = (head + size) % capacity;
+    ringHashes[tail] = hash;
+    ringTimes[tail] = time;
+    size++;
+  }
+
+  // Called with the lock held.
+  private void evictOldest() {
+    if (ringHashes[head] != 0) {
+      remove(ringHashes[head]);
+    }
+    head = (head + 1) % capacity;
+    size--;
+    evictions.increment();
+  }
+
+  /** Removes a hash from the table, shifting back the entries probed past it. */
+  private void remove(long hash) {
+    int hole = indexOf(hash);
+    if (hole < 0) {
+      return;
+    }
+    int slot = hole;
+    while (true) {
+      slot = (slot + 1) & mask;
+      long candidate = table[slot];
+      if (candidate == 0) {
+        break;
+      }
+      // The candidate can fill the hole unless its home slot lies cyclically in (hole, slot].
+      int home = home(candidate);
+      boolean homeBetween = hole <= slot
+          ? hole < home && home <= slot
+          : hole < home || home <= slot;
+      if (!homeBetween) {
+        table[hole] = candidate;
+        hole = slot;
+      }
+    }
+    table[hole] = 0;
+  }
+
+  private int indexOf(long hash) {
+    int slot = home(hash);
+    while (true) {
+      long candidate = table[slot];
+      if (candidate == hash) {
+        return slot;
+      }
+      if (candidate == 0) {
+        return -1;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private int home(long hash) {
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+
+  /** 64-bit FNV-1a of the characters followed by the MurmurHash3 finalizer, never 0. */
+  static long hash(String messageId) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < messageId.length(); i++) {
+      h ^= messageId.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h == 0 ? 1 : h;
+  }
+}
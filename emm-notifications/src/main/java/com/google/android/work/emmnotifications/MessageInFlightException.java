@@ -0,0 +1,30 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link NotificationProcessor#process} for a message of which another delivery is
+ * being processed. The message must not be acknowledged: the other delivery may still fail, and
+ * Cloud Pub/Sub then has to deliver it again.
+ */
+class MessageInFlightException extends IOException {
+
+  MessageInFlightException(String message) {
+    super(message);
+  }
+}
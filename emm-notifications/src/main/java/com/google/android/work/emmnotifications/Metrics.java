@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of the subscriber's metrics, rendered in the Prometheus text exposition format.
+ *
+ * <p>Counters and histograms are lock-free and cheap enough to be updated on every message.
+ * Gauges are computed only when the metrics are rendered. A metric may have one label, in which
+ * case each label value is a separate series of the same metric.
+ *
+ * <p>Histograms record microseconds and are rendered in seconds, with the cumulative counts of
+ * {@link #HISTOGRAM_BOUNDS_MICROS} as buckets. A bucket never counts a value above its bound,
+ * but may miss values just below it, see {@link Histogram#getCountAtMost}.
+ */
+public final class Metrics {
+
+  private static final Metrics DEFAULT = new Metrics();
+
+  /** Upper bounds of the rendered histogram buckets, from 100us to 10s. */
+  static final long[] HISTOGRAM_BOUNDS_MICROS = {
+      100, 250, 500,
+      1000, 2500, 5000,
+      10000, 25000, 50000,
+      100000, 250000, 500000,
+      1000000, 2500000, 5000000,
+      10000000};
+
+  private static final String COUNTER = "counter";
+  private static final String GAUGE = "gauge";
+  private static final String HISTOGRAM = "histogram";
+
+  /** A value computed when the metrics are rendered. */
+  public interface Gauge {
+    double value();
+  }
+
+  /** A monotonically increasing count. */
+  public static final class Counter {
+    // Striped, so that threads updating the same counter don't contend on one cache line.
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+      count.increment();
+    }
+
+    public void add(long delta) {
+      count.add(delta);
+    }
+
+    public long get() {
+      return count.sum();
+    }
+  }
+
+  /** The series of one metric name, keyed by their rendered label. */
+  private static final class Family {
+    final String type;
+    final String description;
+    // Sorted so that the output is stable.
+    final ConcurrentMap<String, Object> series = new ConcurrentSkipListMap<String, Object>();
+
+    Family(String type, String description) {
+      this.type = type;
+      this.description = description;
+    }
+  }
+
+  // Sorted by name so that the output is stable. Shared with the scoped views.
+  private final ConcurrentMap<String, Family> families;
+  // Label added to every series registered through this view, empty for the root registry.
+  private final String scope;
+
+  public Metrics() {
+    this(new ConcurrentSkipListMap<String, Family>(), "");
+  }
+
+  private Metrics(ConcurrentMap<String, Family> families, String scope) {
+    this.families = families;
+    this.scope = scope;
+  }
+
+  /** Returns the registry shared by the whole process. */
+  public static Metrics getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Returns a view of this registry which adds the given label to all the series registered
+   * through it, for example to tell apart the metrics of several subscriptions.
+   */
+  public Metrics withLabel(String labelName, String labelValue) {
+    return new Metrics(families, scoped(label(labelName, labelValue)));
+  }
+
+  /** Returns the counter with the given name, creating it if needed. */
+  public Counter counter(String name, String description) {
+    return (Counter) series(name, COUNTER, description, "", null);
+  }
+
+  /** Returns the series of the counter with the given label value, creating it if needed. */
+  public Counter counter(String name, String description, String labelName, String labelValue) {
+    return (Counter) series(name, COUNTER, description, label(labelName, labelValue), null);
+  }
+
+  /** Returns the histogram with the given name, creating it if needed. */
+  public Histogram histogram(String name, String description) {
+    return (Histogram) series(name, HISTOGRAM, description, "", null);
+  }
+
+  /** Returns the series of the histogram with the given label value, creating it if needed. */
+  public Histogram histogram(
+      String name, String description, String labelName, String labelValue) {
+    return (Histogram) series(name, HISTOGRAM, description, label(labelName, labelValue), null);
+  }
+
+  /** Registers a gauge, replacing any gauge previously registered under the same name. */
+  public void gauge(String name, String description, Gauge gauge) {
+    series(name, GAUGE, description, "", Preconditions.checkNotNull(gauge));
+  }
+
+  /** Registers a gauge for the given label value, replacing any previous one. */
+  public void gauge(
+      String name, String description, String labelName, String labelValue, Gauge gauge) {
+    series(name, GAUGE, description, label(labelName, labelValue),
+        Preconditions.checkNotNull(gauge));
+  }
+
+  /** Writes all metrics in the Prometheus text exposition format. */
+  public void writeTo(Appendable out) throws IOException {
+    for (Map.Entry<String, Family> entry : families.entrySet()) {
+      String name = entry.getKey();
+      Family family = entry.getValue();
+      out.append("# HELP ").append(name).append(' ').append(family.description).append('\n');
+      out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+      for (Map.Entry<String, Object> series : family.series.entrySet()) {
+        String label = series.getKey();
+        Object metric = series.getValue();
+        if (metric instanceof Counter) {
+          writeSample(out, name, label, Long.toString(((Counter) metric).get()));
+        } else if (metric instanceof Gauge) {
+          writeSample(out, name, label, Double.toString(((Gauge) metric).value()));
+        } else {
+          writeHistogram(out, name, label, (Histogram) metric);
+        }
+      }
+    }
+  }
+
+  private Object series(
+      String name, String type, String description, String label, Gauge gauge) {
+    label = scoped(label);
+    Family family = families.get(name);
+    if (family == null) {
+      family = new Family(type, description);
+      Family existing = families.putIfAbsent(name, family);
+      if (existing != null) {
+        family = existing;
+      }
+    }
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+    }
+
+    if (gauge != null) {
+      family.series.put(label, gauge);
+      return gauge;
+    }
+    Object metric = family.series.get(label);
+    if (metric == null) {
+      Object created = HISTOGRAM.equals(type) ? new Histogram() : new Counter();
+      metric = family.series.putIfAbsent(label, created);
+      if (metric == null) {
+        metric = created;
+      }
+    }
+    return metric;
+  }
+
+  private String scoped(String label) {
+    if (scope.isEmpty()) {
+      return label;
+    }
+    return label.isEmpty() ? scope : scope + "," + label;
+  }
+
+  private static void writeHistogram(
+      Appendable out, String name, String label, Histogram histogram) throws IOException {
+    String prefix = label.isEmpty() ? "" : label + ",";
+    for (long bound : HISTOGRAM_BOUNDS_MICROS) {
+      writeSample(out, name + "_bucket", prefix + "le=\"" + toSeconds(bound) + "\"",
+          Long.toString(histogram.getCountAtMost(bound)));
+    }
+    // Read once, so that the +Inf bucket and the count agree under concurrent updates.
+    long count = histogram.getCount();
+    writeSample(out, name + "_bucket", prefix + "le=\"+Inf\"", Long.toString(count));
+    writeSample(out, name + "_sum", label, Double.toString(toSeconds(histogram.getSum())));
+    writeSample(out, name + "_count", label, Long.toString(count));
+  }
+
+  private static void writeSample(Appendable out, String name, String label, String value)
+      throws IOException {
+    out.append(name);
+    if (!label.isEmpty()) {
+      out.append('{').append(label).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+
+  private static double toSeconds(long micros) {
+    return micros / 1e6;
+  }
+
+  private static String label(String name, String value) {
+    StringBuilder label = new StringBuilder(name).append("=\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        label.append('\\').append(c);
+      } else if (c == '\n') {
+        label.append("\\n");
+      } else {
+        label.append(c);
+      }
+    }
+    return label.append('"').toString();
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.common.base.Preconditions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the {@link Metrics} in the Prometheus text exposition format, for scraping.
+ */
+public class MetricsHandler implements HttpHandler {
+
+  static final String PATH = "/metrics";
+
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final Metrics metrics;
+
+  public MetricsHandler(Metrics metrics) {
+    this.metrics = Preconditions.checkNotNull(metrics);
+  }
+
+  public void handle(HttpExchange httpExchange) throws IOException {
+    try {
+      if (!"GET".equals(httpExchange.getRequestMethod())) {
+        httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_METHOD_NOT_ALLOWED, -1);
+        return;
+      }
+      StringBuilder text = new StringBuilder(4096);
+      metrics.writeTo(text);
+      byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+      httpExchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_OK, body.length);
+      OutputStream out = httpExchange.getResponseBody();
+      out.write(body);
+      out.close();
+    } finally {
+      httpExchange.close();
+    }
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A request read by {@link NioIngress}, presented as an {@link HttpExchange} so that the
+ * existing handlers serve it unchanged.
+ *
+ * <p>The body has already been read in full. The response is buffered and handed back to the
+ * selector thread on {@link #close()}, which may be called from any thread.
+ */
+final class NioHttpExchange extends HttpExchange {
+
+  private final NioIngress.Connection connection;
+  private final String method;
+  private final URI uri;
+  private final String protocol;
+  private final Headers requestHeaders;
+  private final Headers responseHeaders = new Headers();
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private InputStream requestBody;
+  private final ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+  private volatile int responseCode = -1;
+
+  NioHttpExchange(NioIngress.Connection connection, String method, URI uri, String protocol,
+      Headers requestHeaders, byte[] body) {
+    this.connection = connection;
+    this.method = method;
+    this.uri = uri;
+    this.protocol = protocol;
+    this.requestHeaders = requestHeaders;
+    this.requestBody = new ByteArrayInputStream(body);
+  }
+
+  @Override
+  public Headers getRequestHeaders() {
+    return requestHeaders;
+  }
+
+  @Override
+  public Headers getResponseHeaders() {
+    return responseHeaders;
+  }
+
+  @Override
+  public URI getRequestURI() {
+    return uri;
+  }
+
+  @Override
+  public String getRequestMethod() {
+    return method;
+  }
+
+  /** Always null, contexts are only a routing table in {@link NioIngress}. */
+  @Override
+  public HttpContext getHttpContext() {
+    return null;
+  }
+
+  /**
+   * Sends the response, or closes the connection if no response code was set, as the JDK's
+   * server does.
+   */
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    if (responseCode < 0) {
+      connection.abort();
+    } else {
+      connection.respond(encodeResponse());
+    }
+  }
+
+  @Override
+  public InputStream getRequestBody() {
+    return requestBody;
+  }
+
+  @Override
+  public OutputStream getResponseBody() {
+    return responseBody;
+  }
+
+  /**
+   * Records the response code. The length is only checked for -1, meaning no body, since the
+   * body is buffered and its actual length sent.
+   */
+  @Override
+  public void sendResponseHeaders(int code, long responseLength) {
+    if (responseCode >= 0) {
+      throw new IllegalStateException("Response headers already sent");
+    }
+    this.responseCode = code;
+    if (responseLength < 0) {
+      responseBody.reset();
+    }
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return connection.getRemoteAddress();
+  }
+
+  @Override
+  public int getResponseCode() {
+    return responseCode;
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return connection.getLocalAddress();
+  }
+
+  @Override
+  public String getProtocol() {
+    return protocol;
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+    attributes.put(name, value);
+  }
+
+  /** Only the request body can be replaced, the response is always buffered. */
+  @Override
+  public void setStreams(InputStream in, OutputStream out) {
+    if (in != null) {
+      requestBody = in;
+    }
+  }
+
+  @Override
+  public HttpPrincipal getPrincipal() {
+    return null;
+  }
+
+  private ByteBuffer encodeResponse() {
+    // These responses never have a body, nor a Content-Length (RFC 7230, section 3.3.2).
+    boolean bodyless = responseCode < 200 || responseCode == 204 || responseCode == 304;
+    byte[] body = bodyless ? new byte[0] : responseBody.toByteArray();
+    StringBuilder head = new StringBuilder()
+        .append("HTTP/1.1 ").append(responseCode).append(' ')
+        .append(reasonPhrase(responseCode)).append("\r\n");
+    for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+      for (String value : header.getValue()) {
+        head.append(header.getKey()).append(": ").append(value).append("\r\n");
+      }
+    }
+    if (!bodyless) {
+      head.append("Content-Length: ").append(body.length).append("\r\n");
+    }
+    if (!connection.isKeepAlive()) {
+      head.append("Connection: close\r\n");
+    }
+    head.append("\r\n");
+    byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    ByteBuffer response = ByteBuffer.allocate(headBytes.length + body.length);
+    response.put(headBytes).put(body);
+    response.flip();
+    return response;
+  }
+
+  static String reasonPhrase(int code) {
+    switch (code) {
+      case 200:
+        return "OK";
+      case 204:
+        return "No Content";
+      case 400:
+        return "Bad Request";
+      case 404:
+        return "Not Found";
+      case 405:
+        return "Method Not Allowed";
+      case 413:
+        return "Payload Too Large";
+      case 429:
+        return "Too Many Requests";
+      case 431:
+        return "Request Header Fields Too Large";
+      case 500:
+        return "Internal Server Error";
+      case 501:
+        return "Not Implemented";
+      case 503:
+        return "Service Unavailable";
+      default:
+        return "Status " + code;
+    }
+  }
+}
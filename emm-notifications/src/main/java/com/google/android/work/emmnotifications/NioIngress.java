@@ -0,0 +1,684 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.common.base.Preconditions;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking HTTP/1.1 ingress: a selector thread accepts connections, reads requests into
+ * pooled direct buffers and writes the responses, so that idle keep-alive connections cost no
+ * thread.
+ *
+ * <p>Complete requests are handed to the handler on the selector thread, so handlers must be
+ * quick or hand off to their own executor, as {@link PushHandler} does, and must never block:
+ * a handler waiting on the disk or the network stalls every connection of the listener. Hence
+ * the {@code CALLER_RUNS} shed policy is refused with this ingress. Requests on a
+ * connection are served one at a time: the next one is not read until the response to the
+ * previous one was written. Only requests with a Content-Length are supported, which is what
+ * Cloud Pub/Sub sends; chunked requests are answered with 501.
+ *
+ * <p>With {@code reusePort}, the listening sockets are bound with SO_REUSEPORT, so that several
+ * listeners, each with its own socket and selector thread, share the port and the kernel balances
+ * the connections between them. The listeners can be in this process, in others, or both, which
+ * also lets a new process start listening while the old one drains.
+ */
+public class NioIngress implements Ingress {
+
+  private static final Logger LOG = Logger.getLogger(NioIngress.class.getName());
+
+  private static final long SWEEP_INTERVAL_MILLIS = 1000;
+  private static final long DRAIN_POLL_MILLIS = 10;
+
+  // StandardSocketOptions.SO_REUSEPORT only exists from Java 9 on.
+  private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+  private final InetSocketAddress address;
+  private final int backlog;
+  private final int listenerCount;
+  private final boolean reusePort;
+  private final int maxConnectionsPerListener;
+  private final int maxRequestBytes;
+  private volatile long keepAliveMillis;
+  private final BufferPool buffers;
+  private final Map<String, HttpHandler> contexts = new ConcurrentHashMap<String, HttpHandler>();
+  private final List<EventLoop> loops = new ArrayList<EventLoop>();
+  private final AtomicInteger openConnections = new AtomicInteger();
+  private final Metrics.Counter accepted;
+  private final Metrics.Counter requests;
+  private final Metrics.Counter rejected;
+
+  private volatile boolean running;
+  private volatile boolean draining;
+
+  /**
+   * @param backlog maximum number of connections waiting to be accepted, 0 for the system
+   *     default. Connections queue here while {@code maxConnections} are open.
+   * @param maxConnections maximum number of open connections, shared evenly by the listeners
+   * @param maxRequestBytes maximum size of a request body, larger ones are answered with 413
+   * @param keepAliveSeconds how long an idle connection is kept open
+   * @param bufferSize size of the pooled read buffers, which is also the maximum size of the
+   *     request line and headers
+   * @param listenerCount number of listening sockets and selector threads, more than one
+   *     requires {@code reusePort}
+   * @param reusePort whether to bind with SO_REUSEPORT, so that other sockets can share the port
+   */
+  public NioIngress(InetSocketAddress address, int backlog, int maxConnections,
+      int maxRequestBytes, int keepAliveSeconds, int bufferSize, int listenerCount,
+      boolean reusePort, Metrics metrics) {
+    Preconditions.checkArgument(maxConnections > 0, "Max connections must be positive");
+    Preconditions.checkArgument(maxRequestBytes >= 0, "Max request size must not be negative");
+    Preconditions.checkArgument(listenerCount > 0, "Listener count must be positive");
+    Preconditions.checkArgument(listenerCount == 1 || reusePort,
+        "Several listeners need SO_REUSEPORT to share the port");
+    this.address = address;
+    this.backlog = backlog;
+    this.listenerCount = listenerCount;
+    this.reusePort = reusePort;
+    this.maxConnectionsPerListener = (maxConnections + listenerCount - 1) / listenerCount;
+    this.maxRequestBytes = maxRequestBytes;
+    setKeepAliveSeconds(keepAliveSeconds);
+    this.buffers = new BufferPool(bufferSize, maxConnections);
+    this.accepted = metrics.counter(
+        "emm_ingress_connections_accepted_total", "Connections accepted by the NIO ingress.");
+    this.requests = metrics.counter(
+        "emm_ingress_requests_total", "Requests read by the NIO ingress.");
+    this.rejected = metrics.counter(
+        "emm_ingress_rejected_total",
+        "Requests the NIO ingress answered itself as malformed, too large or unrouted.");
+    metrics.gauge("emm_ingress_connections", "Open connections of the NIO ingress.",
+        new Metrics.Gauge() {
+          public double value() {
+            return openConnections.get();
+          }
+        });
+    metrics.gauge("emm_ingress_pooled_buffers", "Idle read buffers pooled by the NIO ingress.",
+        new Metrics.Gauge() {
+          public double value() {
+            return buffers.getPooledCount();
+          }
+        });
+  }
+
+  /** Changes how long idle connections are kept open, including the ones open now. */
+  public void setKeepAliveSeconds(int keepAliveSeconds) {
+    checkKeepAliveSeconds(keepAliveSeconds);
+    this.keepAliveMillis = keepAliveSeconds * 1000L;
+  }
+
+  /** Throws {@link IllegalArgumentException} if the keep-alive can't be set. */
+  static void checkKeepAliveSeconds(int keepAliveSeconds) {
+    Preconditions.checkArgument(keepAliveSeconds >= 0, "Keep-alive must not be negative");
+  }
+
+  public void createContext(String path, HttpHandler handler) {
+    Preconditions.checkArgument(path.startsWith("/"), "Path must start with /: %s", path);
+    contexts.put(path, handler);
+  }
+
+  public synchronized void start() throws IOException {
+    Preconditions.checkState(loops.isEmpty(), "Already started");
+    running = true;
+    try {
+      for (int i = 0; i < listenerCount; i++) {
+        EventLoop loop = new EventLoop(listenerCount == 1 ? "nio-ingress" : "nio-ingress-" + i);
+        loops.add(loop);
+        loop.open();
+      }
+    } catch (IOException e) {
+      running = false;
+      for (EventLoop loop : loops) {
+        loop.closeChannels();
+      }
+      loops.clear();
+      throw e;
+    }
+    for (EventLoop loop : loops) {
+      loop.thread.start();
+    }
+    LOG.info("NIO ingress listening on " + address + " with " + listenerCount + " listener"
+        + (listenerCount == 1 ? "" : "s") + (reusePort ? ", sharing the port" : ""));
+  }
+
+  public synchronized void stop() {
+    if (loops.isEmpty()) {
+      return;
+    }
+    running = false;
+    for (EventLoop loop : loops) {
+      loop.selector.wakeup();
+    }
+    for (EventLoop loop : loops) {
+      try {
+        loop.thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    loops.clear();
+  }
+
+  /**
+   * Closes the listening sockets and the idle connections at once, lets the other connections
+   * finish their current request and closes them after its response, then stops.
+   */
+  public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    draining = true;
+    synchronized (this) {
+      for (EventLoop loop : loops) {
+        loop.selector.wakeup();
+      }
+    }
+    while (openConnections.get() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(DRAIN_POLL_MILLIS);
+    }
+    int remaining = openConnections.get();
+    if (remaining > 0) {
+      LOG.warning("Closing " + remaining + " connections still busy after draining");
+    }
+    stop();
+    return remaining == 0;
+  }
+
+  boolean isDraining() {
+    return draining;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> reusePortOption() {
+    try {
+      return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+    } catch (NoSuchFieldException e) {
+      return null;
+    } catch (IllegalAccessException e) {
+      return null;
+    }
+  }
+
+  /** A listening socket and the connections it accepted, served by one selector thread. */
+  private final class EventLoop {
+    private final Thread thread;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    // Connections with a response to write, or to abort, queued by any thread.
+    private final Queue<Connection> responses = new ConcurrentLinkedQueue<Connection>();
+    // Only touched on the selector thread.
+    private final Set<Connection> connections = new HashSet<Connection>();
+
+    EventLoop(String name) {
+      this.thread = new Thread(name) {
+        @Override
+        public void run() {
+          runLoop();
+        }
+      };
+    }
+
+    void open() throws IOException {
+      selector = Selector.open();
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.socket().setReuseAddress(true);
+      if (reusePort) {
+        if (SO_REUSEPORT == null || !serverChannel.supportedOptions().contains(SO_REUSEPORT)) {
+          throw new IOException("SO_REUSEPORT is not supported by this platform or Java version");
+        }
+        serverChannel.setOption(SO_REUSEPORT, true);
+      }
+      serverChannel.socket().bind(address, backlog);
+      serverChannel.configureBlocking(false);
+      acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    void closeChannels() {
+      try {
+        if (serverChannel != null) {
+          serverChannel.close();
+        }
+        if (selector != null) {
+          selector.close();
+        }
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Could not close NIO ingress", e);
+      }
+    }
+
+    private void runLoop() {
+      long lastSweep = System.currentTimeMillis();
+      try {
+        while (running) {
+          selector.select(SWEEP_INTERVAL_MILLIS);
+          long now = System.currentTimeMillis();
+          if (draining && acceptKey.isValid()) {
+            // New connections go to the other sockets sharing the port, if any.
+            acceptKey.cancel();
+            serverChannel.close();
+            closeIdle(now, 0);
+          }
+          Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+          while (selected.hasNext()) {
+            SelectionKey key = selected.next();
+            selected.remove();
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key == acceptKey) {
+              accept(now);
+              continue;
+            }
+            Connection connection = (Connection) key.attachment();
+            try {
+              if (key.isReadable()) {
+                connection.read(now);
+              } else if (key.isWritable()) {
+                connection.write(now);
+              }
+            } catch (IOException e) {
+              LOG.log(Level.FINE, "Closing connection from " + connection.remoteAddress, e);
+              close(connection);
+            } catch (RuntimeException e) {
+              LOG.log(Level.SEVERE, "Closing connection from " + connection.remoteAddress, e);
+              close(connection);
+            }
+          }
+          Connection connection;
+          while ((connection = responses.poll()) != null) {
+            try {
+              connection.startWrite(now);
+            } catch (IOException e) {
+              LOG.log(Level.FINE, "Closing connection from " + connection.remoteAddress, e);
+              close(connection);
+            }
+          }
+          if (now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+            closeIdle(now, draining ? 0 : keepAliveMillis);
+            lastSweep = now;
+          }
+        }
+      } catch (IOException e) {
+        LOG.log(Level.SEVERE, "NIO ingress failed", e);
+      } catch (ClosedSelectorException e) {
+        LOG.log(Level.SEVERE, "NIO ingress selector closed", e);
+      } finally {
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+          close(connection);
+        }
+        closeChannels();
+      }
+    }
+
+    private void accept(long now) throws IOException {
+      SocketChannel channel;
+      while (connections.size() < maxConnectionsPerListener
+          && (channel = serverChannel.accept()) != null) {
+        channel.configureBlocking(false);
+        Socket socket = channel.socket();
+        socket.setTcpNoDelay(true);
+        Connection connection = new Connection(this, channel, now);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.add(connection);
+        openConnections.incrementAndGet();
+        accepted.increment();
+      }
+      if (connections.size() >= maxConnectionsPerListener) {
+        // Leave further connections in the backlog until one is closed.
+        acceptKey.interestOps(0);
+      }
+    }
+
+    private void close(Connection connection) {
+      if (!connections.remove(connection)) {
+        return;
+      }
+      openConnections.decrementAndGet();
+      connection.key.cancel();
+      try {
+        connection.channel.close();
+      } catch (IOException e) {
+        LOG.log(Level.FINE, "Could not close connection", e);
+      }
+      if (connection.readBuffer != null) {
+        buffers.release(connection.readBuffer);
+        connection.readBuffer = null;
+      }
+      if (acceptKey.isValid() && acceptKey.interestOps() == 0) {
+        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+      }
+    }
+
+    /** Closes the connections between requests which were idle for longer than the limit. */
+    private void closeIdle(long now, long idleMillis) {
+      for (Connection connection : new ArrayList<Connection>(connections)) {
+        if (!connection.inFlight && connection.method == null && connection.readBuffer == null
+            && now - connection.lastActiveMillis >= idleMillis) {
+          close(connection);
+        }
+      }
+    }
+  }
+
+  /** Returns the handler of the longest context path {@code path} starts with, or null. */
+  private HttpHandler route(String path) {
+    String best = null;
+    for (String context : contexts.keySet()) {
+      if (path.startsWith(context) && (best == null || context.length() > best.length())) {
+        best = context;
+      }
+    }
+    return best == null ? null : contexts.get(best);
+  }
+
+  /** State of one client connection, only modified on the selector thread. */
+  final class Connection {
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+    private SelectionKey key;
+    private long lastActiveMillis;
+    // Holds the bytes read but not yet parsed, in write mode. Only held while there are such
+    // bytes, so that idle connections do not pin a buffer.
+    private ByteBuffer readBuffer;
+
+    // Request being read.
+    private String method;
+    private URI uri;
+    private String protocol;
+    private Headers headers;
+    private byte[] body;
+    private int bodyRead;
+
+    // Whether a request was handed to a handler and its response not yet written.
+    private boolean inFlight;
+    private volatile boolean keepAlive;
+    // Set by respond() or abort() on any thread, picked up by startWrite().
+    private volatile ByteBuffer pendingResponse;
+    private volatile boolean aborted;
+    private ByteBuffer response;
+
+    Connection(EventLoop loop, SocketChannel channel, long now) {
+      this.loop = loop;
+      this.channel = channel;
+      this.remoteAddress = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+      this.localAddress = (InetSocketAddress) channel.socket().getLocalSocketAddress();
+      this.lastActiveMillis = now;
+    }
+
+    InetSocketAddress getRemoteAddress() {
+      return remoteAddress;
+    }
+
+    InetSocketAddress getLocalAddress() {
+      return localAddress;
+    }
+
+    boolean isKeepAlive() {
+      return keepAlive && running && !draining;
+    }
+
+    /** Queues the response to the current request, from any thread. */
+    void respond(ByteBuffer response) {
+      pendingResponse = response;
+      loop.responses.offer(this);
+      loop.selector.wakeup();
+    }
+
+    /** Closes the connection without answering the current request, from any thread. */
+    void abort() {
+      aborted = true;
+      loop.responses.offer(this);
+      loop.selector.wakeup();
+    }
+
+    private void read(long now) throws IOException {
+      if (readBuffer == null) {
+        readBuffer = buffers.acquire();
+      }
+      if (channel.read(readBuffer) < 0) {
+        loop.close(this);
+        return;
+      }
+      lastActiveMillis = now;
+      parse();
+    }
+
+    /** Parses the buffered bytes, and hands the request over once it was read in full. */
+    private void parse() throws IOException {
+      readBuffer.flip();
+      try {
+        while (!inFlight && readBuffer.hasRemaining()) {
+          if (method == null && !parseHead()) {
+            if (readBuffer.position() == 0 && readBuffer.limit() == readBuffer.capacity()) {
+              reject(431);
+            }
+            return;
+          }
+          if (inFlight) {
+            return;
+          }
+          int length = Math.min(readBuffer.remaining(), body.length - bodyRead);
+          readBuffer.get(body, bodyRead, length);
+          bodyRead += length;
+          if (bodyRead == body.length) {
+            dispatch();
+          }
+        }
+        if (!inFlight && method != null && bodyRead == body.length) {
+          dispatch();
+        }
+      } finally {
+        if (readBuffer != null) {
+          readBuffer.compact();
+          if (readBuffer.position() == 0) {
+            buffers.release(readBuffer);
+            readBuffer = null;
+          }
+        }
+      }
+    }
+
+    /**
+     * Parses the request line and headers if they were read in full, and allocates the body.
+     * Returns false if more bytes are needed.
+     */
+    private boolean parseHead() throws IOException {
+      int end = indexOfHeadEnd(readBuffer);
+      if (end < 0) {
+        return false;
+      }
+      byte[] head = new byte[end - readBuffer.position()];
+      readBuffer.get(head);
+      readBuffer.position(readBuffer.position() + 4);
+      String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+      String[] requestLine = lines[0].split(" ");
+      if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+        reject(HttpStatusCodes.STATUS_CODE_BAD_REQUEST);
+        return true;
+      }
+      Headers parsed = new Headers();
+      for (int i = 1; i < lines.length; i++) {
+        int colon = lines[i].indexOf(':');
+        if (colon <= 0) {
+          reject(HttpStatusCodes.STATUS_CODE_BAD_REQUEST);
+          return true;
+        }
+        parsed.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+      }
+      try {
+        uri = new URI(requestLine[1]);
+      } catch (URISyntaxException e) {
+        reject(HttpStatusCodes.STATUS_CODE_BAD_REQUEST);
+        return true;
+      }
+      method = requestLine[0];
+      protocol = requestLine[2];
+      headers = parsed;
+      String connectionHeader = parsed.getFirst("Connection");
+      keepAlive = protocol.equals("HTTP/1.1")
+          ? !"close".equalsIgnoreCase(connectionHeader)
+          : "keep-alive".equalsIgnoreCase(connectionHeader);
+
+      if (parsed.containsKey("Transfer-encoding")) {
+        reject(501);
+        return true;
+      }
+      long contentLength = 0;
+      String lengthHeader = parsed.getFirst("Content-length");
+      if (lengthHeader != null) {
+        try {
+          contentLength = Long.parseLong(lengthHeader);
+        } catch (NumberFormatException e) {
+          contentLength = -1;
+        }
+      }
+      if (contentLength < 0) {
+        reject(HttpStatusCodes.STATUS_CODE_BAD_REQUEST);
+        return true;
+      }
+      if (contentLength > maxRequestBytes) {
+        reject(413);
+        return true;
+      }
+      body = new byte[(int) contentLength];
+      bodyRead = 0;
+      return true;
+    }
+
+    private void dispatch() {
+      inFlight = true;
+      key.interestOps(0);
+      requests.increment();
+      NioHttpExchange exchange =
+          new NioHttpExchange(this, method, uri, protocol, headers, body);
+      HttpHandler handler = route(uri.getPath() == null ? "/" : uri.getPath());
+      resetRequest();
+      if (handler == null) {
+        rejected.increment();
+        exchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_NOT_FOUND, -1);
+        exchange.close();
+        return;
+      }
+      try {
+        handler.handle(exchange);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Error handling " + exchange.getRequestURI(), e);
+        exchange.close();
+      } catch (RuntimeException e) {
+        LOG.log(Level.SEVERE, "Unexpected error handling " + exchange.getRequestURI(), e);
+        exchange.close();
+      }
+    }
+
+    /** Answers a request the handlers never see, and closes the connection afterwards. */
+    private void reject(int statusCode) {
+      rejected.increment();
+      keepAlive = false;
+      inFlight = true;
+      key.interestOps(0);
+      resetRequest();
+      // Whatever else the client sent is dropped.
+      readBuffer.position(readBuffer.limit());
+      respond(ByteBuffer.wrap(("HTTP/1.1 " + statusCode + " "
+          + NioHttpExchange.reasonPhrase(statusCode)
+          + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+          .getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private void resetRequest() {
+      method = null;
+      uri = null;
+      protocol = null;
+      headers = null;
+      body = null;
+      bodyRead = 0;
+    }
+
+    private void startWrite(long now) throws IOException {
+      if (!loop.connections.contains(this)) {
+        return;
+      }
+      if (aborted) {
+        loop.close(this);
+        return;
+      }
+      response = pendingResponse;
+      pendingResponse = null;
+      key.interestOps(SelectionKey.OP_WRITE);
+      write(now);
+    }
+
+    private void write(long now) throws IOException {
+      channel.write(response);
+      lastActiveMillis = now;
+      if (response.hasRemaining()) {
+        return;
+      }
+      response = null;
+      inFlight = false;
+      if (!isKeepAlive()) {
+        loop.close(this);
+        return;
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      if (readBuffer != null) {
+        // A pipelined request was read along with the previous one.
+        parse();
+      }
+    }
+  }
+
+  /** Returns the position of the blank line ending the head in the buffer, or -1. */
+  private static int indexOfHeadEnd(ByteBuffer buffer) {
+    for (int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+      if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+          && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+/**
+ * Implemented by a {@link NotificationListener} which is only interested in some notifications.
+ *
+ * <p>{@link EventDispatcher} asks the filters before delivering a notification, and only decodes
+ * the notification in full if at least one listener accepts it. Notifications nobody is
+ * interested in thus cost little more than reading their enterprise ID and event types.
+ */
+public interface NotificationFilter {
+
+  /** Whether the listener's callbacks should be invoked for the events of the notification. */
+  boolean accept(NotificationView notification);
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.AppRestrictionsSchemaChangeEvent;
+import com.google.android.work.pubsub.EmmPubsub.AppUpdateEvent;
+import com.google.android.work.pubsub.EmmPubsub.InstallFailureEvent;
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+import com.google.android.work.pubsub.EmmPubsub.NewPermissionsEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductApprovalEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductAvailabilityChangeEvent;
+import com.google.android.work.pubsub.EmmPubsub.TestPushNotification;
+
+/**
+ * Receives the events contained in EMM notifications, one callback per event type.
+ *
+ * <p>Callbacks are invoked by {@link EventDispatcher}: all events of an enterprise are delivered
+ * on the same thread, in the order they were received, while events of different enterprises
+ * may be delivered concurrently. The notification that carried the event is passed along for its
+ * enterprise ID and timestamp.
+ *
+ * <p>Extend {@link NotificationListenerAdapter} to only handle some of the event types.
+ */
+public interface NotificationListener {
+
+  void onTestPushNotification(MdmPushNotification notification, TestPushNotification event);
+
+  void onProductApproval(MdmPushNotification notification, ProductApprovalEvent event);
+
+  void onInstallFailure(MdmPushNotification notification, InstallFailureEvent event);
+
+  void onAppUpdate(MdmPushNotification notification, AppUpdateEvent event);
+
+  void onNewPermissions(MdmPushNotification notification, NewPermissionsEvent event);
+
+  void onAppRestrictionsSchemaChange(
+      MdmPushNotification notification, AppRestrictionsSchemaChangeEvent event);
+
+  void onProductAvailabilityChange(
+      MdmPushNotification notification, ProductAvailabilityChangeEvent event);
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.AppRestrictionsSchemaChangeEvent;
+import com.google.android.work.pubsub.EmmPubsub.AppUpdateEvent;
+import com.google.android.work.pubsub.EmmPubsub.InstallFailureEvent;
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+import com.google.android.work.pubsub.EmmPubsub.NewPermissionsEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductApprovalEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductAvailabilityChangeEvent;
+import com.google.android.work.pubsub.EmmPubsub.TestPushNotification;
+
+/**
+ * A {@link NotificationListener} ignoring all events. Extend it and override the callbacks of
+ * the event types you are interested in.
+ */
+public abstract class NotificationListenerAdapter implements NotificationListener {
+
+  public void onTestPushNotification(
+      MdmPushNotification notification, TestPushNotification event) {}
+
+  public void onProductApproval(MdmPushNotification notification, ProductApprovalEvent event) {}
+
+  public void onInstallFailure(MdmPushNotification notification, InstallFailureEvent event) {}
+
+  public void onAppUpdate(MdmPushNotification notification, AppUpdateEvent event) {}
+
+  public void onNewPermissions(MdmPushNotification notification, NewPermissionsEvent event) {}
+
+  public void onAppRestrictionsSchemaChange(
+      MdmPushNotification notification, AppRestrictionsSchemaChangeEvent event) {}
+
+  public void onProductAvailabilityChange(
+      MdmPushNotification notification, ProductAvailabilityChangeEvent event) {}
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Logs received notifications as JSON lines to rotating files, off the request threads.
+ *
+ * <p>{@link #log} only captures the message's fields into a bounded ring buffer,
+ * and never blocks: when the buffer is full the record is dropped and counted. A background
+ * thread formats the buffered records and writes them in batches. The raw payload is copied and
+ * logged for a sampled fraction of the notifications only, and always for payloads which could
+ * not be decoded.
+ *
+ * <p>Each line holds the message ID, publish and receive times, the subscription, the enterprise
+ * ID, the send time and the number of events of each {@link EventType}.
+ */
+public class NotificationLog {
+
+  private static final Logger LOG = Logger.getLogger(NotificationLog.class.getName());
+
+  private static final int MAX_BATCH_SIZE = 512;
+  private static final long POLL_MILLIS = 100;
+
+  private final BlockingQueue<Entry> buffer;
+  private final FileHandler files;
+  private volatile double payloadSampleRate;
+  private final JsonFactory jsonFactory = new JsonFactory();
+  private final Thread writer;
+  private final Metrics.Counter written;
+  private final Metrics.Counter dropped;
+
+  private volatile boolean running = true;
+
+  /**
+   * @param filePattern pattern of the log files, see {@link FileHandler}
+   * @param fileSizeBytes size after which the current file is rotated
+   * @param fileCount number of files kept
+   * @param bufferCapacity number of records that may wait to be written
+   * @param payloadSampleRate fraction of the notifications whose raw payload is logged
+   */
+  public NotificationLog(
+      String filePattern,
+      int fileSizeBytes,
+      int fileCount,
+      int bufferCapacity,
+      double payloadSampleRate,
+      Metrics metrics) throws IOException {
+    this.buffer = new ArrayBlockingQueue<Entry>(bufferCapacity);
+    setPayloadSampleRate(payloadSampleRate);
+    this.files = new FileHandler(filePattern, fileSizeBytes, fileCount, true);
+    files.setFormatter(new Formatter() {
+      @Override
+      public String format(LogRecord record) {
+        // The batch of lines is already formatted.
+        return record.getMessage();
+      }
+    });
+    this.writer = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "notification-log");
+    writer.setDaemon(true);
+
+    this.written = metrics.counter(
+        "emm_notification_log_written_total", "Notifications written to the notification log.");
+    this.dropped = metrics.counter("emm_notification_log_dropped_total",
+        "Notifications not logged because the notification log buffer was full.");
+    metrics.gauge("emm_notification_log_buffered", "Notifications waiting to be logged.",
+        new Metrics.Gauge() {
+          public double value() {
+            return buffer.size();
+          }
+        });
+  }
+
+  /**
+   * Creates and starts the notification log configured in {@link Settings}, or returns null if
+   * notifications are logged through java.util.logging.
+   */
+  public static NotificationLog fromSettings(Settings settings) throws IOException {
+    String filePattern = settings.getNotificationLogFile();
+    if (filePattern == null) {
+      return null;
+    }
+    NotificationLog log = new NotificationLog(
+        filePattern,
+        settings.getNotificationLogFileSizeMb() << 20,
+        settings.getNotificationLogFileCount(),
+        settings.getNotificationLogQueueCapacity(),
+        settings.getNotificationLogPayloadSampleRate(),
+        Metrics.getDefault());
+    log.start();
+    return log;
+  }
+
+  public void start() {
+    writer.start();
+  }
+
+  /** Changes the fraction of the notifications whose raw payload is logged. */
+  public void setPayloadSampleRate(double payloadSampleRate) {
+    checkPayloadSampleRate(payloadSampleRate);
+    this.payloadSampleRate = payloadSampleRate;
+  }
+
+  /** Throws {@link IllegalArgumentException} if the sample rate can't be set. */
+  static void checkPayloadSampleRate(double payloadSampleRate) {
+    Preconditions.checkArgument(payloadSampleRate >= 0 && payloadSampleRate <= 1,
+        "Payload sample rate must be between 0 and 1, was %s", payloadSampleRate);
+  }
+
+  /**
+   * Queues a record of a received message, without blocking.
+   *
+   * @param notification the decoded notification, or null if the payload couldn't be decoded
+   */
+  public void log(PushMessage message, NotificationView notification) {
+    byte[] payload = null;
+    boolean sampled = payloadSampleRate > 0
+        && ThreadLocalRandom.current().nextDouble() < payloadSampleRate;
+    if (notification == null || sampled) {
+      // The message's payload is only valid until the next message is decoded on this thread.
+      payload = message.copyData();
+    }
+    Entry entry = new Entry(System.currentTimeMillis(), message.getMessageId(),
+        message.getPublishTime(), message.getSubscription(), notification, payload);
+    if (!buffer.offer(entry)) {
+      dropped.increment();
+    }
+  }
+
+  /** Writes the buffered records and closes the files. */
+  public void close() throws InterruptedException {
+    running = false;
+    writer.join();
+  }
+
+  private void writeLoop() {
+    List<Entry> batch = new ArrayList<Entry>(MAX_BATCH_SIZE);
+    while (running || !buffer.isEmpty()) {
+      try {
+        Entry first = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        buffer.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+        StringWriter lines = new StringWriter(batch.size() * 256);
+        for (Entry entry : batch) {
+          format(entry, lines);
+          lines.write('\n');
+        }
+        // One record per batch, the handler flushes and checks for rotation after each.
+        files.publish(new LogRecord(Level.INFO, lines.toString()));
+        written.add(batch.size());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Could not format notification log records", e);
+      } finally {
+        batch.clear();
+      }
+    }
+    files.close();
+  }
+
+  private void format(Entry entry, StringWriter out) throws IOException {
+    JsonGenerator json = jsonFactory.createJsonGenerator(out);
+    json.writeStartObject();
+    json.writeNumberField("received", entry.receivedMillis);
+    json.writeStringField("messageId", entry.messageId);
+    json.writeStringField("publishTime", entry.publishTime);
+    json.writeStringField("subscription", entry.subscription);
+    NotificationView notification = entry.notification;
+    if (notification != null) {
+      json.writeStringField("enterpriseId", notification.getEnterpriseId());
+      json.writeNumberField("sent", notification.getSentTimestampMillis());
+      json.writeObjectFieldStart("events");
+      for (EventType type : EventType.values()) {
+        int count = notification.getEventCount(type);
+        if (count > 0) {
+          json.writeNumberField(type.name(), count);
+        }
+      }
+      json.writeEndObject();
+    } else {
+      json.writeBooleanField("undecodable", true);
+    }
+    if (entry.payload != null) {
+      json.writeFieldName("payload");
+      json.writeBinary(entry.payload);
+    }
+    json.writeEndObject();
+    json.close();
+  }
+
+  private static final class Entry {
+    final long receivedMillis;
+    final String messageId;
+    final String publishTime;
+    final String subscription;
+    final NotificationView notification;
+    final byte[] payload;
+
+    Entry(
+        long receivedMillis,
+        String messageId,
+        String publishTime,
+        String subscription,
+        NotificationView notification,
+        byte[] payload) {
+      this.receivedMillis = receivedMillis;
+      this.messageId = messageId;
+      this.publishTime = publishTime;
+      this.subscription = subscription;
+      this.notification = notification;
+      this.payload = payload;
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processes a notification received from Cloud Pub/Sub, regardless of whether it was pushed to
+ * {@link PushSubscriber} or pulled by {@link PullSubscriber}.
+ *
+ * <p>When {@link #process} returns normally the message may be acknowledged. When it throws, the
+ * message must not be acknowledged so that Cloud Pub/Sub delivers it again. If a {@link Journal}
+ * is configured, {@link #process} only returns once the message is durably journaled. The
+ * listeners of the {@link EventDispatcher} have only run by then if the dispatcher awaits them.
+ *
+ * <p>With a {@link MessageDeduplicator}, a message is only recorded as processed once
+ * {@link #process} succeeded. A delivery arriving while another delivery of the same message is
+ * processed throws {@link MessageInFlightException}, so that it is not acknowledged before the
+ * outcome of the first one is known.
+ */
+public class NotificationProcessor {
+
+  private static final Logger LOG = Logger.getLogger(NotificationProcessor.class.getName());
+
+  // Enterprises beyond this many are counted together, to bound the number of series.
+  private static final int MAX_ENTERPRISE_SERIES = 1000;
+  private static final String OTHER_ENTERPRISES = "other";
+
+  private final Journal journal;
+  private final MessageDeduplicator deduplicator;
+  private final EventDispatcher dispatcher;
+  private final NotificationLog notificationLog;
+
+  private final Metrics metrics;
+  private final Histogram decodeLatency;
+  private final Metrics.Counter[] eventCounters;
+  private final ConcurrentMap<String, Metrics.Counter> enterpriseCounters =
+      new ConcurrentHashMap<String, Metrics.Counter>();
+
+  public NotificationProcessor() {
+    this(null, null, null, null, Metrics.getDefault());
+  }
+
+  /**
+   * @param journal journal to write the messages to, or null
+   * @param deduplicator cache of processed message IDs used to drop duplicates, or null
+   * @param dispatcher dispatcher delivering the events to listeners, or null
+   * @param notificationLog log of the received notifications, or null to log them through
+   *     java.util.logging
+   * @param metrics registry of the decode latency and the event counts
+   */
+  public NotificationProcessor(
+      Journal journal,
+      MessageDeduplicator deduplicator,
+      EventDispatcher dispatcher,
+      NotificationLog notificationLog,
+      Metrics metrics) {
+    this.journal = journal;
+    this.deduplicator = deduplicator;
+    this.dispatcher = dispatcher;
+    this.notificationLog = notificationLog;
+
+    this.metrics = metrics;
+    this.decodeLatency = metrics.histogram(
+        PushHandler.STAGE_METRIC, PushHandler.STAGE_DESCRIPTION, "stage", "proto_decode");
+    EventType[] types = EventType.values();
+    this.eventCounters = new Metrics.Counter[types.length];
+    for (EventType type : types) {
+      eventCounters[type.ordinal()] = metrics.counter(
+          "emm_events_total", "Events received, by event type.", "type", type.name());
+    }
+  }
+
+  public void process(PushMessage message) throws IOException {
+    if (notificationLog == null && LOG.isLoggable(Level.INFO)) {
+      LOG.info("Pubsub message received: " + message);
+    }
+
+    // Cloud Pub/Sub delivers at least once, a message may come again after it was processed.
+    String messageId = message.getMessageId();
+    boolean deduplicate = deduplicator != null && messageId != null;
+    if (deduplicate) {
+      switch (deduplicator.claim(messageId)) {
+        case PROCESSED:
+          LOG.info("Dropping duplicate of message " + messageId);
+          return;
+        case IN_FLIGHT:
+          throw new MessageInFlightException(
+              "Message " + messageId + " is already being processed");
+        default:
+          break;
+      }
+    }
+
+    boolean processed = false;
+    try {
+      if (journal != null) {
+        // Blocks until a group commit covering this record completed, so that the message is
+        // only acknowledged once it is safely on disk.
+        journal.awaitDurable(journal.append(message.getDataBuffer()));
+      }
+
+      handle(message);
+      processed = true;
+    } finally {
+      if (deduplicate) {
+        if (processed) {
+          deduplicator.complete(messageId);
+        } else {
+          // The message is not acknowledged, its redelivery must not be dropped.
+          deduplicator.release(messageId);
+        }
+      }
+    }
+  }
+
+  private void handle(PushMessage message) throws IOException {
+    // Only the enterprise and the event types are read here, the events are decoded by the
+    // dispatcher if a listener is interested in them.
+    NotificationView notification;
+    long start = System.nanoTime();
+    try {
+      notification = NotificationView.parse(message);
+    } catch (InvalidProtocolBufferException e) {
+      // Redelivering a message which can't be decoded won't help, so it is acknowledged.
+      LOG.log(Level.WARNING, "Error occured when decoding message", e);
+      if (notificationLog != null) {
+        notificationLog.log(message, null);
+      }
+      return;
+    }
+    decodeLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    count(notification);
+
+    if (notificationLog != null) {
+      notificationLog.log(message, notification);
+    } else if (LOG.isLoggable(Level.INFO)) {
+      LOG.info("Message received: " + notification);
+    }
+
+    if (dispatcher != null) {
+      dispatcher.dispatch(notification);
+    }
+  }
+
+  private void count(NotificationView notification) {
+    for (EventType type : EventType.values()) {
+      int events = notification.getEventCount(type);
+      if (events > 0) {
+        eventCounters[type.ordinal()].add(events);
+      }
+    }
+
+    String enterpriseId = notification.getEnterpriseId();
+    Metrics.Counter counter = enterpriseCounters.get(enterpriseId);
+    if (counter == null) {
+      boolean ownSeries = enterpriseCounters.size() < MAX_ENTERPRISE_SERIES;
+      counter = metrics.counter("emm_enterprise_notifications_total",
+          "Notifications received, by enterprise.",
+          "enterprise", ownSeries ? enterpriseId : OTHER_ENTERPRISES);
+      if (ownSeries) {
+        enterpriseCounters.putIfAbsent(enterpriseId, counter);
+      }
+    }
+    counter.increment();
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * A lazily decoded {@link MdmPushNotification}: the enterprise ID, the timestamp and the number
+ * of events of each type are read from the raw bytes without building the event messages, which
+ * is enough to route or filter a notification. The full notification is only decoded when
+ * {@link #getNotification()} is called.
+ */
+public final class NotificationView {
+
+  private static final int ENTERPRISE_ID_TAG = tag(
+      MdmPushNotification.ENTERPRISE_ID_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+  private static final int SENT_TIMESTAMP_TAG = tag(
+      MdmPushNotification.EVENT_NOTIFICATION_SENT_TIMESTAMP_MILLIS_FIELD_NUMBER,
+      WireFormat.WIRETYPE_VARINT);
+
+  private final byte[] data;
+  private final int offset;
+  private final int length;
+  // Whether data belongs to this view, rather than to a buffer which may be reused.
+  private final boolean owned;
+  private final String enterpriseId;
+  private final long sentTimestampMillis;
+  private final int[] eventCounts;
+  private volatile MdmPushNotification notification;
+
+  private NotificationView(byte[] data, int offset, int length, boolean owned,
+      String enterpriseId, long sentTimestampMillis, int[] eventCounts,
+      MdmPushNotification notification) {
+    this.data = data;
+    this.offset = offset;
+    this.length = length;
+    this.owned = owned;
+    this.enterpriseId = enterpriseId;
+    this.sentTimestampMillis = sentTimestampMillis;
+    this.eventCounts = eventCounts;
+    this.notification = notification;
+  }
+
+  /**
+   * Reads the routing fields of the message's payload, without copying it. The view is only
+   * valid while the message is handled, use {@link #copy()} to keep it beyond that.
+   *
+   * @throws InvalidProtocolBufferException if the payload is not a well-formed message
+   */
+  public static NotificationView parse(PushMessage message)
+      throws InvalidProtocolBufferException {
+    return scan(message.getDataArray(), 0, message.getDataLength(), false);
+  }
+
+  /**
+   * Reads the routing fields of a serialized notification. The array must not be modified
+   * afterwards.
+   *
+   * @throws InvalidProtocolBufferException if the bytes are not a well-formed message
+   */
+  public static NotificationView parse(byte[] data) throws InvalidProtocolBufferException {
+    return scan(data, 0, data.length, true);
+  }
+
+  /** Wraps an already decoded notification. */
+  public static NotificationView of(MdmPushNotification notification) {
+    int[] eventCounts = new int[EventType.values().length];
+    for (EventType type : EventType.values()) {
+      eventCounts[type.ordinal()] = type.countIn(notification);
+    }
+    return new NotificationView(null, 0, 0, true, notification.getEnterpriseId(),
+        notification.getEventNotificationSentTimestampMillis(), eventCounts, notification);
+  }
+
+  private static NotificationView scan(byte[] data, int offset, int length, boolean owned)
+      throws InvalidProtocolBufferException {
+    CodedInputStream in = CodedInputStream.newInstance(data, offset, length);
+    String enterpriseId = "";
+    long sentTimestampMillis = 0;
+    int[] eventCounts = new int[EventType.values().length];
+    try {
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        if (tag == ENTERPRISE_ID_TAG) {
+          enterpriseId = in.readString();
+        } else if (tag == SENT_TIMESTAMP_TAG) {
+          sentTimestampMillis = in.readInt64();
+        } else {
+          // Events are length-delimited, only their tag is looked at and the rest skipped.
+          EventType type = EventType.forFieldNumber(tag >>> 3);
+          if (type != null && tag == tag(type.getFieldNumber(),
+              WireFormat.WIRETYPE_LENGTH_DELIMITED)) {
+            eventCounts[type.ordinal()]++;
+          }
+          if (!in.skipField(tag)) {
+            break;
+          }
+        }
+      }
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      // Reading from an array only fails on malformed input.
+      throw new InvalidProtocolBufferException(e.getMessage());
+    }
+    return new NotificationView(data, offset, length, owned, enterpriseId, sentTimestampMillis,
+        eventCounts, null);
+  }
+
+  private static int tag(int fieldNumber, int wireType) {
+    return (fieldNumber << 3) | wireType;
+  }
+
+  /** Enterprise ID of the notification, empty if absent. */
+  public String getEnterpriseId() {
+    return enterpriseId;
+  }
+
+  /** Time at which the notification was sent, 0 if absent. */
+  public long getSentTimestampMillis() {
+    return sentTimestampMillis;
+  }
+
+  /** Returns the number of events of this type in the notification. */
+  public int getEventCount(EventType type) {
+    return eventCounts[type.ordinal()];
+  }
+
+  public boolean hasEvents(EventType type) {
+    return eventCounts[type.ordinal()] > 0;
+  }
+
+  /** Returns the types of the events in the notification. */
+  public Set<EventType> getEventTypes() {
+    Set<EventType> types = EnumSet.noneOf(EventType.class);
+    for (EventType type : EventType.values()) {
+      if (eventCounts[type.ordinal()] > 0) {
+        types.add(type);
+      }
+    }
+    return types;
+  }
+
+  /**
+   * Returns the fully decoded notification, decoding it on the first call.
+   *
+   * @throws InvalidProtocolBufferException if one of the events is malformed
+   */
+  public MdmPushNotification getNotification() throws InvalidProtocolBufferException {
+    MdmPushNotification result = notification;
+    if (result == null) {
+      // Racing callers decode the same notification, which is harmless.
+      result = MdmPushNotification.parseFrom(
+          CodedInputStream.newInstance(data, offset, length));
+      notification = result;
+    }
+    return result;
+  }
+
+  /** Returns a view which stays valid after the message's buffer is reused. */
+  public NotificationView copy() {
+    if (owned) {
+      return this;
+    }
+    return new NotificationView(Arrays.copyOfRange(data, offset, offset + length), 0, length,
+        true, enterpriseId, sentTimestampMillis, eventCounts, notification);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder events = new StringBuilder();
+    for (EventType type : EventType.values()) {
+      if (eventCounts[type.ordinal()] > 0) {
+        events.append(events.length() == 0 ? "" : ", ")
+            .append(type.name()).append('=').append(eventCounts[type.ordinal()]);
+      }
+    }
+    return "NotificationView{enterpriseId=" + enterpriseId + ", sentTimestampMillis="
+        + sentTimestampMillis + ", events={" + events + "}}";
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.common.base.Preconditions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Serves the {@link ProductStateView} as JSON.
+ *
+ * <ul>
+ *   <li>{@code GET /products?enterprise=E} returns the state of each product of enterprise E.
+ *   <li>{@code GET /products?enterprise=E&product=P} returns the state of product P only, or 404
+ *       if no event was seen for it.
+ *   <li>{@code GET /products} returns the IDs of the enterprises with products.
+ * </ul>
+ *
+ * <p>The response of an enterprise with many products is large, so it is built behind an
+ * {@link ExecutingHandler}.
+ */
+public class ProductStateHandler implements HttpHandler {
+
+  static final String PATH = "/products";
+
+  private final ProductStateView view;
+  private final JsonFactory jsonFactory = new JsonFactory();
+
+  public ProductStateHandler(ProductStateView view) {
+    this.view = Preconditions.checkNotNull(view);
+  }
+
+  public void handle(HttpExchange httpExchange) throws IOException {
+    try {
+      if (!"GET".equals(httpExchange.getRequestMethod())) {
+        httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_METHOD_NOT_ALLOWED, -1);
+        return;
+      }
+      Map<String, String> query =
+          QueryStrings.parse(httpExchange.getRequestURI().getRawQuery());
+      String enterpriseId = query.get("enterprise");
+      String productId = query.get("product");
+
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      JsonGenerator json = jsonFactory.createJsonGenerator(body);
+      json.writeStartObject();
+      if (enterpriseId == null) {
+        json.writeArrayFieldStart("enterprises");
+        for (String id : view.getEnterpriseIds()) {
+          json.writeString(id);
+        }
+        json.writeEndArray();
+      } else if (productId != null) {
+        ProductStateView.ProductState state = view.getProductState(enterpriseId, productId);
+        if (state == null) {
+          httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_NOT_FOUND, -1);
+          return;
+        }
+        json.writeStringField("enterpriseId", enterpriseId);
+        json.writeStringField("productId", productId);
+        writeState(json, state);
+      } else {
+        json.writeStringField("enterpriseId", enterpriseId);
+        json.writeObjectFieldStart("products");
+        for (Map.Entry<String, ProductStateView.ProductState> product
+            : view.getProductStates(enterpriseId).entrySet()) {
+          json.writeObjectFieldStart(product.getKey());
+          writeState(json, product.getValue());
+          json.writeEndObject();
+        }
+        json.writeEndObject();
+      }
+      json.writeEndObject();
+      json.close();
+
+      byte[] bytes = body.toByteArray();
+      httpExchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_OK, bytes.length);
+      OutputStream out = httpExchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    } finally {
+      httpExchange.close();
+    }
+  }
+
+  private static void writeState(JsonGenerator json, ProductStateView.ProductState state)
+      throws IOException {
+    json.writeStringField("approval", state.getApprovalStatus().name());
+    json.writeStringField("availability", state.getAvailabilityStatus().name());
+    json.writeBooleanField("approvedAndAvailable", state.isApprovedAndAvailable());
+  }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+import com.google.android.work.pubsub.EmmPubsub.ProductApprovalEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductApprovalEvent.ApprovalStatus;
+import com.google.android.work.pubsub.EmmPubsub.ProductAvailabilityChangeEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductAvailabilityChangeEvent.AvailabilityStatus;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the approval and availability of each product of each enterprise, as last reported by
+ * {@link ProductApprovalEvent}s and {@link ProductAvailabilityChangeEvent}s, so that they can be
+ * queried without calling the EMM API.
+ *
+ * <p>Product IDs are stored once in a shared dictionary and referred to by index. Each enterprise
+ * keeps an open-addressing table of product indexes with the two statuses packed in a byte, so
+ * that an entry costs about 5 bytes. As a {@link NotificationFilter}, the view only has
+ * notifications with product events decoded.
+ *
+ * <p>The view can be written to a snapshot file periodically and loaded from it on startup, so
+ * that it does not start empty after a restart.
+ */
+public class ProductStateView extends NotificationListenerAdapter implements NotificationFilter {
+
+  private static final Logger LOG = Logger.getLogger(ProductStateView.class.getName());
+
+  private static final int SNAPSHOT_MAGIC = 0x454d5053; // "EMPS"
+  private static final int SNAPSHOT_VERSION = 1;
+
+  // Packing of the statuses in a state byte.
+  private static final int APPROVAL_MASK = 0x03;
+  private static final int AVAILABILITY_SHIFT = 2;
+  private static final int AVAILABILITY_MASK = 0x0c;
+
+  // Dictionary of product IDs. Indexes are looked up without locking, new IDs are added to both
+  // the map and the array under the lock.
+  private final ConcurrentMap<String, Integer> productIndexes =
+      new ConcurrentHashMap<String, Integer>();
+  private volatile String[] productIds = new String[1024];
+  private int productCount;
+
+  private final ConcurrentMap<String, EnterpriseProducts> enterprises =
+      new ConcurrentHashMap<String, EnterpriseProducts>();
+  private final AtomicLong entries = new AtomicLong();
+  private final Metrics.Counter updates;
+
+  private ScheduledExecutorService snapshotter;
+  private File snapshotFile;
+
+  public ProductStateView(Metrics metrics) {
+    this.updates = metrics.counter(
+        "emm_product_state_updates_total", "Product events applied to the product state view.");
+    metrics.gauge("emm_product_state_entries", "Products of enterprises in the product state view.",
+        new Metrics.Gauge() {
+          public double value() {
+            return entries.get();
+          }
+        });
+    metrics.gauge("emm_product_state_enterprises", "Enterprises in the product state view.",
+        new Metrics.Gauge() {
+          public double value() {
+            return enterprises.size();
+          }
+        });
+    metrics.gauge("emm_product_state_products", "Distinct product IDs in the product state view.",
+        new Metrics.Gauge() {
+          public double value() {
+            return productIndexes.size();
+          }
+        });
+  }
+
+  /**
+   * Creates the view configured in {@link Settings}, loaded from its snapshot if there is one, or
+   * returns null if it is disabled.
+   */
+  public static ProductStateView fromSettings(Settings settings, Metrics metrics)
+      throws IOException {
+    if (!settings.isProductStateEnabled()) {
+      return null;
+    }
+    ProductStateView view = new ProductStateView(metrics);
+    String snapshot = settings.getProductStateSnapshotFile();
+    if (snapshot != null) {
+      view.startSnapshots(new File(snapshot), settings.getProductStateSnapshotIntervalSeconds());
+    }
+    return view;
+  }
+
+  public boolean accept(NotificationView notification) {
+    return notification.hasEvents(EventType.PRODUCT_APPROVAL)
+        || notification.hasEvents(EventType.PRODUCT_AVAILABILITY_CHANGE);
+  }
+
+  @Override
+  public void onProductApproval(MdmPushNotification notification, ProductApprovalEvent event) {
+    if (event.hasProductId()) {
+      update(notification.getEnterpriseId(), event.getProductId(),
+          APPROVAL_MASK, event.getApproved().getNumber());
+    }
+  }
+
+  @Override
+  public void onProductAvailabilityChange(
+      MdmPushNotification notification, ProductAvailabilityChangeEvent event) {
+    if (event.hasProductId()) {
+      update(notification.getEnterpriseId(), event.getProductId(),
+          AVAILABILITY_MASK, event.getAvailabilityStatus().getNumber() << AVAILABILITY_SHIFT);
+    }
+  }
+
+  /** Returns the state of a product of an enterprise, or null if no event was seen for it. */
+  public ProductState getProductState(String enterpriseId, String productId) {
+    EnterpriseProducts products = enterprises.get(enterpriseId);
+    Integer product = productIndexes.get(productId);
+    if (products == null || product == null) {
+      return null;
+    }
+    int state = products.get(product);
+    return state < 0 ? null : ProductState.of(state);
+  }
+
+  /** Returns the state of each product of an enterprise, by product ID. */
+  public SortedMap<String, ProductState> getProductStates(String enterpriseId) {
+    SortedMap<String, ProductState> states = new TreeMap<String, ProductState>();
+    EnterpriseProducts products = enterprises.get(enterpriseId);
+    if (products != null) {
+      int[][] snapshot = products.snapshot();
+      // Read after the snapshot, so that it holds the IDs of all the indexes in it.
+      String[] ids = productIds;
+      for (int i = 0; i < snapshot[0].length; i++) {
+        states.put(ids[snapshot[0][i]], ProductState.of(snapshot[1][i]));
+      }
+    }
+    return states;
+  }
+
+  /** Returns the IDs of the enterprises with at least one product. */
+  public List<String> getEnterpriseIds() {
+    List<String> ids = new ArrayList<String>(enterprises.keySet());
+    Collections.sort(ids);
+    return ids;
+  }
+
+  private void update(String enterpriseId, String productId, int mask, int bits) {
+    EnterpriseProducts products = enterprises.get(enterpriseId);
+    if (products == null) {
+      EnterpriseProducts created = new EnterpriseProducts();
+      products = enterprises.putIfAbsent(enterpriseId, created);
+      if (products == null) {
+        products = created;
+      }
+    }
+    if (products.update(productIndex(productId), mask, bits)) {
+      entries.incrementAndGet();
+    }
+    updates.increment();
+  }
+
+  private int productIndex(String productId) {
+    Integer index = productIndexes.get(productId);
+    if (index != null) {
+      return index;
+    }
+    synchronized (this) {
+      index = productIndexes.get(productId);
+      if (index != null) {
+        return index;
+      }
+      String[] ids = productIds;
+      if (productCount == ids.length) {
+        ids = Arrays.copyOf(ids, ids.length * 2);
+      }
+      ids[productCount] = productId;
+      // Publishes the ID before its index can be found.
+      productIds = ids;
+      productIndexes.put(productId, productCount);
+      return productCount++;
+    }
+  }
+
+  /**
+   * Loads the view from {@code file} if it exists, then writes the view back to it every
+   * {@code intervalSeconds} and on {@link #close}.
+   */
+  public void startSnapshots(File file, long intervalSeconds) throws IOException {
+    this.snapshotFile = file;
+    if (file.exists()) {
+      loadSnapshot(file);
+    }
+    snapshotter = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("product-state-snapshot").setDaemon(true)
+            .build());
+    snapshotter.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          writeSnapshot(snapshotFile);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Could not write product state snapshot " + snapshotFile, e);
+        }
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /** Stops the snapshots, writing a last one. */
+  public void close() throws IOException {
+    if (snapshotter != null) {
+      snapshotter.shutdownNow();
+      writeSnapshot(snapshotFile);
+    }
+  }
+
+  /**
+   * Writes the dictionary of product IDs, then the products of each enterprise, replacing the
+   * file atomically.
+   */
+  public void writeSnapshot(File file) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+      // Products added after this point are not referred to by the enterprises written below,
+      // as those only see indexes below the count read here.
+      String[] ids;
+      int count;
+      synchronized (this) {
+        ids = productIds;
+        count = productCount;
+      }
+      out.writeInt(count);
+      for (int i = 0; i < count; i++) {
+        out.writeUTF(ids[i]);
+      }
+      Map<String, int[][]> snapshots = new TreeMap<String, int[][]>();
+      for (Map.Entry<String, EnterpriseProducts> enterprise : enterprises.entrySet()) {
+        snapshots.put(enterprise.getKey(), enterprise.getValue().snapshot());
+      }
+      out.writeInt(snapshots.size());
+      for (Map.Entry<String, int[][]> enterprise : snapshots.entrySet()) {
+        int[] products = enterprise.getValue()[0];
+        int[] states = enterprise.getValue()[1];
+        int written = 0;
+        for (int product : products) {
+          if (product < count) {
+            written++;
+          }
+        }
+        out.writeUTF(enterprise.getKey());
+        out.writeInt(written);
+        for (int i = 0; i < products.length; i++) {
+          if (products[i] < count) {
+            out.writeInt(products[i]);
+            out.writeByte(states[i]);
+          }
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file)) {
+      throw new IOException("Could not rename " + temp + " to " + file);
+    }
+  }
+
+  private void loadSnapshot(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    long loaded = 0;
+    try {
+      if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+        LOG.warning("Ignoring product state snapshot " + file + " with an unknown format");
+        return;
+      }
+      // Indexes of the snapshot are mapped to the ones of this view.
+      int[] indexes = new int[in.readInt()];
+      for (int i = 0; i < indexes.length; i++) {
+        indexes[i] = productIndex(in.readUTF());
+      }
+      int enterpriseCount = in.readInt();
+      for (int i = 0; i < enterpriseCount; i++) {
+        String enterpriseId = in.readUTF();
+        int entryCount = in.readInt();
+        EnterpriseProducts products = new EnterpriseProducts();
+        for (int j = 0; j < entryCount; j++) {
+          int product = indexes[in.readInt()];
+          int state = in.readByte();
+          products.update(product, APPROVAL_MASK | AVAILABILITY_MASK, state);
+        }
+        enterprises.put(enterpriseId, products);
+        entries.addAndGet(entryCount);
+        loaded += entryCount;
+      }
+    } finally {
+      in.close();
+    }
+    LOG.info("Loaded " + loaded + " product states from " + file);
+  }
+
+  /** The last reported approval and availability of a product. */
+  public static final class ProductState {
+    // One instance per possible state byte.
+    private static final ProductState[] STATES = new ProductState[16];
+
+    static {
+      for (int i = 0; i < STATES.length; i++) {
+        STATES[i] = new ProductState(
+            ApprovalStatus.valueOf(i & APPROVAL_MASK),
+            AvailabilityStatus.valueOf((i & AVAILABILITY_MASK) >>> AVAILABILITY_SHIFT));
+      }
+    }
+
+    private final ApprovalStatus approvalStatus;
+    private final AvailabilityStatus availabilityStatus;
+
+    private ProductState(ApprovalStatus approvalStatus, AvailabilityStatus availabilityStatus) {
+      this.approvalStatus = approvalStatus == null ? ApprovalStatus.UNKNOWN : approvalStatus;
+      this.availabilityStatus =
+          availabilityStatus == null ? AvailabilityStatus.UNKNOWN : availabilityStatus;
+    }
+
+    static ProductState of(int state) {
+      return STATES[state & (APPROVAL_MASK | AVAILABILITY_MASK)];
+    }
+
+    /** The last reported approval, UNKNOWN if none was reported. */
+    public ApprovalStatus getApprovalStatus() {
+      return approvalStatus;
+    }
+
+    /** The last reported availability, UNKNOWN if none was reported. */
+    public AvailabilityStatus getAvailabilityStatus() {
+      return availabilityStatus;
+    }
+
+    /** Whether the product is approved and was not reported removed or unpublished. */
+    public boolean isApprovedAndAvailable() {
+      return approvalStatus == ApprovalStatus.APPROVED
+          && (availabilityStatus == AvailabilityStatus.AVAILABLE
+              || availabilityStatus == AvailabilityStatus.UNKNOWN);
+    }
+
+    @Override
+    public String toString() {
+      return "ProductState{approval=" + approvalStatus + ", availability="
+          + availabilityStatus + "}";
+    }
+  }
+
+  /** Open-addressing table of product index + 1, 0 marking an empty slot, to state byte. */
+  private static final class EnterpriseProducts {
+    private int[] keys = new int[8];
+    private byte[] states = new byte[8];
+    private int size;
+
+    /** Sets the masked bits of the product's state. Returns whether the product is new. */
+    synchronized boolean update(int product, int mask, int bits) {
+      int slot = slotOf(keys, product + 1);
+      if (keys[slot] != 0) {
+        states[slot] = (byte) ((states[slot] & ~mask) | bits);
+        return false;
+      }
+      if ((size + 1) * 4 > keys.length * 3) {
+        resize();
+        slot = slotOf(keys, product + 1);
+      }
+      keys[slot] = product + 1;
+      states[slot] = (byte) bits;
+      size++;
+      return true;
+    }
+
+    /** Returns the state of the product, or -1 if it is absent. */
+    synchronized int get(int product) {
+      int slot = slotOf(keys, product + 1);
+      return keys[slot] == 0 ? -1 : states[slot];
+    }
+
+    /** Returns the product indexes and their states. */
+    synchronized int[][] snapshot() {
+      int[] products = new int[size];
+      int[] productStates = new int[size];
+      int i = 0;
+      for (int slot = 0; slot < keys.length; slot++) {
+        if (keys[slot] != 0) {
+          products[i] = keys[slot] - 1;
+          productStates[i] = states[slot];
+          i++;
+        }
+      }
+      return new int[][] {products, productStates};
+    }
+
+    private void resize() {
+      int[] oldKeys = keys;
+      byte[] oldStates = states;
+      keys = new int[oldKeys.length * 2];
+      states = new byte[oldKeys.length * 2];
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != 0) {
+          int slot = slotOf(keys, oldKeys[i]);
+          keys[slot] = oldKeys[i];
+          states[slot] = oldStates[i];
+        }
+      }
+    }
+
+    /** Returns the slot holding the key, or the empty slot where it belongs. */
+    private static int slotOf(int[] keys, int key) {
+      int mask = keys.length - 1;
+      // Fibonacci hashing spreads the consecutive dictionary indexes over the table.
+      int slot = (key * 0x9e3779b9) >>> Integer.numberOfLeadingZeros(mask);
+      while (keys[slot] != 0 && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+  }
+}
@@ -0,0 +1,770 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.util.Base64;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stand-in for Cloud Pub/Sub running in-process, serving the part of its REST API this project
+ * uses, so that publishers and subscribers can be tested end to end on one machine without a
+ * Cloud project.
+ *
+ * <p>It serves {@code topics.get}, {@code topics.create}, {@code topics.publish},
+ * {@code subscriptions.get}, {@code subscriptions.create}, {@code subscriptions.pull},
+ * {@code subscriptions.acknowledge} and {@code subscriptions.modifyAckDeadline}, under any API
+ * version. Requests are not authenticated, so clients can use any token. Everything is kept in
+ * memory and lost on exit.
+ *
+ * <p>Messages published to a topic are queued for each of its subscriptions. A subscription with
+ * a push endpoint has them POSTed there by {@code --push-concurrency} threads, and redelivered
+ * with exponential backoff until the endpoint answers 2xx. Other subscriptions are pulled from,
+ * and messages not acknowledged within the ack deadline are redelivered.
+ *
+ * <p>A push subscription with an {@code oidcToken} in its push config has its pushes carry a
+ * bearer token for its audience and service account, as Cloud Pub/Sub does. The tokens are signed
+ * by a {@link PushTokenIssuer}, whose keys are served on {@link PushTokenIssuer#CERTS_PATH}.
+ *
+ * <p>Run it as <code>
+ *   java -cp target/emm-notifications-1.0-SNAPSHOT-jar-with-dependencies.jar \
+ *   com.google.android.work.emmnotifications.PubsubEmulator --port 8085</code>
+ * and set {@code PubsubRootUrl=http://localhost:8085/} in the settings of the clients.
+ */
+public class PubsubEmulator {
+
+  private static final Logger LOG = Logger.getLogger(PubsubEmulator.class.getName());
+
+  // Path of a resource and custom method under any API version, e.g.
+  // /v1/projects/p/topics/t:publish.
+  private static final Pattern RESOURCE_PATH =
+      Pattern.compile("/[^/]+/(projects/[^/]+/(topics|subscriptions)/[^/:]+)(?::(\\w+))?");
+
+  private static final int DEFAULT_ACK_DEADLINE_SECONDS = 10;
+  private static final long PULL_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+  private static final long PUSH_INITIAL_BACKOFF_MILLIS = 100;
+  private static final long PUSH_MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(60);
+  private static final int PUSH_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+  private static final long PUSH_TOKEN_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final long PUSH_TOKEN_RENEWAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  private final int pushConcurrency;
+  private final HttpServer server;
+  private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<String, Topic>();
+  private final ConcurrentMap<String, Subscription> subscriptions =
+      new ConcurrentHashMap<String, Subscription>();
+  private final ScheduledExecutorService timers;
+  private final ThreadFactory pushThreads =
+      new ThreadFactoryBuilder().setNameFormat("emulator-push-%d").setDaemon(true).build();
+  private final AtomicLong messageIds = new AtomicLong();
+  private final AtomicLong ackIds = new AtomicLong();
+  private final JsonFactory jsonFactory = new JsonFactory();
+  private final PushTokenIssuer tokenIssuer = new PushTokenIssuer();
+
+  private final Metrics.Counter published;
+  private final Metrics.Counter pushed;
+  private final Metrics.Counter pushFailures;
+  private final Metrics.Counter pulled;
+  private final Metrics.Counter acknowledged;
+  private final Metrics.Counter expired;
+
+  /**
+   * @param pushConcurrency number of requests in flight to each push endpoint
+   */
+  public PubsubEmulator(int port, int pushConcurrency, Metrics metrics) throws IOException {
+    Preconditions.checkArgument(pushConcurrency > 0, "Push concurrency must be positive");
+    this.pushConcurrency = pushConcurrency;
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.setExecutor(Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("emulator-http-%d").setDaemon(true).build()));
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange httpExchange) throws IOException {
+        serve(httpExchange);
+      }
+    });
+    server.createContext(MetricsHandler.PATH, new MetricsHandler(metrics));
+    server.createContext(PushTokenIssuer.CERTS_PATH, tokenIssuer);
+    server.createContext(PushTokenIssuer.TOKEN_PATH, tokenIssuer);
+    this.timers = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("emulator-timer").setDaemon(true).build());
+
+    this.published = metrics.counter(
+        "emm_emulator_published_total", "Messages published to the emulator.");
+    this.pushed = metrics.counter(
+        "emm_emulator_pushed_total", "Messages pushed by the emulator and acknowledged with 2xx.");
+    this.pushFailures = metrics.counter("emm_emulator_push_failures_total",
+        "Pushes by the emulator which failed or were answered with another status.");
+    this.pulled = metrics.counter(
+        "emm_emulator_pulled_total", "Messages pulled from the emulator, redeliveries included.");
+    this.acknowledged = metrics.counter(
+        "emm_emulator_acknowledged_total", "Pulled messages acknowledged to the emulator.");
+    this.expired = metrics.counter("emm_emulator_expired_total",
+        "Pulled messages redelivered because their ack deadline expired.");
+  }
+
+  public static void main(String[] args) throws IOException {
+    Options options = new Options()
+        .addOption("p", "port", true, "Port to listen on, 8085 by default")
+        .addOption("c", "push-concurrency", true,
+            "Number of requests in flight to each push endpoint, 16 by default")
+        .addOption("h", "help", false, "Print this help");
+    CommandLine cmd;
+    try {
+      cmd = new GnuParser().parse(options, args);
+    } catch (ParseException e) {
+      LOG.severe(e.getMessage());
+      new HelpFormatter().printHelp("PubsubEmulator", options);
+      return;
+    }
+    if (cmd.hasOption("help")) {
+      new HelpFormatter().printHelp("PubsubEmulator", options);
+      return;
+    }
+
+    int port = Integer.parseInt(cmd.getOptionValue("port", "8085"));
+    new PubsubEmulator(
+        port,
+        Integer.parseInt(cmd.getOptionValue("push-concurrency", "16")),
+        Metrics.getDefault())
+        .start();
+    LOG.info("Pub/Sub emulator listening on port " + port);
+  }
+
+  public void start() {
+    timers.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        expireAckDeadlines();
+      }
+    }, 1, 1, TimeUnit.SECONDS);
+    server.start();
+  }
+
+  /** Returns the issuer of the tokens sent with the pushes. */
+  public PushTokenIssuer getTokenIssuer() {
+    return tokenIssuer;
+  }
+
+  public void stop() {
+    server.stop(0);
+    timers.shutdownNow();
+    for (Subscription subscription : subscriptions.values()) {
+      subscription.stop();
+    }
+  }
+
+  private void serve(HttpExchange httpExchange) throws IOException {
+    try {
+      Matcher path = RESOURCE_PATH.matcher(httpExchange.getRequestURI().getPath());
+      if (!path.matches()) {
+        throw new ApiException(HttpStatusCodes.STATUS_CODE_NOT_FOUND, "NOT_FOUND",
+            "Unknown path " + httpExchange.getRequestURI().getPath());
+      }
+      String name = path.group(1);
+      String method = httpExchange.getRequestMethod() + " " + path.group(2)
+          + (path.group(3) == null ? "" : ":" + path.group(3));
+      Map<String, Object> request = readBody(httpExchange);
+
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      JsonGenerator json = jsonFactory.createJsonGenerator(body);
+      if ("GET topics".equals(method)) {
+        writeTopic(json, getTopic(name));
+      } else if ("PUT topics".equals(method)) {
+        writeTopic(json, createTopic(name));
+      } else if ("POST topics:publish".equals(method)) {
+        publish(getTopic(name), request, json);
+      } else if ("GET subscriptions".equals(method)) {
+        writeSubscription(json, getSubscription(name));
+      } else if ("PUT subscriptions".equals(method)) {
+        writeSubscription(json, createSubscription(name, request));
+      } else if ("POST subscriptions:pull".equals(method)) {
+        pull(getSubscription(name), request, json);
+      } else if ("POST subscriptions:acknowledge".equals(method)) {
+        acknowledge(getSubscription(name), request, json);
+      } else if ("POST subscriptions:modifyAckDeadline".equals(method)) {
+        modifyAckDeadline(getSubscription(name), request, json);
+      } else {
+        throw new ApiException(HttpStatusCodes.STATUS_CODE_NOT_FOUND, "NOT_FOUND",
+            "Method " + method + " is not emulated");
+      }
+      json.close();
+      respond(httpExchange, HttpStatusCodes.STATUS_CODE_OK, body.toByteArray());
+    } catch (ApiException e) {
+      respond(httpExchange, e.code, error(e));
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Could not serve " + httpExchange.getRequestURI(), e);
+      respond(httpExchange, HttpStatusCodes.STATUS_CODE_BAD_REQUEST, error(
+          new ApiException(HttpStatusCodes.STATUS_CODE_BAD_REQUEST, "INVALID_ARGUMENT",
+              String.valueOf(e.getMessage()))));
+    } finally {
+      httpExchange.close();
+    }
+  }
+
+  private Topic getTopic(String name) {
+    Topic topic = topics.get(name);
+    if (topic == null) {
+      throw new ApiException(
+          HttpStatusCodes.STATUS_CODE_NOT_FOUND, "NOT_FOUND", "Topic not found: " + name);
+    }
+    return topic;
+  }
+
+  private Topic createTopic(String name) {
+    Topic topic = new Topic(name);
+    if (topics.putIfAbsent(name, topic) != null) {
+      throw new ApiException(
+          HttpStatusCodes.STATUS_CODE_CONFLICT, "ALREADY_EXISTS", "Topic already exists: " + name);
+    }
+    LOG.info("Created topic " + name);
+    return topic;
+  }
+
+  private Subscription getSubscription(String name) {
+    Subscription subscription = subscriptions.get(name);
+    if (subscription == null) {
+      throw new ApiException(HttpStatusCodes.STATUS_CODE_NOT_FOUND, "NOT_FOUND",
+          "Subscription not found: " + name);
+    }
+    return subscription;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Subscription createSubscription(String name, Map<String, Object> request) {
+    String topicName = (String) request.get("topic");
+    if (topicName == null) {
+      throw new ApiException(HttpStatusCodes.STATUS_CODE_BAD_REQUEST, "INVALID_ARGUMENT",
+          "Subscription has no topic");
+    }
+    Topic topic = getTopic(topicName);
+    Map<String, Object> pushConfig = (Map<String, Object>) request.get("pushConfig");
+    String pushEndpoint = pushConfig == null ? null : (String) pushConfig.get("pushEndpoint");
+    if (pushEndpoint != null && pushEndpoint.isEmpty()) {
+      pushEndpoint = null;
+    }
+    Map<String, Object> oidcToken =
+        pushConfig == null ? null : (Map<String, Object>) pushConfig.get("oidcToken");
+    String tokenAudience = null;
+    String tokenEmail = null;
+    if (oidcToken != null && pushEndpoint != null) {
+      tokenAudience = (String) oidcToken.get("audience");
+      if (tokenAudience == null || tokenAudience.isEmpty()) {
+        // As Cloud Pub/Sub, which uses the push endpoint when no audience is set.
+        tokenAudience = pushEndpoint;
+      }
+      tokenEmail = (String) oidcToken.get("serviceAccountEmail");
+    }
+    Number ackDeadlineSeconds = (Number) request.get("ackDeadlineSeconds");
+
+    Subscription subscription = new Subscription(name, topicName, pushEndpoint,
+        tokenAudience, tokenEmail,
+        ackDeadlineSeconds == null || ackDeadlineSeconds.intValue() == 0
+            ? DEFAULT_ACK_DEADLINE_SECONDS
+            : ackDeadlineSeconds.intValue());
+    if (subscriptions.putIfAbsent(name, subscription) != null) {
+      throw new ApiException(HttpStatusCodes.STATUS_CODE_CONFLICT, "ALREADY_EXISTS",
+          "Subscription already exists: " + name);
+    }
+    topic.subscriptions.add(subscription);
+    subscription.start();
+    LOG.info("Created subscription " + name + " of " + topicName
+        + (subscription.pushEndpoint == null ? "" : " pushing to " + subscription.pushEndpoint));
+    return subscription;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void publish(Topic topic, Map<String, Object> request, JsonGenerator json)
+      throws IOException {
+    List<Object> messages = (List<Object>) request.get("messages");
+    if (messages == null || messages.isEmpty()) {
+      throw new ApiException(HttpStatusCodes.STATUS_CODE_BAD_REQUEST, "INVALID_ARGUMENT",
+          "Publish request has no messages");
+    }
+    String publishTime = Instant.now().toString();
+    json.writeStartObject();
+    json.writeArrayFieldStart("messageIds");
+    for (Object item : messages) {
+      Map<String, Object> fields = (Map<String, Object>) item;
+      Map<String, String> attributes = new LinkedHashMap<String, String>();
+      Map<String, Object> given = (Map<String, Object>) fields.get("attributes");
+      if (given != null) {
+        for (Map.Entry<String, Object> attribute : given.entrySet()) {
+          attributes.put(attribute.getKey(), String.valueOf(attribute.getValue()));
+        }
+      }
+      String data = (String) fields.get("data");
+      Message message = new Message(String.valueOf(messageIds.incrementAndGet()), publishTime,
+          data == null ? "" : toStandardBase64(data), attributes);
+      for (Subscription subscription : topic.subscriptions) {
+        subscription.pending.add(new Delivery(message));
+      }
+      json.writeString(message.id);
+    }
+    json.writeEndArray();
+    json.writeEndObject();
+    published.add(messages.size());
+  }
+
+  private void pull(Subscription subscription, Map<String, Object> request, JsonGenerator json)
+      throws IOException {
+    Number maxMessages = (Number) request.get("maxMessages");
+    boolean returnImmediately = Boolean.TRUE.equals(request.get("returnImmediately"));
+    List<Delivery> deliveries = new ArrayList<Delivery>();
+    try {
+      Delivery first = subscription.pending.poll(
+          returnImmediately ? 0 : PULL_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+      if (first != null) {
+        deliveries.add(first);
+        subscription.pending.drainTo(deliveries,
+            maxMessages == null ? Integer.MAX_VALUE : maxMessages.intValue() - 1);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    long deadline = System.currentTimeMillis()
+        + TimeUnit.SECONDS.toMillis(subscription.ackDeadlineSeconds);
+    json.writeStartObject();
+    json.writeArrayFieldStart("receivedMessages");
+    for (Delivery delivery : deliveries) {
+      String ackId = String.valueOf(ackIds.incrementAndGet());
+      delivery.deadlineMillis = deadline;
+      subscription.outstanding.put(ackId, delivery);
+      json.writeStartObject();
+      json.writeStringField("ackId", ackId);
+      json.writeFieldName("message");
+      writeMessage(json, delivery.message);
+      json.writeEndObject();
+    }
+    json.writeEndArray();
+    json.writeEndObject();
+    pulled.add(deliveries.size());
+  }
+
+  @SuppressWarnings("unchecked")
+  private void acknowledge(Subscription subscription, Map<String, Object> request,
+      JsonGenerator json) throws IOException {
+    List<Object> ids = (List<Object>) request.get("ackIds");
+    if (ids != null) {
+      for (Object ackId : ids) {
+        if (subscription.outstanding.remove(ackId) != null) {
+          acknowledged.increment();
+        }
+      }
+    }
+    json.writeStartObject();
+    json.writeEndObject();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void modifyAckDeadline(Subscription subscription, Map<String, Object> request,
+      JsonGenerator json) throws IOException {
+    List<Object> ids = (List<Object>) request.get("ackIds");
+    Number seconds = (Number) request.get("ackDeadlineSeconds");
+    if (ids != null && seconds != null) {
+      long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds.longValue());
+      for (Object ackId : ids) {
+        Delivery delivery = subscription.outstanding.get(ackId);
+        if (delivery == null) {
+          continue;
+        }
+        if (seconds.intValue() == 0) {
+          // A deadline of 0 is a negative acknowledgement.
+          if (subscription.outstanding.remove(ackId) != null) {
+            subscription.pending.add(delivery);
+          }
+        } else {
+          delivery.deadlineMillis = deadline;
+        }
+      }
+    }
+    json.writeStartObject();
+    json.writeEndObject();
+  }
+
+  private void expireAckDeadlines() {
+    long now = System.currentTimeMillis();
+    for (Subscription subscription : subscriptions.values()) {
+      for (Iterator<Map.Entry<String, Delivery>> i =
+          subscription.outstanding.entrySet().iterator(); i.hasNext(); ) {
+        Delivery delivery = i.next().getValue();
+        if (delivery.deadlineMillis <= now) {
+          i.remove();
+          subscription.pending.add(delivery);
+          expired.increment();
+        }
+      }
+    }
+  }
+
+  /** Pushes the messages of a subscription until it is stopped, redelivering failed ones. */
+  private void pushLoop(final Subscription subscription) {
+    while (subscription.running) {
+      final Delivery delivery;
+      try {
+        delivery = subscription.pending.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (push(subscription, delivery.message)) {
+        pushed.increment();
+      } else {
+        pushFailures.increment();
+        long backoff = Math.min(PUSH_MAX_BACKOFF_MILLIS,
+            PUSH_INITIAL_BACKOFF_MILLIS << Math.min(delivery.attempts, 20));
+        delivery.attempts++;
+        timers.schedule(new Runnable() {
+          public void run() {
+            subscription.pending.add(delivery);
+          }
+        }, backoff, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private boolean push(Subscription subscription, Message message) {
+    try {
+      ByteArrayOutputStream body = new ByteArrayOutputStream(message.data.length() + 256);
+      JsonGenerator json = jsonFactory.createJsonGenerator(body);
+      json.writeStartObject();
+      json.writeFieldName(PushSubscriber.MESSAGE_FIELD);
+      writeMessage(json, message);
+      json.writeStringField("subscription", subscription.name);
+      json.writeEndObject();
+      json.close();
+      byte[] bytes = body.toByteArray();
+
+      HttpURLConnection connection =
+          (HttpURLConnection) new URL(subscription.pushEndpoint).openConnection();
+      connection.setConnectTimeout(PUSH_TIMEOUT_MILLIS);
+      connection.setReadTimeout(PUSH_TIMEOUT_MILLIS);
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Content-Type", "application/json");
+      if (subscription.tokenAudience != null) {
+        connection.setRequestProperty("Authorization", "Bearer " + subscription.getToken());
+      }
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(bytes.length);
+      OutputStream out = connection.getOutputStream();
+      out.write(bytes);
+      out.close();
+
+      int statusCode = connection.getResponseCode();
+      // Reading the response to its end lets the connection be reused.
+      InputStream in = statusCode < HttpURLConnection.HTTP_BAD_REQUEST
+          ? connection.getInputStream()
+          : connection.getErrorStream();
+      if (in != null) {
+        ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        in.close();
+      }
+      return statusCode / 100 == 2;
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Push to " + subscription.pushEndpoint + " failed", e);
+      return false;
+    }
+  }
+
+  private static void writeTopic(JsonGenerator json, Topic topic) throws IOException {
+    json.writeStartObject();
+    json.writeStringField("name", topic.name);
+    json.writeEndObject();
+  }
+
+  private static void writeSubscription(JsonGenerator json, Subscription subscription)
+      throws IOException {
+    json.writeStartObject();
+    json.writeStringField("name", subscription.name);
+    json.writeStringField("topic", subscription.topic);
+    json.writeObjectFieldStart("pushConfig");
+    if (subscription.pushEndpoint != null) {
+      json.writeStringField("pushEndpoint", subscription.pushEndpoint);
+    }
+    if (subscription.tokenAudience != null) {
+      json.writeObjectFieldStart("oidcToken");
+      if (subscription.tokenEmail != null) {
+        json.writeStringField("serviceAccountEmail", subscription.tokenEmail);
+      }
+      json.writeStringField("audience", subscription.tokenAudience);
+      json.writeEndObject();
+    }
+    json.writeEndObject();
+    json.writeNumberField("ackDeadlineSeconds", subscription.ackDeadlineSeconds);
+    json.writeEndObject();
+  }
+
+  private static void writeMessage(JsonGenerator json, Message message) throws IOException {
+    json.writeStartObject();
+    json.writeStringField("data", message.data);
+    if (!message.attributes.isEmpty()) {
+      json.writeObjectFieldStart("attributes");
+      for (Map.Entry<String, String> attribute : message.attributes.entrySet()) {
+        json.writeStringField(attribute.getKey(), attribute.getValue());
+      }
+      json.writeEndObject();
+    }
+    json.writeStringField("messageId", message.id);
+    json.writeStringField("publishTime", message.publishTime);
+    json.writeEndObject();
+  }
+
+  private byte[] error(ApiException e) {
+    try {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      JsonGenerator json = jsonFactory.createJsonGenerator(body);
+      json.writeStartObject();
+      json.writeObjectFieldStart("error");
+      json.writeNumberField("code", e.code);
+      json.writeStringField("message", e.getMessage());
+      json.writeStringField("status", e.status);
+      json.writeEndObject();
+      json.writeEndObject();
+      json.close();
+      return body.toByteArray();
+    } catch (IOException impossible) {
+      throw new AssertionError(impossible);
+    }
+  }
+
+  private static void respond(HttpExchange httpExchange, int statusCode, byte[] body)
+      throws IOException {
+    httpExchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    httpExchange.sendResponseHeaders(statusCode, body.length);
+    OutputStream out = httpExchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  // Publishers may send the URL-safe alphabet, as the API client does, but Pub/Sub pushes and
+  // pulls the standard one.
+  private static String toStandardBase64(String data) {
+    byte[] bytes = Base64.decodeBase64(data);
+    if (bytes == null) {
+      throw new ApiException(HttpStatusCodes.STATUS_CODE_BAD_REQUEST, "INVALID_ARGUMENT",
+          "Message data is not Base64");
+    }
+    return Base64.encodeBase64String(bytes);
+  }
+
+  // Reads a JSON object into maps, lists, strings, numbers and booleans. The API client gzips
+  // the requests it sends.
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> readBody(HttpExchange httpExchange) throws IOException {
+    InputStream in = httpExchange.getRequestBody();
+    if ("gzip".equalsIgnoreCase(httpExchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+      in = new GZIPInputStream(in);
+    }
+    byte[] bytes = ByteStreams.toByteArray(in);
+    if (bytes.length == 0) {
+      return Collections.emptyMap();
+    }
+    JsonParser parser = jsonFactory.createJsonParser(bytes);
+    try {
+      Object value = readValue(parser, parser.nextToken());
+      if (!(value instanceof Map)) {
+        throw new ApiException(HttpStatusCodes.STATUS_CODE_BAD_REQUEST, "INVALID_ARGUMENT",
+            "Request body is not a JSON object");
+      }
+      return (Map<String, Object>) value;
+    } catch (JsonParseException e) {
+      throw new ApiException(
+          HttpStatusCodes.STATUS_CODE_BAD_REQUEST, "INVALID_ARGUMENT", e.getOriginalMessage());
+    } finally {
+      parser.close();
+    }
+  }
+
+  private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+    if (token == JsonToken.START_OBJECT) {
+      Map<String, Object> object = new LinkedHashMap<String, Object>();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        object.put(field, readValue(parser, parser.nextToken()));
+      }
+      return object;
+    } else if (token == JsonToken.START_ARRAY) {
+      List<Object> array = new ArrayList<Object>();
+      JsonToken element;
+      while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+        array.add(readValue(parser, element));
+      }
+      return array;
+    } else if (token == JsonToken.VALUE_STRING) {
+      return parser.getText();
+    } else if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+      return parser.getNumberValue();
+    } else if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) {
+      return token == JsonToken.VALUE_TRUE;
+    } else if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    throw new ApiException(HttpStatusCodes.STATUS_CODE_BAD_REQUEST, "INVALID_ARGUMENT",
+        "Malformed JSON at " + parser.getCurrentLocation());
+  }
+
+  /** Error returned to the client in the format of the Google APIs. */
+  private static final class ApiException extends RuntimeException {
+    final int code;
+    final String status;
+
+    ApiException(int code, String status, String message) {
+      super(message);
+      this.code = code;
+      this.status = status;
+    }
+  }
+
+  private static final class Topic {
+    final String name;
+    final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    Topic(String name) {
+      this.name = name;
+    }
+  }
+
+  private final class Subscription {
+    final String name;
+    final String topic;
+    final String pushEndpoint;
+    // Audience and service account of the tokens sent with the pushes, or null.
+    final String tokenAudience;
+    final String tokenEmail;
+    final int ackDeadlineSeconds;
+    final BlockingQueue<Delivery> pending = new LinkedBlockingQueue<Delivery>();
+    // Pulled messages by ack ID.
+    final ConcurrentMap<String, Delivery> outstanding = new ConcurrentHashMap<String, Delivery>();
+    final List<Thread> pushers = new ArrayList<Thread>();
+    volatile boolean running = true;
+    // Guarded by this.
+    private String token;
+    private long tokenExpiryMillis;
+
+    Subscription(String name, String topic, String pushEndpoint, String tokenAudience,
+        String tokenEmail, int ackDeadlineSeconds) {
+      this.name = name;
+      this.topic = topic;
+      this.pushEndpoint = pushEndpoint;
+      this.tokenAudience = tokenAudience;
+      this.tokenEmail = tokenEmail;
+      this.ackDeadlineSeconds = ackDeadlineSeconds;
+    }
+
+    /** Returns the token of the pushes, reused as Cloud Pub/Sub does until it nearly expires. */
+    synchronized String getToken() {
+      long now = System.currentTimeMillis();
+      if (token == null || now >= tokenExpiryMillis - PUSH_TOKEN_RENEWAL_MILLIS) {
+        token = tokenIssuer.mint(tokenAudience, tokenEmail,
+            TimeUnit.MILLISECONDS.toSeconds(PUSH_TOKEN_LIFETIME_MILLIS));
+        tokenExpiryMillis = now + PUSH_TOKEN_LIFETIME_MILLIS;
+      }
+      return token;
+    }
+
+    void start() {
+      if (pushEndpoint == null) {
+        return;
+      }
+      for (int i = 0; i < pushConcurrency; i++) {
+        Thread pusher = pushThreads.newThread(new Runnable() {
+          public void run() {
+            pushLoop(Subscription.this);
+          }
+        });
+        pushers.add(pusher);
+        pusher.start();
+      }
+    }
+
+    void stop() {
+      running = false;
+      for (Thread pusher : pushers) {
+        pusher.interrupt();
+      }
+    }
+  }
+
+  private static final class Message {
+    final String id;
+    final String publishTime;
+    // Standard Base64, as pushed and pulled.
+    final String data;
+    final Map<String, String> attributes;
+
+    Message(String id, String publishTime, String data, Map<String, String> attributes) {
+      this.id = id;
+      this.publishTime = publishTime;
+      this.data = data;
+      this.attributes = attributes;
+    }
+  }
+
+  /** A message queued for a subscription. */
+  private static final class Delivery {
+    final Message message;
+    volatile int attempts;
+    volatile long deadlineMillis;
+
+    Delivery(Message message) {
+      this.message = message;
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.services.pubsub.Pubsub;
+import com.google.api.services.pubsub.model.PubsubMessage;
+import com.google.api.services.pubsub.model.PullRequest;
+import com.google.api.services.pubsub.model.PullResponse;
+import com.google.api.services.pubsub.model.ReceivedMessage;
+import com.google.api.services.pubsub.model.Subscription;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This is a sample subscriber which pulls notifications instead of having them pushed. Unlike
+ * {@link PushSubscriber} it doesn't need a public SSL endpoint, so it can run behind a firewall.
+ *
+ * <p>Several pull loops run concurrently, each pulling up to {@code PullMaxMessages} messages per
+ * call. Messages are processed on the worker pool, acknowledged in batches by {@link AckBatcher}
+ * and their leases are kept alive by {@link LeaseManager} while they are being processed.
+ *
+ * To run this sample code:
+ * <ol>
+ *   <li>Modify settings.properties or specify a different file via the DEVELOPER_CONSOLE_SETTINGS
+ *   environment variable</li>
+ *   <li>Build a deploy jar using <code>mvn clean compile assembly:single</code></li>
+ *   <li>Execute it as <code>
+ *     java -cp target/emm-notifications-1.0-SNAPSHOT-jar-with-dependencies.jar \
+ *      com.google.android.work.emmnotifications.PullSubscriber</code></li>
+ * </ol>
+ */
+public class PullSubscriber {
+
+  private static final Logger LOG = Logger.getLogger(PullSubscriber.class.getName());
+
+  // Pause after a failed pull, on top of the retries done by RetryHttpInitializerWrapper.
+  private static final long PULL_ERROR_PAUSE_MILLIS = 1000;
+
+  private final Pubsub client;
+  private final String subscriptionName;
+  private final int maxMessages;
+  private final NotificationProcessor processor;
+  private final ExecutorService workers;
+  private final AckBatcher acks;
+  private final LeaseManager leases;
+  private final Thread[] pullers;
+
+  private volatile boolean running = true;
+
+  public PullSubscriber(
+      Pubsub client,
+      String subscriptionName,
+      int ackDeadlineSeconds,
+      NotificationProcessor processor,
+      Settings settings) {
+    this.client = client;
+    this.subscriptionName = subscriptionName;
+    this.maxMessages = settings.getPullMaxMessages();
+    this.processor = processor;
+    this.workers = WorkerPool.create("pull-worker", settings);
+    this.acks = new AckBatcher(
+        client, subscriptionName, settings.getAckBatchSize(), settings.getAckFlushMillis());
+    this.leases = new LeaseManager(client, subscriptionName, ackDeadlineSeconds);
+    this.pullers = new Thread[settings.getPullConcurrency()];
+    for (int i = 0; i < pullers.length; i++) {
+      pullers[i] = new Thread(new Runnable() {
+        public void run() {
+          pullLoop();
+        }
+      }, "puller-" + i);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Pubsub client = ServiceAccountConfiguration.createPubsubClient(Settings.getSettings());
+
+    Subscription subscription =
+        PushSubscriber.ensureSubscriptionExists(client, Settings.getSettings(), null);
+    int ackDeadlineSeconds = Settings.getSettings().getAckDeadlineSeconds();
+    if (subscription != null) {
+      if (subscription.getPushConfig() != null
+          && subscription.getPushConfig().getPushEndpoint() != null) {
+        LOG.warning("Subscription " + subscription.getName() + " pushes to "
+            + subscription.getPushConfig().getPushEndpoint()
+            + ", pulled messages will compete with pushed ones");
+      }
+      if (subscription.getAckDeadlineSeconds() != null) {
+        ackDeadlineSeconds = subscription.getAckDeadlineSeconds();
+      }
+    }
+
+    final MessageDeduplicator deduplicator =
+        MessageDeduplicator.fromSettings(Settings.getSettings(), Metrics.getDefault());
+    final NotificationLog notificationLog = NotificationLog.fromSettings(Settings.getSettings());
+    final Journal journal = Journal.fromSettings(Settings.getSettings());
+    final PullSubscriber subscriber = new PullSubscriber(
+        client,
+        Settings.getSettings().getSubscriptionName(),
+        ackDeadlineSeconds,
+        new NotificationProcessor(
+            journal,
+            deduplicator,
+            EventDispatcher.fromSettings(Settings.getSettings(), Metrics.getDefault()),
+            notificationLog,
+            Metrics.getDefault()),
+        Settings.getSettings());
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        subscriber.stop();
+        if (journal != null) {
+          try {
+            journal.close();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        if (deduplicator != null) {
+          try {
+            deduplicator.close();
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not save dedupe snapshot", e);
+          }
+        }
+        if (notificationLog != null) {
+          try {
+            notificationLog.close();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    });
+    subscriber.start(); // Will keep running until killed
+  }
+
+  public void start() {
+    acks.start();
+    leases.start();
+    for (Thread puller : pullers) {
+      puller.start();
+    }
+  }
+
+  /**
+   * Stops pulling, waits for the messages in flight to be processed and sends their pending
+   * acknowledgements.
+   */
+  public void stop() {
+    running = false;
+    try {
+      for (Thread puller : pullers) {
+        puller.interrupt();
+        puller.join();
+      }
+      workers.shutdown();
+      workers.awaitTermination(30, TimeUnit.SECONDS);
+      acks.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      leases.close();
+    }
+  }
+
+  private void pullLoop() {
+    while (running) {
+      List<ReceivedMessage> received;
+      try {
+        PullResponse response = client
+            .projects()
+            .subscriptions()
+            .pull(subscriptionName, new PullRequest()
+                .setReturnImmediately(false)
+                .setMaxMessages(maxMessages))
+            .execute();
+        received = response.getReceivedMessages();
+      } catch (IOException e) {
+        if (!running) {
+          return;
+        }
+        LOG.log(Level.WARNING, "Error when pulling from " + subscriptionName, e);
+        try {
+          Thread.sleep(PULL_ERROR_PAUSE_MILLIS);
+        } catch (InterruptedException ie) {
+          return;
+        }
+        continue;
+      }
+
+      if (received == null) {
+        continue;
+      }
+      for (ReceivedMessage message : received) {
+        leases.register(message.getAckId());
+        submit(message);
+      }
+    }
+  }
+
+  private void submit(final ReceivedMessage received) {
+    Runnable task = new Runnable() {
+      public void run() {
+        process(received);
+      }
+    };
+    try {
+      workers.execute(task);
+    } catch (RejectedExecutionException e) {
+      // All workers are busy, processing on the pull thread keeps it from pulling more.
+      task.run();
+    }
+  }
+
+  private void process(ReceivedMessage received) {
+    String ackId = received.getAckId();
+    PubsubMessage message = received.getMessage();
+    try {
+      processor.process(PushMessage.of(
+          message.getMessageId(),
+          message.getPublishTime(),
+          message.getAttributes(),
+          message.decodeData()));
+      leases.complete(ackId);
+      acks.ack(ackId);
+    } catch (MessageInFlightException e) {
+      // Redelivered once its lease expired, when the other delivery has been acknowledged or
+      // failed.
+      LOG.info(e.getMessage());
+      leases.release(ackId);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Error occured when processing message " + message.getMessageId(), e);
+      leases.nack(ackId);
+    } catch (RuntimeException e) {
+      LOG.log(Level.SEVERE, "Unexpected error when processing message "
+          + message.getMessageId(), e);
+      leases.nack(ackId);
+    }
+  }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Verifies that a push comes from Cloud Pub/Sub, before anything else is done with it.
+ *
+ * <p>Two checks can be configured, and a push must pass each configured one:
+ * <ul>
+ *   <li>a shared secret, sent as the {@code token} query parameter of the push endpoint;
+ *   <li>the OIDC token Cloud Pub/Sub sends as a bearer token when the subscription has an
+ *       authentication service account: a JWT signed with one of Google's keys, issued for the
+ *       configured audience and, optionally, one of the configured service accounts.
+ * </ul>
+ *
+ * <p>Cloud Pub/Sub reuses a token for many pushes, so the result of checking a token is cached
+ * until the token expires, and a rejection for a minute. A push with a cached token costs a
+ * lookup, and the claims of a token are checked before its signature so that most forged tokens
+ * are rejected without a signature verification. The signing keys are fetched from
+ * {@code certsUrl} when starting and then in the background, as often as its
+ * {@code Cache-Control} says. A token signed with an unknown key is rejected and makes the keys
+ * be fetched again soon, at most every 30 seconds, so that the keys are never fetched on the
+ * thread handling a push.
+ */
+public class PushAuthenticator {
+
+  private static final Logger LOG = Logger.getLogger(PushAuthenticator.class.getName());
+
+  /** Why a push was rejected. */
+  public enum Rejection {
+    MISSING_CREDENTIALS,
+    WRONG_SECRET,
+    MALFORMED_TOKEN,
+    EXPIRED_TOKEN,
+    WRONG_ISSUER,
+    WRONG_AUDIENCE,
+    WRONG_EMAIL,
+    UNKNOWN_KEY,
+    BAD_SIGNATURE
+  }
+
+  static final String QUERY_PARAMETER = "token";
+  static final String GOOGLE_CERTS_URL = "https://www.googleapis.com/oauth2/v3/certs";
+  static final List<String> GOOGLE_ISSUERS =
+      ImmutableList.of("accounts.google.com", "https://accounts.google.com");
+
+  private static final String BEARER_PREFIX = "Bearer ";
+  private static final long CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  private static final long REJECTION_CACHE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  private static final int MAX_CACHED_TOKENS = 10000;
+  private static final long MIN_KEY_REFRESH_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final long DEFAULT_KEY_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final long MAX_KEY_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+  private static final long KEY_CHECK_INTERVAL_SECONDS = 5;
+  private static final int KEY_FETCH_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+  private static final Pattern MAX_AGE = Pattern.compile("max-age=(\\d+)");
+  private static final BaseEncoding BASE64_URL = BaseEncoding.base64Url().omitPadding();
+  // Tokens and key sets nest 3 levels at most. Deeper input is rejected before it can exhaust
+  // the stack, as tokens are read before their signature is checked.
+  private static final int MAX_JSON_DEPTH = 8;
+
+  private volatile List<byte[]> secrets;
+  private final String audience;
+  private final Set<String> issuers;
+  private final Set<String> emails;
+  private final URL certsUrl;
+  private final JsonFactory jsonFactory = new JsonFactory();
+
+  // Signing keys by key ID, replaced as a whole when fetched.
+  private volatile Map<String, PublicKey> keys = Collections.emptyMap();
+  private volatile boolean keyRefreshRequested;
+  // Only accessed by the refresher thread, and by start() before it runs.
+  private long lastKeyFetchMillis;
+  private long nextKeyFetchMillis;
+  private final ConcurrentMap<String, CachedResult> results =
+      new ConcurrentHashMap<String, CachedResult>();
+  private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("push-auth-keys").setDaemon(true).build());
+
+  private final Metrics.Counter[] rejected;
+  private final Metrics.Counter cacheHits;
+  private final Metrics.Counter keyFetches;
+
+  /**
+   * @param secrets secrets accepted in the {@code token} query parameter, none to not check it
+   * @param audience audience the OIDC tokens must be issued for, or null to not check them
+   * @param issuers issuers of the tokens, Google's by default
+   * @param emails service accounts the tokens may be issued to, none for any
+   * @param certsUrl URL of the JSON Web Key Set of the keys signing the tokens
+   */
+  public PushAuthenticator(Collection<String> secrets, String audience,
+      Collection<String> issuers, Collection<String> emails, URL certsUrl, Metrics metrics) {
+    Preconditions.checkArgument(!secrets.isEmpty() || audience != null,
+        "Push authentication needs secrets or an audience");
+    Preconditions.checkArgument(audience == null || !issuers.isEmpty(),
+        "Push authentication needs token issuers");
+    setSecrets(secrets);
+    this.audience = audience;
+    this.issuers = ImmutableSet.copyOf(issuers);
+    this.emails = ImmutableSet.copyOf(emails);
+    this.certsUrl = Preconditions.checkNotNull(certsUrl);
+
+    this.rejected = new Metrics.Counter[Rejection.values().length];
+    for (Rejection rejection : Rejection.values()) {
+      rejected[rejection.ordinal()] = metrics.counter("emm_push_auth_rejected_total",
+          "Pushes rejected by the push authentication, by reason.",
+          "reason", rejection.name());
+    }
+    this.cacheHits = metrics.counter("emm_push_auth_cache_hits_total",
+        "Pushes whose token was checked from the cache of recent tokens.");
+    this.keyFetches = metrics.counter(
+        "emm_push_auth_key_fetches_total", "Successful fetches of the token signing keys.");
+    metrics.gauge("emm_push_auth_keys", "Token signing keys known.", new Metrics.Gauge() {
+      public double value() {
+        return keys.size();
+      }
+    });
+  }
+
+  /**
+   * Creates and starts the authenticator configured in {@link Settings}, or returns null if
+   * pushes are not authenticated.
+   */
+  public static PushAuthenticator fromSettings(Settings settings, Metrics metrics)
+      throws IOException {
+    if (settings.getPushAuthTokens().isEmpty() && settings.getPushAuthAudience() == null) {
+      return null;
+    }
+    PushAuthenticator authenticator = new PushAuthenticator(
+        settings.getPushAuthTokens(),
+        settings.getPushAuthAudience(),
+        settings.getPushAuthIssuers(),
+        settings.getPushAuthEmails(),
+        new URL(settings.getPushAuthCertsUrl()),
+        metrics);
+    authenticator.start();
+    return authenticator;
+  }
+
+  /**
+   * Fetches the signing keys, if tokens are checked, and starts refreshing them. Pushes are
+   * rejected until the keys could be fetched.
+   */
+  public void start() {
+    if (audience == null) {
+      return;
+    }
+    fetchKeys();
+    refresher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        long now = System.currentTimeMillis();
+        if (now >= nextKeyFetchMillis
+            || (keyRefreshRequested && now - lastKeyFetchMillis >= MIN_KEY_REFRESH_MILLIS)) {
+          fetchKeys();
+        }
+      }
+    }, KEY_CHECK_INTERVAL_SECONDS, KEY_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  public void stop() {
+    refresher.shutdownNow();
+  }
+
+  /** Replaces the accepted secrets, e.g. to rotate them. */
+  public void setSecrets(Collection<String> secrets) {
+    List<byte[]> bytes = new ArrayList<byte[]>();
+    for (String secret : secrets) {
+      bytes.add(secret.getBytes(StandardCharsets.UTF_8));
+    }
+    this.secrets = bytes;
+  }
+
+  /**
+   * Checks the credentials of a push.
+   *
+   * @param authorization value of the Authorization header, or null
+   * @param rawQuery raw query of the request URI, or null
+   * @return null if the push is authenticated, otherwise why it isn't
+   */
+  public Rejection authenticate(String authorization, String rawQuery) {
+    Rejection rejection = checkSecret(rawQuery);
+    if (rejection == null && audience != null) {
+      if (authorization == null || !authorization.regionMatches(
+          true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+        rejection = Rejection.MISSING_CREDENTIALS;
+      } else {
+        rejection = checkToken(authorization.substring(BEARER_PREFIX.length()).trim());
+      }
+    }
+    if (rejection != null) {
+      rejected[rejection.ordinal()].increment();
+    }
+    return rejection;
+  }
+
+  private Rejection checkSecret(String rawQuery) {
+    List<byte[]> accepted = secrets;
+    if (accepted.isEmpty()) {
+      return null;
+    }
+    String token;
+    try {
+      token = QueryStrings.parse(rawQuery).get(QUERY_PARAMETER);
+    } catch (IllegalArgumentException e) {
+      // Malformed percent-encoding.
+      return Rejection.WRONG_SECRET;
+    }
+    if (token == null) {
+      return Rejection.MISSING_CREDENTIALS;
+    }
+    byte[] bytes = token.getBytes(StandardCharsets.UTF_8);
+    boolean matches = false;
+    for (byte[] secret : accepted) {
+      // Compares in constant time, not to leak how much of a guess was right.
+      matches |= MessageDigest.isEqual(secret, bytes);
+    }
+    return matches ? null : Rejection.WRONG_SECRET;
+  }
+
+  private Rejection checkToken(String token) {
+    long now = System.currentTimeMillis();
+    CachedResult cached = results.get(token);
+    if (cached != null && now < cached.untilMillis) {
+      cacheHits.increment();
+      return cached.rejection;
+    }
+
+    Rejection rejection;
+    long untilMillis = now + REJECTION_CACHE_MILLIS;
+    try {
+      String[] parts = token.split("\\.", -1);
+      if (parts.length != 3) {
+        return cache(token, Rejection.MALFORMED_TOKEN, untilMillis);
+      }
+      Map<String, Object> header = readObject(BASE64_URL.decode(parts[0]));
+      Map<String, Object> claims = readObject(BASE64_URL.decode(parts[1]));
+      Object expiry = claims.get("exp");
+      Object kid = header.get("kid");
+      if (!"RS256".equals(header.get("alg")) || !(kid instanceof String)
+          || !(expiry instanceof Number)) {
+        return cache(token, Rejection.MALFORMED_TOKEN, untilMillis);
+      }
+      long expiryMillis = ((Number) expiry).longValue() * 1000;
+      Object issuedAt = claims.get("iat");
+      if (now >= expiryMillis + CLOCK_SKEW_MILLIS || (issuedAt instanceof Number
+          && ((Number) issuedAt).longValue() * 1000 > now + CLOCK_SKEW_MILLIS)) {
+        rejection = Rejection.EXPIRED_TOKEN;
+      } else if (!issuers.contains(claims.get("iss"))) {
+        rejection = Rejection.WRONG_ISSUER;
+      } else if (!hasAudience(claims.get("aud"))) {
+        rejection = Rejection.WRONG_AUDIENCE;
+      } else if (!emails.isEmpty() && (!emails.contains(claims.get("email"))
+          || !Boolean.TRUE.equals(claims.get("email_verified")))) {
+        rejection = Rejection.WRONG_EMAIL;
+      } else {
+        PublicKey key = keys.get(kid);
+        if (key == null) {
+          // Not cached, the token becomes valid once the keys were fetched again.
+          keyRefreshRequested = true;
+          return Rejection.UNKNOWN_KEY;
+        }
+        if (verify(key, parts)) {
+          rejection = null;
+          untilMillis = expiryMillis;
+        } else {
+          rejection = Rejection.BAD_SIGNATURE;
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      // Not base64.
+      rejection = Rejection.MALFORMED_TOKEN;
+    } catch (IOException e) {
+      // Not JSON.
+      rejection = Rejection.MALFORMED_TOKEN;
+    }
+    return cache(token, rejection, untilMillis);
+  }
+
+  private Rejection cache(String token, Rejection rejection, long untilMillis) {
+    if (results.size() >= MAX_CACHED_TOKENS) {
+      long now = System.currentTimeMillis();
+      for (Iterator<CachedResult> i = results.values().iterator(); i.hasNext(); ) {
+        if (i.next().untilMillis <= now) {
+          i.remove();
+        }
+      }
+      if (results.size() >= MAX_CACHED_TOKENS) {
+        // Flooded with distinct tokens, which are checked again when they come back.
+        results.clear();
+      }
+    }
+    results.put(token, new CachedResult(rejection, untilMillis));
+    return rejection;
+  }
+
+  private boolean hasAudience(Object claim) {
+    if (claim instanceof List) {
+      return ((List<?>) claim).contains(audience);
+    }
+    return audience.equals(claim);
+  }
+
+  private static boolean verify(PublicKey key, String[] parts) {
+    try {
+      Signature signature = Signature.getInstance("SHA256withRSA");
+      signature.initVerify(key);
+      signature.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+      return signature.verify(BASE64_URL.decode(parts[2]));
+    } catch (GeneralSecurityException e) {
+      return false;
+    }
+  }
+
+  private void fetchKeys() {
+    lastKeyFetchMillis = System.currentTimeMillis();
+    keyRefreshRequested = false;
+    try {
+      HttpURLConnection connection = (HttpURLConnection) certsUrl.openConnection();
+      connection.setConnectTimeout(KEY_FETCH_TIMEOUT_MILLIS);
+      connection.setReadTimeout(KEY_FETCH_TIMEOUT_MILLIS);
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Status " + connection.getResponseCode());
+      }
+      Map<String, PublicKey> fetched;
+      InputStream in = connection.getInputStream();
+      try {
+        fetched = parseKeys(in);
+      } finally {
+        in.close();
+      }
+      keys = fetched;
+      keyFetches.increment();
+      nextKeyFetchMillis =
+          lastKeyFetchMillis + maxAgeMillis(connection.getHeaderField("Cache-Control"));
+      LOG.fine("Fetched " + fetched.size() + " push token signing keys from " + certsUrl);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not fetch the push token signing keys from " + certsUrl, e);
+      nextKeyFetchMillis = lastKeyFetchMillis + MIN_KEY_REFRESH_MILLIS;
+    }
+  }
+
+  // Reads the RSA keys of a JSON Web Key Set.
+  private Map<String, PublicKey> parseKeys(InputStream in) throws IOException {
+    JsonParser parser = jsonFactory.createJsonParser(in);
+    Object keySet;
+    try {
+      keySet = readValue(parser, parser.nextToken(), 0);
+    } finally {
+      parser.close();
+    }
+    if (!(keySet instanceof Map) || !(((Map<?, ?>) keySet).get("keys") instanceof List)) {
+      throw new IOException("Not a JSON Web Key Set");
+    }
+    ImmutableMap.Builder<String, PublicKey> parsed = ImmutableMap.builder();
+    for (Object key : (List<?>) ((Map<?, ?>) keySet).get("keys")) {
+      if (!(key instanceof Map)) {
+        continue;
+      }
+      Map<?, ?> jwk = (Map<?, ?>) key;
+      Object kid = jwk.get("kid");
+      Object modulus = jwk.get("n");
+      Object exponent = jwk.get("e");
+      if (!"RSA".equals(jwk.get("kty")) || !(kid instanceof String)
+          || !(modulus instanceof String) || !(exponent instanceof String)) {
+        continue;
+      }
+      try {
+        parsed.put((String) kid, KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(
+            new BigInteger(1, BASE64_URL.decode((String) modulus)),
+            new BigInteger(1, BASE64_URL.decode((String) exponent)))));
+      } catch (GeneralSecurityException e) {
+        LOG.log(Level.WARNING, "Ignoring invalid signing key " + kid, e);
+      } catch (IllegalArgumentException e) {
+        LOG.log(Level.WARNING, "Ignoring invalid signing key " + kid, e);
+      }
+    }
+    return parsed.build();
+  }
+
+  private static long maxAgeMillis(String cacheControl) {
+    if (cacheControl != null) {
+      Matcher maxAge = MAX_AGE.matcher(cacheControl);
+      if (maxAge.find()) {
+        return Math.max(MIN_KEY_REFRESH_MILLIS, Math.min(MAX_KEY_MAX_AGE_MILLIS,
+            TimeUnit.SECONDS.toMillis(Long.parseLong(maxAge.group(1)))));
+      }
+    }
+    return DEFAULT_KEY_MAX_AGE_MILLIS;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> readObject(byte[] json) throws IOException {
+    JsonParser parser = jsonFactory.createJsonParser(json);
+    try {
+      Object value = readValue(parser, parser.nextToken(), 0);
+      if (!(value instanceof Map)) {
+        throw new IOException("Not a JSON object");
+      }
+      return (Map<String, Object>) value;
+    } finally {
+      parser.close();
+    }
+  }
+
+  // Reads a JSON value into maps, lists, strings, numbers and booleans.
+  private static Object readValue(JsonParser parser, JsonToken token, int depth)
+      throws IOException {
+    if ((token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY)
+        && depth >= MAX_JSON_DEPTH) {
+      throw new IOException("JSON nested too deeply at " + parser.getCurrentLocation());
+    }
+    if (token == JsonToken.START_OBJECT) {
+      Map<String, Object> object = new LinkedHashMap<String, Object>();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        object.put(field, readValue(parser, parser.nextToken(), depth + 1));
+      }
+      return object;
+    } else if (token == JsonToken.START_ARRAY) {
+      List<Object> array = new ArrayList<Object>();
+      JsonToken element;
+      while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+        array.add(readValue(parser, element, depth + 1));
+      }
+      return array;
+    } else if (token == JsonToken.VALUE_STRING) {
+      return parser.getText();
+    } else if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+      return parser.getNumberValue();
+    } else if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) {
+      return token == JsonToken.VALUE_TRUE;
+    } else if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    throw new IOException("Malformed JSON at " + parser.getCurrentLocation());
+  }
+
+  private static final class CachedResult {
+    final Rejection rejection;
+    final long untilMillis;
+
+    CachedResult(Rejection rejection, long untilMillis) {
+      this.rejection = rejection;
+      this.untilMillis = untilMillis;
+    }
+  }
+}
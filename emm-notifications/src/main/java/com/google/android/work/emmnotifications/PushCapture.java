@@ -0,0 +1,266 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the raw push requests received by {@link PushHandler} to a file, for
+ * {@link PushReplayer} to send them again.
+ *
+ * <p>Like {@link NotificationLog}, {@link #record} only queues the request and never blocks; a
+ * background thread writes the queued requests in batches. Capturing stops once the file
+ * reached its maximum size.
+ *
+ * <p>The file starts with a magic number, a version and the capture's start time in
+ * milliseconds since the epoch. Each record then holds the nanoseconds since the start at which
+ * the push was received, the request path and the length-prefixed envelope, as written by
+ * {@link DataOutputStream}. Records are written once the body was read, so with several workers
+ * a record may follow one received after it.
+ */
+public class PushCapture {
+
+  private static final Logger LOG = Logger.getLogger(PushCapture.class.getName());
+
+  static final int MAGIC = 0x454d4d50;
+  static final int VERSION = 1;
+
+  private static final int MAX_BATCH_SIZE = 512;
+  private static final long POLL_MILLIS = 100;
+
+  private final BlockingQueue<Record> buffer;
+  private final DataOutputStream out;
+  private final long maxBytes;
+  private final long startNanos = System.nanoTime();
+  private final Thread writer;
+  private final Metrics.Counter recorded;
+  private final Metrics.Counter dropped;
+
+  private volatile boolean running = true;
+  private volatile boolean full;
+
+  /**
+   * @param file file to write, replaced if it exists
+   * @param maxBytes size after which no more requests are captured
+   * @param bufferCapacity number of requests that may wait to be written
+   */
+  public PushCapture(File file, long maxBytes, int bufferCapacity, Metrics metrics)
+      throws IOException {
+    Preconditions.checkArgument(maxBytes > 0, "Maximum capture size must be positive");
+    this.buffer = new ArrayBlockingQueue<Record>(bufferCapacity);
+    this.maxBytes = maxBytes;
+    this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(System.currentTimeMillis());
+    this.writer = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "push-capture");
+    writer.setDaemon(true);
+
+    this.recorded = metrics.counter(
+        "emm_capture_recorded_total", "Push requests written to the capture file.");
+    this.dropped = metrics.counter("emm_capture_dropped_total",
+        "Push requests not captured because the buffer or the file was full.");
+  }
+
+  /**
+   * Creates and starts the capture configured in {@link Settings}, or returns null if pushes
+   * are not captured.
+   */
+  public static PushCapture fromSettings(Settings settings) throws IOException {
+    String file = settings.getCaptureFile();
+    if (file == null) {
+      return null;
+    }
+    PushCapture capture = new PushCapture(
+        new File(file),
+        (long) settings.getCaptureMaxMb() << 20,
+        settings.getCaptureQueueCapacity(),
+        Metrics.getDefault());
+    capture.start();
+    LOG.info("Capturing push requests to " + file);
+    return capture;
+  }
+
+  public void start() {
+    writer.start();
+  }
+
+  /**
+   * Queues a push request to be written, without blocking.
+   *
+   * @param receivedNanos {@link System#nanoTime()} at which the request was received
+   * @param envelope the request body, which must not be modified afterwards
+   */
+  public void record(String path, long receivedNanos, byte[] envelope) {
+    if (full || !buffer.offer(new Record(Math.max(0, receivedNanos - startNanos), path,
+        envelope))) {
+      dropped.increment();
+    }
+  }
+
+  /** Writes the buffered requests and closes the file. */
+  public void close() throws InterruptedException {
+    running = false;
+    writer.join();
+  }
+
+  private void writeLoop() {
+    List<Record> batch = new ArrayList<Record>(MAX_BATCH_SIZE);
+    // Of the header so far.
+    long size = 16;
+    try {
+      while (running || !buffer.isEmpty()) {
+        Record first = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        buffer.drainTo(batch, MAX_BATCH_SIZE - 1);
+        for (Record record : batch) {
+          if (full) {
+            dropped.increment();
+            continue;
+          }
+          out.writeLong(record.offsetNanos);
+          out.writeUTF(record.path);
+          out.writeInt(record.envelope.length);
+          out.write(record.envelope);
+          recorded.increment();
+          // The path's modified UTF-8 is its length for the usual ASCII paths.
+          size += 14 + record.path.length() + record.envelope.length;
+          if (size >= maxBytes) {
+            LOG.warning("Capture file reached " + size + " bytes, no longer capturing");
+            full = true;
+          }
+        }
+        out.flush();
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Could not write the capture file, no longer capturing", e);
+      full = true;
+    } finally {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Could not close the capture file", e);
+      }
+    }
+  }
+
+  /** A captured push request. */
+  public static final class Record {
+    private final long offsetNanos;
+    private final String path;
+    private final byte[] envelope;
+
+    Record(long offsetNanos, String path, byte[] envelope) {
+      this.offsetNanos = offsetNanos;
+      this.path = path;
+      this.envelope = envelope;
+    }
+
+    /** Nanoseconds from the start of the capture until the request was received. */
+    public long getOffsetNanos() {
+      return offsetNanos;
+    }
+
+    /** Path the request was sent to. */
+    public String getPath() {
+      return path;
+    }
+
+    /** The request body, the JSON envelope as sent by Cloud Pub/Sub. */
+    public byte[] getEnvelope() {
+      return envelope;
+    }
+  }
+
+  /**
+   * Reads the requests of a capture file in the order they were written. That is the order in
+   * which their bodies were read, so the offsets are not necessarily increasing.
+   */
+  public static final class Reader implements Closeable {
+    private final DataInputStream in;
+    private final long startMillis;
+
+    public Reader(File file) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != MAGIC) {
+          throw new IOException(file + " is not a push capture");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+          throw new IOException("Unsupported push capture version " + version + " in " + file);
+        }
+        this.startMillis = in.readLong();
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+    }
+
+    /** Time at which the capture started, in milliseconds since the epoch. */
+    public long getStartMillis() {
+      return startMillis;
+    }
+
+    /**
+     * Returns the next request, or null at the end of the file. A last record cut short, as
+     * left by a subscriber that was killed, counts as the end.
+     */
+    public Record next() throws IOException {
+      try {
+        long offsetNanos = in.readLong();
+        String path = in.readUTF();
+        byte[] envelope = new byte[in.readInt()];
+        in.readFully(envelope);
+        return new Record(offsetNanos, path, envelope);
+      } catch (EOFException e) {
+        return null;
+      }
+    }
+
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
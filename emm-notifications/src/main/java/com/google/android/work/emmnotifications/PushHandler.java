@@ -0,0 +1,305 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handles Cloud Pub/Sub push requests.
+ *
+ * <p>The thread that accepts the request only hands the exchange over to a bounded worker pool,
+ * where the notification is decoded and processed. When the pool is saturated the request is
+ * handled according to the {@link WorkerPool.ShedPolicy}: either rejected with a non-2xx status,
+ * which makes Cloud Pub/Sub redeliver it later, or processed on the accepting thread. The
+ * latter is only allowed with a thread per request, never on the selector thread of a
+ * {@link NioIngress}.
+ *
+ * <p>The time spent in each stage of a push is recorded in the {@code emm_stage_seconds}
+ * histogram: waiting for a worker, reading the body, parsing the JSON envelope, processing the
+ * notification and sending the response. As the envelope is parsed while the body is read, the
+ * parse time is the decoding time minus the time spent blocked reading.
+ *
+ * <p>With a {@link PushCapture}, the body is read in full and recorded before it is decoded.
+ *
+ * <p>With an {@link EnterpriseRateLimiter}, a decoded push whose enterprise is over its rate is
+ * answered 429 and not processed. With a {@link FairScheduler}, the notification is processed on
+ * the scheduler's threads, in fair order between enterprises, after waiting in its
+ * {@code fair_queue} stage; when the scheduler is full the push is shed like above.
+ */
+public class PushHandler implements HttpHandler {
+
+  private static final Logger LOG = Logger.getLogger(PushHandler.class.getName());
+
+  // Status sent back when the push is shed, Cloud Pub/Sub will retry it with backoff.
+  private static final int SHED_STATUS_CODE = HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE;
+  // Status sent back when the enterprise is over its rate limit, the push is retried as well.
+  private static final int THROTTLED_STATUS_CODE = 429;
+  // Answered to a redelivery arriving while the first delivery is processed, so that it is
+  // retried until the first delivery either succeeded or failed.
+  private static final int IN_FLIGHT_STATUS_CODE = 409;
+
+  static final String STAGE_METRIC = "emm_stage_seconds";
+  static final String STAGE_DESCRIPTION = "Time spent in each stage of handling a notification.";
+
+  private final NotificationProcessor processor;
+  private final Executor workers;
+  private final WorkerPool.ShedPolicy shedPolicy;
+  private final PushCapture capture;
+  private final EnterpriseRateLimiter rateLimiter;
+  private final FairScheduler scheduler;
+
+  private final Histogram queueLatency;
+  private final Histogram readLatency;
+  private final Histogram parseLatency;
+  private final Histogram fairQueueLatency;
+  private final Histogram handlerLatency;
+  private final Histogram responseLatency;
+  private final Histogram pushLatency;
+  private final Metrics.Counter shed;
+  private final Metrics.Counter failures;
+
+  public PushHandler(
+      NotificationProcessor processor,
+      Executor workers,
+      WorkerPool.ShedPolicy shedPolicy,
+      Metrics metrics) {
+    this(processor, workers, shedPolicy, null, metrics);
+  }
+
+  /**
+   * @param capture capture to record the push requests to, or null
+   */
+  public PushHandler(
+      NotificationProcessor processor,
+      Executor workers,
+      WorkerPool.ShedPolicy shedPolicy,
+      PushCapture capture,
+      Metrics metrics) {
+    this(processor, workers, shedPolicy, capture, null, null, metrics);
+  }
+
+  /**
+   * @param capture capture to record the push requests to, or null
+   * @param rateLimiter limiter of the pushes admitted per enterprise, or null
+   * @param scheduler scheduler to process the notifications on in fair order between
+   *     enterprises, or null to process them on the workers
+   */
+  public PushHandler(
+      NotificationProcessor processor,
+      Executor workers,
+      WorkerPool.ShedPolicy shedPolicy,
+      PushCapture capture,
+      EnterpriseRateLimiter rateLimiter,
+      FairScheduler scheduler,
+      Metrics metrics) {
+    this.processor = Preconditions.checkNotNull(processor);
+    this.workers = Preconditions.checkNotNull(workers);
+    this.shedPolicy = Preconditions.checkNotNull(shedPolicy);
+    this.capture = capture;
+    this.rateLimiter = rateLimiter;
+    this.scheduler = scheduler;
+
+    this.queueLatency = metrics.histogram(STAGE_METRIC, STAGE_DESCRIPTION, "stage", "queue");
+    this.readLatency = metrics.histogram(STAGE_METRIC, STAGE_DESCRIPTION, "stage", "read");
+    this.parseLatency = metrics.histogram(STAGE_METRIC, STAGE_DESCRIPTION, "stage", "json_parse");
+    this.fairQueueLatency =
+        metrics.histogram(STAGE_METRIC, STAGE_DESCRIPTION, "stage", "fair_queue");
+    this.handlerLatency = metrics.histogram(STAGE_METRIC, STAGE_DESCRIPTION, "stage", "handler");
+    this.responseLatency = metrics.histogram(STAGE_METRIC, STAGE_DESCRIPTION, "stage", "response");
+    this.pushLatency = metrics.histogram(
+        "emm_push_seconds", "Time from accepting a push until it was responded to.");
+    this.shed = metrics.counter(
+        "emm_push_shed_total", "Pushes rejected because the worker pool was saturated.");
+    this.failures = metrics.counter(
+        "emm_push_failures_total", "Pushes which could not be processed.");
+  }
+
+  public void handle(final HttpExchange httpExchange) throws IOException {
+    final long acceptedNanos = System.nanoTime();
+    try {
+      workers.execute(new Runnable() {
+        public void run() {
+          process(httpExchange, acceptedNanos);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      if (shedPolicy == WorkerPool.ShedPolicy.CALLER_RUNS) {
+        process(httpExchange, acceptedNanos);
+      } else {
+        LOG.warning("Worker pool is saturated, rejecting push");
+        shed.increment();
+        respond(httpExchange, SHED_STATUS_CODE);
+      }
+    }
+  }
+
+  private void process(final HttpExchange httpExchange, final long acceptedNanos) {
+    long start = System.nanoTime();
+    queueLatency.record(toMicros(start - acceptedNanos));
+    PushMessage message;
+    try {
+      // The envelope is parsed while the body is read, and the payload is parsed from the
+      // decoded bytes in place.
+      TimedInputStream body = new TimedInputStream(httpExchange.getRequestBody());
+      InputStream envelope = body;
+      if (capture != null) {
+        byte[] bytes = ByteStreams.toByteArray(body);
+        capture.record(httpExchange.getRequestURI().getPath(), acceptedNanos, bytes);
+        envelope = new ByteArrayInputStream(bytes);
+      }
+      message = PushMessageDecoder.decode(envelope);
+      readLatency.record(toMicros(body.readNanos));
+      parseLatency.record(toMicros(System.nanoTime() - start - body.readNanos));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Error occured when reading push", e);
+      failures.increment();
+      httpExchange.close();
+      pushLatency.record(toMicros(System.nanoTime() - acceptedNanos));
+      return;
+    } catch (RuntimeException e) {
+      LOG.log(Level.SEVERE, "Unexpected error when reading push", e);
+      failures.increment();
+      respond(httpExchange, HttpStatusCodes.STATUS_CODE_SERVER_ERROR);
+      pushLatency.record(toMicros(System.nanoTime() - acceptedNanos));
+      return;
+    }
+
+    if (rateLimiter != null || scheduler != null) {
+      String enterpriseId = enterpriseIdOf(message);
+      if (rateLimiter != null && !rateLimiter.tryAcquire(enterpriseId)) {
+        respond(httpExchange, THROTTLED_STATUS_CODE);
+        pushLatency.record(toMicros(System.nanoTime() - acceptedNanos));
+        return;
+      }
+      if (scheduler != null) {
+        // The decoder's buffer is reused for the next push on this thread.
+        final PushMessage owned = message.copy();
+        final long queuedNanos = System.nanoTime();
+        try {
+          scheduler.execute(enterpriseId, new Runnable() {
+            public void run() {
+              fairQueueLatency.record(toMicros(System.nanoTime() - queuedNanos));
+              handle(httpExchange, owned, acceptedNanos);
+            }
+          });
+          return;
+        } catch (RejectedExecutionException e) {
+          if (shedPolicy != WorkerPool.ShedPolicy.CALLER_RUNS) {
+            LOG.warning("Fair scheduler is saturated, rejecting push");
+            shed.increment();
+            respond(httpExchange, SHED_STATUS_CODE);
+            pushLatency.record(toMicros(System.nanoTime() - acceptedNanos));
+            return;
+          }
+        }
+      }
+    }
+    handle(httpExchange, message, acceptedNanos);
+  }
+
+  private void handle(HttpExchange httpExchange, PushMessage message, long acceptedNanos) {
+    long start = System.nanoTime();
+    try {
+      processor.process(message);
+      long processed = System.nanoTime();
+      handlerLatency.record(toMicros(processed - start));
+
+      // CloudPubSub will interpret 2XX as ACK, anything that isn't 2XX will trigger a retry
+      respond(httpExchange, HttpStatusCodes.STATUS_CODE_NO_CONTENT);
+      responseLatency.record(toMicros(System.nanoTime() - processed));
+    } catch (MessageInFlightException e) {
+      LOG.info(e.getMessage());
+      respond(httpExchange, IN_FLIGHT_STATUS_CODE);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Error occured when processing push", e);
+      failures.increment();
+      httpExchange.close();
+    } catch (RuntimeException e) {
+      LOG.log(Level.SEVERE, "Unexpected error when processing push", e);
+      failures.increment();
+      respond(httpExchange, HttpStatusCodes.STATUS_CODE_SERVER_ERROR);
+    } finally {
+      pushLatency.record(toMicros(System.nanoTime() - acceptedNanos));
+    }
+  }
+
+  // Pushes whose payload can't be read are admitted, for the processor to handle them.
+  private static String enterpriseIdOf(PushMessage message) {
+    try {
+      return NotificationView.parse(message).getEnterpriseId();
+    } catch (InvalidProtocolBufferException e) {
+      return "";
+    }
+  }
+
+  private static long toMicros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  private static void respond(HttpExchange httpExchange, int statusCode) {
+    try {
+      httpExchange.sendResponseHeaders(statusCode, -1);
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Could not send response " + statusCode, e);
+    } finally {
+      httpExchange.close();
+    }
+  }
+
+  /** Accumulates the time spent blocked reading the request body. */
+  private static final class TimedInputStream extends FilterInputStream {
+    long readNanos;
+
+    TimedInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      long start = System.nanoTime();
+      try {
+        return super.read();
+      } finally {
+        readNanos += System.nanoTime() - start;
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      try {
+        return super.read(b, off, len);
+      } finally {
+        readNanos += System.nanoTime() - start;
+      }
+    }
+  }
+}
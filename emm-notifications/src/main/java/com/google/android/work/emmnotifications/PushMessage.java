@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.protobuf.CodedInputStream;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A Cloud Pub/Sub message as received by the subscriber: the envelope fields and the decoded
+ * payload.
+ *
+ * <p>The payload may live in a buffer owned by {@link PushMessageDecoder} that is reused for the
+ * next message decoded on the same thread. Use {@link #newCodedInputStream()} while handling the
+ * message and {@link #copyData()} to keep the payload beyond that.
+ */
+public final class PushMessage {
+
+  private final String messageId;
+  private final String publishTime;
+  private final String subscription;
+  private final Map<String, String> attributes;
+  private final byte[] data;
+  private final int dataLength;
+
+  PushMessage(
+      String messageId,
+      String publishTime,
+      String subscription,
+      Map<String, String> attributes,
+      byte[] data,
+      int dataLength) {
+    this.messageId = messageId;
+    this.publishTime = publishTime;
+    this.subscription = subscription;
+    this.attributes = attributes == null
+        ? Collections.<String, String>emptyMap()
+        : Collections.unmodifiableMap(attributes);
+    this.data = data;
+    this.dataLength = dataLength;
+  }
+
+  /** Creates a message owning the given payload, as received by a pull. */
+  public static PushMessage of(
+      String messageId, String publishTime, Map<String, String> attributes, byte[] data) {
+    return new PushMessage(messageId, publishTime, null, attributes, data, data.length);
+  }
+
+  /** Server-assigned ID of the message, unique within the topic. */
+  public String getMessageId() {
+    return messageId;
+  }
+
+  /** Time at which Cloud Pub/Sub received the message, in RFC 3339 format, or null. */
+  public String getPublishTime() {
+    return publishTime;
+  }
+
+  /** Subscription the message was pushed for, or null if unknown. */
+  public String getSubscription() {
+    return subscription;
+  }
+
+  public Map<String, String> getAttributes() {
+    return attributes;
+  }
+
+  public int getDataLength() {
+    return dataLength;
+  }
+
+  /** Returns a stream over the payload without copying it. */
+  public CodedInputStream newCodedInputStream() {
+    return CodedInputStream.newInstance(data, 0, dataLength);
+  }
+
+  /** Returns a read-only view of the payload without copying it. */
+  public ByteBuffer getDataBuffer() {
+    return ByteBuffer.wrap(data, 0, dataLength).asReadOnlyBuffer();
+  }
+
+  /** Returns the array holding the payload in its first {@link #getDataLength()} bytes. */
+  byte[] getDataArray() {
+    return data;
+  }
+
+  /** Returns a copy of the payload which stays valid after the decoder's buffer is reused. */
+  public byte[] copyData() {
+    return Arrays.copyOf(data, dataLength);
+  }
+
+  /** Returns a message owning a copy of the payload, to be handed over to another thread. */
+  public PushMessage copy() {
+    return new PushMessage(
+        messageId, publishTime, subscription, attributes, copyData(), dataLength);
+  }
+
+  @Override
+  public String toString() {
+    return "PushMessage{messageId=" + messageId + ", publishTime=" + publishTime
+        + ", attributes=" + attributes + ", dataLength=" + dataLength + "}";
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes the JSON envelope of a push request straight from the request body.
+ *
+ * <p>A push request looks like
+ * <pre>
+ * {"message": {"data": "base64...", "attributes": {...}, "messageId": "..."},
+ *  "subscription": "projects/.../subscriptions/..."}
+ * </pre>
+ * The body is never materialized as a String: the envelope is read with a streaming parser and
+ * the base64 {@code data} field is decoded directly into a per-thread buffer which is reused
+ * for every message decoded on that thread.
+ */
+public final class PushMessageDecoder {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  // Buffers grown beyond this size by an unusually large message are not kept for reuse.
+  private static final int MAX_RETAINED_BUFFER_SIZE = 1 << 20;
+
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+
+  private static final ThreadLocal<DataBuffer> BUFFERS = new ThreadLocal<DataBuffer>() {
+    @Override
+    protected DataBuffer initialValue() {
+      return new DataBuffer(INITIAL_BUFFER_SIZE);
+    }
+  };
+
+  private PushMessageDecoder() {}
+
+  /**
+   * Decodes a push request body. The payload of the returned message is only valid until the
+   * next call to this method on the same thread.
+   *
+   * @throws JsonParseException if the body is not a valid push request
+   */
+  public static PushMessage decode(InputStream body) throws IOException {
+    DataBuffer buffer = BUFFERS.get();
+    buffer.reset(MAX_RETAINED_BUFFER_SIZE);
+
+    JsonParser parser = JSON_FACTORY.createJsonParser(body);
+    try {
+      expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+
+      Envelope envelope = null;
+      String subscription = null;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (PushSubscriber.MESSAGE_FIELD.equals(field)) {
+          expect(parser, value, JsonToken.START_OBJECT);
+          envelope = readMessage(parser, buffer);
+        } else if ("subscription".equals(field)) {
+          subscription = parser.getText();
+        } else {
+          parser.skipChildren();
+        }
+      }
+
+      if (envelope == null) {
+        throw new JsonParseException(
+            "Push request has no \"" + PushSubscriber.MESSAGE_FIELD + "\" field",
+            parser.getCurrentLocation());
+      }
+      return new PushMessage(
+          envelope.messageId,
+          envelope.publishTime,
+          subscription,
+          envelope.attributes,
+          buffer.array(),
+          buffer.size());
+    } finally {
+      parser.close();
+    }
+  }
+
+  private static Envelope readMessage(JsonParser parser, DataBuffer buffer) throws IOException {
+    Envelope envelope = new Envelope();
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if ("data".equals(field)) {
+        if (value != JsonToken.VALUE_NULL) {
+          try {
+            parser.readBinaryValue(Base64Variants.getDefaultVariant(), buffer);
+          } catch (IllegalArgumentException e) {
+            // Jackson reports malformed base64 as an unchecked exception.
+            throw new JsonParseException(e.getMessage(), parser.getCurrentLocation(), e);
+          }
+        }
+      } else if ("messageId".equals(field) || "message_id".equals(field)) {
+        envelope.messageId = parser.getText();
+      } else if ("publishTime".equals(field) || "publish_time".equals(field)) {
+        envelope.publishTime = parser.getText();
+      } else if ("attributes".equals(field) && value == JsonToken.START_OBJECT) {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String key = parser.getCurrentName();
+          parser.nextToken();
+          if (envelope.attributes == null) {
+            envelope.attributes = new HashMap<String, String>();
+          }
+          envelope.attributes.put(key, parser.getText());
+        }
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return envelope;
+  }
+
+  private static void expect(JsonParser parser, JsonToken actual, JsonToken expected)
+      throws JsonParseException {
+    if (actual != expected) {
+      throw new JsonParseException(
+          "Expected " + expected + " but got " + actual, parser.getCurrentLocation());
+    }
+  }
+
+  /** Fields of the "message" object other than the payload. */
+  private static final class Envelope {
+    String messageId;
+    String publishTime;
+    Map<String, String> attributes;
+  }
+
+  /** Growable byte array exposing its backing array, unlike ByteArrayOutputStream. */
+  private static final class DataBuffer extends OutputStream {
+    private byte[] bytes;
+    private int size;
+
+    DataBuffer(int initialCapacity) {
+      bytes = new byte[initialCapacity];
+    }
+
+    void reset(int maxRetainedCapacity) {
+      size = 0;
+      if (bytes.length > maxRetainedCapacity) {
+        bytes = new byte[INITIAL_BUFFER_SIZE];
+      }
+    }
+
+    byte[] array() {
+      return bytes;
+    }
+
+    int size() {
+      return size;
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(size + 1);
+      bytes[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(size + len);
+      System.arraycopy(b, off, bytes, size, len);
+      size += len;
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > bytes.length) {
+        byte[] grown = new byte[Math.max(capacity, bytes.length * 2)];
+        System.arraycopy(bytes, 0, grown, 0, size);
+        bytes = grown;
+      }
+    }
+  }
+}
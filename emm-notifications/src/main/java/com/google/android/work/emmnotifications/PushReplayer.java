@@ -0,0 +1,284 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the push requests recorded by {@link PushCapture} to a subscriber again, to test it
+ * offline with the production mix of events and payload sizes.
+ *
+ * <p>Requests are sent at the pace they were received, {@code --speed} times faster, or with
+ * {@code --speed 0} as fast as {@code --concurrency} connections allow. Throughput, failures and
+ * latency percentiles are reported periodically. The latency is measured from the time a request
+ * was due rather than from the time it was sent, so that a subscriber falling behind shows in it.
+ *
+ * <p>The requests are sent in the order they were received. A capture holds them in the order
+ * they were read, which differs when several workers read pushes at the same time, so the whole
+ * capture is loaded and sorted first.
+ *
+ * <p>To replay against a subscriber checking the pushes' credentials, {@code --token} adds the
+ * shared secret to each request's query and {@code --header} adds a header, e.g. an
+ * {@code Authorization} header with a bearer token.
+ *
+ * <p>Run it as <code>
+ *   java -cp target/emm-notifications-1.0-SNAPSHOT-jar-with-dependencies.jar \
+ *   com.google.android.work.emmnotifications.PushReplayer --file pushes.capture \
+ *   --url http://localhost:8093</code>
+ */
+public class PushReplayer {
+
+  private static final Logger LOG = Logger.getLogger(PushReplayer.class.getName());
+
+  private final File file;
+  private final URL url;
+  private final double speed;
+  private final int concurrency;
+  private final long reportIntervalSeconds;
+  private final Map<String, String> headers;
+  private final String token;
+
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  // Microseconds from the time a request was due until its response.
+  private final Histogram latency = new Histogram();
+  // Microseconds from sending a request until its response.
+  private final Histogram serviceTime = new Histogram();
+
+  /**
+   * @param url URL of the subscriber, against which the recorded paths are resolved
+   * @param speed factor by which to speed up the recorded pace, or 0 to send as fast as possible
+   */
+  public PushReplayer(
+      File file, URL url, double speed, int concurrency, long reportIntervalSeconds) {
+    this(file, url, speed, concurrency, reportIntervalSeconds,
+        Collections.<String, String>emptyMap(), null);
+  }
+
+  /**
+   * @param url URL of the subscriber, against which the recorded paths are resolved
+   * @param speed factor by which to speed up the recorded pace, or 0 to send as fast as possible
+   * @param headers headers to add to each request
+   * @param token shared secret to add to each request's query, or null
+   */
+  public PushReplayer(File file, URL url, double speed, int concurrency,
+      long reportIntervalSeconds, Map<String, String> headers, String token) {
+    Preconditions.checkArgument(speed >= 0, "Speed must not be negative");
+    Preconditions.checkArgument(concurrency > 0, "Concurrency must be positive");
+    this.file = file;
+    this.url = url;
+    this.speed = speed;
+    this.concurrency = concurrency;
+    this.reportIntervalSeconds = reportIntervalSeconds;
+    this.headers = new LinkedHashMap<String, String>(headers);
+    this.token = token;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Options options = new Options()
+        .addOption("f", "file", true, "Capture file to replay")
+        .addOption("u", "url", true, "URL of the subscriber, http://localhost:8093 by default")
+        .addOption("s", "speed", true,
+            "Factor by which to speed up the recorded pace, 0 to send as fast as possible")
+        .addOption("c", "concurrency", true, "Number of requests sent at the same time")
+        .addOption("i", "report-interval", true, "Seconds between reports")
+        .addOption("t", "token", true,
+            "Shared secret to send in the query, when the subscriber checks it")
+        .addOption("H", "header", true,
+            "Header to send with each request, as 'Name: value'. May be repeated")
+        .addOption("h", "help", false, "Print this help");
+    CommandLine cmd;
+    try {
+      cmd = new GnuParser().parse(options, args);
+    } catch (ParseException e) {
+      LOG.severe(e.getMessage());
+      new HelpFormatter().printHelp("PushReplayer", options);
+      return;
+    }
+    if (cmd.hasOption("help") || !cmd.hasOption("file")) {
+      new HelpFormatter().printHelp("PushReplayer", options);
+      return;
+    }
+    Map<String, String> headers = new LinkedHashMap<String, String>();
+    if (cmd.hasOption("header")) {
+      for (String header : cmd.getOptionValues("header")) {
+        int colon = header.indexOf(':');
+        if (colon <= 0) {
+          LOG.severe("Header must be 'Name: value', was " + header);
+          new HelpFormatter().printHelp("PushReplayer", options);
+          return;
+        }
+        headers.put(header.substring(0, colon).trim(), header.substring(colon + 1).trim());
+      }
+    }
+
+    new PushReplayer(
+        new File(cmd.getOptionValue("file")),
+        new URL(cmd.getOptionValue("url", "http://localhost:8093")),
+        Double.parseDouble(cmd.getOptionValue("speed", "1")),
+        Integer.parseInt(cmd.getOptionValue("concurrency", "8")),
+        Long.parseLong(cmd.getOptionValue("report-interval", "5")),
+        headers,
+        cmd.getOptionValue("token"))
+        .run();
+  }
+
+  /** Sends all the requests of the file, then logs a final report. */
+  public void run() throws IOException, InterruptedException {
+    ExecutorService senders = Executors.newFixedThreadPool(concurrency,
+        new ThreadFactoryBuilder().setNameFormat("replay-%d").build());
+    // Bounds the requests in flight, the reader waits for a free sender.
+    final Semaphore permits = new Semaphore(concurrency);
+    PushCapture.Reader reader = new PushCapture.Reader(file);
+    List<PushCapture.Record> records = new ArrayList<PushCapture.Record>();
+    try {
+      PushCapture.Record record;
+      while ((record = reader.next()) != null) {
+        records.add(record);
+      }
+    } finally {
+      reader.close();
+    }
+    // Stable, so requests received at the same time keep their order.
+    Collections.sort(records, new Comparator<PushCapture.Record>() {
+      public int compare(PushCapture.Record a, PushCapture.Record b) {
+        return Long.compare(a.getOffsetNanos(), b.getOffsetNanos());
+      }
+    });
+    LOG.info("Replaying " + records.size() + " pushes of " + file + ", captured at "
+        + new Date(reader.getStartMillis()) + ", to " + url
+        + (speed > 0 ? " at " + speed + "x speed" : " as fast as possible"));
+
+    long start = System.nanoTime();
+    long reportInterval = TimeUnit.SECONDS.toNanos(reportIntervalSeconds);
+    long lastReport = start;
+    long lastSent = 0;
+    try {
+      for (PushCapture.Record record : records) {
+        final PushCapture.Record request = record;
+        final long dueNanos = speed > 0
+            ? start + (long) (record.getOffsetNanos() / speed)
+            : System.nanoTime();
+        long wait = dueNanos - System.nanoTime();
+        if (wait > 0) {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        permits.acquire();
+        senders.execute(new Runnable() {
+          public void run() {
+            try {
+              send(request, dueNanos);
+            } finally {
+              permits.release();
+            }
+          }
+        });
+
+        long now = System.nanoTime();
+        if (now - lastReport >= reportInterval) {
+          long total = sent.get();
+          report("interval", total - lastSent, now - lastReport);
+          lastSent = total;
+          lastReport = now;
+        }
+      }
+    } finally {
+      senders.shutdown();
+      senders.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    report("total", sent.get(), System.nanoTime() - start);
+  }
+
+  private void send(PushCapture.Record record, long dueNanos) {
+    long start = System.nanoTime();
+    try {
+      String path = record.getPath();
+      if (token != null) {
+        path += (path.indexOf('?') < 0 ? "?" : "&") + PushAuthenticator.QUERY_PARAMETER + "="
+            + URLEncoder.encode(token, "UTF-8");
+      }
+      HttpURLConnection connection = (HttpURLConnection) new URL(url, path).openConnection();
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Content-Type", "application/json");
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(record.getEnvelope().length);
+      OutputStream out = connection.getOutputStream();
+      out.write(record.getEnvelope());
+      out.close();
+
+      int statusCode = connection.getResponseCode();
+      // Reading the response to its end lets the connection be reused.
+      InputStream in = statusCode < HttpURLConnection.HTTP_BAD_REQUEST
+          ? connection.getInputStream()
+          : connection.getErrorStream();
+      if (in != null) {
+        ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        in.close();
+      }
+      if (statusCode / 100 != 2) {
+        failed.incrementAndGet();
+      }
+    } catch (IOException e) {
+      failed.incrementAndGet();
+      LOG.log(Level.FINE, "Replaying a push failed", e);
+    }
+    long end = System.nanoTime();
+    serviceTime.record(TimeUnit.NANOSECONDS.toMicros(end - start));
+    latency.record(TimeUnit.NANOSECONDS.toMicros(end - dueNanos));
+    sent.incrementAndGet();
+  }
+
+  private void report(String label, long requests, long elapsedNanos) {
+    double seconds = elapsedNanos / 1e9;
+    LOG.info(label + ": sent " + requests + " pushes, "
+        + String.format("%.1f", requests / seconds) + " pushes/s, "
+        + failed.get() + " failed; latency (us) " + latency.summary()
+        + "; service time (us) " + serviceTime.summary());
+  }
+}
@@ -15,25 +15,22 @@
  */
 package com.google.android.work.emmnotifications;
 
-import com.google.android.work.pubsub.EmmPubsub;
 import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpStatusCodes;
-import com.google.api.client.json.JsonParser;
-import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.pubsub.Pubsub;
-import com.google.api.services.pubsub.model.PubsubMessage;
 import com.google.api.services.pubsub.model.PushConfig;
 import com.google.api.services.pubsub.model.Subscription;
 import com.google.common.base.Preconditions;
-import com.google.common.io.CharStreams;
-import com.google.protobuf.InvalidProtocolBufferException;
-import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,62 +62,405 @@ public class PushSubscriber {
   public static final String MESSAGE_FIELD = "message";
 
   public static void main(String[] args) throws Exception {
-    Pubsub client = ServiceAccountConfiguration.createPubsubClient(
-        Settings.getSettings().getServiceAccountEmail(),
-        Settings.getSettings().getServiceAccountP12KeyPath());
-    
-    ensureSubscriptionExists(client);
-    
-    // Kicking off HttpServer which will listen on the specified port and process all
+    Runtime.getRuntime().addShutdownHook(start(Settings.getSettings()));
+  }
+
+  /**
+   * Starts accepting the pushes of the subscriptions of the settings and serving their queries.
+   * Returns the thread that drains and stops everything when run, which {@link #main} runs on
+   * exit.
+   */
+  static Thread start(Settings settings) throws Exception {
+    List<Settings> subscriptions = settings.getSubscriptions();
+
+    // Loading the key, creating the client and verifying the subscriptions all go to the
+    // network, so they can be deferred until the server accepts pushes.
+    final List<SubscriptionVerifier> verifiers = new ArrayList<SubscriptionVerifier>();
+    for (Settings subscription : subscriptions) {
+      // Running the push inline would block the selector thread until it was processed.
+      Preconditions.checkArgument(settings.getIngressType() != Ingress.Type.NIO
+              || subscription.getWorkerShedPolicy() != WorkerPool.ShedPolicy.CALLER_RUNS,
+          "WorkerShedPolicy=CALLER_RUNS needs IngressType=JDK");
+      SubscriptionVerifier verifier = SubscriptionVerifier.fromSettings(subscription);
+      if (subscription.getStartupMode() == SubscriptionVerifier.StartupMode.BLOCKING) {
+        verifier.verify();
+      }
+      verifiers.add(verifier);
+    }
+
+    // Kicking off the server which will listen on the specified port and process all
     // incoming push pub/sub notifications
-    HttpServer server = HttpServer.create(new InetSocketAddress(
-        Settings.getSettings().getPort()), 0);
-    
-    server.createContext("/", new HttpHandler() {
-      public void handle(HttpExchange httpExchange) throws IOException {
-        String rawRequest = CharStreams.toString(
-            new InputStreamReader(httpExchange.getRequestBody()));
-        LOG.info("Raw request: " + rawRequest);
+    final Ingress server = createIngress(settings);
+    final SettingsWatcher settingsWatcher =
+        SettingsWatcher.fromSettings(settings, Metrics.getDefault());
+    if (settingsWatcher != null && server instanceof NioIngress) {
+      settingsWatcher.addListener(null, new SettingsWatcher.Listener() {
+        public void validate(Settings changed) {
+          NioIngress.checkKeepAliveSeconds(changed.getIngressKeepAliveSeconds());
+        }
 
-        try {
-          JsonParser parser = JacksonFactory.getDefaultInstance().createJsonParser(rawRequest);
-          parser.skipToKey(MESSAGE_FIELD);
+        public void settingsChanged(Settings changed) {
+          ((NioIngress) server).setKeepAliveSeconds(changed.getIngressKeepAliveSeconds());
+        }
+      }, Settings.INGRESS_KEEP_ALIVE_SECONDS);
+    }
+
+    // The notification log and the capture are shared, everything else is per subscription so
+    // that a busy subscription cannot hold up the others.
+    final NotificationLog notificationLog = NotificationLog.fromSettings(settings);
+    final PushCapture capture = PushCapture.fromSettings(settings);
+    if (settingsWatcher != null && notificationLog != null) {
+      settingsWatcher.addListener(null, new SettingsWatcher.Listener() {
+        public void validate(Settings changed) {
+          NotificationLog.checkPayloadSampleRate(changed.getNotificationLogPayloadSampleRate());
+        }
+
+        public void settingsChanged(Settings changed) {
+          notificationLog.setPayloadSampleRate(changed.getNotificationLogPayloadSampleRate());
+        }
+      }, Settings.NOTIFICATION_LOG_PAYLOAD_SAMPLE_RATE);
+    }
+    final List<Journal> journals = new ArrayList<Journal>();
+    final List<MessageDeduplicator> deduplicators = new ArrayList<MessageDeduplicator>();
+    final List<ProductStateView> productStateViews = new ArrayList<ProductStateView>();
+    final List<EventStore> eventStores = new ArrayList<EventStore>();
+    final List<ExecutorService> workerPools = new ArrayList<ExecutorService>();
+    final List<FairScheduler> schedulers = new ArrayList<FairScheduler>();
+    final List<EventDispatcher> dispatchers = new ArrayList<EventDispatcher>();
+    final List<PushAuthenticator> authenticators = new ArrayList<PushAuthenticator>();
+    // Queries are answered off the thread accepting requests, which must never block.
+    final ThreadPoolExecutor queries = ExecutingHandler.newQueryExecutor();
+    // Only set here without a Subscriptions list, the top-level settings are the subscription.
+    PushAuthenticator topLevelAuthenticator = null;
+    for (Settings subscription : subscriptions) {
+      Metrics metrics = subscription.getSubscriptionKey() == null
+          ? Metrics.getDefault()
+          : Metrics.getDefault().withLabel("subscription", subscription.getSubscriptionKey());
+      // The subscription's queries are authenticated like its pushes, as they expose the
+      // enterprises' data.
+      PushAuthenticator authenticator = PushAuthenticator.fromSettings(subscription, metrics);
+      if (authenticator != null) {
+        authenticators.add(authenticator);
+        if (subscription.getSubscriptionKey() == null) {
+          topLevelAuthenticator = authenticator;
+        }
+      }
 
-          PubsubMessage message = parser.parseAndClose(PubsubMessage.class);
-          LOG.info("Pubsub message received: " + message.toPrettyString());
+      // Requests are only accepted on the server's dispatcher thread, all the processing
+      // happens on the subscription's bounded worker pool.
+      ExecutorService workers = WorkerPool.create(
+          subscription.getSubscriptionKey() == null
+              ? "push-worker"
+              : "push-worker-" + subscription.getSubscriptionKey(),
+          subscription);
+      WorkerPool.exportMetrics(workers, "push-worker", metrics);
+      workerPools.add(workers);
+      MessageDeduplicator deduplicator = MessageDeduplicator.fromSettings(subscription, metrics);
+      if (deduplicator != null) {
+        deduplicators.add(deduplicator);
+      }
+      EventDispatcher dispatcher = EventDispatcher.fromSettings(subscription, metrics);
+      dispatchers.add(dispatcher);
+      ProductStateView productStates = ProductStateView.fromSettings(subscription, metrics);
+      if (productStates != null) {
+        dispatcher.addListener(productStates);
+        productStateViews.add(productStates);
+        String productsPath = subscription.getSubscriptionKey() == null
+            ? ProductStateHandler.PATH
+            : ProductStateHandler.PATH + "/" + subscription.getSubscriptionKey();
+        server.createContext(productsPath, authenticated(
+            authenticator, new ExecutingHandler(queries, new ProductStateHandler(productStates))));
+      }
+      InstallFailureAggregator installFailures =
+          InstallFailureAggregator.fromSettings(subscription, metrics);
+      if (installFailures != null) {
+        dispatcher.addListener(installFailures);
+        String installFailuresPath = subscription.getSubscriptionKey() == null
+            ? InstallFailureHandler.PATH
+            : InstallFailureHandler.PATH + "/" + subscription.getSubscriptionKey();
+        server.createContext(installFailuresPath, authenticated(authenticator,
+            new ExecutingHandler(queries, new InstallFailureHandler(installFailures))));
+      }
+      EventStore eventStore = EventStore.fromSettings(subscription, metrics);
+      if (eventStore != null) {
+        dispatcher.addListener(eventStore);
+        eventStores.add(eventStore);
+        String eventsPath = subscription.getSubscriptionKey() == null
+            ? EventStoreHandler.PATH
+            : EventStoreHandler.PATH + "/" + subscription.getSubscriptionKey();
+        server.createContext(eventsPath, authenticated(
+            authenticator, new ExecutingHandler(queries, new EventStoreHandler(eventStore))));
+      }
+      Journal journal = Journal.fromSettings(subscription);
+      if (journal != null) {
+        journals.add(journal);
+      }
+      NotificationProcessor processor = new NotificationProcessor(
+          journal,
+          deduplicator,
+          dispatcher,
+          notificationLog,
+          metrics);
+      FairScheduler scheduler = FairScheduler.fromSettings(
+          subscription.getSubscriptionKey() == null
+              ? "push-fair"
+              : "push-fair-" + subscription.getSubscriptionKey(),
+          subscription,
+          metrics);
+      if (scheduler != null) {
+        schedulers.add(scheduler);
+      }
+      EnterpriseRateLimiter rateLimiter = EnterpriseRateLimiter.fromSettings(subscription, metrics);
+      if (settingsWatcher != null) {
+        watchSettings(settingsWatcher, subscription.getSubscriptionKey(), workers, rateLimiter,
+            scheduler, authenticator);
+      }
+      HttpHandler pushHandler = new PushHandler(
+          processor,
+          workers,
+          subscription.getWorkerShedPolicy(),
+          capture,
+          rateLimiter,
+          scheduler,
+          metrics);
+      // Unauthenticated pushes are rejected before their body is read.
+      server.createContext(subscription.getPushPath(), authenticated(authenticator, pushHandler));
+      LOG.info("Accepting pushes for " + subscription.getSubscriptionName() + " on "
+          + subscription.getPushPath());
+    }
 
-          // Decode Protocol Buffer message from base64 encoded byte array.
-          EmmPubsub.MdmPushNotification mdmPushNotification = EmmPubsub.MdmPushNotification
-              .newBuilder()
-              .mergeFrom(message.decodeData())
-              .build();
+    // The metrics are authenticated with the top-level push settings. The health checks are
+    // left open for the probes of the load balancer or orchestrator.
+    if (subscriptions.get(0).getSubscriptionKey() != null) {
+      topLevelAuthenticator = PushAuthenticator.fromSettings(settings, Metrics.getDefault());
+      if (topLevelAuthenticator != null) {
+        authenticators.add(topLevelAuthenticator);
+        if (settingsWatcher != null) {
+          watchPushAuthTokens(settingsWatcher, null, topLevelAuthenticator);
+        }
+      }
+    }
+    server.createContext(MetricsHandler.PATH,
+        authenticated(topLevelAuthenticator, new MetricsHandler(Metrics.getDefault())));
+    HealthHandler healthHandler = new HealthHandler(verifiers);
+    server.createContext(HealthHandler.LIVENESS_PATH, healthHandler);
+    server.createContext(HealthHandler.READINESS_PATH, healthHandler);
 
-          LOG.info("Message received: " + mdmPushNotification.toString());
-        } catch (InvalidProtocolBufferException e) {
-          LOG.log(Level.WARNING, "Error occured when decoding message", e);
+    final AtomicLong drainSeconds = new AtomicLong(settings.getShutdownDrainSeconds());
+    if (settingsWatcher != null) {
+      settingsWatcher.addListener(null, new SettingsWatcher.Listener() {
+        public void validate(Settings changed) {
+          Preconditions.checkArgument(changed.getShutdownDrainSeconds() >= 0,
+              "Shutdown drain must not be negative");
         }
 
-        // CloudPubSub will interpret 2XX as ACK, anything that isn't 2XX will trigger a retry
-        httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_NO_CONTENT, 0);
-        httpExchange.close();
+        public void settingsChanged(Settings changed) {
+          drainSeconds.set(changed.getShutdownDrainSeconds());
+        }
+      }, Settings.SHUTDOWN_DRAIN_SECONDS);
+    }
+    Thread shutdown = new Thread() {
+      @Override
+      public void run() {
+        // Pushes which were accepted are answered before exiting, the ones that weren't are
+        // sent elsewhere or redelivered by Cloud Pub/Sub.
+        long drainNanos = TimeUnit.SECONDS.toNanos(drainSeconds.get());
+        long deadline = System.nanoTime() + drainNanos;
+        try {
+          if (!server.drain(drainNanos, TimeUnit.NANOSECONDS)) {
+            LOG.warning("Pushes were still being handled when the drain timed out");
+          }
+          queries.shutdown();
+          for (ExecutorService workers : workerPools) {
+            workers.shutdown();
+          }
+          for (FairScheduler scheduler : schedulers) {
+            scheduler.shutdown();
+          }
+          for (ExecutorService workers : workerPools) {
+            workers.awaitTermination(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+          }
+          for (FairScheduler scheduler : schedulers) {
+            scheduler.awaitTermination(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+          }
+          for (EventDispatcher dispatcher : dispatchers) {
+            dispatcher.close(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+          }
+          for (Journal journal : journals) {
+            journal.close();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        LOG.info("Drained, shutting down");
+
+        for (PushAuthenticator authenticator : authenticators) {
+          authenticator.stop();
+        }
+
+        for (MessageDeduplicator deduplicator : deduplicators) {
+          try {
+            deduplicator.close();
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not save dedupe snapshot", e);
+          }
+        }
+        for (ProductStateView productStates : productStateViews) {
+          try {
+            productStates.close();
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not save product state snapshot", e);
+          }
+        }
+        for (EventStore eventStore : eventStores) {
+          try {
+            eventStore.close();
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not write the buffered events", e);
+          }
+        }
+        try {
+          if (settingsWatcher != null) {
+            settingsWatcher.close();
+          }
+        } catch (IOException e) {
+          LOG.log(Level.FINE, "Could not stop watching the settings", e);
+        }
+        try {
+          if (notificationLog != null) {
+            notificationLog.close();
+          }
+          if (capture != null) {
+            capture.close();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
       }
-    });
+    };
 
-    server.setExecutor(null);
     server.start(); // Will keep running until killed
+
+    for (SubscriptionVerifier verifier : verifiers) {
+      // Also keeps retrying if the blocking verification failed.
+      if (verifier.getStatus() != SubscriptionVerifier.Status.READY
+          && verifier.getStatus() != SubscriptionVerifier.Status.FAILED) {
+        verifier.verifyInBackground();
+      }
+    }
+    return shutdown;
+  }
+
+  /**
+   * Applies changes of the worker threads, the rate limits, the fair scheduler weights and the
+   * push secrets of a subscription while running.
+   */
+  private static void watchSettings(SettingsWatcher watcher, String subscriptionKey,
+      final ExecutorService workers, final EnterpriseRateLimiter rateLimiter,
+      final FairScheduler scheduler, final PushAuthenticator authenticator) {
+    watcher.addListener(subscriptionKey, new SettingsWatcher.Listener() {
+      public void validate(Settings changed) {
+        WorkerPool.checkThreads(changed.getWorkerThreads());
+      }
+
+      public void settingsChanged(Settings changed) {
+        WorkerPool.resize(workers, changed.getWorkerThreads());
+      }
+    }, Settings.WORKER_THREADS);
+    if (rateLimiter != null) {
+      watcher.addListener(subscriptionKey, new SettingsWatcher.Listener() {
+        public void validate(Settings changed) {
+          EnterpriseRateLimiter.checkLimits(
+              changed.getEnterpriseRateLimit(), changed.getEnterpriseBurstSeconds());
+          changed.getEnterpriseRateLimits();
+        }
+
+        public void settingsChanged(Settings changed) {
+          rateLimiter.setLimits(changed.getEnterpriseRateLimit(),
+              changed.getEnterpriseBurstSeconds(), changed.getEnterpriseRateLimits());
+        }
+      }, Settings.ENTERPRISE_RATE_LIMIT, Settings.ENTERPRISE_RATE_LIMITS,
+          Settings.ENTERPRISE_BURST_SECONDS);
+    }
+    if (scheduler != null) {
+      watcher.addListener(subscriptionKey, new SettingsWatcher.Listener() {
+        public void validate(Settings changed) {
+          FairScheduler.checkWeights(changed.getEnterpriseWeights());
+        }
+
+        public void settingsChanged(Settings changed) {
+          scheduler.setWeights(changed.getEnterpriseWeights());
+        }
+      }, Settings.ENTERPRISE_WEIGHTS);
+    }
+    if (authenticator != null) {
+      watchPushAuthTokens(watcher, subscriptionKey, authenticator);
+    }
+  }
+
+  private static void watchPushAuthTokens(SettingsWatcher watcher, String subscriptionKey,
+      final PushAuthenticator authenticator) {
+    watcher.addListener(subscriptionKey, new SettingsWatcher.Listener() {
+      public void validate(Settings changed) {
+        changed.getPushAuthTokens();
+      }
+
+      public void settingsChanged(Settings changed) {
+        authenticator.setSecrets(changed.getPushAuthTokens());
+      }
+    }, Settings.PUSH_AUTH_TOKENS);
+  }
+
+  /** Puts the handler behind the authenticator, if requests are authenticated. */
+  private static HttpHandler authenticated(PushAuthenticator authenticator, HttpHandler handler) {
+    return authenticator == null ? handler : new AuthenticatingHandler(authenticator, handler);
+  }
+
+  private static long remainingNanos(long deadline) {
+    return Math.max(0, deadline - System.nanoTime());
+  }
+
+  private static Ingress createIngress(Settings settings) throws IOException {
+    InetSocketAddress address = new InetSocketAddress(settings.getPort());
+    switch (settings.getIngressType()) {
+      case JDK:
+        Preconditions.checkArgument(
+            !settings.isIngressReusePort() && settings.getIngressListeners() == 1,
+            "IngressReusePort and IngressListeners need IngressType=NIO");
+        return new JdkIngress(address, settings.getIngressBacklog());
+      case NIO:
+        return new NioIngress(
+            address,
+            settings.getIngressBacklog(),
+            settings.getIngressMaxConnections(),
+            settings.getIngressMaxRequestKb() * 1024,
+            settings.getIngressKeepAliveSeconds(),
+            settings.getIngressBufferKb() * 1024,
+            settings.getIngressListeners(),
+            settings.isIngressReusePort(),
+            Metrics.getDefault());
+      default:
+        throw new AssertionError(settings.getIngressType());
+    }
   }
 
   /**
-   * Verifies that the subscription with the name defined in settings file actually exists and 
-   * points to a correct topic defined in the same settings file. If the subscription doesn't
-   * exist, it will be created.
+   * Verifies that the subscription with the name defined in settings actually exists and
+   * points to a correct topic defined in the same settings. If the subscription doesn't
+   * exist, it will be created with the given push configuration, or as a pull subscription if
+   * {@code pushConfig} is null.
+   *
+   * @return the existing or created subscription, or null if it couldn't be retrieved
+   * @throws TopicMismatchException if the subscription exists with another topic
    */
-  private static void ensureSubscriptionExists(Pubsub client) throws IOException {
+  static Subscription ensureSubscriptionExists(
+      Pubsub client, Settings settings, PushConfig pushConfig)
+      throws IOException, TopicMismatchException {
     // First we check if the subscription with this name actually exists.
     Subscription subscription = null;
 
-    String topicName = Settings.getSettings().getTopicName();
-    String subName = Settings.getSettings().getSubscriptionName();
+    String topicName = settings.getTopicName();
+    String subName = settings.getSubscriptionName();
 
     LOG.info("Will be using topic name: " + topicName + ", subscription name: " + subName);
 
@@ -132,13 +472,12 @@ public class PushSubscriber {
           .get(subName)
           .execute();
       
-      Preconditions.checkArgument(
-          subscription.getTopic().equals(topicName),
-          "Subscription %s already exists but points to a topic %s and not %s." +
-              "Please specify a different subscription name or delete this subscription",
-          subscription.getName(),
-          subscription.getTopic(),
-          topicName);
+      if (!subscription.getTopic().equals(topicName)) {
+        throw new TopicMismatchException("Subscription " + subscription.getName()
+            + " already exists but points to a topic " + subscription.getTopic() + " and not "
+            + topicName + ". Please specify a different subscription name or delete this"
+            + " subscription");
+      }
 
       LOG.info("Will be re-using existing subscription: " + subscription.toPrettyString());
     } catch (HttpResponseException e) {
@@ -153,14 +492,13 @@ public class PushSubscriber {
             .subscriptions()
             .create(subName, new Subscription()
                 .setTopic(topicName)   // Name of the topic it subscribes to
-                .setAckDeadlineSeconds(600)
-                .setPushConfig(new PushConfig()
-                    // FQDN with valid SSL certificate
-                    .setPushEndpoint(Settings.getSettings().getPushEndpoint())))
+                .setAckDeadlineSeconds(settings.getAckDeadlineSeconds())
+                .setPushConfig(pushConfig))
             .execute();
 
         LOG.info("Created: " + subscription.toPrettyString());
       }
     }
+    return subscription;
   }
 }
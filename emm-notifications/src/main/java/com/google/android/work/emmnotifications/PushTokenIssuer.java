@@ -0,0 +1,205 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for Google's token service, signing OIDC tokens such as the ones Cloud Pub/Sub sends
+ * with pushes and serving the keys to verify them, so that {@link PushAuthenticator} can be
+ * tested without a Cloud project.
+ *
+ * <p>{@link #CERTS_PATH} serves the JSON Web Key Set of the keys, and {@link #TOKEN_PATH} mints
+ * a token for the {@code audience} and {@code email} query parameters. {@link #rotate} replaces
+ * the signing key, while keeping the previous one in the key set as Google does.
+ */
+public class PushTokenIssuer implements HttpHandler {
+
+  static final String CERTS_PATH = "/oauth2/v3/certs";
+  static final String TOKEN_PATH = "/oauth2/v3/token";
+  static final String ISSUER = "https://accounts.google.com";
+
+  private static final long KEYS_MAX_AGE_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+  private static final long TOKEN_LIFETIME_SECONDS = TimeUnit.HOURS.toSeconds(1);
+  private static final BaseEncoding BASE64_URL = BaseEncoding.base64Url().omitPadding();
+
+  private final JsonFactory jsonFactory = new JsonFactory();
+  // The signing key first, then the previous one. Guarded by this.
+  private List<SigningKey> keys = ImmutableList.of();
+
+  public PushTokenIssuer() {
+    rotate();
+  }
+
+  /** Signs the tokens minted from now on with a new key. */
+  public synchronized void rotate() {
+    SigningKey key = new SigningKey();
+    keys = keys.isEmpty() ? ImmutableList.of(key) : ImmutableList.of(key, keys.get(0));
+  }
+
+  /**
+   * Mints a token for the audience, issued to the service account.
+   *
+   * @param email email of the service account, or null
+   */
+  public String mint(String audience, String email, long lifetimeSeconds) {
+    SigningKey key;
+    synchronized (this) {
+      key = keys.get(0);
+    }
+    long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    try {
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      JsonGenerator json = jsonFactory.createJsonGenerator(header);
+      json.writeStartObject();
+      json.writeStringField("alg", "RS256");
+      json.writeStringField("kid", key.id);
+      json.writeStringField("typ", "JWT");
+      json.writeEndObject();
+      json.close();
+
+      ByteArrayOutputStream claims = new ByteArrayOutputStream();
+      json = jsonFactory.createJsonGenerator(claims);
+      json.writeStartObject();
+      json.writeStringField("iss", ISSUER);
+      json.writeStringField("aud", audience);
+      json.writeStringField("sub", email == null ? "anonymous" : email);
+      if (email != null) {
+        json.writeStringField("email", email);
+        json.writeBooleanField("email_verified", true);
+      }
+      json.writeNumberField("iat", now);
+      json.writeNumberField("exp", now + lifetimeSeconds);
+      json.writeEndObject();
+      json.close();
+
+      String signed = BASE64_URL.encode(header.toByteArray()) + "."
+          + BASE64_URL.encode(claims.toByteArray());
+      Signature signature = Signature.getInstance("SHA256withRSA");
+      signature.initSign(key.pair.getPrivate());
+      signature.update(signed.getBytes(StandardCharsets.US_ASCII));
+      return signed + "." + BASE64_URL.encode(signature.sign());
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not sign token", e);
+    }
+  }
+
+  public void handle(HttpExchange httpExchange) throws IOException {
+    try {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      String path = httpExchange.getRequestURI().getPath();
+      if (CERTS_PATH.equals(path)) {
+        writeKeys(body);
+        httpExchange.getResponseHeaders().set("Content-Type", "application/json");
+        httpExchange.getResponseHeaders().set(
+            "Cache-Control", "public, max-age=" + KEYS_MAX_AGE_SECONDS);
+      } else if (TOKEN_PATH.equals(path)) {
+        Map<String, String> query =
+            QueryStrings.parse(httpExchange.getRequestURI().getRawQuery());
+        String audience = query.get("audience");
+        if (audience == null) {
+          httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_BAD_REQUEST, -1);
+          return;
+        }
+        body.write(mint(audience, query.get("email"), TOKEN_LIFETIME_SECONDS)
+            .getBytes(StandardCharsets.US_ASCII));
+        httpExchange.getResponseHeaders().set("Content-Type", "text/plain");
+      } else {
+        httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_NOT_FOUND, -1);
+        return;
+      }
+      httpExchange.sendResponseHeaders(HttpStatusCodes.STATUS_CODE_OK, body.size());
+      OutputStream out = httpExchange.getResponseBody();
+      body.writeTo(out);
+      out.close();
+    } finally {
+      httpExchange.close();
+    }
+  }
+
+  private void writeKeys(OutputStream out) throws IOException {
+    List<SigningKey> current;
+    synchronized (this) {
+      current = keys;
+    }
+    JsonGenerator json = jsonFactory.createJsonGenerator(out);
+    json.writeStartObject();
+    json.writeArrayFieldStart("keys");
+    for (SigningKey key : current) {
+      RSAPublicKey publicKey = (RSAPublicKey) key.pair.getPublic();
+      json.writeStartObject();
+      json.writeStringField("kty", "RSA");
+      json.writeStringField("alg", "RS256");
+      json.writeStringField("use", "sig");
+      json.writeStringField("kid", key.id);
+      json.writeStringField("n", BASE64_URL.encode(unsigned(publicKey.getModulus())));
+      json.writeStringField("e", BASE64_URL.encode(unsigned(publicKey.getPublicExponent())));
+      json.writeEndObject();
+    }
+    json.writeEndArray();
+    json.writeEndObject();
+    json.close();
+  }
+
+  // The big-endian bytes of a positive number, without the sign byte BigInteger may add.
+  private static byte[] unsigned(BigInteger value) {
+    byte[] bytes = value.toByteArray();
+    if (bytes.length > 1 && bytes[0] == 0) {
+      byte[] trimmed = new byte[bytes.length - 1];
+      System.arraycopy(bytes, 1, trimmed, 0, trimmed.length);
+      return trimmed;
+    }
+    return bytes;
+  }
+
+  private static final class SigningKey {
+    final String id = UUID.randomUUID().toString().replace("-", "");
+    final KeyPair pair;
+
+    SigningKey() {
+      try {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        this.pair = generator.generateKeyPair();
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses the query strings of requests to the HTTP endpoints served next to the push handler.
+ */
+final class QueryStrings {
+
+  private QueryStrings() {}
+
+  /**
+   * Returns the parameters of a raw (still percent-encoded) query string. Parameters without
+   * a name or without a {@code =} are ignored, and the last of repeated parameters wins.
+   *
+   * @param rawQuery the raw query, or {@code null} if the request has none
+   * @throws IllegalArgumentException if the query contains malformed percent-encoding
+   */
+  static Map<String, String> parse(String rawQuery) {
+    Map<String, String> parameters = new HashMap<String, String>();
+    if (rawQuery == null) {
+      return parameters;
+    }
+    try {
+      for (String parameter : rawQuery.split("&")) {
+        int equals = parameter.indexOf('=');
+        if (equals > 0) {
+          parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+              URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+        }
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+    return parameters;
+  }
+}
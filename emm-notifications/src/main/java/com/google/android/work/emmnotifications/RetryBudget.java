@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting the retries of all requests sharing it to a fraction of the requests.
+ *
+ * <p>Every request deposits {@code retryRatio} of a token and every retry withdraws a whole
+ * token, up to {@code maxTokens} saved. When a service fails, retries are therefore capped at
+ * the burst of saved tokens plus {@code retryRatio} times the request rate, instead of
+ * multiplying the load by the number of attempts.
+ */
+final class RetryBudget {
+
+  // Tokens are counted in thousandths, so that fractional deposits stay lock-free.
+  private static final long SCALE = 1000;
+
+  private final long depositMillis;
+  private final long capacityMillis;
+  private final AtomicLong balanceMillis;
+
+  private final Metrics.Counter exhausted;
+
+  RetryBudget(String name, double retryRatio, int maxTokens, Metrics metrics) {
+    Preconditions.checkArgument(retryRatio >= 0, "Retry ratio must not be negative");
+    Preconditions.checkArgument(maxTokens > 0, "Retry budget must be positive");
+    this.depositMillis = Math.round(retryRatio * SCALE);
+    this.capacityMillis = maxTokens * SCALE;
+    this.balanceMillis = new AtomicLong(capacityMillis);
+
+    this.exhausted = metrics.counter("emm_retry_budget_exhausted_total",
+        "Retries not attempted because the retry budget was exhausted.", "client", name);
+    metrics.gauge("emm_retry_budget_tokens", "Retries left in the retry budget.",
+        "client", name, new Metrics.Gauge() {
+          public double value() {
+            return getTokens();
+          }
+        });
+  }
+
+  /** Deposits the share of a new request. */
+  void onRequest() {
+    long balance;
+    do {
+      balance = balanceMillis.get();
+      if (balance >= capacityMillis) {
+        return;
+      }
+    } while (!balanceMillis.compareAndSet(
+        balance, Math.min(capacityMillis, balance + depositMillis)));
+  }
+
+  /** Withdraws a token for a retry, or returns false if there is none left. */
+  boolean tryAcquireRetry() {
+    long balance;
+    do {
+      balance = balanceMillis.get();
+      if (balance < SCALE) {
+        exhausted.increment();
+        return false;
+      }
+    } while (!balanceMillis.compareAndSet(balance, balance - SCALE));
+    return true;
+  }
+
+  double getTokens() {
+    return (double) balanceMillis.get() / SCALE;
+  }
+}
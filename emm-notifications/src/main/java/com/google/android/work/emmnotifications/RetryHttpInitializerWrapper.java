@@ -18,29 +18,59 @@ package com.google.android.work.emmnotifications;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.http.HttpBackOffIOExceptionHandler;
 import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
+import com.google.api.client.http.HttpIOExceptionHandler;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
-import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.BackOff;
 import com.google.api.client.util.Sleeper;
 import com.google.common.base.Preconditions;
-import com.google.common.io.CharStreams;
+import com.google.common.io.ByteStreams;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
  * RetryHttpInitializerWrapper will automatically retry upon RPC
  * failures, preserving the auto-refresh behavior of the Google
  * Credentials.
+ *
+ * <p>All requests initialized by one wrapper share a {@link RetryBudget}, so that retries stay
+ * a small fraction of the traffic, and a {@link CircuitBreaker}, which fails requests fast while
+ * most of them fail. Retries wait for a random time between zero and an exponentially growing
+ * bound ("full jitter"), which spreads out the retries of concurrent callers.
  */
 public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
 
   private static final Logger LOG =
       Logger.getLogger(RetryHttpInitializerWrapper.class.getName());
 
+  private static final long INITIAL_BACKOFF_MILLIS = 500;
+  private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  private static final long MAX_ELAPSED_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+  // Up to 100 retries in a burst, then one retry per 10 requests.
+  private static final double RETRY_RATIO = 0.1;
+  private static final int RETRY_BURST = 100;
+
+  // Opens when half of at least 20 requests within 10s failed, for 30s.
+  private static final double BREAKER_FAILURE_RATE = 0.5;
+  private static final int BREAKER_MINIMUM_REQUESTS = 20;
+  private static final long BREAKER_WINDOW_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  private static final long BREAKER_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  // Only the start of error bodies is logged.
+  private static final int MAX_LOGGED_ERROR_BYTES = 1024;
+
+  private static final String CLIENT_NAME = "pubsub";
+
   // Intercepts the request for filling in the "Authorization"
   // header field, as well as recovering from certain unsuccessful
   // error codes wherein the Credential must refresh its token for a
@@ -50,27 +80,69 @@ public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
   // A sleeper; you can replace it with a mock in your test.
   private final Sleeper sleeper;
 
+  private final RetryBudget retryBudget;
+  private final CircuitBreaker circuitBreaker;
+  private final Metrics.Counter retries;
+
   public RetryHttpInitializerWrapper(Credential wrappedCredential) {
-    this(wrappedCredential, Sleeper.DEFAULT);
+    this(wrappedCredential, Metrics.getDefault());
+  }
+
+  /**
+   * @param metrics registry of the retry budget and circuit breaker series, which should be
+   *     labelled to tell apart the wrappers of several clients
+   */
+  public RetryHttpInitializerWrapper(Credential wrappedCredential, Metrics metrics) {
+    this(wrappedCredential, Sleeper.DEFAULT, metrics);
   }
 
   // Use only for testing.
   RetryHttpInitializerWrapper(
-      Credential wrappedCredential, Sleeper sleeper) {
+      Credential wrappedCredential, Sleeper sleeper, Metrics metrics) {
     this.wrappedCredential = Preconditions.checkNotNull(wrappedCredential);
     this.sleeper = sleeper;
+    this.retryBudget = new RetryBudget(CLIENT_NAME, RETRY_RATIO, RETRY_BURST, metrics);
+    this.circuitBreaker = new CircuitBreaker(
+        CLIENT_NAME,
+        BREAKER_FAILURE_RATE,
+        BREAKER_MINIMUM_REQUESTS,
+        BREAKER_WINDOW_MILLIS,
+        BREAKER_OPEN_MILLIS,
+        metrics);
+    this.retries = metrics.counter(
+        "emm_http_retries_total", "Requests retried.", "client", CLIENT_NAME);
   }
 
-  public void initialize(HttpRequest request) {
+  public void initialize(HttpRequest request) throws IOException {
+    if (!circuitBreaker.allowRequest()) {
+      throw new IOException("Circuit breaker is open, not sending " + request.getRequestMethod()
+          + " " + request.getUrl());
+    }
+    retryBudget.onRequest();
+
+    BackOff backOff = new FullJitterBackOff();
     final HttpUnsuccessfulResponseHandler backoffHandler =
-        new HttpBackOffUnsuccessfulResponseHandler(
-            new ExponentialBackOff())
+        new HttpBackOffUnsuccessfulResponseHandler(backOff)
+            .setSleeper(sleeper);
+    final HttpIOExceptionHandler ioExceptionHandler =
+        new HttpBackOffIOExceptionHandler(backOff)
             .setSleeper(sleeper);
     request.setInterceptor(wrappedCredential);
 
     request.setConnectTimeout(3 * 60000);  // 3 minutes connect timeout
     request.setReadTimeout(3 * 60000);  // 3 minutes read timeout
 
+    // The circuit breaker counts attempts: the unsuccessful response handler and the I/O
+    // exception handler see every failed attempt, and the response interceptor, which only runs
+    // once after the retries, sees the successful attempt if there is one.
+    request.setResponseInterceptor(new HttpResponseInterceptor() {
+      public void interceptResponse(HttpResponse response) {
+        if (response.isSuccessStatusCode()) {
+          circuitBreaker.onSuccess();
+        }
+      }
+    });
+
     request.setUnsuccessfulResponseHandler(
         new HttpUnsuccessfulResponseHandler() {
           public boolean handleResponse(
@@ -78,8 +150,14 @@ public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
               HttpResponse response,
               boolean supportsRetry) throws IOException {
 
-            LOG.info("RetryHandler: " + CharStreams.toString(
-                new InputStreamReader(response.getContent())));
+            int statusCode = response.getStatusCode();
+            if (statusCode >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR || statusCode == 429) {
+              circuitBreaker.onFailure();
+            } else {
+              // The service is up, the request was wrong.
+              circuitBreaker.onSuccess();
+            }
+            LOG.info("RetryHandler: " + statusCode + " " + readErrorBody(response));
 
             if (wrappedCredential.handleResponse(
                 request, response, supportsRetry)) {
@@ -102,8 +180,53 @@ public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
             }
           }
         });
-    request.setIOExceptionHandler(
-        new HttpBackOffIOExceptionHandler(new ExponentialBackOff())
-            .setSleeper(sleeper));
+    request.setIOExceptionHandler(new HttpIOExceptionHandler() {
+      public boolean handleIOException(HttpRequest request, boolean supportsRetry)
+          throws IOException {
+        circuitBreaker.onFailure();
+        return ioExceptionHandler.handleIOException(request, supportsRetry);
+      }
+    });
+  }
+
+  private static String readErrorBody(HttpResponse response) {
+    try {
+      InputStream content = response.getContent();
+      if (content == null) {
+        return "";
+      }
+      byte[] start = ByteStreams.toByteArray(ByteStreams.limit(content, MAX_LOGGED_ERROR_BYTES));
+      String body = new String(start, StandardCharsets.UTF_8);
+      return start.length == MAX_LOGGED_ERROR_BYTES ? body + "..." : body;
+    } catch (IOException e) {
+      return "(unreadable body: " + e + ")";
+    }
+  }
+
+  /**
+   * Waits a random time up to an exponentially growing bound between attempts, as long as the
+   * retry budget has tokens left and the circuit breaker is closed.
+   */
+  private final class FullJitterBackOff implements BackOff {
+    private final long startNanos = System.nanoTime();
+    private int attempts;
+
+    public long nextBackOffMillis() {
+      if (System.nanoTime() - startNanos > TimeUnit.MILLISECONDS.toNanos(MAX_ELAPSED_MILLIS)
+          || circuitBreaker.getState() != CircuitBreaker.State.CLOSED
+          || !retryBudget.tryAcquireRetry()) {
+        return STOP;
+      }
+      long bound = attempts >= 30
+          ? MAX_BACKOFF_MILLIS
+          : Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << attempts);
+      attempts++;
+      retries.increment();
+      return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    public void reset() {
+      attempts = 0;
+    }
   }
-}
\ No newline at end of file
+}
@@ -15,55 +15,163 @@
  */
 package com.google.android.work.emmnotifications;
 
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.GoogleUtils;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.pubsub.Pubsub;
 import com.google.api.services.pubsub.PubsubScopes;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
 
 import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 /**
  * Creates a Pubsub client with the service account.
+ *
+ * <p>All clients share one HTTP transport, which keeps a pool of persistent connections, and
+ * each service account's access token is renewed in the background before it expires. Requests
+ * therefore normally reuse an established TLS connection and a valid token.
+ *
+ * <p>With {@code PubsubRootUrl} set, clients use that endpoint instead, e.g. a
+ * {@link PubsubEmulator}, with a fixed token and without the service account.
  */
 public class ServiceAccountConfiguration {
 
+  private static final Logger LOG =
+      Logger.getLogger(ServiceAccountConfiguration.class.getName());
+
   private static final JsonFactory JSON_FACTORY =
       JacksonFactory.getDefaultInstance();
 
-  public static Pubsub createPubsubClient(String serviceAccountEmail, String privateKeyFilePath)
+  private static final String EMULATOR_ACCESS_TOKEN = "emulator";
+
+  private static ApacheHttpTransport sharedTransport;
+
+  // Clients by service account email, key file and root URL.
+  private static final Map<List<String>, Pubsub> clients = new HashMap<List<String>, Pubsub>();
+
+  /**
+   * Returns the client of the service account and Pub/Sub endpoint of {@code settings},
+   * creating it on the first call. Later calls with the same account and endpoint return the
+   * same client. The HTTP connection pool is sized by the settings of the first call.
+   */
+  public static synchronized Pubsub createPubsubClient(Settings settings)
       throws IOException, GeneralSecurityException {
-    HttpTransport transport = GoogleNetHttpTransport.newTrustedTransport();
-    GoogleCredential credential = new GoogleCredential.Builder()
-        .setTransport(transport)
-        .setJsonFactory(JSON_FACTORY)
-        .setServiceAccountScopes(PubsubScopes.all())
+    String serviceAccountEmail = settings.getServiceAccountEmail();
+    String privateKeyFilePath = settings.getServiceAccountP12KeyPath();
+    String rootUrl = settings.getPubsubRootUrl();
+    List<String> key = Arrays.asList(serviceAccountEmail, privateKeyFilePath, rootUrl);
+    Pubsub client = clients.get(key);
+    if (client != null) {
+      return client;
+    }
 
-        // Obtain this from the "APIs & auth" -> "Credentials"
-        // section in the Google Developers Console:
-        // https://console.developers.google.com/
-        // (and put the e-mail address into your system property obviously)
-        .setServiceAccountId(serviceAccountEmail)
+    ApacheHttpTransport transport = getTransport(settings);
+    // Each client has its own token, retry budget and circuit breaker, whose series are told
+    // apart by the account, or by the endpoint for an emulator, which ignores the account.
+    Metrics metrics =
+        Metrics.getDefault().withLabel("account", rootUrl == null ? serviceAccountEmail : rootUrl);
+    Credential credential;
+    if (rootUrl != null) {
+      // An emulator doesn't check the token, a fixed one is sent and never refreshed.
+      credential = new Credential(BearerToken.authorizationHeaderAccessMethod())
+          .setAccessToken(EMULATOR_ACCESS_TOKEN);
+    } else {
+      credential = new GoogleCredential.Builder()
+          .setTransport(transport)
+          .setJsonFactory(JSON_FACTORY)
+          .setServiceAccountScopes(PubsubScopes.all())
 
-        // Download this file from "APIs & auth" -> "Credentials"
-        // section in the Google Developers Console:
-        // https://console.developers.google.com/
-        .setServiceAccountPrivateKeyFromP12File(new File(privateKeyFilePath))
-        .build();
+          // Obtain this from the "APIs & auth" -> "Credentials"
+          // section in the Google Developers Console:
+          // https://console.developers.google.com/
+          // (and put the e-mail address into your system property obviously)
+          .setServiceAccountId(serviceAccountEmail)
 
+          // Download this file from "APIs & auth" -> "Credentials"
+          // section in the Google Developers Console:
+          // https://console.developers.google.com/
+          .setServiceAccountPrivateKeyFromP12File(new File(privateKeyFilePath))
+          .build();
+      new TokenRefresher(credential, settings.getTokenRefreshMarginSeconds(), metrics).start();
+    }
 
     // Please use custom HttpRequestInitializer for automatic
     // retry upon failures.  We provide a simple reference
     // implementation in the "Retry Handling" section.
     HttpRequestInitializer initializer =
-        new RetryHttpInitializerWrapper(credential);
-    return new Pubsub.Builder(transport, JSON_FACTORY, initializer)
-        .setApplicationName("PubSub Example")
-        .build();
+        new RetryHttpInitializerWrapper(credential, metrics);
+    Pubsub.Builder builder = new Pubsub.Builder(transport, JSON_FACTORY, initializer)
+        .setApplicationName("PubSub Example");
+    if (rootUrl != null) {
+      builder.setRootUrl(rootUrl.endsWith("/") ? rootUrl : rootUrl + "/");
+      LOG.info("Using the Pub/Sub API at " + rootUrl);
+    }
+    client = builder.build();
+    clients.put(key, client);
+    return client;
+  }
+
+  /**
+   * Returns the transport shared by the whole process, trusting Google's certificates, with a
+   * bounded pool of keep-alive connections.
+   */
+  static synchronized ApacheHttpTransport getTransport(Settings settings)
+      throws IOException, GeneralSecurityException {
+    if (sharedTransport != null) {
+      return sharedTransport;
+    }
+    ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+        .trustCertificates(GoogleUtils.getCertificateTrustStore());
+    HttpParams params = builder.getHttpParams();
+    ConnManagerParams.setMaxTotalConnections(params, settings.getHttpMaxConnections());
+    ConnManagerParams.setMaxConnectionsPerRoute(
+        params, new ConnPerRouteBean(settings.getHttpMaxConnectionsPerRoute()));
+    ApacheHttpTransport transport = builder.build();
+
+    final ClientConnectionManager connections = transport.getHttpClient().getConnectionManager();
+    final long idleSeconds = settings.getHttpIdleConnectionSeconds();
+    // Closes connections the server may have dropped, before a request picks them up.
+    ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("connection-evictor").setDaemon(true).build());
+    evictor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        connections.closeExpiredConnections();
+        connections.closeIdleConnections(idleSeconds, TimeUnit.SECONDS);
+      }
+    }, idleSeconds, idleSeconds, TimeUnit.SECONDS);
+
+    if (connections instanceof ThreadSafeClientConnManager) {
+      Metrics.getDefault().gauge("emm_http_pooled_connections",
+          "Open connections in the HTTP connection pool.", new Metrics.Gauge() {
+            public double value() {
+              return ((ThreadSafeClientConnManager) connections).getConnectionsInPool();
+            }
+          });
+    }
+    LOG.info("Created HTTP transport with up to " + settings.getHttpMaxConnectionsPerRoute()
+        + " connections per host and " + settings.getHttpMaxConnections() + " in total");
+    sharedTransport = transport;
+    return transport;
   }
-}
\ No newline at end of file
+}
@@ -15,11 +15,24 @@
  */
 package com.google.android.work.emmnotifications;
 
+import com.google.common.base.Throwables;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import static com.google.api.client.util.Preconditions.checkArgument;
@@ -28,6 +41,10 @@ import static com.google.api.client.util.Preconditions.checkNotNull;
 /**
  * Loads settings from settings.properties or the file specified in DEVELOPER_CONSOLE_SETTINGS
  * env variable.
+ *
+ * <p>Settings are immutable. With a {@link SettingsWatcher}, a changed file is loaded into new
+ * settings which replace the current ones. The keys which can be applied while running are
+ * package-private, for the components to register their listeners with.
  */
 public class Settings {
   private static final String EMAIL = "ServiceAccountEmail";
@@ -39,6 +56,120 @@ public class Settings {
   
   private static final String PORT = "Port";
 
+  // Optional tuning of the push worker pool, see WorkerPool.
+  private static final String WORKER_POOL_TYPE = "WorkerPoolType";
+  static final String WORKER_THREADS = "WorkerThreads";
+  private static final String WORKER_QUEUE_CAPACITY = "WorkerQueueCapacity";
+  private static final String WORKER_SHED_POLICY = "WorkerShedPolicy";
+
+  // Optional settings of the subscription and of PullSubscriber.
+  private static final String ACK_DEADLINE_SECONDS = "AckDeadlineSeconds";
+  private static final String PULL_CONCURRENCY = "PullConcurrency";
+  private static final String PULL_MAX_MESSAGES = "PullMaxMessages";
+  private static final String ACK_BATCH_SIZE = "AckBatchSize";
+  private static final String ACK_FLUSH_MILLIS = "AckFlushMillis";
+
+  // Optional journal of received notifications, see Journal.
+  private static final String JOURNAL_DIRECTORY = "JournalDirectory";
+  private static final String JOURNAL_SEGMENT_SIZE_MB = "JournalSegmentSizeMb";
+  private static final String JOURNAL_RETENTION_HOURS = "JournalRetentionHours";
+  private static final String JOURNAL_COMMIT_DELAY_MICROS = "JournalCommitDelayMicros";
+
+  // Optional deduplication of redelivered messages, see MessageDeduplicator.
+  private static final String DEDUPE_CAPACITY = "DedupeCapacity";
+  private static final String DEDUPE_TTL_MINUTES = "DedupeTtlMinutes";
+  private static final String DEDUPE_SNAPSHOT_FILE = "DedupeSnapshotFile";
+  private static final String DEDUPE_SNAPSHOT_INTERVAL_SECONDS = "DedupeSnapshotIntervalSeconds";
+
+  // Optional delivery of events to listeners, see EventDispatcher.
+  private static final String NOTIFICATION_LISTENERS = "NotificationListeners";
+  private static final String DISPATCH_PARTITIONS = "DispatchPartitions";
+  private static final String DISPATCH_QUEUE_CAPACITY = "DispatchQueueCapacity";
+  private static final String DISPATCH_AWAIT_LISTENERS = "DispatchAwaitListeners";
+
+  // Optional asynchronous notification log, see NotificationLog.
+  private static final String NOTIFICATION_LOG_FILE = "NotificationLogFile";
+  private static final String NOTIFICATION_LOG_FILE_SIZE_MB = "NotificationLogFileSizeMb";
+  private static final String NOTIFICATION_LOG_FILE_COUNT = "NotificationLogFileCount";
+  private static final String NOTIFICATION_LOG_QUEUE_CAPACITY = "NotificationLogQueueCapacity";
+  static final String NOTIFICATION_LOG_PAYLOAD_SAMPLE_RATE =
+      "NotificationLogPayloadSampleRate";
+
+  // Optional Pub/Sub endpoint other than Google's, such as PubsubEmulator.
+  private static final String PUBSUB_ROOT_URL = "PubsubRootUrl";
+
+  // Optional tuning of the HTTP transport, see ServiceAccountConfiguration.
+  private static final String HTTP_MAX_CONNECTIONS = "HttpMaxConnections";
+  private static final String HTTP_MAX_CONNECTIONS_PER_ROUTE = "HttpMaxConnectionsPerRoute";
+  private static final String HTTP_IDLE_CONNECTION_SECONDS = "HttpIdleConnectionSeconds";
+  private static final String TOKEN_REFRESH_MARGIN_SECONDS = "TokenRefreshMarginSeconds";
+
+  // Optional hosting of several subscriptions in one process. Each key in the list has its own
+  // settings, given as "Subscription.<key>.<setting>" and defaulting to the top-level ones.
+  private static final String SUBSCRIPTIONS = "Subscriptions";
+  private static final String SUBSCRIPTION_PREFIX = "Subscription.";
+  private static final String PUSH_PATH = "PushPath";
+
+  // Optional startup behavior of PushSubscriber, see SubscriptionVerifier.
+  private static final String STARTUP_MODE = "StartupMode";
+  private static final String SUBSCRIPTION_CACHE_FILE = "SubscriptionCacheFile";
+  private static final String SUBSCRIPTION_CACHE_MAX_AGE_HOURS = "SubscriptionCacheMaxAgeHours";
+
+  // Optional choice and tuning of the server receiving pushes, see Ingress.
+  private static final String INGRESS_TYPE = "IngressType";
+  private static final String INGRESS_BACKLOG = "IngressBacklog";
+  private static final String INGRESS_MAX_CONNECTIONS = "IngressMaxConnections";
+  private static final String INGRESS_MAX_REQUEST_KB = "IngressMaxRequestKb";
+  static final String INGRESS_KEEP_ALIVE_SECONDS = "IngressKeepAliveSeconds";
+  private static final String INGRESS_BUFFER_KB = "IngressBufferKb";
+  private static final String INGRESS_LISTENERS = "IngressListeners";
+  private static final String INGRESS_REUSE_PORT = "IngressReusePort";
+  static final String SHUTDOWN_DRAIN_SECONDS = "ShutdownDrainSeconds";
+
+  // Optional recording of the push requests for PushReplayer, see PushCapture.
+  private static final String CAPTURE_FILE = "CaptureFile";
+  private static final String CAPTURE_MAX_MB = "CaptureMaxMb";
+  private static final String CAPTURE_QUEUE_CAPACITY = "CaptureQueueCapacity";
+
+  // Optional view of the product states of each enterprise, see ProductStateView.
+  private static final String PRODUCT_STATE_ENABLED = "ProductStateEnabled";
+  private static final String PRODUCT_STATE_SNAPSHOT_FILE = "ProductStateSnapshotFile";
+  private static final String PRODUCT_STATE_SNAPSHOT_INTERVAL_SECONDS =
+      "ProductStateSnapshotIntervalSeconds";
+
+  // Optional per-enterprise admission control and fair scheduling of pushes, see
+  // EnterpriseRateLimiter and FairScheduler.
+  static final String ENTERPRISE_RATE_LIMIT = "EnterpriseRateLimit";
+  static final String ENTERPRISE_RATE_LIMITS = "EnterpriseRateLimits";
+  static final String ENTERPRISE_BURST_SECONDS = "EnterpriseBurstSeconds";
+  static final String ENTERPRISE_WEIGHTS = "EnterpriseWeights";
+  private static final String FAIR_SCHEDULER_THREADS = "FairSchedulerThreads";
+  private static final String FAIR_SCHEDULER_QUEUE_CAPACITY = "FairSchedulerQueueCapacity";
+
+  // Optional windowed aggregation of the install failures, see InstallFailureAggregator.
+  private static final String INSTALL_FAILURE_AGGREGATION_ENABLED =
+      "InstallFailureAggregationEnabled";
+  private static final String INSTALL_FAILURE_BUCKET_SECONDS = "InstallFailureBucketSeconds";
+  private static final String INSTALL_FAILURE_WINDOW_BUCKETS = "InstallFailureWindowBuckets";
+  private static final String INSTALL_FAILURE_TOP_K = "InstallFailureTopK";
+
+  // Optional indexed history of the events received, see EventStore.
+  private static final String EVENT_STORE_DIRECTORY = "EventStoreDirectory";
+  private static final String EVENT_STORE_SEGMENT_MINUTES = "EventStoreSegmentMinutes";
+  private static final String EVENT_STORE_RETENTION_HOURS = "EventStoreRetentionHours";
+  private static final String EVENT_STORE_BLOCK_KB = "EventStoreBlockKb";
+  private static final String EVENT_STORE_FLUSH_SECONDS = "EventStoreFlushSeconds";
+
+  // Whether changes of the settings file are applied while running, see SettingsWatcher.
+  private static final String SETTINGS_WATCH_ENABLED = "SettingsWatchEnabled";
+
+  // Optional authentication of the pushes, see PushAuthenticator.
+  static final String PUSH_AUTH_TOKENS = "PushAuthTokens";
+  private static final String PUSH_AUTH_AUDIENCE = "PushAuthAudience";
+  private static final String PUSH_AUTH_EMAILS = "PushAuthEmails";
+  private static final String PUSH_AUTH_ISSUERS = "PushAuthIssuers";
+  private static final String PUSH_AUTH_CERTS_URL = "PushAuthCertsUrl";
+
   private static final String EMAIL_DEFAULT = "changeme@gserviceaccount.com";
   private static final String KEY_DEFAULT = "/path/to/key.p12";
   private static final String TOPIC_NAME_DEFAULT =
@@ -48,10 +179,57 @@ public class Settings {
   private static final String PROJECT_NAME_DEFAULT = "sample-project-name";
   private static final String PUSH_ENDPOINT_DEFAULT = "sample.push.endpoint";
 
+  private static final int WORKER_THREADS_DEFAULT = Runtime.getRuntime().availableProcessors();
+  private static final int WORKER_QUEUE_CAPACITY_DEFAULT = 256;
+  private static final int ACK_DEADLINE_SECONDS_DEFAULT = 600;
+  private static final int PULL_CONCURRENCY_DEFAULT = 4;
+  private static final int PULL_MAX_MESSAGES_DEFAULT = 100;
+  private static final int ACK_BATCH_SIZE_DEFAULT = 1000;
+  private static final int ACK_FLUSH_MILLIS_DEFAULT = 100;
+  private static final int JOURNAL_SEGMENT_SIZE_MB_DEFAULT = 64;
+  private static final int JOURNAL_RETENTION_HOURS_DEFAULT = 72;
+  private static final int JOURNAL_COMMIT_DELAY_MICROS_DEFAULT = 0;
+  private static final int DEDUPE_CAPACITY_DEFAULT = 100000;
+  private static final int DEDUPE_TTL_MINUTES_DEFAULT = 60;
+  private static final int DEDUPE_SNAPSHOT_INTERVAL_SECONDS_DEFAULT = 60;
+  private static final int DISPATCH_PARTITIONS_DEFAULT = Runtime.getRuntime().availableProcessors();
+  private static final int DISPATCH_QUEUE_CAPACITY_DEFAULT = 1024;
+  private static final int NOTIFICATION_LOG_FILE_SIZE_MB_DEFAULT = 64;
+  private static final int NOTIFICATION_LOG_FILE_COUNT_DEFAULT = 10;
+  private static final int NOTIFICATION_LOG_QUEUE_CAPACITY_DEFAULT = 8192;
+  private static final double NOTIFICATION_LOG_PAYLOAD_SAMPLE_RATE_DEFAULT = 0.01;
+  private static final int HTTP_MAX_CONNECTIONS_DEFAULT = 200;
+  private static final int HTTP_MAX_CONNECTIONS_PER_ROUTE_DEFAULT = 50;
+  private static final int HTTP_IDLE_CONNECTION_SECONDS_DEFAULT = 60;
+  private static final int TOKEN_REFRESH_MARGIN_SECONDS_DEFAULT = 300;
+  private static final int SUBSCRIPTION_CACHE_MAX_AGE_HOURS_DEFAULT = 24;
+  private static final int INGRESS_BACKLOG_DEFAULT = 0;
+  private static final int INGRESS_MAX_CONNECTIONS_DEFAULT = 10000;
+  private static final int INGRESS_MAX_REQUEST_KB_DEFAULT = 1024;
+  private static final int INGRESS_KEEP_ALIVE_SECONDS_DEFAULT = 60;
+  private static final int INGRESS_BUFFER_KB_DEFAULT = 16;
+  private static final int INGRESS_LISTENERS_DEFAULT = 1;
+  private static final int SHUTDOWN_DRAIN_SECONDS_DEFAULT = 30;
+  private static final int CAPTURE_MAX_MB_DEFAULT = 1024;
+  private static final int CAPTURE_QUEUE_CAPACITY_DEFAULT = 8192;
+  private static final int PRODUCT_STATE_SNAPSHOT_INTERVAL_SECONDS_DEFAULT = 60;
+  private static final double ENTERPRISE_RATE_LIMIT_DEFAULT = 0;
+  private static final double ENTERPRISE_BURST_SECONDS_DEFAULT = 1;
+  private static final int FAIR_SCHEDULER_THREADS_DEFAULT = 0;
+  private static final int FAIR_SCHEDULER_QUEUE_CAPACITY_DEFAULT = 1024;
+  private static final int INSTALL_FAILURE_BUCKET_SECONDS_DEFAULT = 60;
+  private static final int INSTALL_FAILURE_WINDOW_BUCKETS_DEFAULT = 120;
+  private static final int INSTALL_FAILURE_TOP_K_DEFAULT = 100;
+  private static final int EVENT_STORE_SEGMENT_MINUTES_DEFAULT = 60;
+  private static final int EVENT_STORE_RETENTION_HOURS_DEFAULT = 168;
+  private static final int EVENT_STORE_BLOCK_KB_DEFAULT = 64;
+  private static final int EVENT_STORE_FLUSH_SECONDS_DEFAULT = 5;
+
   private static final Logger LOG = Logger.getLogger(Settings.class.getName());
   public static final String SETTINGS_ENV_VAR_NAME = "DEVELOPER_CONSOLE_SETTINGS";
 
-  private static Settings settings = null;
+  // Replaced as a whole by SettingsWatcher when the file changes.
+  private static volatile Settings settings = null;
 
   // See https://cloud.google.com/pubsub/subscriber for more details
   private final String topicName;
@@ -79,6 +257,15 @@ public class Settings {
   // Port on which subscriber will be listening for notifications.
   private final int port;
 
+  // All properties loaded from the settings file, used for the optional settings.
+  private final Properties properties;
+
+  // Path of the settings file, used in error messages.
+  private final String filePath;
+
+  // Key of the subscription in the Subscriptions list, or null for the top-level settings.
+  private final String subscriptionKey;
+
   private Settings(
       String serviceAccountEmail,
       String serviceAccountP12KeyPath,
@@ -86,7 +273,10 @@ public class Settings {
       String subscriptionName,
       String projectName,
       String pushEndpoint,
-      int port) {
+      int port,
+      Properties properties,
+      String filePath,
+      String subscriptionKey) {
     this.serviceAccountEmail = serviceAccountEmail;
     this.serviceAccountP12KeyPath = serviceAccountP12KeyPath;
     this.topicName = topicName;
@@ -94,27 +284,94 @@ public class Settings {
     this.projectName = projectName;
     this.pushEndpoint = pushEndpoint;
     this.port = port;
+    this.properties = properties;
+    this.filePath = filePath;
+    this.subscriptionKey = subscriptionKey;
   }
 
   /**
-   * Returns a singleton instance of Settings
+   * Returns the current settings, loading them on the first call. When a {@link SettingsWatcher}
+   * is running, this is the last valid version of the file.
    * @throws IOException
    */
   public static Settings getSettings() throws IOException {
-    if (settings != null) {
-      return settings;
+    Settings current = settings;
+    if (current != null) {
+      return current;
     }
+    synchronized (Settings.class) {
+      if (settings == null) {
+        String settingsFilePath = "settings.properties";
 
-    String settingsFilePath = "settings.properties";
-
-    String settingsEnvVariable = null;
-    if ((settingsEnvVariable = System.getenv(SETTINGS_ENV_VAR_NAME)) != null) {
-      settingsFilePath = settingsEnvVariable;
+        String settingsEnvVariable = null;
+        if ((settingsEnvVariable = System.getenv(SETTINGS_ENV_VAR_NAME)) != null) {
+          settingsFilePath = settingsEnvVariable;
+        }
+        settings = load(settingsFilePath);
+      }
+      return settings;
     }
+  }
 
+  /**
+   * Reads and validates the settings file.
+   *
+   * @throws IllegalArgumentException if a setting is missing or malformed, or if subscriptions
+   *     share a push path
+   */
+  public static Settings load(String settingsFilePath) throws IOException {
     Properties properties = new Properties();
-    properties.load(new InputStreamReader(new FileInputStream(new File(settingsFilePath))));
+    InputStreamReader reader =
+        new InputStreamReader(new FileInputStream(new File(settingsFilePath)));
+    try {
+      properties.load(reader);
+    } finally {
+      reader.close();
+    }
+    Settings loaded = fromProperties(properties, settingsFilePath, null);
+    Map<String, String> keysByPushPath = new HashMap<String, String>();
+    for (Settings subscription : loaded.getSubscriptions()) {
+      subscription.validate();
+      String other = keysByPushPath.put(subscription.getPushPath(), subscription.subscriptionKey);
+      if (other != null) {
+        throw new IllegalArgumentException(String.format(
+            "Subscriptions %s and %s have the same push path %s in %s", other,
+            subscription.subscriptionKey, subscription.getPushPath(), settingsFilePath));
+      }
+    }
+    return loaded;
+  }
 
+  /** Makes {@link #getSettings()} return these settings from now on. */
+  static void replace(Settings replacement) {
+    settings = checkNotNull(replacement);
+  }
+
+  /**
+   * Reads every setting, so that a malformed value is reported when the file is loaded rather
+   * than when the setting is first used.
+   */
+  private void validate() {
+    for (Method method : Settings.class.getMethods()) {
+      String name = method.getName();
+      if (method.getDeclaringClass() == Settings.class
+          && !Modifier.isStatic(method.getModifiers())
+          && method.getParameterTypes().length == 0
+          && (name.startsWith("get") || name.startsWith("is"))) {
+        try {
+          method.invoke(this);
+        } catch (InvocationTargetException e) {
+          Throwables.propagateIfPossible(e.getCause());
+          throw new IllegalArgumentException(e.getCause());
+        } catch (IllegalAccessException e) {
+          throw new AssertionError(e);
+        }
+      }
+    }
+  }
+
+  private static Settings fromProperties(
+      Properties properties, String settingsFilePath, String subscriptionKey) {
     String email = properties.getProperty(EMAIL);
     String key = properties.getProperty(KEY);
     String topicName = properties.getProperty(TOPIC_NAME);
@@ -143,14 +400,90 @@ public class Settings {
       throw new IllegalArgumentException("Port must be an integer, but was: " + portString, e);
     }
     
-    return (settings = new Settings(
+    return new Settings(
         email,
         key,
         topicName,
         subscriptionName,
         projectName,
         pushEndpoint,
-        port));
+        port,
+        properties,
+        settingsFilePath,
+        subscriptionKey);
+  }
+
+  /**
+   * Returns the settings of each subscription listed in {@code Subscriptions}, or only these
+   * settings if there is no such list.
+   *
+   * <p>A subscription's settings are the top-level ones overridden by its
+   * {@code Subscription.<key>.} prefixed ones. Its push path defaults to {@code /<key>}, and
+   * the journal, dedupe snapshot, subscription cache and product state snapshot of the top-level
+   * settings are suffixed with the key so that the subscriptions don't share files.
+   */
+  public List<Settings> getSubscriptions() {
+    List<String> keys = getListProperty(SUBSCRIPTIONS);
+    if (keys.isEmpty()) {
+      return Collections.singletonList(this);
+    }
+    List<Settings> subscriptions = new ArrayList<Settings>();
+    for (String key : keys) {
+      Properties merged = new Properties();
+      for (String name : properties.stringPropertyNames()) {
+        if (!name.startsWith(SUBSCRIPTION_PREFIX) && !name.equals(SUBSCRIPTIONS)) {
+          merged.setProperty(name, properties.getProperty(name));
+        }
+      }
+      merged.setProperty(PUSH_PATH, "/" + key);
+      suffixProperty(merged, JOURNAL_DIRECTORY, File.separator + key);
+      suffixProperty(merged, DEDUPE_SNAPSHOT_FILE, "." + key);
+      suffixProperty(merged, SUBSCRIPTION_CACHE_FILE, "." + key);
+      suffixProperty(merged, PRODUCT_STATE_SNAPSHOT_FILE, "." + key);
+      suffixProperty(merged, EVENT_STORE_DIRECTORY, File.separator + key);
+
+      String prefix = SUBSCRIPTION_PREFIX + key + ".";
+      for (String name : properties.stringPropertyNames()) {
+        if (name.startsWith(prefix)) {
+          merged.setProperty(name.substring(prefix.length()), properties.getProperty(name));
+        }
+      }
+      subscriptions.add(fromProperties(merged, filePath + " (subscription " + key + ")", key));
+    }
+    return subscriptions;
+  }
+
+  /** Returns the settings of the subscription with this key, or null if there is none. */
+  Settings getSubscription(String key) {
+    for (Settings subscription : getSubscriptions()) {
+      if (key == null ? subscription.subscriptionKey == null
+          : key.equals(subscription.subscriptionKey)) {
+        return subscription;
+      }
+    }
+    return null;
+  }
+
+  /** Path of the file the settings were loaded from. */
+  String getFilePath() {
+    return filePath;
+  }
+
+  /** Names of the settings set in the file. */
+  Set<String> getPropertyNames() {
+    return properties.stringPropertyNames();
+  }
+
+  /** Returns the raw value of a setting, or null if it is not set. */
+  String getProperty(String key) {
+    return properties.getProperty(key);
+  }
+
+  private static void suffixProperty(Properties properties, String key, String suffix) {
+    String value = properties.getProperty(key);
+    if (value != null && !value.trim().isEmpty()) {
+      properties.setProperty(key, value.trim() + suffix);
+    }
   }
 
   private static void verifyVariable(
@@ -191,4 +524,427 @@ public class Settings {
   public int getPort() {
     return port;
   }
+
+  /** Key of the subscription in the Subscriptions list, or null for the top-level settings. */
+  public String getSubscriptionKey() {
+    return subscriptionKey;
+  }
+
+  /** Path of the push endpoint on the subscriber's HTTP server. */
+  public String getPushPath() {
+    String path = getStringProperty(PUSH_PATH);
+    return path == null ? "/" : path;
+  }
+
+  public WorkerPool.Type getWorkerPoolType() {
+    return getEnumProperty(WORKER_POOL_TYPE, WorkerPool.Type.class, WorkerPool.Type.FIXED);
+  }
+
+  public int getWorkerThreads() {
+    return getIntProperty(WORKER_THREADS, WORKER_THREADS_DEFAULT);
+  }
+
+  public int getWorkerQueueCapacity() {
+    return getIntProperty(WORKER_QUEUE_CAPACITY, WORKER_QUEUE_CAPACITY_DEFAULT);
+  }
+
+  public WorkerPool.ShedPolicy getWorkerShedPolicy() {
+    return getEnumProperty(
+        WORKER_SHED_POLICY, WorkerPool.ShedPolicy.class, WorkerPool.ShedPolicy.REJECT);
+  }
+
+  public int getAckDeadlineSeconds() {
+    return getIntProperty(ACK_DEADLINE_SECONDS, ACK_DEADLINE_SECONDS_DEFAULT);
+  }
+
+  public int getPullConcurrency() {
+    return getIntProperty(PULL_CONCURRENCY, PULL_CONCURRENCY_DEFAULT);
+  }
+
+  public int getPullMaxMessages() {
+    return getIntProperty(PULL_MAX_MESSAGES, PULL_MAX_MESSAGES_DEFAULT);
+  }
+
+  public int getAckBatchSize() {
+    return getIntProperty(ACK_BATCH_SIZE, ACK_BATCH_SIZE_DEFAULT);
+  }
+
+  public int getAckFlushMillis() {
+    return getIntProperty(ACK_FLUSH_MILLIS, ACK_FLUSH_MILLIS_DEFAULT);
+  }
+
+  /** Directory of the journal, or null if received notifications are not journaled. */
+  public String getJournalDirectory() {
+    return getStringProperty(JOURNAL_DIRECTORY);
+  }
+
+  public int getJournalSegmentSizeMb() {
+    return getIntProperty(JOURNAL_SEGMENT_SIZE_MB, JOURNAL_SEGMENT_SIZE_MB_DEFAULT);
+  }
+
+  public int getJournalRetentionHours() {
+    return getIntProperty(JOURNAL_RETENTION_HOURS, JOURNAL_RETENTION_HOURS_DEFAULT);
+  }
+
+  public int getJournalCommitDelayMicros() {
+    return getIntProperty(JOURNAL_COMMIT_DELAY_MICROS, JOURNAL_COMMIT_DELAY_MICROS_DEFAULT);
+  }
+
+  /** Number of message IDs remembered for deduplication, 0 disables it. */
+  public int getDedupeCapacity() {
+    return getIntProperty(DEDUPE_CAPACITY, DEDUPE_CAPACITY_DEFAULT);
+  }
+
+  public int getDedupeTtlMinutes() {
+    return getIntProperty(DEDUPE_TTL_MINUTES, DEDUPE_TTL_MINUTES_DEFAULT);
+  }
+
+  /** File the dedupe cache is saved to and warmed from, or null. */
+  public String getDedupeSnapshotFile() {
+    return getStringProperty(DEDUPE_SNAPSHOT_FILE);
+  }
+
+  public int getDedupeSnapshotIntervalSeconds() {
+    return getIntProperty(
+        DEDUPE_SNAPSHOT_INTERVAL_SECONDS, DEDUPE_SNAPSHOT_INTERVAL_SECONDS_DEFAULT);
+  }
+
+  /** Class names of the NotificationListeners to create, each needs a no-arg constructor. */
+  public List<String> getNotificationListeners() {
+    return getListProperty(NOTIFICATION_LISTENERS);
+  }
+
+  public int getDispatchPartitions() {
+    return getIntProperty(DISPATCH_PARTITIONS, DISPATCH_PARTITIONS_DEFAULT);
+  }
+
+  public int getDispatchQueueCapacity() {
+    return getIntProperty(DISPATCH_QUEUE_CAPACITY, DISPATCH_QUEUE_CAPACITY_DEFAULT);
+  }
+
+  /** Whether a message is only acknowledged once the listeners ran without failing. */
+  public boolean isDispatchAwaitListeners() {
+    return getBooleanProperty(DISPATCH_AWAIT_LISTENERS, false);
+  }
+
+  /**
+   * Pattern of the notification log files, as for {@link java.util.logging.FileHandler}, or null
+   * to log notifications synchronously through java.util.logging instead.
+   */
+  public String getNotificationLogFile() {
+    return getStringProperty(NOTIFICATION_LOG_FILE);
+  }
+
+  public int getNotificationLogFileSizeMb() {
+    return getIntProperty(NOTIFICATION_LOG_FILE_SIZE_MB, NOTIFICATION_LOG_FILE_SIZE_MB_DEFAULT);
+  }
+
+  public int getNotificationLogFileCount() {
+    return getIntProperty(NOTIFICATION_LOG_FILE_COUNT, NOTIFICATION_LOG_FILE_COUNT_DEFAULT);
+  }
+
+  public int getNotificationLogQueueCapacity() {
+    return getIntProperty(
+        NOTIFICATION_LOG_QUEUE_CAPACITY, NOTIFICATION_LOG_QUEUE_CAPACITY_DEFAULT);
+  }
+
+  /** Fraction of the notifications whose raw payload is logged, between 0 and 1. */
+  public double getNotificationLogPayloadSampleRate() {
+    return getDoubleProperty(
+        NOTIFICATION_LOG_PAYLOAD_SAMPLE_RATE, NOTIFICATION_LOG_PAYLOAD_SAMPLE_RATE_DEFAULT);
+  }
+
+  public int getHttpMaxConnections() {
+    return getIntProperty(HTTP_MAX_CONNECTIONS, HTTP_MAX_CONNECTIONS_DEFAULT);
+  }
+
+  public int getHttpMaxConnectionsPerRoute() {
+    return getIntProperty(HTTP_MAX_CONNECTIONS_PER_ROUTE, HTTP_MAX_CONNECTIONS_PER_ROUTE_DEFAULT);
+  }
+
+  public int getHttpIdleConnectionSeconds() {
+    return getIntProperty(HTTP_IDLE_CONNECTION_SECONDS, HTTP_IDLE_CONNECTION_SECONDS_DEFAULT);
+  }
+
+  /** How long before its expiry the access token is renewed in the background. */
+  public int getTokenRefreshMarginSeconds() {
+    return getIntProperty(TOKEN_REFRESH_MARGIN_SECONDS, TOKEN_REFRESH_MARGIN_SECONDS_DEFAULT);
+  }
+
+  public SubscriptionVerifier.StartupMode getStartupMode() {
+    return getEnumProperty(STARTUP_MODE, SubscriptionVerifier.StartupMode.class,
+        SubscriptionVerifier.StartupMode.BLOCKING);
+  }
+
+  /** File recording the last verified subscription, or null to verify it on every start. */
+  public String getSubscriptionCacheFile() {
+    return getStringProperty(SUBSCRIPTION_CACHE_FILE);
+  }
+
+  public int getSubscriptionCacheMaxAgeHours() {
+    return getIntProperty(
+        SUBSCRIPTION_CACHE_MAX_AGE_HOURS, SUBSCRIPTION_CACHE_MAX_AGE_HOURS_DEFAULT);
+  }
+
+  public Ingress.Type getIngressType() {
+    return getEnumProperty(INGRESS_TYPE, Ingress.Type.class, Ingress.Type.JDK);
+  }
+
+  /** Maximum number of connections waiting to be accepted, 0 for the system default. */
+  public int getIngressBacklog() {
+    return getIntProperty(INGRESS_BACKLOG, INGRESS_BACKLOG_DEFAULT);
+  }
+
+  public int getIngressMaxConnections() {
+    return getIntProperty(INGRESS_MAX_CONNECTIONS, INGRESS_MAX_CONNECTIONS_DEFAULT);
+  }
+
+  public int getIngressMaxRequestKb() {
+    return getIntProperty(INGRESS_MAX_REQUEST_KB, INGRESS_MAX_REQUEST_KB_DEFAULT);
+  }
+
+  public int getIngressKeepAliveSeconds() {
+    return getIntProperty(INGRESS_KEEP_ALIVE_SECONDS, INGRESS_KEEP_ALIVE_SECONDS_DEFAULT);
+  }
+
+  /** Size of the NIO ingress' read buffers, which also bounds the size of request headers. */
+  public int getIngressBufferKb() {
+    return getIntProperty(INGRESS_BUFFER_KB, INGRESS_BUFFER_KB_DEFAULT);
+  }
+
+  /** Number of NIO ingress sockets and selector threads sharing the port. */
+  public int getIngressListeners() {
+    return getIntProperty(INGRESS_LISTENERS, INGRESS_LISTENERS_DEFAULT);
+  }
+
+  /** Whether the NIO ingress binds with SO_REUSEPORT, so that other sockets can share the port. */
+  public boolean isIngressReusePort() {
+    return getBooleanProperty(INGRESS_REUSE_PORT, false);
+  }
+
+  /** How long a shutdown waits for the pushes being handled to be answered. */
+  public int getShutdownDrainSeconds() {
+    return getIntProperty(SHUTDOWN_DRAIN_SECONDS, SHUTDOWN_DRAIN_SECONDS_DEFAULT);
+  }
+
+  /** File to record the push requests to, or null to not record them. */
+  public String getCaptureFile() {
+    return getStringProperty(CAPTURE_FILE);
+  }
+
+  public int getCaptureMaxMb() {
+    return getIntProperty(CAPTURE_MAX_MB, CAPTURE_MAX_MB_DEFAULT);
+  }
+
+  public int getCaptureQueueCapacity() {
+    return getIntProperty(CAPTURE_QUEUE_CAPACITY, CAPTURE_QUEUE_CAPACITY_DEFAULT);
+  }
+
+  public boolean isProductStateEnabled() {
+    return getBooleanProperty(PRODUCT_STATE_ENABLED, false);
+  }
+
+  /** File to keep the product state view in across restarts, or null to not keep it. */
+  public String getProductStateSnapshotFile() {
+    return getStringProperty(PRODUCT_STATE_SNAPSHOT_FILE);
+  }
+
+  public int getProductStateSnapshotIntervalSeconds() {
+    return getIntProperty(
+        PRODUCT_STATE_SNAPSHOT_INTERVAL_SECONDS, PRODUCT_STATE_SNAPSHOT_INTERVAL_SECONDS_DEFAULT);
+  }
+
+  /** Pushes per second admitted for each enterprise, 0 for no limit. */
+  public double getEnterpriseRateLimit() {
+    return getDoubleProperty(ENTERPRISE_RATE_LIMIT, ENTERPRISE_RATE_LIMIT_DEFAULT);
+  }
+
+  /** Rate limits overriding the default one, by enterprise ID. */
+  public Map<String, Double> getEnterpriseRateLimits() {
+    return getDoubleMapProperty(ENTERPRISE_RATE_LIMITS);
+  }
+
+  public double getEnterpriseBurstSeconds() {
+    return getDoubleProperty(ENTERPRISE_BURST_SECONDS, ENTERPRISE_BURST_SECONDS_DEFAULT);
+  }
+
+  /** Shares of the processing threads of the enterprises whose share isn't 1. */
+  public Map<String, Double> getEnterpriseWeights() {
+    return getDoubleMapProperty(ENTERPRISE_WEIGHTS);
+  }
+
+  /** Threads processing the pushes in fair order between enterprises, 0 to not reorder them. */
+  public int getFairSchedulerThreads() {
+    return getIntProperty(FAIR_SCHEDULER_THREADS, FAIR_SCHEDULER_THREADS_DEFAULT);
+  }
+
+  public int getFairSchedulerQueueCapacity() {
+    return getIntProperty(FAIR_SCHEDULER_QUEUE_CAPACITY, FAIR_SCHEDULER_QUEUE_CAPACITY_DEFAULT);
+  }
+
+  public boolean isInstallFailureAggregationEnabled() {
+    return getBooleanProperty(INSTALL_FAILURE_AGGREGATION_ENABLED, false);
+  }
+
+  public int getInstallFailureBucketSeconds() {
+    return getIntProperty(INSTALL_FAILURE_BUCKET_SECONDS, INSTALL_FAILURE_BUCKET_SECONDS_DEFAULT);
+  }
+
+  public int getInstallFailureWindowBuckets() {
+    return getIntProperty(INSTALL_FAILURE_WINDOW_BUCKETS, INSTALL_FAILURE_WINDOW_BUCKETS_DEFAULT);
+  }
+
+  public int getInstallFailureTopK() {
+    return getIntProperty(INSTALL_FAILURE_TOP_K, INSTALL_FAILURE_TOP_K_DEFAULT);
+  }
+
+  /** Directory of the event store, or null if the events are not stored. */
+  public String getEventStoreDirectory() {
+    return getStringProperty(EVENT_STORE_DIRECTORY);
+  }
+
+  public int getEventStoreSegmentMinutes() {
+    return getIntProperty(EVENT_STORE_SEGMENT_MINUTES, EVENT_STORE_SEGMENT_MINUTES_DEFAULT);
+  }
+
+  public int getEventStoreRetentionHours() {
+    return getIntProperty(EVENT_STORE_RETENTION_HOURS, EVENT_STORE_RETENTION_HOURS_DEFAULT);
+  }
+
+  public int getEventStoreBlockKb() {
+    return getIntProperty(EVENT_STORE_BLOCK_KB, EVENT_STORE_BLOCK_KB_DEFAULT);
+  }
+
+  public int getEventStoreFlushSeconds() {
+    return getIntProperty(EVENT_STORE_FLUSH_SECONDS, EVENT_STORE_FLUSH_SECONDS_DEFAULT);
+  }
+
+  public boolean isSettingsWatchEnabled() {
+    return getBooleanProperty(SETTINGS_WATCH_ENABLED, false);
+  }
+
+  /** Secrets accepted in the {@code token} query parameter of the pushes, none to not check. */
+  public List<String> getPushAuthTokens() {
+    return getListProperty(PUSH_AUTH_TOKENS);
+  }
+
+  /** Audience of the OIDC tokens of the pushes, or null if the tokens are not checked. */
+  public String getPushAuthAudience() {
+    return getStringProperty(PUSH_AUTH_AUDIENCE);
+  }
+
+  /** Service accounts the OIDC tokens of the pushes may be issued to, none for any. */
+  public List<String> getPushAuthEmails() {
+    return getListProperty(PUSH_AUTH_EMAILS);
+  }
+
+  public List<String> getPushAuthIssuers() {
+    List<String> issuers = getListProperty(PUSH_AUTH_ISSUERS);
+    return issuers.isEmpty() ? PushAuthenticator.GOOGLE_ISSUERS : issuers;
+  }
+
+  public String getPushAuthCertsUrl() {
+    String url = getStringProperty(PUSH_AUTH_CERTS_URL);
+    return url == null ? PushAuthenticator.GOOGLE_CERTS_URL : url;
+  }
+
+  /**
+   * Root URL of the Pub/Sub API to use instead of Google's, such as a {@link PubsubEmulator}'s,
+   * or null. The service account is not used with it.
+   */
+  public String getPubsubRootUrl() {
+    return getStringProperty(PUBSUB_ROOT_URL);
+  }
+
+  private List<String> getListProperty(String key) {
+    List<String> values = new ArrayList<String>();
+    String value = properties.getProperty(key);
+    if (value != null) {
+      for (String item : value.split(",")) {
+        if (!item.trim().isEmpty()) {
+          values.add(item.trim());
+        }
+      }
+    }
+    return values;
+  }
+
+  // Parses comma separated key=number pairs.
+  private Map<String, Double> getDoubleMapProperty(String key) {
+    Map<String, Double> values = new LinkedHashMap<String, Double>();
+    for (String item : getListProperty(key)) {
+      int separator = item.lastIndexOf('=');
+      try {
+        if (separator <= 0) {
+          throw new NumberFormatException("missing =");
+        }
+        values.put(item.substring(0, separator).trim(),
+            Double.parseDouble(item.substring(separator + 1).trim()));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(
+            key + " in " + filePath + " must be key=number pairs, but had: " + item, e);
+      }
+    }
+    return values;
+  }
+
+  private String getStringProperty(String key) {
+    String value = properties.getProperty(key);
+    return value == null || value.trim().isEmpty() ? null : value.trim();
+  }
+
+  private int getIntProperty(String key, int defaultValue) {
+    String value = properties.getProperty(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(
+          key + " in " + filePath + " must be an integer, but was: " + value, e);
+    }
+  }
+
+  private boolean getBooleanProperty(String key, boolean defaultValue) {
+    String value = properties.getProperty(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    if (value.trim().equalsIgnoreCase("true")) {
+      return true;
+    }
+    if (value.trim().equalsIgnoreCase("false")) {
+      return false;
+    }
+    throw new IllegalArgumentException(
+        key + " in " + filePath + " must be true or false, but was: " + value);
+  }
+
+  private double getDoubleProperty(String key, double defaultValue) {
+    String value = properties.getProperty(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(
+          key + " in " + filePath + " must be a number, but was: " + value, e);
+    }
+  }
+
+  private <T extends Enum<T>> T getEnumProperty(String key, Class<T> type, T defaultValue) {
+    String value = properties.getProperty(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Enum.valueOf(type, value.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(
+          key + " in " + filePath + " must be one of "
+              + Arrays.toString(type.getEnumConstants()) + ", but was: " + value, e);
+    }
+  }
 }
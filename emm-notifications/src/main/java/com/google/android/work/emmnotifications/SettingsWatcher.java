@@ -0,0 +1,299 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the settings file and applies its changes to the running subscriber.
+ *
+ * <p>When the file changes, it is loaded and validated as a whole. A file that can't be read or
+ * has a missing or malformed value is logged and ignored, and the settings in effect stay
+ * unchanged. Each listener registered for a key whose value changed then validates the new
+ * settings of its subscription, and may reject a value it can't apply, such as a negative rate.
+ * A single rejection also leaves the settings in effect unchanged. Only once all listeners
+ * accepted do the new settings atomically replace the ones returned by
+ * {@link Settings#getSettings()}, and are the listeners called to apply them. Changes of keys no
+ * listener is registered for only take effect after a restart, which is logged.
+ *
+ * <p>Editors often replace the file rather than write it in place, so its directory is watched
+ * and a change is loaded once the file was left alone for a short while.
+ */
+public class SettingsWatcher {
+
+  private static final Logger LOG = Logger.getLogger(SettingsWatcher.class.getName());
+
+  // Writes to the file are let to settle for this long before it is loaded.
+  private static final long SETTLE_MILLIS = 500;
+  private static final String SUBSCRIPTION_PREFIX = "Subscription.";
+
+  /** Applies the settings of the keys it was registered for. */
+  public interface Listener {
+    /**
+     * Called with the new settings of the subscription, when one of the keys changed, to check
+     * that they can be applied. Must not apply them.
+     *
+     * @throws IllegalArgumentException if a value can't be applied
+     */
+    void validate(Settings settings);
+
+    /**
+     * Called with the new settings of the subscription once all listeners validated theirs.
+     */
+    void settingsChanged(Settings settings);
+  }
+
+  private final File file;
+  private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+  private final Set<String> reloadableKeys =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Thread watcher;
+  private final Metrics.Counter applied;
+  private final Metrics.Counter rejected;
+
+  private WatchService watchService;
+  // Guarded by this.
+  private Settings current;
+
+  /** @param settings the settings in effect, loaded from the file to watch */
+  public SettingsWatcher(Settings settings, Metrics metrics) {
+    this.current = Preconditions.checkNotNull(settings);
+    this.file = new File(settings.getFilePath()).getAbsoluteFile();
+    this.watcher = new Thread(new Runnable() {
+      public void run() {
+        watchLoop();
+      }
+    }, "settings-watcher");
+    watcher.setDaemon(true);
+    this.applied = metrics.counter("emm_settings_reloads_total",
+        "Changes of the settings file, by whether they were applied.", "result", "applied");
+    this.rejected = metrics.counter("emm_settings_reloads_total",
+        "Changes of the settings file, by whether they were applied.", "result", "rejected");
+  }
+
+  /**
+   * Creates and starts the watcher configured in {@link Settings}, or returns null if the
+   * settings are only read on startup.
+   */
+  public static SettingsWatcher fromSettings(Settings settings, Metrics metrics)
+      throws IOException {
+    if (!settings.isSettingsWatchEnabled()) {
+      return null;
+    }
+    SettingsWatcher watcher = new SettingsWatcher(settings, metrics);
+    watcher.start();
+    return watcher;
+  }
+
+  /**
+   * Calls the listener with the settings of a subscription whenever one of the keys changes.
+   *
+   * @param subscriptionKey key of the subscription, or null for the top-level settings
+   */
+  public void addListener(String subscriptionKey, Listener listener, String... keys) {
+    Preconditions.checkArgument(keys.length > 0, "A listener needs keys to listen to");
+    registrations.add(new Registration(subscriptionKey, listener, keys));
+    reloadableKeys.addAll(Arrays.asList(keys));
+  }
+
+  public void start() throws IOException {
+    watchService = FileSystems.getDefault().newWatchService();
+    file.getParentFile().toPath().register(watchService,
+        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    watcher.start();
+    LOG.info("Watching " + file + " for changes");
+  }
+
+  public void close() throws IOException {
+    if (watchService != null) {
+      watchService.close();
+    }
+  }
+
+  /**
+   * Loads the file and, if it is valid and the listeners accept it, applies its changes.
+   *
+   * @return whether the settings in effect are those of the file
+   */
+  public synchronized boolean reload() {
+    Settings loaded;
+    try {
+      loaded = Settings.load(file.getPath());
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not read " + file + ", keeping the current settings", e);
+      rejected.increment();
+      return false;
+    } catch (RuntimeException e) {
+      // Missing settings fail their null checks, malformed ones their parsing.
+      LOG.warning("Ignoring invalid settings in " + file + ": " + e.getMessage());
+      rejected.increment();
+      return false;
+    }
+
+    Set<String> changed = changedKeys(current, loaded);
+    if (changed.isEmpty()) {
+      return true;
+    }
+    List<Registration> affected = new ArrayList<Registration>();
+    for (Registration registration : registrations) {
+      Settings after = registration.resolve(loaded);
+      // A removed subscription takes a restart.
+      if (after != null && registration.changed(registration.resolve(current), after)) {
+        try {
+          registration.listener.validate(after);
+        } catch (RuntimeException e) {
+          LOG.warning("Ignoring the settings in " + file + ", " + registration + " can't be"
+              + " applied: " + e.getMessage());
+          rejected.increment();
+          return false;
+        }
+        affected.add(registration);
+      }
+    }
+
+    current = loaded;
+    Settings.replace(loaded);
+    LOG.info("Settings changed: " + changed);
+    for (String name : changed) {
+      if (!reloadableKeys.contains(baseKey(name))) {
+        LOG.warning(name + " changed, it will take effect after a restart");
+      }
+    }
+    boolean failed = false;
+    for (Registration registration : affected) {
+      try {
+        registration.listener.settingsChanged(registration.resolve(loaded));
+      } catch (RuntimeException e) {
+        // Validated, so this is a bug of the listener; the others still apply theirs.
+        LOG.log(Level.SEVERE, "Could not apply " + registration, e);
+        failed = true;
+      }
+    }
+    if (failed) {
+      rejected.increment();
+    } else {
+      applied.increment();
+    }
+    return true;
+  }
+
+  private void watchLoop() {
+    Path fileName = file.toPath().getFileName();
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+              || fileName.equals(event.context());
+        }
+        key.reset();
+        if (changed) {
+          // Drops the events of the writes which follow, they are covered by this load.
+          Thread.sleep(SETTLE_MILLIS);
+          while ((key = watchService.poll()) != null) {
+            key.pollEvents();
+            key.reset();
+          }
+          reload();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException e) {
+      // Closed, stop watching.
+    }
+  }
+
+  // Names of the properties whose raw values differ, in the file as written.
+  private static Set<String> changedKeys(Settings before, Settings after) {
+    Set<String> names = new TreeSet<String>(before.getPropertyNames());
+    names.addAll(after.getPropertyNames());
+    Set<String> changed = new TreeSet<String>();
+    for (String name : names) {
+      if (!Objects.equal(before.getProperty(name), after.getProperty(name))) {
+        changed.add(name);
+      }
+    }
+    return changed;
+  }
+
+  // The key without its "Subscription.<key>." prefix, if any.
+  private static String baseKey(String name) {
+    if (name.startsWith(SUBSCRIPTION_PREFIX)) {
+      int dot = name.indexOf('.', SUBSCRIPTION_PREFIX.length());
+      if (dot > 0) {
+        return name.substring(dot + 1);
+      }
+    }
+    return name;
+  }
+
+  private static final class Registration {
+    final String subscriptionKey;
+    final Listener listener;
+    final String[] keys;
+
+    Registration(String subscriptionKey, Listener listener, String[] keys) {
+      this.subscriptionKey = subscriptionKey;
+      this.listener = Preconditions.checkNotNull(listener);
+      this.keys = keys.clone();
+    }
+
+    Settings resolve(Settings settings) {
+      return subscriptionKey == null ? settings : settings.getSubscription(subscriptionKey);
+    }
+
+    @Override
+    public String toString() {
+      return Arrays.toString(keys)
+          + (subscriptionKey == null ? "" : " of subscription " + subscriptionKey);
+    }
+
+    boolean changed(Settings before, Settings after) {
+      if (before == null) {
+        return true;
+      }
+      for (String key : keys) {
+        if (!Objects.equal(before.getProperty(key), after.getProperty(key))) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
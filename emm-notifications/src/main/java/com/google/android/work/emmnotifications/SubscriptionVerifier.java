@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.services.pubsub.Pubsub;
+import com.google.api.services.pubsub.model.PushConfig;
+import com.google.api.services.pubsub.model.Subscription;
+import com.google.common.base.Objects;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes sure the push subscription configured in {@link Settings} exists, either before the
+ * subscriber starts or in the background while it already accepts pushes.
+ *
+ * <p>Once verified, the subscription is recorded in a cache file. On the next start, if the
+ * cache is recent enough and matches the settings, the verification is skipped.
+ */
+public class SubscriptionVerifier {
+
+  private static final Logger LOG = Logger.getLogger(SubscriptionVerifier.class.getName());
+
+  private static final long INITIAL_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+  private static final long MAX_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  private static final String CACHE_TOPIC = "topic";
+  private static final String CACHE_SUBSCRIPTION = "subscription";
+  private static final String CACHE_PUSH_ENDPOINT = "pushEndpoint";
+  private static final String CACHE_ACK_DEADLINE_SECONDS = "ackDeadlineSeconds";
+  private static final String CACHE_VERIFIED_MILLIS = "verifiedMillis";
+
+  /** When the subscription is verified, relative to accepting pushes. */
+  public enum StartupMode {
+    // Verify the subscription, then start accepting pushes.
+    BLOCKING,
+    // Accept pushes at once, verify the subscription in the background.
+    BACKGROUND
+  }
+
+  /** Progress of the verification, as reported by the readiness endpoint. */
+  public enum Status {
+    PENDING,
+    VERIFYING,
+    RETRYING,
+    READY,
+    FAILED
+  }
+
+  private final Settings settings;
+  private final File cacheFile;
+  private final long cacheMaxAgeMillis;
+
+  private volatile Status status = Status.PENDING;
+  private volatile String detail = "";
+
+  /**
+   * @param cacheFile file recording the last verified subscription, or null
+   */
+  public SubscriptionVerifier(Settings settings, File cacheFile, long cacheMaxAgeMillis) {
+    this.settings = settings;
+    this.cacheFile = cacheFile;
+    this.cacheMaxAgeMillis = cacheMaxAgeMillis;
+  }
+
+  public static SubscriptionVerifier fromSettings(Settings settings) {
+    String cacheFile = settings.getSubscriptionCacheFile();
+    return new SubscriptionVerifier(
+        settings,
+        cacheFile == null ? null : new File(cacheFile),
+        TimeUnit.HOURS.toMillis(settings.getSubscriptionCacheMaxAgeHours()));
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  /** Returns a human-readable description of the current status. */
+  public String getDetail() {
+    return detail;
+  }
+
+  /**
+   * Verifies the subscription on the calling thread, unless the cache shows it was verified
+   * recently. Returns whether the subscription is known to exist.
+   */
+  public boolean verify() {
+    if (loadCache()) {
+      return true;
+    }
+    setStatus(Status.VERIFYING, "Verifying " + settings.getSubscriptionName());
+    try {
+      Pubsub client = ServiceAccountConfiguration.createPubsubClient(settings);
+      Subscription subscription = PushSubscriber.ensureSubscriptionExists(
+          client, settings, new PushConfig()
+              // FQDN with valid SSL certificate
+              .setPushEndpoint(settings.getPushEndpoint()));
+      if (subscription == null) {
+        setStatus(Status.RETRYING, "Subscription " + settings.getSubscriptionName()
+            + " could not be retrieved nor created");
+        return false;
+      }
+      writeCache(subscription);
+      setStatus(Status.READY, "Subscription " + subscription.getName() + " verified");
+      return true;
+    } catch (TopicMismatchException e) {
+      // Retrying won't help.
+      LOG.log(Level.SEVERE, "Subscription is misconfigured", e);
+      setStatus(Status.FAILED, e.getMessage());
+      return false;
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Could not verify subscription", e);
+      setStatus(Status.RETRYING, "Could not verify subscription: " + e);
+      return false;
+    }
+  }
+
+  /** Verifies the subscription on a background thread, retrying with backoff until it worked. */
+  public void verifyInBackground() {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        long retryMillis = INITIAL_RETRY_MILLIS;
+        while (!verify() && status != Status.FAILED) {
+          try {
+            Thread.sleep(retryMillis);
+          } catch (InterruptedException e) {
+            return;
+          }
+          retryMillis = Math.min(MAX_RETRY_MILLIS, retryMillis * 2);
+        }
+      }
+    }, "subscription-verifier");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void setStatus(Status status, String detail) {
+    this.status = status;
+    this.detail = detail;
+    LOG.info(status + ": " + detail);
+  }
+
+  private boolean loadCache() {
+    if (cacheFile == null || !cacheFile.exists()) {
+      return false;
+    }
+    Properties cache = new Properties();
+    try {
+      InputStream in = new FileInputStream(cacheFile);
+      try {
+        cache.load(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not read subscription cache " + cacheFile, e);
+      return false;
+    }
+
+    long verifiedMillis;
+    try {
+      verifiedMillis = Long.parseLong(cache.getProperty(CACHE_VERIFIED_MILLIS, "0"));
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    long age = System.currentTimeMillis() - verifiedMillis;
+    if (age < 0 || age > cacheMaxAgeMillis
+        || !Objects.equal(cache.getProperty(CACHE_TOPIC), settings.getTopicName())
+        || !Objects.equal(cache.getProperty(CACHE_SUBSCRIPTION), settings.getSubscriptionName())
+        || !Objects.equal(cache.getProperty(CACHE_PUSH_ENDPOINT), settings.getPushEndpoint())) {
+      LOG.info("Subscription cache " + cacheFile + " is stale or for other settings");
+      return false;
+    }
+    setStatus(Status.READY, "Subscription " + settings.getSubscriptionName()
+        + " verified " + TimeUnit.MILLISECONDS.toMinutes(age) + " minutes ago");
+    return true;
+  }
+
+  private void writeCache(Subscription subscription) {
+    if (cacheFile == null) {
+      return;
+    }
+    Properties cache = new Properties();
+    cache.setProperty(CACHE_TOPIC, settings.getTopicName());
+    cache.setProperty(CACHE_SUBSCRIPTION, settings.getSubscriptionName());
+    cache.setProperty(CACHE_PUSH_ENDPOINT, settings.getPushEndpoint());
+    if (subscription.getAckDeadlineSeconds() != null) {
+      cache.setProperty(
+          CACHE_ACK_DEADLINE_SECONDS, subscription.getAckDeadlineSeconds().toString());
+    }
+    cache.setProperty(CACHE_VERIFIED_MILLIS, Long.toString(System.currentTimeMillis()));
+
+    File temp = new File(cacheFile.getPath() + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(temp);
+      try {
+        cache.store(out, "Last verified subscription, written by SubscriptionVerifier");
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(cacheFile)) {
+        throw new IOException("Could not rename " + temp + " to " + cacheFile);
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not write subscription cache " + cacheFile, e);
+    }
+  }
+}
@@ -24,9 +24,14 @@ import com.google.api.services.pubsub.model.PubsubMessage;
 import com.google.api.services.pubsub.model.Topic;
 import com.google.common.collect.ImmutableList;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.util.Date;
 import java.util.logging.Logger;
 
 /**
@@ -42,6 +47,10 @@ import java.util.logging.Logger;
  *     java -cp target/emm-notifications-1.0-SNAPSHOT-jar-with-dependencies.jar \
  *      com.google.android.work.emmnotifications.TestPublisher</code></li>
  * </ol>
+ *
+ * <p>With <code>--load</code>, it keeps publishing synthetic notifications at a given rate instead
+ * and reports throughput and latency, see {@link LoadGenerator}. Run it with
+ * <code>--help</code> for the options.
  */
 public class TestPublisher {
 
@@ -49,37 +58,32 @@ public class TestPublisher {
       Logger.getLogger(TestPublisher.class.getName());
 
   public static void main(String[] args)
-      throws IOException, GeneralSecurityException {
-
-    Pubsub pubsubClient = ServiceAccountConfiguration.createPubsubClient(
-        Settings.getSettings().getServiceAccountEmail(),
-        Settings.getSettings().getServiceAccountP12KeyPath());
-    String topicName = Settings.getSettings().getTopicName();
+      throws IOException, GeneralSecurityException, InterruptedException {
 
+    Options options = LoadGenerator.addOptions(new Options())
+        .addOption("l", "load", false, "Publish generated notifications continuously")
+        .addOption("h", "help", false, "Print this help");
+    CommandLine cmd;
     try {
-      Topic topic = pubsubClient
-          .projects()
-          .topics()
-          .get(topicName)
-          .execute();
-
-      LOG.info("The topic " + topicName + " exists: " + topic.toPrettyString());
-    } catch (HttpResponseException e) {
-      if (e.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
-        // The topic doesn't exist
-        LOG.info("The topic " + topicName + " doesn't exist, creating it");
-        
-        // TODO(kirillov): add explicit error handling here
-        pubsubClient
-            .projects()
-            .topics()
-            .create(topicName, new Topic())
-            .execute();
-        LOG.info("The topic " + topicName + " created");
-      }
+      cmd = new GnuParser().parse(options, args);
+    } catch (ParseException e) {
+      LOG.severe(e.getMessage());
+      new HelpFormatter().printHelp("TestPublisher", options);
+      return;
+    }
+    if (cmd.hasOption("help")) {
+      new HelpFormatter().printHelp("TestPublisher", options);
+      return;
     }
 
-    ImmutableList.Builder<PubsubMessage> listBuilder = ImmutableList.builder();
+    Pubsub pubsubClient = ServiceAccountConfiguration.createPubsubClient(Settings.getSettings());
+    String topicName = Settings.getSettings().getTopicName();
+    ensureTopicExists(pubsubClient, topicName);
+
+    if (cmd.hasOption("load")) {
+      LoadGenerator.fromCommandLine(pubsubClient, topicName, cmd).run();
+      return;
+    }
 
     EmmPubsub.MdmPushNotification mdmPushNotification = EmmPubsub.MdmPushNotification.newBuilder()
         .setEnterpriseId("12321321")
@@ -102,4 +106,29 @@ public class TestPublisher {
         .execute();
   }
 
+  private static void ensureTopicExists(Pubsub pubsubClient, String topicName)
+      throws IOException {
+    try {
+      Topic topic = pubsubClient
+          .projects()
+          .topics()
+          .get(topicName)
+          .execute();
+
+      LOG.info("The topic " + topicName + " exists: " + topic.toPrettyString());
+    } catch (HttpResponseException e) {
+      if (e.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
+        // The topic doesn't exist
+        LOG.info("The topic " + topicName + " doesn't exist, creating it");
+        
+        // TODO(kirillov): add explicit error handling here
+        pubsubClient
+            .projects()
+            .topics()
+            .create(topicName, new Topic())
+            .execute();
+        LOG.info("The topic " + topicName + " created");
+      }
+    }
+  }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each task on a new thread, at most {@code threads} at a time, as virtual threads are
+ * meant to be used: they are cheap to create but shouldn't be pooled.
+ *
+ * <p>Up to {@code queueCapacity} more tasks wait for one of the running ones to finish. Beyond
+ * that, {@link #execute} throws a
+ * {@link RejectedExecutionException}, like a saturated
+ * {@link java.util.concurrent.ThreadPoolExecutor}.
+ */
+final class ThreadPerTaskExecutor extends AbstractExecutorService {
+
+  private final ThreadFactory threadFactory;
+  private final int queueCapacity;
+  // Fair, so that waiting tasks start about in the order they were submitted.
+  private final ResizableSemaphore permits;
+
+  // Guarded by this.
+  private int threads;
+  private int running;
+  private int waiting;
+  private boolean shutdown;
+
+  ThreadPerTaskExecutor(ThreadFactory threadFactory, int threads, int queueCapacity) {
+    WorkerPool.checkThreads(threads);
+    Preconditions.checkArgument(
+        queueCapacity >= 0, "Worker queue capacity must not be negative, was %s", queueCapacity);
+    this.threadFactory = Preconditions.checkNotNull(threadFactory);
+    this.queueCapacity = queueCapacity;
+    this.threads = threads;
+    this.permits = new ResizableSemaphore(threads);
+  }
+
+  public void execute(final Runnable task) {
+    Preconditions.checkNotNull(task);
+    synchronized (this) {
+      if (shutdown) {
+        throw new RejectedExecutionException("Executor is shut down");
+      }
+      if (running + waiting >= threads + queueCapacity) {
+        throw new RejectedExecutionException(
+            running + " tasks running and " + waiting + " waiting");
+      }
+      waiting++;
+    }
+    Thread thread = threadFactory.newThread(new Runnable() {
+      public void run() {
+        permits.acquireUninterruptibly();
+        synchronized (ThreadPerTaskExecutor.this) {
+          waiting--;
+          running++;
+        }
+        try {
+          task.run();
+        } finally {
+          permits.release();
+          finished();
+        }
+      }
+    });
+    thread.start();
+  }
+
+  private synchronized void finished() {
+    running--;
+    if (running + waiting == 0) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Changes the number of tasks running at a time. Extra tasks run until they finish, and no
+   * waiting task starts until fewer are running.
+   */
+  synchronized void resize(int threads) {
+    WorkerPool.checkThreads(threads);
+    if (threads > this.threads) {
+      permits.release(threads - this.threads);
+    } else {
+      permits.reducePermits(this.threads - threads);
+    }
+    this.threads = threads;
+  }
+
+  /** Number of tasks running. */
+  synchronized int getRunningCount() {
+    return running;
+  }
+
+  /** Number of tasks waiting for a running one to finish. */
+  synchronized int getWaitingCount() {
+    return waiting;
+  }
+
+  public synchronized void shutdown() {
+    shutdown = true;
+  }
+
+  /** Stops accepting tasks. Tasks already accepted have their thread and still run. */
+  public List<Runnable> shutdownNow() {
+    shutdown();
+    return Collections.emptyList();
+  }
+
+  public synchronized boolean isShutdown() {
+    return shutdown;
+  }
+
+  public synchronized boolean isTerminated() {
+    return shutdown && running + waiting == 0;
+  }
+
+  public synchronized boolean awaitTermination(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (!isTerminated()) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+
+  /** Makes {@link Semaphore#reducePermits} available to shrink the executor. */
+  private static final class ResizableSemaphore extends Semaphore {
+    ResizableSemaphore(int permits) {
+      super(permits, true);
+    }
+
+    @Override
+    protected void reducePermits(int reduction) {
+      super.reducePermits(reduction);
+    }
+  }
+}
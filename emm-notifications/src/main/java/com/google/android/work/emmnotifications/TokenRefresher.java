@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Renews the access token of a {@link Credential} in the background, some time before it
+ * expires, so that requests never wait for a token to be fetched.
+ *
+ * <p>The credential still refreshes the token by itself if it is rejected, for example when the
+ * background refresh keeps failing.
+ */
+public class TokenRefresher {
+
+  private static final Logger LOG = Logger.getLogger(TokenRefresher.class.getName());
+
+  private static final long RETRY_SECONDS = 10;
+
+  private final Credential credential;
+  private final long marginSeconds;
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("token-refresher").setDaemon(true).build());
+
+  private final Metrics.Counter refreshes;
+  private final Metrics.Counter failures;
+
+  /**
+   * @param marginSeconds how long before its expiry the token is renewed
+   * @param metrics registry of the refresh series, which should be labelled to tell apart the
+   *     refreshers of several credentials
+   */
+  public TokenRefresher(Credential credential, long marginSeconds, Metrics metrics) {
+    this.credential = Preconditions.checkNotNull(credential);
+    this.marginSeconds = marginSeconds;
+    this.refreshes = metrics.counter(
+        "emm_token_refreshes_total", "Access tokens renewed in the background.");
+    this.failures = metrics.counter(
+        "emm_token_refresh_failures_total", "Failed background renewals of the access token.");
+    metrics.gauge("emm_token_expires_in_seconds", "Time left until the access token expires.",
+        new Metrics.Gauge() {
+          public double value() {
+            Long expiresIn = TokenRefresher.this.credential.getExpiresInSeconds();
+            return expiresIn == null ? 0 : expiresIn;
+          }
+        });
+  }
+
+  /** Fetches a token now, on the calling thread, then keeps renewing it in the background. */
+  public void start() {
+    scheduleNext(refresh());
+  }
+
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  /** Returns the delay until the next refresh, in seconds. */
+  private long refresh() {
+    try {
+      if (credential.refreshToken()) {
+        refreshes.increment();
+        Long expiresIn = credential.getExpiresInSeconds();
+        LOG.fine("Access token renewed, it expires in " + expiresIn + "s");
+        return expiresIn == null ? RETRY_SECONDS : Math.max(1, expiresIn - marginSeconds);
+      }
+      LOG.warning("Access token could not be renewed");
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Access token could not be renewed", e);
+    }
+    failures.increment();
+    return RETRY_SECONDS;
+  }
+
+  private void scheduleNext(long delaySeconds) {
+    scheduler.schedule(new Runnable() {
+      public void run() {
+        scheduleNext(refresh());
+      }
+    }, delaySeconds, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+/**
+ * Thrown when a subscription already exists but is attached to another topic than the settings
+ * name. Retrying can't fix this, the subscription name or the topic has to change.
+ */
+class TopicMismatchException extends Exception {
+
+  TopicMismatchException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the bounded executors that process incoming notifications.
+ *
+ * <p>The executors never grow their queue beyond the configured capacity: once all threads are
+ * busy and the queue is full, {@link ExecutorService#execute} throws a
+ * {@link java.util.concurrent.RejectedExecutionException} and the caller applies its
+ * {@link ShedPolicy}.
+ *
+ * <p>A {@link Type#FIXED} pool is a {@link ThreadPoolExecutor}. A {@link Type#VIRTUAL} one
+ * starts a virtual thread per task instead of pooling them, and bounds how many run at a time.
+ */
+public final class WorkerPool {
+
+  private static final Logger LOG = Logger.getLogger(WorkerPool.class.getName());
+
+  /** Kind of threads backing the pool. */
+  public enum Type {
+    // Platform threads.
+    FIXED,
+    // A virtual thread per task, only available on Java 21 and newer. Falls back to FIXED
+    // otherwise.
+    VIRTUAL
+  }
+
+  /** What to do with a notification when the pool is saturated. */
+  public enum ShedPolicy {
+    // Reply with 503 so that Cloud Pub/Sub redelivers the message later.
+    REJECT,
+    // Process the notification on the thread that received it. This stalls the receiving
+    // thread, which in turn stops it from accepting more work.
+    CALLER_RUNS
+  }
+
+  private WorkerPool() {}
+
+  /**
+   * Creates a pool with {@code threads} workers and a queue holding at most
+   * {@code queueCapacity} pending tasks. A capacity of 0 hands tasks directly to idle workers.
+   */
+  public static ExecutorService create(String name, Type type, int threads, int queueCapacity) {
+    checkThreads(threads);
+    Preconditions.checkArgument(
+        queueCapacity >= 0, "Worker queue capacity must not be negative, was %s", queueCapacity);
+
+    ThreadFactoryBuilder threadFactory = new ThreadFactoryBuilder().setNameFormat(name + "-%d");
+    if (type == Type.VIRTUAL) {
+      ThreadFactory virtualThreadFactory = virtualThreadFactory();
+      if (virtualThreadFactory != null) {
+        LOG.info("Starting " + name + " pool running up to " + threads
+            + " tasks on virtual threads, with up to " + queueCapacity + " waiting");
+        return new ThreadPerTaskExecutor(
+            threadFactory.setThreadFactory(virtualThreadFactory).build(), threads, queueCapacity);
+      }
+      type = Type.FIXED;
+    }
+
+    BlockingQueue<Runnable> queue = queueCapacity == 0
+        ? new SynchronousQueue<Runnable>()
+        : new ArrayBlockingQueue<Runnable>(queueCapacity);
+    LOG.info("Starting " + name + " pool of " + threads + " " + type + " threads with a queue of "
+        + queueCapacity);
+    return new ThreadPoolExecutor(
+        threads,
+        threads,
+        0L,
+        TimeUnit.MILLISECONDS,
+        queue,
+        threadFactory.build(),
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  /** Creates the pool that processes push notifications, as configured in {@link Settings}. */
+  public static ExecutorService create(String name, Settings settings) {
+    return create(
+        name,
+        settings.getWorkerPoolType(),
+        settings.getWorkerThreads(),
+        settings.getWorkerQueueCapacity());
+  }
+
+  /**
+   * Changes the number of workers of a pool made by {@link #create}. Extra workers stop once
+   * they finished their current task.
+   */
+  public static void resize(ExecutorService executor, int threads) {
+    checkThreads(threads);
+    if (executor instanceof ThreadPerTaskExecutor) {
+      ((ThreadPerTaskExecutor) executor).resize(threads);
+      LOG.info("Resized worker pool to " + threads + " running tasks");
+      return;
+    }
+    ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+    // The core size may never exceed the maximum size, even in between.
+    if (threads > pool.getMaximumPoolSize()) {
+      pool.setMaximumPoolSize(threads);
+      pool.setCorePoolSize(threads);
+    } else {
+      pool.setCorePoolSize(threads);
+      pool.setMaximumPoolSize(threads);
+    }
+    LOG.info("Resized worker pool to " + threads + " threads");
+  }
+
+  /** Throws {@link IllegalArgumentException} if a pool can't have this number of workers. */
+  static void checkThreads(int threads) {
+    Preconditions.checkArgument(threads > 0, "Worker threads must be positive, was %s", threads);
+  }
+
+  /** Registers gauges of the pool's queued tasks and busy workers, labeled with its name. */
+  public static void exportMetrics(ExecutorService executor, String name, Metrics metrics) {
+    Metrics.Gauge queued;
+    Metrics.Gauge active;
+    if (executor instanceof ThreadPerTaskExecutor) {
+      final ThreadPerTaskExecutor tasks = (ThreadPerTaskExecutor) executor;
+      queued = new Metrics.Gauge() {
+        public double value() {
+          return tasks.getWaitingCount();
+        }
+      };
+      active = new Metrics.Gauge() {
+        public double value() {
+          return tasks.getRunningCount();
+        }
+      };
+    } else {
+      final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+      queued = new Metrics.Gauge() {
+        public double value() {
+          return pool.getQueue().size();
+        }
+      };
+      active = new Metrics.Gauge() {
+        public double value() {
+          return pool.getActiveCount();
+        }
+      };
+    }
+    metrics.gauge("emm_worker_queued", "Tasks waiting for a worker.", "pool", name, queued);
+    metrics.gauge("emm_worker_active", "Workers busy with a task.", "pool", name, active);
+  }
+
+  /**
+   * Returns {@code Thread.ofVirtual().factory()} or null if the running JVM has no virtual
+   * threads. Looked up reflectively so that the code still builds for older Java versions.
+   */
+  private static ThreadFactory virtualThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+          .getMethod("factory")
+          .invoke(builder);
+    } catch (Exception e) {
+      LOG.warning("WorkerPoolType is VIRTUAL, but virtual threads need Java 21 or newer and this"
+          + " is Java " + System.getProperty("java.version")
+          + ": using a FIXED pool of platform threads instead");
+      LOG.log(Level.FINE, "Virtual threads are not available", e);
+      return null;
+    }
+  }
+}
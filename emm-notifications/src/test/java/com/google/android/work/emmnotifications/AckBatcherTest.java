@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.services.pubsub.model.AcknowledgeRequest;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class AckBatcherTest extends TestCase {
+
+  private static final String SUBSCRIPTION = "projects/test/subscriptions/emm";
+
+  private final RecordingPubsubTransport transport = new RecordingPubsubTransport();
+  private AckBatcher acks;
+
+  @Override
+  protected void tearDown() throws InterruptedException {
+    if (acks != null) {
+      acks.close();
+    }
+  }
+
+  public void testSendsFullBatches() throws Exception {
+    // Flushing only after a minute, so that the batches are sent because they are full.
+    acks = new AckBatcher(transport.newClient(), SUBSCRIPTION, 3, 60000);
+    acks.start();
+    for (int i = 0; i < 7; i++) {
+      acks.ack("a" + i);
+    }
+    List<RecordingPubsubTransport.Call> calls = transport.awaitCalls("acknowledge", 2, 10000);
+    assertEquals(Arrays.asList("a0", "a1", "a2"), ackIds(calls.get(0)));
+    assertEquals(Arrays.asList("a3", "a4", "a5"), ackIds(calls.get(1)));
+
+    // The last one is sent on close.
+    acks.close();
+    acks = null;
+    calls = transport.getCalls("acknowledge");
+    assertEquals(3, calls.size());
+    assertEquals(Arrays.asList("a6"), ackIds(calls.get(2)));
+  }
+
+  public void testFlushesAfterInterval() throws Exception {
+    acks = new AckBatcher(transport.newClient(), SUBSCRIPTION, 100, 50);
+    acks.start();
+    long start = System.nanoTime();
+    acks.ack("a");
+    acks.ack("b");
+    List<RecordingPubsubTransport.Call> calls = transport.awaitCalls("acknowledge", 1, 10000);
+    assertTrue(System.nanoTime() - start >= 50 * 1000000L);
+    assertEquals(Arrays.asList("a", "b"), ackIds(calls.get(0)));
+  }
+
+  public void testSendsEveryAckOnce() throws Exception {
+    acks = new AckBatcher(transport.newClient(), SUBSCRIPTION, 10, 5);
+    acks.start();
+    for (int i = 0; i < 1000; i++) {
+      acks.ack("a" + i);
+    }
+    acks.close();
+    acks = null;
+    List<String> sent = new ArrayList<String>();
+    for (RecordingPubsubTransport.Call call : transport.getCalls("acknowledge")) {
+      List<String> ackIds = ackIds(call);
+      assertTrue(ackIds.size() <= 10);
+      sent.addAll(ackIds);
+    }
+    assertEquals(1000, sent.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals("a" + i, sent.get(i));
+    }
+  }
+
+  public void testDropsBatchOnApiError() throws Exception {
+    transport.setStatusCode(500);
+    acks = new AckBatcher(transport.newClient(), SUBSCRIPTION, 2, 60000);
+    acks.start();
+    acks.ack("a");
+    acks.ack("b");
+    transport.awaitCalls("acknowledge", 1, 10000);
+    // Not retried: the messages are redelivered once their deadline expired.
+    acks.close();
+    acks = null;
+    assertEquals(1, transport.getCalls("acknowledge").size());
+  }
+
+  public void testRejectsInvalidBatchSize() {
+    try {
+      new AckBatcher(transport.newClient(), SUBSCRIPTION, 0, 100);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static List<String> ackIds(RecordingPubsubTransport.Call call) throws IOException {
+    return call.parse(AcknowledgeRequest.class).getAckIds();
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import junit.framework.TestCase;
+
+public class CircuitBreakerTest extends TestCase {
+
+  private static final long WINDOW_MILLIS = 60000;
+  private static final long OPEN_MILLIS = 50;
+
+  public void testStaysClosedBelowMinimumRequests() {
+    CircuitBreaker breaker = newBreaker(WINDOW_MILLIS);
+    for (int i = 0; i < 9; i++) {
+      breaker.onFailure();
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+  }
+
+  public void testStaysClosedBelowFailureRate() {
+    CircuitBreaker breaker = newBreaker(WINDOW_MILLIS);
+    for (int i = 0; i < 20; i++) {
+      breaker.onSuccess();
+      if (i % 2 == 0) {
+        breaker.onFailure();
+      }
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  public void testOpensAtFailureRate() {
+    CircuitBreaker breaker = newBreaker(WINDOW_MILLIS);
+    for (int i = 0; i < 5; i++) {
+      breaker.onSuccess();
+      breaker.onFailure();
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+  }
+
+  public void testLetsOneProbeThroughAfterOpenPeriod() throws InterruptedException {
+    CircuitBreaker breaker = openBreaker();
+    Thread.sleep(OPEN_MILLIS * 2);
+    assertTrue(breaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+  }
+
+  public void testClosesWhenProbeSucceeds() throws InterruptedException {
+    CircuitBreaker breaker = openBreaker();
+    Thread.sleep(OPEN_MILLIS * 2);
+    assertTrue(breaker.allowRequest());
+    breaker.onSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    // The failures before opening are forgotten.
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  public void testReopensWhenProbeFails() throws InterruptedException {
+    CircuitBreaker breaker = openBreaker();
+    Thread.sleep(OPEN_MILLIS * 2);
+    assertTrue(breaker.allowRequest());
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+  }
+
+  public void testForgetsFailuresOfPastWindows() throws InterruptedException {
+    CircuitBreaker breaker = newBreaker(50);
+    for (int i = 0; i < 9; i++) {
+      breaker.onFailure();
+    }
+    Thread.sleep(100);
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  public void testCountsRejections() throws Exception {
+    Metrics metrics = new Metrics();
+    CircuitBreaker breaker = new CircuitBreaker("test", 0.5, 10, WINDOW_MILLIS, 60000, metrics);
+    for (int i = 0; i < 10; i++) {
+      breaker.onFailure();
+    }
+    breaker.allowRequest();
+    breaker.allowRequest();
+    StringBuilder text = new StringBuilder();
+    metrics.writeTo(text);
+    assertTrue(text.toString(),
+        text.toString().contains("emm_circuit_breaker_rejected_total{breaker=\"test\"} 2\n"));
+    assertTrue(text.toString(),
+        text.toString().contains("emm_circuit_breaker_opened_total{breaker=\"test\"} 1\n"));
+  }
+
+  private static CircuitBreaker newBreaker(long windowMillis) {
+    return new CircuitBreaker("test", 0.5, 10, windowMillis, OPEN_MILLIS, new Metrics());
+  }
+
+  private static CircuitBreaker openBreaker() {
+    CircuitBreaker breaker = newBreaker(WINDOW_MILLIS);
+    for (int i = 0; i < 10; i++) {
+      breaker.onFailure();
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    return breaker;
+  }
+}
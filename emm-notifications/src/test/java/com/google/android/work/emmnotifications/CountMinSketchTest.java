@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class CountMinSketchTest extends TestCase {
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  public void testNeverUnderestimates() {
+    // Far more keys than counters, so that most counters are shared.
+    CountMinSketch sketch = new CountMinSketch(4, 64);
+    long[] counts = skewedCounts(5000, new Random(1));
+    for (int i = 0; i < counts.length; i++) {
+      sketch.add(hash(i), counts[i]);
+    }
+    for (int i = 0; i < counts.length; i++) {
+      assertTrue("Key " + i, sketch.estimate(hash(i)) >= counts[i]);
+    }
+  }
+
+  public void testOverestimatesWithinBound() {
+    CountMinSketch sketch = new CountMinSketch(4, 1024);
+    long[] counts = skewedCounts(5000, new Random(2));
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      sketch.add(hash(i), counts[i]);
+      total += counts[i];
+    }
+    // The error exceeds e / width of the total with a probability of at most exp(-depth), 2%.
+    double bound = Math.E / 1024 * total;
+    int beyond = 0;
+    for (int i = 0; i < counts.length; i++) {
+      if (sketch.estimate(hash(i)) - counts[i] > bound) {
+        beyond++;
+      }
+    }
+    assertTrue("Beyond bound: " + beyond, beyond < counts.length * 0.02);
+  }
+
+  public void testEstimatesUnseenKeysAsZeroWhenSparse() {
+    CountMinSketch sketch = new CountMinSketch(4, 1024);
+    sketch.add(hash(1), 7);
+    assertEquals(7, sketch.estimate(hash(1)));
+    assertEquals(0, sketch.estimate(hash(2)));
+  }
+
+  public void testMergeGivesSketchOfBothStreams() {
+    CountMinSketch first = new CountMinSketch(4, 64);
+    CountMinSketch second = new CountMinSketch(4, 64);
+    CountMinSketch both = new CountMinSketch(4, 64);
+    Random random = new Random(3);
+    for (int i = 0; i < 2000; i++) {
+      long hash = hash(random.nextInt(500));
+      (i % 2 == 0 ? first : second).add(hash, 1);
+      both.add(hash, 1);
+    }
+    first.merge(second);
+    for (int i = 0; i < 500; i++) {
+      assertEquals(both.estimate(hash(i)), first.estimate(hash(i)));
+    }
+  }
+
+  public void testClear() {
+    CountMinSketch sketch = new CountMinSketch(4, 64);
+    sketch.add(hash(1), 3);
+    sketch.clear();
+    assertEquals(0, sketch.estimate(hash(1)));
+  }
+
+  public void testRejectsInvalidSizes() {
+    try {
+      new CountMinSketch(4, 100);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new CountMinSketch(4, 64).merge(new CountMinSketch(4, 128));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  // Counts following a power law, like the failures of a few failing rollouts among many.
+  private static long[] skewedCounts(int keys, Random random) {
+    long[] counts = new long[keys];
+    for (int i = 0; i < keys; i++) {
+      counts[i] = 1 + (long) (1000 / Math.pow(i + 1, 1.2)) + random.nextInt(3);
+    }
+    return counts;
+  }
+
+  private static long hash(int key) {
+    return HASH.hashInt(key).asLong();
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class EnterpriseRateLimiterTest extends TestCase {
+
+  private final Metrics metrics = new Metrics();
+
+  public void testAdmitsBurstThenThrottles() {
+    // One push per second, with five seconds of burst.
+    EnterpriseRateLimiter limiter = newLimiter(1, 5, Collections.<String, Double>emptyMap());
+    for (int i = 0; i < 5; i++) {
+      assertTrue(limiter.tryAcquire("E1"));
+    }
+    assertFalse(limiter.tryAcquire("E1"));
+    assertEquals(1, throttled().get());
+    assertEquals(1, metrics.counter("emm_enterprise_throttled_by_enterprise_total", "",
+        "enterprise", "E1").get());
+    // Each enterprise has its own bucket.
+    assertTrue(limiter.tryAcquire("E2"));
+  }
+
+  public void testBurstIsAtLeastOnePush() {
+    EnterpriseRateLimiter limiter = newLimiter(1, 0.1, Collections.<String, Double>emptyMap());
+    assertTrue(limiter.tryAcquire("E1"));
+    assertFalse(limiter.tryAcquire("E1"));
+  }
+
+  public void testRefillsAtRate() throws InterruptedException {
+    // 100 pushes per second, with a burst of 5.
+    EnterpriseRateLimiter limiter = newLimiter(100, 0.05, Collections.<String, Double>emptyMap());
+    for (int i = 0; i < 5; i++) {
+      assertTrue(limiter.tryAcquire("E1"));
+    }
+    assertFalse(limiter.tryAcquire("E1"));
+    // Long enough to refill more than the burst, which caps the bucket.
+    Thread.sleep(200);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(limiter.tryAcquire("E1"));
+    }
+    assertFalse(limiter.tryAcquire("E1"));
+  }
+
+  public void testOverridesDefaultRate() {
+    Map<String, Double> rates = new HashMap<String, Double>();
+    rates.put("unlimited", 0.0);
+    rates.put("faster", 3.0);
+    EnterpriseRateLimiter limiter = newLimiter(1, 1, rates);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(limiter.tryAcquire("unlimited"));
+    }
+    for (int i = 0; i < 3; i++) {
+      assertTrue(limiter.tryAcquire("faster"));
+    }
+    assertFalse(limiter.tryAcquire("faster"));
+    assertTrue(limiter.tryAcquire("other"));
+    assertFalse(limiter.tryAcquire("other"));
+  }
+
+  public void testNoDefaultRateAdmitsAll() {
+    Map<String, Double> rates = new HashMap<String, Double>();
+    rates.put("limited", 1.0);
+    EnterpriseRateLimiter limiter = newLimiter(0, 1, rates);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(limiter.tryAcquire("other"));
+    }
+    assertTrue(limiter.tryAcquire("limited"));
+    assertFalse(limiter.tryAcquire("limited"));
+  }
+
+  public void testSetLimitsReplacesBuckets() {
+    EnterpriseRateLimiter limiter = newLimiter(1, 1, Collections.<String, Double>emptyMap());
+    assertTrue(limiter.tryAcquire("E1"));
+    assertFalse(limiter.tryAcquire("E1"));
+
+    // The buckets start full with the new limits, even at the same rate.
+    limiter.setLimits(1, 1, Collections.<String, Double>emptyMap());
+    assertTrue(limiter.tryAcquire("E1"));
+    assertFalse(limiter.tryAcquire("E1"));
+
+    Map<String, Double> rates = new HashMap<String, Double>();
+    rates.put("E1", 2.0);
+    limiter.setLimits(1, 1, rates);
+    assertTrue(limiter.tryAcquire("E1"));
+    assertTrue(limiter.tryAcquire("E1"));
+    assertFalse(limiter.tryAcquire("E1"));
+
+    limiter.setLimits(0, 1, Collections.<String, Double>emptyMap());
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(limiter.tryAcquire("E1"));
+    }
+  }
+
+  public void testRejectsInvalidLimits() {
+    try {
+      EnterpriseRateLimiter.checkLimits(-1, 1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    EnterpriseRateLimiter limiter = newLimiter(1, 1, Collections.<String, Double>emptyMap());
+    try {
+      limiter.setLimits(1, 0, Collections.<String, Double>emptyMap());
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    // The limits in place are kept.
+    assertTrue(limiter.tryAcquire("E1"));
+    assertFalse(limiter.tryAcquire("E1"));
+  }
+
+  private EnterpriseRateLimiter newLimiter(
+      double defaultRate, double burstSeconds, Map<String, Double> rates) {
+    return new EnterpriseRateLimiter(defaultRate, burstSeconds, rates, metrics);
+  }
+
+  private Metrics.Counter throttled() {
+    return metrics.counter("emm_enterprise_throttled_total", "");
+  }
+}
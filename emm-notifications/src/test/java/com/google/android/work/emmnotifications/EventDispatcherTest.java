@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+import com.google.android.work.pubsub.EmmPubsub.TestPushNotification;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class EventDispatcherTest extends TestCase {
+
+  private final Metrics metrics = new Metrics();
+  private final ExecutorService clients = Executors.newCachedThreadPool();
+
+  @Override
+  protected void tearDown() {
+    clients.shutdownNow();
+  }
+
+  public void testDeliversEventsOfAnEnterpriseInOrder() throws Exception {
+    EventDispatcher dispatcher = new EventDispatcher(4, 1000, metrics);
+    final List<MdmPushNotification> received =
+        Collections.synchronizedList(new ArrayList<MdmPushNotification>());
+    dispatcher.addListener(new NotificationListenerAdapter() {
+      @Override
+      public void onTestPushNotification(
+          MdmPushNotification notification, TestPushNotification event) {
+        received.add(notification);
+      }
+    });
+    for (int i = 0; i < 300; i++) {
+      dispatcher.dispatch(notification("enterprise-" + (i % 7), i));
+    }
+    dispatcher.close(10, TimeUnit.SECONDS);
+
+    assertEquals(300, received.size());
+    Map<String, Long> last = new HashMap<String, Long>();
+    for (MdmPushNotification notification : received) {
+      Long previous = last.put(notification.getEnterpriseId(),
+          notification.getEventNotificationSentTimestampMillis());
+      if (previous != null) {
+        assertTrue(previous < notification.getEventNotificationSentTimestampMillis());
+      }
+    }
+    assertEquals(7, last.size());
+  }
+
+  public void testFiltersBeforeDecoding() throws Exception {
+    EventDispatcher dispatcher = new EventDispatcher(1, 10, true, metrics);
+    final List<String> accepted = Collections.synchronizedList(new ArrayList<String>());
+    dispatcher.addListener(new FilteringListener("wanted", accepted));
+    dispatcher.dispatch(NotificationView.parse(notification("wanted", 1).toByteArray()));
+    dispatcher.dispatch(NotificationView.parse(notification("other", 2).toByteArray()));
+
+    assertEquals(Collections.singletonList("wanted"), accepted);
+    assertEquals(1, metrics.counter("emm_dispatch_decoded_total", "").get());
+    assertEquals(1, metrics.counter("emm_dispatch_filtered_total", "").get());
+  }
+
+  public void testBlocksWhenPartitionIsFull() throws Exception {
+    final EventDispatcher dispatcher = new EventDispatcher(1, 1, metrics);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    dispatcher.addListener(new NotificationListenerAdapter() {
+      @Override
+      public void onTestPushNotification(
+          MdmPushNotification notification, TestPushNotification event) {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    // The first one is being delivered, the second one fills the queue.
+    dispatcher.dispatch(notification("enterprise", 1));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    dispatcher.dispatch(notification("enterprise", 2));
+    Future<?> third = clients.submit(new Callable<Void>() {
+      public Void call() throws IOException {
+        dispatcher.dispatch(notification("enterprise", 3));
+        return null;
+      }
+    });
+    try {
+      third.get(200, TimeUnit.MILLISECONDS);
+      fail("Dispatch should wait for room in the queue");
+    } catch (TimeoutException expected) {
+    }
+    release.countDown();
+    third.get(10, TimeUnit.SECONDS);
+    dispatcher.close(10, TimeUnit.SECONDS);
+  }
+
+  public void testQueuedDispatchOnlyLogsListenerFailures() throws Exception {
+    EventDispatcher dispatcher = new EventDispatcher(1, 10, metrics);
+    final CountDownLatch delivered = new CountDownLatch(1);
+    dispatcher.addListener(new FailingListener());
+    dispatcher.addListener(new NotificationListenerAdapter() {
+      @Override
+      public void onTestPushNotification(
+          MdmPushNotification notification, TestPushNotification event) {
+        delivered.countDown();
+      }
+    });
+    dispatcher.dispatch(notification("enterprise", 1));
+    assertTrue(delivered.await(10, TimeUnit.SECONDS));
+    dispatcher.close(10, TimeUnit.SECONDS);
+  }
+
+  public void testAwaitedDispatchReportsListenerFailures() throws Exception {
+    EventDispatcher dispatcher = new EventDispatcher(2, 10, true, metrics);
+    final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+    dispatcher.addListener(new FailingListener());
+    dispatcher.addListener(new NotificationListenerAdapter() {
+      @Override
+      public void onTestPushNotification(
+          MdmPushNotification notification, TestPushNotification event) {
+        delivered.add(notification.getEnterpriseId());
+      }
+    });
+    try {
+      dispatcher.dispatch(notification("enterprise", 1));
+      fail("A failed listener should fail the dispatch");
+    } catch (IOException expected) {
+    }
+    // The other listeners still ran, before dispatch returned.
+    assertEquals(Collections.singletonList("enterprise"), delivered);
+    dispatcher.close(10, TimeUnit.SECONDS);
+  }
+
+  public void testAwaitedDispatchReturnsOnceListenersRan() throws Exception {
+    EventDispatcher dispatcher = new EventDispatcher(2, 10, true, metrics);
+    final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+    dispatcher.addListener(new NotificationListenerAdapter() {
+      @Override
+      public void onTestPushNotification(
+          MdmPushNotification notification, TestPushNotification event) {
+        delivered.add(notification.getEnterpriseId());
+      }
+    });
+    dispatcher.dispatch(notification("a", 1));
+    dispatcher.dispatch(notification("b", 2));
+    assertEquals(2, delivered.size());
+    dispatcher.close(10, TimeUnit.SECONDS);
+  }
+
+  private static MdmPushNotification notification(String enterpriseId, long sentMillis) {
+    return MdmPushNotification.newBuilder()
+        .setEnterpriseId(enterpriseId)
+        .setEventNotificationSentTimestampMillis(sentMillis)
+        .addTestPushNotification(TestPushNotification.getDefaultInstance())
+        .build();
+  }
+
+  private static final class FilteringListener extends NotificationListenerAdapter
+      implements NotificationFilter {
+    private final String enterpriseId;
+    private final List<String> accepted;
+
+    FilteringListener(String enterpriseId, List<String> accepted) {
+      this.enterpriseId = enterpriseId;
+      this.accepted = accepted;
+    }
+
+    public boolean accept(NotificationView notification) {
+      return enterpriseId.equals(notification.getEnterpriseId());
+    }
+
+    @Override
+    public void onTestPushNotification(
+        MdmPushNotification notification, TestPushNotification event) {
+      accepted.add(notification.getEnterpriseId());
+    }
+  }
+
+  private static final class FailingListener extends NotificationListenerAdapter {
+    @Override
+    public void onTestPushNotification(
+        MdmPushNotification notification, TestPushNotification event) {
+      throw new IllegalStateException("Listener failure");
+    }
+  }
+}
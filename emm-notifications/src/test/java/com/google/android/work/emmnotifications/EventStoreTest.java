@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class EventStoreTest extends TestCase {
+
+  private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private File directory;
+  private Metrics metrics;
+  private EventStore store;
+  // In the middle of the last hour's segment, so that the events below share it.
+  private long baseMillis;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("events").toFile();
+    metrics = new Metrics();
+    // A block per event.
+    store = new EventStore(directory, 60, 24, 1, 60, metrics);
+    long now = System.currentTimeMillis();
+    baseMillis = now - now % HOUR_MILLIS - HOUR_MILLIS / 2;
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    store.close();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  public void testReturnsEventsInTimeOrder() throws IOException {
+    add(3);
+    add(1);
+    add(2);
+    List<EventStore.StoredEvent> events = queryAll(10);
+    assertEquals(3, events.size());
+    assertEquals(baseMillis + 1000, events.get(0).getSentTimestampMillis());
+    assertEquals(baseMillis + 2000, events.get(1).getSentTimestampMillis());
+    assertEquals(baseMillis + 3000, events.get(2).getSentTimestampMillis());
+  }
+
+  public void testLimitKeepsEarliestEventsOfUnorderedBlocks() throws IOException {
+    for (int i = 9; i >= 0; i--) {
+      add(i);
+    }
+    List<EventStore.StoredEvent> events = queryAll(3);
+    assertEquals(3, events.size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(baseMillis + i * 1000, events.get(i).getSentTimestampMillis());
+    }
+  }
+
+  public void testStopsReadingBlocksOnceLimitReached() throws IOException {
+    for (int i = 0; i < 10; i++) {
+      add(i);
+    }
+    List<EventStore.StoredEvent> events = queryAll(2);
+    assertEquals(2, events.size());
+    assertEquals(baseMillis, events.get(0).getSentTimestampMillis());
+    assertEquals(baseMillis + 1000, events.get(1).getSentTimestampMillis());
+    assertEquals(2, blocksRead());
+  }
+
+  public void testLimitAppliesToMatchingEventsOnly() throws IOException {
+    for (int i = 0; i < 10; i++) {
+      store.add(new EventStore.StoredEvent(baseMillis + i * 1000, i % 2 == 0 ? "even" : "odd",
+          "app:com.example", EventType.APP_UPDATE, new byte[0]));
+    }
+    List<EventStore.StoredEvent> events =
+        store.query(baseMillis, baseMillis + HOUR_MILLIS, "odd", null, null, 2);
+    assertEquals(2, events.size());
+    assertEquals(baseMillis + 1000, events.get(0).getSentTimestampMillis());
+    assertEquals(baseMillis + 3000, events.get(1).getSentTimestampMillis());
+  }
+
+  private void add(int second) throws IOException {
+    store.add(new EventStore.StoredEvent(baseMillis + second * 1000, "enterprise",
+        "app:com.example", EventType.APP_UPDATE, new byte[] {(byte) second}));
+  }
+
+  private List<EventStore.StoredEvent> queryAll(int limit) throws IOException {
+    return store.query(baseMillis, baseMillis + HOUR_MILLIS, null, null, null, limit);
+  }
+
+  private long blocksRead() {
+    // The registry returns the counter the store increments.
+    return metrics.counter("emm_event_store_blocks_read_total", "").get();
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class ExecutingHandlerTest extends TestCase {
+
+  private final ExecutorService clients = Executors.newCachedThreadPool();
+  // Opened once the slow handler got a request, which it answers once release is opened.
+  private final CountDownLatch received = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private ThreadPoolExecutor queries;
+  private HttpServer server;
+
+  @Override
+  protected void setUp() throws IOException {
+    // A single thread and no queue, so that a second slow query is rejected.
+    queries = new ThreadPoolExecutor(
+        1, 1, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>());
+    // Without an executor, HttpServer calls the handlers on its only dispatcher thread.
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/slow", new ExecutingHandler(queries, new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        received.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      }
+    }));
+    server.createContext("/fast", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() {
+    release.countDown();
+    server.stop(0);
+    queries.shutdownNow();
+    clients.shutdownNow();
+  }
+
+  public void testSlowQueryDoesNotHoldUpOtherRequests() throws Exception {
+    Future<Integer> slow = get("/slow");
+    assertTrue(received.await(10, TimeUnit.SECONDS));
+    assertEquals(204, get("/fast").get(10, TimeUnit.SECONDS).intValue());
+    release.countDown();
+    assertEquals(200, slow.get(10, TimeUnit.SECONDS).intValue());
+  }
+
+  public void testRejectsQueriesWhenSaturated() throws Exception {
+    Future<Integer> slow = get("/slow");
+    assertTrue(received.await(10, TimeUnit.SECONDS));
+    assertEquals(503, get("/slow").get(10, TimeUnit.SECONDS).intValue());
+    release.countDown();
+    assertEquals(200, slow.get(10, TimeUnit.SECONDS).intValue());
+  }
+
+  public void testAnswersWhenHandlerFails() throws Exception {
+    server.createContext("/failing", new ExecutingHandler(queries, new HttpHandler() {
+      public void handle(HttpExchange exchange) {
+        throw new IllegalStateException("Handler failure");
+      }
+    }));
+    assertEquals(500, get("/failing").get(10, TimeUnit.SECONDS).intValue());
+  }
+
+  private Future<Integer> get(final String path) {
+    return clients.submit(new Callable<Integer>() {
+      public Integer call() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+            "http://127.0.0.1:" + server.getAddress().getPort() + path).openConnection();
+        try {
+          return connection.getResponseCode();
+        } finally {
+          connection.disconnect();
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FairSchedulerTest extends TestCase {
+
+  private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+  // Opened once the gate task runs, which returns once release is opened.
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private FairScheduler scheduler;
+
+  @Override
+  protected void tearDown() {
+    release.countDown();
+    if (scheduler != null) {
+      scheduler.shutdown();
+    }
+  }
+
+  public void testRunsTasksOfOneKeyInSubmissionOrder() throws InterruptedException {
+    scheduler = newScheduler(4, 1000, Collections.<String, Double>emptyMap());
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    for (int i = 0; i < 200; i++) {
+      final String task = "a" + i;
+      scheduler.execute("a", new Runnable() {
+        public void run() {
+          int now = running.incrementAndGet();
+          if (now > maxRunning.get()) {
+            maxRunning.set(now);
+          }
+          Thread.yield();
+          ran.add(task);
+          running.decrementAndGet();
+        }
+      });
+    }
+    scheduler.shutdown();
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(1, maxRunning.get());
+    assertEquals(200, ran.size());
+    for (int i = 0; i < 200; i++) {
+      assertEquals("a" + i, ran.get(i));
+    }
+  }
+
+  public void testRunsOtherKeysWhileOneIsBusy() throws InterruptedException {
+    scheduler = newScheduler(2, 1000, Collections.<String, Double>emptyMap());
+    blockThread("a");
+    record("a", "a1");
+    record("b", "b1");
+    record("b", "b2");
+    scheduler.shutdown();
+    // The task of a waits behind the gate, while the other thread runs those of b.
+    while (ran.size() < 2) {
+      Thread.sleep(1);
+    }
+    assertEquals(Arrays.asList("b1", "b2"), ran);
+    release.countDown();
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("b1", "b2", "a1"), ran);
+  }
+
+  public void testSharesThreadByWeight() throws InterruptedException {
+    Map<String, Double> weights = new HashMap<String, Double>();
+    weights.put("a", 2.0);
+    scheduler = newScheduler(1, 1000, weights);
+    blockThread("gate");
+    for (int i = 0; i < 10; i++) {
+      record("a", "a");
+    }
+    for (int i = 0; i < 10; i++) {
+      record("b", "b");
+    }
+    release.countDown();
+    scheduler.shutdown();
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    // While both have tasks queued, a runs two for each of b, whatever the arrival order.
+    assertEquals(Arrays.asList("a", "a", "b", "a", "a", "b", "a", "a", "b"), ran.subList(0, 9));
+    assertEquals(20, ran.size());
+  }
+
+  public void testRejectsBeyondCapacity() throws InterruptedException {
+    scheduler = newScheduler(1, 2, Collections.<String, Double>emptyMap());
+    blockThread("gate");
+    record("a", "a1");
+    // Tasks waiting behind a running one of their key count as well.
+    record("gate", "gate1");
+    assertEquals(2, scheduler.getQueuedCount());
+    try {
+      record("b", "b1");
+      fail();
+    } catch (RejectedExecutionException expected) {
+    }
+    release.countDown();
+    scheduler.shutdown();
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("a1", "gate1"), ran);
+    assertEquals(0, scheduler.getQueuedCount());
+  }
+
+  public void testShutdownRunsQueuedTasks() throws InterruptedException {
+    scheduler = newScheduler(2, 1000, Collections.<String, Double>emptyMap());
+    blockThread("a");
+    for (int i = 0; i < 5; i++) {
+      record("a", "a" + i);
+      record("b", "b" + i);
+    }
+    scheduler.shutdown();
+    try {
+      record("c", "c0");
+      fail();
+    } catch (RejectedExecutionException expected) {
+    }
+    assertFalse(scheduler.awaitTermination(10, TimeUnit.MILLISECONDS));
+    release.countDown();
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(10, ran.size());
+    assertFalse(ran.contains("c0"));
+  }
+
+  public void testRunsNextTaskOfKeyAfterFailure() throws InterruptedException {
+    scheduler = newScheduler(1, 1000, Collections.<String, Double>emptyMap());
+    scheduler.execute("a", new Runnable() {
+      public void run() {
+        throw new IllegalStateException("Expected by the test");
+      }
+    });
+    record("a", "a1");
+    scheduler.shutdown();
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("a1"), ran);
+  }
+
+  public void testRejectsNonPositiveWeights() {
+    Map<String, Double> weights = new HashMap<String, Double>();
+    weights.put("a", 0.0);
+    try {
+      FairScheduler.checkWeights(weights);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private FairScheduler newScheduler(int threadCount, int capacity, Map<String, Double> weights) {
+    return new FairScheduler("test", threadCount, capacity, weights, new Metrics());
+  }
+
+  /** Runs a task of the key that holds its thread until release is opened. */
+  private void blockThread(String key) throws InterruptedException {
+    scheduler.execute(key, new Runnable() {
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    started.await();
+  }
+
+  private void record(String key, final String name) {
+    scheduler.execute(key, new Runnable() {
+      public void run() {
+        ran.add(name);
+      }
+    });
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class HistogramTest extends TestCase {
+
+  public void testEmpty() {
+    Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(0.99));
+    assertEquals(0, histogram.getMax());
+  }
+
+  public void testSmallValuesAreExact() {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 10; i++) {
+      histogram.record(i);
+    }
+    assertEquals(10, histogram.getCount());
+    assertEquals(55, histogram.getSum());
+    assertEquals(5, histogram.getPercentile(0.5));
+    assertEquals(10, histogram.getPercentile(1));
+    assertEquals(10, histogram.getMax());
+    assertEquals(3, histogram.getCountAtMost(3));
+  }
+
+  public void testPercentilesAreWithinBucketWidth() {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 100000; i++) {
+      histogram.record(i);
+    }
+    for (double fraction : new double[] {0.5, 0.9, 0.99, 0.999}) {
+      double exact = fraction * 100000;
+      long reported = histogram.getPercentile(fraction);
+      assertTrue(fraction + ": " + reported, reported >= exact);
+      assertTrue(fraction + ": " + reported, reported <= exact * (1 + 1.0 / 16));
+    }
+  }
+
+  public void testCountAtMostNeverIncludesGreaterValues() {
+    Histogram histogram = new Histogram();
+    // 100 to 103 share a bucket, as do 2432 to 2559.
+    histogram.record(99);
+    histogram.record(101);
+    histogram.record(2431);
+    histogram.record(2432);
+    histogram.record(2510);
+    assertEquals(1, histogram.getCountAtMost(100));
+    assertEquals(2, histogram.getCountAtMost(103));
+    assertEquals(3, histogram.getCountAtMost(2500));
+    assertEquals(5, histogram.getCountAtMost(2559));
+    assertEquals(0, histogram.getCountAtMost(-1));
+  }
+
+  public void testNegativeValuesCountAsZero() {
+    Histogram histogram = new Histogram();
+    histogram.record(-5);
+    assertEquals(1, histogram.getCountAtMost(0));
+    assertEquals(0, histogram.getSum());
+  }
+
+  public void testBucketsCoverAllValues() {
+    long[] values = {0, 1, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE};
+    for (long value : values) {
+      int bucket = Histogram.bucketOf(value);
+      assertTrue(Long.toString(value), Histogram.upperBoundOf(bucket) >= value);
+      if (bucket > 0) {
+        assertTrue(Long.toString(value), Histogram.upperBoundOf(bucket - 1) < value);
+      }
+    }
+  }
+
+  public void testConcurrentRecords() throws InterruptedException {
+    final Histogram histogram = new Histogram();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      final int offset = t;
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          for (int i = 0; i < 100000; i++) {
+            histogram.record(offset);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(400000, histogram.getCount());
+    assertEquals(600000, histogram.getSum());
+    assertEquals(3, histogram.getMax());
+    assertEquals(200000, histogram.getCountAtMost(1));
+  }
+}
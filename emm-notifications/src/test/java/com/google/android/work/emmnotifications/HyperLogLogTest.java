@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import junit.framework.TestCase;
+
+public class HyperLogLogTest extends TestCase {
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  public void testEstimatesSmallCardinalitiesByLinearCounting() {
+    // Up to 2.5 * 2^14 keys, the estimate comes from the empty registers.
+    for (int cardinality : new int[] {0, 1, 10, 100, 1000, 10000, 40000}) {
+      assertEstimate(14, cardinality, 0.02);
+    }
+  }
+
+  public void testEstimatesLargeCardinalities() {
+    // The standard error is 0.8%; 3% is over 3.5 standard errors.
+    for (int cardinality : new int[] {50000, 200000, 1000000}) {
+      assertEstimate(14, cardinality, 0.03);
+    }
+  }
+
+  public void testEstimatesWithSmallPrecision() {
+    // 2^8 registers, as for each heavy key of the install failures: 6.5% standard error.
+    assertEstimate(8, 100, 0.15);
+    assertEstimate(8, 5000, 0.25);
+  }
+
+  public void testIgnoresDuplicates() {
+    HyperLogLog sketch = new HyperLogLog(14);
+    for (int i = 0; i < 10; i++) {
+      for (int key = 0; key < 1000; key++) {
+        sketch.add(hash(key));
+      }
+    }
+    assertEquals(1000, sketch.estimate(), 20);
+  }
+
+  public void testMergeGivesSketchOfUnion() {
+    HyperLogLog first = new HyperLogLog(14);
+    HyperLogLog second = new HyperLogLog(14);
+    for (int key = 0; key < 60000; key++) {
+      first.add(hash(key));
+    }
+    for (int key = 30000; key < 90000; key++) {
+      second.add(hash(key));
+    }
+    first.merge(second);
+    assertEquals(90000, first.estimate(), 90000 * 0.03);
+  }
+
+  public void testClear() {
+    HyperLogLog sketch = new HyperLogLog(10);
+    sketch.add(hash(1));
+    sketch.clear();
+    assertEquals(0, sketch.estimate());
+  }
+
+  public void testRejectsInvalidPrecisions() {
+    try {
+      new HyperLogLog(3);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new HyperLogLog(10).merge(new HyperLogLog(11));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static void assertEstimate(int precision, int cardinality, double relativeError) {
+    HyperLogLog sketch = new HyperLogLog(precision);
+    for (int key = 0; key < cardinality; key++) {
+      sketch.add(hash(key));
+    }
+    long estimate = sketch.estimate();
+    assertEquals("Cardinality " + cardinality + ", estimated " + estimate,
+        cardinality, estimate, Math.max(1, cardinality * relativeError));
+  }
+
+  private static long hash(int key) {
+    return HASH.hashInt(key).asLong();
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.emmnotifications.InstallFailureAggregator.FailureCount;
+import com.google.android.work.emmnotifications.InstallFailureAggregator.Summary;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class InstallFailureAggregatorTest extends TestCase {
+
+  private static final int BUCKET_SECONDS = 60;
+  private static final long BUCKET_MILLIS = BUCKET_SECONDS * 1000L;
+
+  // Ten buckets, and the three heaviest keys.
+  private final InstallFailureAggregator aggregator =
+      new InstallFailureAggregator(BUCKET_SECONDS, 10, 3, new Metrics());
+  // In the middle of a bucket.
+  private final long now = 1000000 * BUCKET_MILLIS + BUCKET_MILLIS / 2;
+
+  public void testCountsFailures() {
+    for (int i = 0; i < 5; i++) {
+      aggregator.add("E1", "app:a", "TIMEOUT", "device" + i, now);
+    }
+    aggregator.add("E1", "app:b", "TIMEOUT", "device0", now);
+    aggregator.add("E2", "app:a", "TIMEOUT", "device9", now);
+
+    Summary summary = aggregator.getSummary(BUCKET_SECONDS, null, now);
+    assertEquals(BUCKET_SECONDS, summary.getWindowSeconds());
+    assertEquals(7, summary.getFailures());
+    assertEquals(6, summary.getDistinctDevices());
+    FailureCount top = summary.getTop().get(0);
+    assertEquals("E1", top.getEnterpriseId());
+    assertEquals("app:a", top.getProductId());
+    assertEquals("TIMEOUT", top.getReason());
+    assertEquals(5, top.getFailures());
+    assertEquals(5, top.getDistinctDevices());
+
+    Summary enterprise = aggregator.getSummary(BUCKET_SECONDS, "E1", now);
+    assertEquals(6, enterprise.getFailures());
+    assertEquals(-1, enterprise.getDistinctDevices());
+    assertEquals(2, enterprise.getTop().size());
+
+    assertEquals(1, aggregator.getFailureCount(
+        BUCKET_SECONDS, "E2", "app:a", "TIMEOUT", now).getFailures());
+    assertEquals(0, aggregator.getFailureCount(
+        BUCKET_SECONDS, "E2", "app:b", "TIMEOUT", now).getFailures());
+  }
+
+  public void testNeverUnderestimates() {
+    Random random = new Random(1);
+    int[] counts = new int[3000];
+    for (int i = 0; i < 20000; i++) {
+      int product = (int) Math.min(counts.length - 1, Math.abs(random.nextGaussian()) * 500);
+      counts[product]++;
+      aggregator.add("E1", "app:" + product, "TIMEOUT", "device" + i, now);
+    }
+    for (int product = 0; product < counts.length; product++) {
+      FailureCount count =
+          aggregator.getFailureCount(BUCKET_SECONDS, "E1", "app:" + product, "TIMEOUT", now);
+      assertTrue("Product " + product, count.getFailures() >= counts[product]);
+    }
+  }
+
+  public void testTracksKeysAboveOneInK() {
+    // Among many keys failing once, one has over a third of the failures, with k = 3.
+    Random random = new Random(2);
+    int heavy = 0;
+    for (int i = 0; i < 3000; i++) {
+      if (random.nextInt(5) < 2) {
+        aggregator.add("E1", "app:heavy", "TIMEOUT", "device" + i, now);
+        heavy++;
+      } else {
+        aggregator.add("E1", "app:" + i, "TIMEOUT", "device" + i, now);
+      }
+    }
+    assertTrue(heavy > 1000);
+    FailureCount top = aggregator.getSummary(BUCKET_SECONDS, null, now).getTop().get(0);
+    assertEquals("app:heavy", top.getProductId());
+    assertTrue(top.getFailures() >= heavy);
+    assertEquals(3, aggregator.getSummary(BUCKET_SECONDS, null, now).getTop().size());
+  }
+
+  public void testExpiresBuckets() {
+    aggregator.add("E1", "app:a", "TIMEOUT", "device0", now - 2 * BUCKET_MILLIS);
+    // Beyond the ring, and overwritten by the bucket of now.
+    aggregator.add("E1", "app:a", "TIMEOUT", "device1", now - 10 * BUCKET_MILLIS);
+    aggregator.add("E1", "app:a", "TIMEOUT", "device2", now);
+
+    assertEquals(1, aggregator.getSummary(BUCKET_SECONDS, null, now).getFailures());
+    assertEquals(2, aggregator.getSummary(3 * BUCKET_SECONDS, null, now).getFailures());
+    assertEquals(2, aggregator.getSummary(10 * BUCKET_SECONDS, null, now).getFailures());
+    assertEquals(2, aggregator.getFailureCount(
+        10 * BUCKET_SECONDS, "E1", "app:a", "TIMEOUT", now).getFailures());
+
+    // Later on, the failures leave the window.
+    long later = now + 8 * BUCKET_MILLIS;
+    assertEquals(1, aggregator.getSummary(10 * BUCKET_SECONDS, null, later).getFailures());
+    later = now + 10 * BUCKET_MILLIS;
+    assertEquals(0, aggregator.getSummary(10 * BUCKET_SECONDS, null, later).getFailures());
+    assertEquals(0, aggregator.getSummary(10 * BUCKET_SECONDS, null, later).getTop().size());
+  }
+
+  public void testRoundsWindowsToBuckets() {
+    assertEquals(BUCKET_SECONDS, aggregator.getSummary(1, null, now).getWindowSeconds());
+    assertEquals(2 * BUCKET_SECONDS,
+        aggregator.getSummary(BUCKET_SECONDS + 1, null, now).getWindowSeconds());
+    assertEquals(10 * BUCKET_SECONDS, aggregator.getSummary(3600, null, now).getWindowSeconds());
+    assertEquals(10 * BUCKET_SECONDS, aggregator.getMaxWindowSeconds());
+  }
+
+  public void testComparesToPreviousWindow() {
+    for (int i = 0; i < 4; i++) {
+      aggregator.add("E1", "app:a", "TIMEOUT", "device" + i, now - 5 * BUCKET_MILLIS);
+    }
+    aggregator.add("E1", "app:a", "TIMEOUT", "device0", now - BUCKET_MILLIS);
+
+    // Five buckets and the five before them fit in the ring.
+    Summary summary = aggregator.getSummary(5 * BUCKET_SECONDS, null, now);
+    assertEquals(1, summary.getFailures());
+    assertEquals(4, summary.getPreviousFailures());
+    assertEquals(4, summary.getTop().get(0).getPreviousFailures());
+    assertEquals(4, aggregator.getSummary(5 * BUCKET_SECONDS, "E1", now).getPreviousFailures());
+    assertEquals(4, aggregator.getFailureCount(
+        5 * BUCKET_SECONDS, "E1", "app:a", "TIMEOUT", now).getPreviousFailures());
+  }
+
+  public void testNoPreviousWindowBeyondRing() {
+    aggregator.add("E1", "app:a", "TIMEOUT", "device0", now);
+
+    // Six buckets and the six before them don't.
+    Summary summary = aggregator.getSummary(6 * BUCKET_SECONDS, null, now);
+    assertEquals(1, summary.getFailures());
+    assertEquals(-1, summary.getPreviousFailures());
+    assertEquals(-1, summary.getTop().get(0).getPreviousFailures());
+    assertEquals(-1, aggregator.getSummary(6 * BUCKET_SECONDS, "E1", now).getPreviousFailures());
+    assertEquals(-1, aggregator.getFailureCount(
+        6 * BUCKET_SECONDS, "E1", "app:a", "TIMEOUT", now).getPreviousFailures());
+  }
+
+  public void testNoDevicesForKeysNeverHeavy() {
+    assertEquals(-1, aggregator.getFailureCount(
+        BUCKET_SECONDS, "E1", "app:a", "TIMEOUT", now).getDistinctDevices());
+  }
+}
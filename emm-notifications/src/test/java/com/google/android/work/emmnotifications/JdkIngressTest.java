@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class JdkIngressTest extends TestCase {
+
+  private final ExecutorService workers = Executors.newCachedThreadPool();
+  private final ExecutorService clients = Executors.newCachedThreadPool();
+  // Opened once the worker got a request, which it answers once release is opened.
+  private final CountDownLatch received = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private int port;
+  private JdkIngress ingress;
+
+  @Override
+  protected void setUp() throws IOException {
+    ServerSocket probe = new ServerSocket(0);
+    port = probe.getLocalPort();
+    probe.close();
+    ingress = new JdkIngress(new InetSocketAddress("127.0.0.1", port), 0);
+    // Answers on another thread after the handler returned, as PushHandler does.
+    ingress.createContext("/push", new HttpHandler() {
+      public void handle(final HttpExchange exchange) {
+        workers.execute(new Runnable() {
+          public void run() {
+            received.countDown();
+            try {
+              release.await();
+              exchange.sendResponseHeaders(204, -1);
+            } catch (Exception e) {
+              // The exchange is closed below anyway.
+            } finally {
+              exchange.close();
+            }
+          }
+        });
+      }
+    });
+    ingress.start();
+  }
+
+  @Override
+  protected void tearDown() {
+    release.countDown();
+    ingress.stop();
+    workers.shutdownNow();
+    clients.shutdownNow();
+  }
+
+  public void testDrainReturnsOnceExchangesAreClosed() throws Exception {
+    Future<Integer> push = post();
+    assertTrue(received.await(5, TimeUnit.SECONDS));
+    workers.execute(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        release.countDown();
+      }
+    });
+
+    long start = System.nanoTime();
+    assertTrue(ingress.drain(30, TimeUnit.SECONDS));
+    // Well before the timeout, unlike HttpServer.stop(delay).
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+    assertEquals(204, push.get(5, TimeUnit.SECONDS).intValue());
+  }
+
+  public void testDrainTimesOutWithExchangeInFlight() throws Exception {
+    post();
+    assertTrue(received.await(5, TimeUnit.SECONDS));
+    assertFalse(ingress.drain(100, TimeUnit.MILLISECONDS));
+  }
+
+  public void testDrainRejectsNewRequests() throws Exception {
+    Future<Integer> first = post();
+    assertTrue(received.await(5, TimeUnit.SECONDS));
+    final AtomicReference<Boolean> drained = new AtomicReference<Boolean>();
+    Thread drainer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          drained.set(ingress.drain(30, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    drainer.start();
+    Thread.sleep(50);
+
+    assertEquals(503, post().get(5, TimeUnit.SECONDS).intValue());
+    release.countDown();
+    assertEquals(204, first.get(5, TimeUnit.SECONDS).intValue());
+    drainer.join(5000);
+    assertEquals(Boolean.TRUE, drained.get());
+  }
+
+  public void testHandlerFailureDoesNotHoldUpDrain() throws Exception {
+    ingress.createContext("/fail", new HttpHandler() {
+      public void handle(HttpExchange exchange) {
+        throw new IllegalStateException("Handler failure");
+      }
+    });
+    try {
+      post("/fail").get(5, TimeUnit.SECONDS);
+    } catch (Exception expected) {
+      // The server closes the connection without a response.
+    }
+    assertTrue(ingress.drain(1, TimeUnit.SECONDS));
+  }
+
+  private Future<Integer> post() {
+    return post("/push");
+  }
+
+  private Future<Integer> post(final String path) {
+    return clients.submit(new Callable<Integer>() {
+      public Integer call() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)
+            new URL("http://127.0.0.1:" + port + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.getOutputStream().write(new byte[] {'{', '}'});
+        connection.setReadTimeout(5000);
+        try {
+          return connection.getResponseCode();
+        } finally {
+          connection.disconnect();
+        }
+      }
+    });
+  }
+}
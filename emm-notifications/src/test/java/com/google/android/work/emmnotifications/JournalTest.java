@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class JournalTest extends TestCase {
+
+  private static final int SEGMENT_SIZE = 4096;
+  private static final int HEADER_SIZE = 16;
+
+  private File directory;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("journal").toFile();
+  }
+
+  @Override
+  protected void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  public void testRecoversDurableRecords() throws Exception {
+    Journal journal = open();
+    append(journal, "first");
+    append(journal, "second");
+    append(journal, "third");
+    journal.close();
+
+    journal = open();
+    assertEquals(3, journal.getRecoveredRecords());
+    journal.close();
+  }
+
+  public void testEmptyPayloadDoesNotEndTheSegment() throws Exception {
+    Journal journal = open();
+    append(journal, "first");
+    append(journal, "");
+    append(journal, "third");
+    journal.close();
+
+    journal = open();
+    assertEquals(3, journal.getRecoveredRecords());
+    append(journal, "fourth");
+    journal.close();
+
+    // The record appended after recovery went after the empty one's successor, not over it.
+    journal = open();
+    assertEquals(4, journal.getRecoveredRecords());
+    journal.close();
+  }
+
+  public void testTornRecordIsDiscarded() throws Exception {
+    Journal journal = open();
+    append(journal, "first");
+    append(journal, "second");
+    journal.close();
+
+    // A record whose length made it to disk but not its payload.
+    int end = 2 * HEADER_SIZE + "first".length() + "second".length();
+    RandomAccessFile segment = new RandomAccessFile(onlySegment(), "rw");
+    try {
+      segment.seek(end);
+      segment.writeInt(100 + 1);
+      segment.writeInt(0x12345678);
+      segment.write(new byte[] {1, 2, 3});
+    } finally {
+      segment.close();
+    }
+
+    journal = open();
+    assertEquals(2, journal.getRecoveredRecords());
+    append(journal, "third");
+    journal.close();
+
+    journal = open();
+    assertEquals(3, journal.getRecoveredRecords());
+    journal.close();
+  }
+
+  public void testCorruptedPayloadEndsTheSegment() throws Exception {
+    Journal journal = open();
+    append(journal, "first");
+    append(journal, "second");
+    journal.close();
+
+    RandomAccessFile segment = new RandomAccessFile(onlySegment(), "rw");
+    try {
+      segment.seek(2 * HEADER_SIZE + "first".length());
+      segment.write('S');
+    } finally {
+      segment.close();
+    }
+
+    journal = open();
+    assertEquals(1, journal.getRecoveredRecords());
+    journal.close();
+  }
+
+  public void testRollsOverFullSegments() throws Exception {
+    Journal journal = open();
+    byte[] payload = new byte[1000];
+    for (int i = 0; i < 10; i++) {
+      journal.awaitDurable(journal.append(ByteBuffer.wrap(payload)));
+    }
+    journal.close();
+    assertTrue(directory.listFiles().length > 1);
+
+    journal = open();
+    assertEquals(10, journal.getRecoveredRecords());
+    journal.close();
+  }
+
+  public void testAppendAfterCloseFails() throws Exception {
+    Journal journal = open();
+    journal.close();
+    try {
+      append(journal, "late");
+      fail("Appended to a closed journal");
+    } catch (IOException expected) {
+    }
+  }
+
+  private Journal open() throws IOException {
+    Journal journal = new Journal(directory, SEGMENT_SIZE, Long.MAX_VALUE, 0);
+    journal.start();
+    return journal;
+  }
+
+  private static void append(Journal journal, String payload) throws IOException {
+    journal.awaitDurable(
+        journal.append(ByteBuffer.wrap(payload.getBytes(StandardCharsets.UTF_8))));
+  }
+
+  private File onlySegment() {
+    File[] files = directory.listFiles();
+    assertEquals(1, files.length);
+    return files[0];
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.services.pubsub.model.ModifyAckDeadlineRequest;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class LeaseManagerTest extends TestCase {
+
+  private static final String SUBSCRIPTION = "projects/test/subscriptions/emm";
+
+  private final RecordingPubsubTransport transport = new RecordingPubsubTransport();
+  private LeaseManager leases;
+
+  @Override
+  protected void tearDown() {
+    if (leases != null) {
+      leases.close();
+    }
+  }
+
+  public void testExtendsByInitialDeadlineWithoutSamples() {
+    leases = new LeaseManager(transport.newClient(), SUBSCRIPTION, 30);
+    assertEquals(30, leases.getExtensionSeconds());
+  }
+
+  public void testEstimatesFromSmoothedProcessingTime() {
+    leases = new LeaseManager(transport.newClient(), SUBSCRIPTION, 30);
+    // The first sample sets the mean and half of it as the deviation: 20s + 4 * 10s.
+    leases.recordProcessingTime(20000);
+    assertEquals(60, leases.getExtensionSeconds());
+    // The deviation moves by a quarter, to 9.5s, and the mean by an eighth, to 21s.
+    leases.recordProcessingTime(28000);
+    assertEquals(59, leases.getExtensionSeconds());
+  }
+
+  public void testConvergesOnSteadyProcessingTime() {
+    leases = new LeaseManager(transport.newClient(), SUBSCRIPTION, 30);
+    for (int i = 0; i < 200; i++) {
+      leases.recordProcessingTime(30000);
+    }
+    assertEquals(30, leases.getExtensionSeconds());
+  }
+
+  public void testClampsToPubsubLimits() {
+    leases = new LeaseManager(transport.newClient(), SUBSCRIPTION, 30);
+    for (int i = 0; i < 100; i++) {
+      leases.recordProcessingTime(50);
+    }
+    assertEquals(10, leases.getExtensionSeconds());
+    for (int i = 0; i < 100; i++) {
+      leases.recordProcessingTime(3600000);
+    }
+    assertEquals(600, leases.getExtensionSeconds());
+  }
+
+  public void testNacksWithZeroDeadline() throws Exception {
+    leases = new LeaseManager(transport.newClient(), SUBSCRIPTION, 30);
+    leases.register("a");
+    leases.register("b");
+    leases.register("c");
+    leases.nack("a");
+    leases.nack("b");
+    // Neither a message not leased nor one released is nacked.
+    leases.nack("unknown");
+    leases.release("c");
+    leases.nack("c");
+    leases.close();
+
+    List<RecordingPubsubTransport.Call> calls = transport.getCalls("modifyAckDeadline");
+    assertEquals(1, calls.size());
+    ModifyAckDeadlineRequest request = calls.get(0).parse(ModifyAckDeadlineRequest.class);
+    assertEquals(Arrays.asList("a", "b"), request.getAckIds());
+    assertEquals(0, request.getAckDeadlineSeconds().intValue());
+  }
+
+  public void testCompletedMessagesAreNotNacked() {
+    leases = new LeaseManager(transport.newClient(), SUBSCRIPTION, 30);
+    leases.register("a");
+    leases.complete("a");
+    leases.nack("a");
+    leases.close();
+    assertTrue(transport.getCalls("modifyAckDeadline").isEmpty());
+  }
+
+  public void testExtendsExpiringLeases() throws Exception {
+    // Within the margin from the start, so that the first check extends it.
+    leases = new LeaseManager(transport.newClient(), SUBSCRIPTION, 2);
+    leases.register("a");
+    leases.register("b");
+    leases.complete("b");
+    leases.start();
+
+    ModifyAckDeadlineRequest request = transport.awaitCalls("modifyAckDeadline", 1, 10000)
+        .get(0).parse(ModifyAckDeadlineRequest.class);
+    assertEquals(Arrays.asList("a"), request.getAckIds());
+    // Extended by the estimate from the completed message, clamped to the minimum.
+    assertEquals(10, request.getAckDeadlineSeconds().intValue());
+  }
+
+  public void testKeepsLeasesOnApiErrors() throws IOException {
+    transport.setStatusCode(500);
+    leases = new LeaseManager(transport.newClient(), SUBSCRIPTION, 30);
+    leases.register("a");
+    leases.nack("a");
+    // Logged, Cloud Pub/Sub redelivers the message once its deadline expired.
+    leases.close();
+    assertEquals(1, transport.getCalls("modifyAckDeadline").size());
+  }
+}
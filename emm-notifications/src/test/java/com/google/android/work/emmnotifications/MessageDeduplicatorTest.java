@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MessageDeduplicatorTest extends TestCase {
+
+  private static final long TTL_MILLIS = 60000;
+
+  public void testAddReportsRedeliveries() {
+    MessageDeduplicator deduplicator = new MessageDeduplicator(10, TTL_MILLIS, new Metrics());
+    assertTrue(deduplicator.add("1"));
+    assertTrue(deduplicator.add("2"));
+    assertFalse(deduplicator.add("1"));
+    assertFalse(deduplicator.add("2"));
+    assertEquals(2, deduplicator.size());
+  }
+
+  public void testClaimKeepsRedeliveriesInFlightUntilCompleted() {
+    MessageDeduplicator deduplicator = new MessageDeduplicator(10, TTL_MILLIS, new Metrics());
+    assertEquals(MessageDeduplicator.Claim.NEW, deduplicator.claim("1"));
+    assertEquals(MessageDeduplicator.Claim.IN_FLIGHT, deduplicator.claim("1"));
+    assertEquals(0, deduplicator.size());
+    deduplicator.complete("1");
+    assertEquals(MessageDeduplicator.Claim.PROCESSED, deduplicator.claim("1"));
+    assertEquals(1, deduplicator.size());
+  }
+
+  public void testReleasedClaimIsNewAgain() {
+    MessageDeduplicator deduplicator = new MessageDeduplicator(10, TTL_MILLIS, new Metrics());
+    assertEquals(MessageDeduplicator.Claim.NEW, deduplicator.claim("1"));
+    deduplicator.release("1");
+    assertEquals(MessageDeduplicator.Claim.NEW, deduplicator.claim("1"));
+    assertEquals(0, deduplicator.size());
+  }
+
+  public void testClaimedMessagesAreNotSnapshotted() throws Exception {
+    File snapshot = File.createTempFile("dedupe", ".snapshot");
+    try {
+      MessageDeduplicator deduplicator = new MessageDeduplicator(10, TTL_MILLIS, new Metrics());
+      deduplicator.claim("1");
+      deduplicator.claim("2");
+      deduplicator.complete("2");
+      deduplicator.writeSnapshot(snapshot);
+
+      MessageDeduplicator warmed = new MessageDeduplicator(10, TTL_MILLIS, new Metrics());
+      warmed.startSnapshots(snapshot, 3600);
+      assertEquals(MessageDeduplicator.Claim.NEW, warmed.claim("1"));
+      assertEquals(MessageDeduplicator.Claim.PROCESSED, warmed.claim("2"));
+      warmed.close();
+    } finally {
+      snapshot.delete();
+    }
+  }
+
+  public void testEvictsOldestWhenFull() {
+    MessageDeduplicator deduplicator = new MessageDeduplicator(3, TTL_MILLIS, new Metrics());
+    deduplicator.add("1");
+    deduplicator.add("2");
+    deduplicator.add("3");
+    deduplicator.add("4");
+    assertEquals(3, deduplicator.size());
+    assertFalse(deduplicator.add("2"));
+    assertFalse(deduplicator.add("3"));
+    assertFalse(deduplicator.add("4"));
+    assertTrue(deduplicator.add("1"));
+  }
+
+  public void testExpiresAfterTimeToLive() throws InterruptedException {
+    MessageDeduplicator deduplicator = new MessageDeduplicator(10, 10, new Metrics());
+    deduplicator.add("1");
+    Thread.sleep(50);
+    assertTrue(deduplicator.add("1"));
+    assertEquals(1, deduplicator.size());
+  }
+
+  public void testEvictionShiftsBackCollidingEntries() {
+    // Capacity 8 gives a table of 16 slots. The IDs all have their home in the last slot, so
+    // their probe sequence wraps around to the start of the table.
+    int capacity = 8;
+    List<String> ids = collidingIds(15, 16, capacity);
+    MessageDeduplicator deduplicator = new MessageDeduplicator(capacity, TTL_MILLIS, new Metrics());
+    for (String id : ids) {
+      assertTrue(deduplicator.add(id));
+    }
+    // Each of these evicts the oldest entry, which is at the head of the probe sequence.
+    for (int i = 0; i < capacity / 2; i++) {
+      assertTrue(deduplicator.add("other-" + i));
+    }
+    for (int i = capacity / 2; i < capacity; i++) {
+      assertFalse(ids.get(i), deduplicator.add(ids.get(i)));
+    }
+    assertTrue(deduplicator.add(ids.get(0)));
+  }
+
+  public void testRemoveShiftsBackCollidingEntries() {
+    int capacity = 8;
+    List<String> ids = collidingIds(3, 16, 5);
+    MessageDeduplicator deduplicator = new MessageDeduplicator(capacity, TTL_MILLIS, new Metrics());
+    for (String id : ids) {
+      deduplicator.add(id);
+    }
+    deduplicator.remove(ids.get(1));
+    deduplicator.remove(ids.get(3));
+    assertFalse(deduplicator.add(ids.get(0)));
+    assertFalse(deduplicator.add(ids.get(2)));
+    assertFalse(deduplicator.add(ids.get(4)));
+    assertTrue(deduplicator.add(ids.get(1)));
+    assertTrue(deduplicator.add(ids.get(3)));
+  }
+
+  public void testRemovedEntriesAreEvictedInOrder() {
+    MessageDeduplicator deduplicator = new MessageDeduplicator(3, TTL_MILLIS, new Metrics());
+    deduplicator.add("1");
+    deduplicator.add("2");
+    deduplicator.remove("2");
+    deduplicator.add("3");
+    deduplicator.add("4");
+    // "1" was evicted, and then the tombstone of "2".
+    assertTrue(deduplicator.add("1"));
+    assertFalse(deduplicator.add("3"));
+    assertFalse(deduplicator.add("4"));
+    assertFalse(deduplicator.add("1"));
+  }
+
+  public void testConcurrentDeliveriesAreNewOnce() throws InterruptedException {
+    final MessageDeduplicator deduplicator =
+        new MessageDeduplicator(100000, TTL_MILLIS, new Metrics());
+    final int messages = 10000;
+    final AtomicInteger added = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < messages; i++) {
+            if (deduplicator.add(Integer.toString(i))) {
+              added.incrementAndGet();
+            }
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(messages, added.get());
+  }
+
+  public void testSnapshotWarmsTheCache() throws Exception {
+    File snapshot = File.createTempFile("dedupe", ".snapshot");
+    try {
+      MessageDeduplicator deduplicator = new MessageDeduplicator(10, TTL_MILLIS, new Metrics());
+      deduplicator.add("1");
+      deduplicator.add("2");
+      deduplicator.add("3");
+      deduplicator.remove("2");
+      deduplicator.writeSnapshot(snapshot);
+
+      MessageDeduplicator warmed = new MessageDeduplicator(10, TTL_MILLIS, new Metrics());
+      warmed.startSnapshots(snapshot, 3600);
+      assertEquals(2, warmed.size());
+      assertFalse(warmed.add("1"));
+      assertTrue(warmed.add("2"));
+      assertFalse(warmed.add("3"));
+      warmed.close();
+    } finally {
+      snapshot.delete();
+    }
+  }
+
+  /** Returns {@code count} message IDs whose hash has its home in {@code slot}. */
+  private static List<String> collidingIds(int slot, int tableSize, int count) {
+    List<String> ids = new ArrayList<String>();
+    for (int i = 0; ids.size() < count; i++) {
+      String id = "message-" + i;
+      long hash = MessageDeduplicator.hash(id);
+      if (((int) (hash ^ (hash >>> 32)) & (tableSize - 1)) == slot) {
+        ids.add(id);
+      }
+    }
+    return ids;
+  }
+}
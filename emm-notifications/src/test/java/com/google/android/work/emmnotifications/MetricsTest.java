@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+public class MetricsTest extends TestCase {
+
+  public void testRendersCountersAndGauges() throws IOException {
+    Metrics metrics = new Metrics();
+    metrics.counter("emm_test_total", "Test counter.", "type", "A").add(3);
+    metrics.counter("emm_test_total", "Test counter.", "type", "B").increment();
+    metrics.gauge("emm_test_gauge", "Test gauge.", new Metrics.Gauge() {
+      public double value() {
+        return 1.5;
+      }
+    });
+    String text = render(metrics);
+    assertTrue(text, text.contains("# TYPE emm_test_total counter\n"));
+    assertTrue(text, text.contains("emm_test_total{type=\"A\"} 3\n"));
+    assertTrue(text, text.contains("emm_test_total{type=\"B\"} 1\n"));
+    assertTrue(text, text.contains("# TYPE emm_test_gauge gauge\n"));
+    assertTrue(text, text.contains("emm_test_gauge 1.5\n"));
+  }
+
+  public void testReturnsTheSameSeries() {
+    Metrics metrics = new Metrics();
+    assertSame(metrics.counter("emm_test_total", "Test counter."),
+        metrics.counter("emm_test_total", "Test counter."));
+    assertSame(metrics.histogram("emm_test_seconds", "Test histogram."),
+        metrics.histogram("emm_test_seconds", "Test histogram."));
+  }
+
+  public void testRendersHistogramsInSeconds() throws IOException {
+    Metrics metrics = new Metrics();
+    Histogram histogram = metrics.histogram("emm_test_seconds", "Test histogram.");
+    histogram.record(50);
+    histogram.record(2000);
+    histogram.record(20000000);
+    // Shares its bucket with 2500us, so only counted from the next bound on.
+    histogram.record(2510);
+    String text = render(metrics);
+    assertTrue(text, text.contains("emm_test_seconds_bucket{le=\"1.0E-4\"} 1\n"));
+    assertTrue(text, text.contains("emm_test_seconds_bucket{le=\"0.0025\"} 2\n"));
+    assertTrue(text, text.contains("emm_test_seconds_bucket{le=\"0.005\"} 3\n"));
+    assertTrue(text, text.contains("emm_test_seconds_bucket{le=\"10.0\"} 3\n"));
+    assertTrue(text, text.contains("emm_test_seconds_bucket{le=\"+Inf\"} 4\n"));
+    assertTrue(text, text.contains("emm_test_seconds_count 4\n"));
+  }
+
+  public void testScopesLabels() throws IOException {
+    Metrics metrics = new Metrics();
+    metrics.withLabel("subscription", "a\"b").counter("emm_test_total", "Test counter.").add(2);
+    String text = render(metrics);
+    assertTrue(text, text.contains("emm_test_total{subscription=\"a\\\"b\"} 2\n"));
+  }
+
+  public void testRejectsTypeChanges() {
+    Metrics metrics = new Metrics();
+    metrics.counter("emm_test_total", "Test counter.");
+    try {
+      metrics.histogram("emm_test_total", "Test histogram.");
+      fail("Registered a counter as a histogram");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static String render(Metrics metrics) throws IOException {
+    StringBuilder text = new StringBuilder();
+    metrics.writeTo(text);
+    return text.toString();
+  }
+}
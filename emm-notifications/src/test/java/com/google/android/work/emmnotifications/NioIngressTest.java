@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class NioIngressTest extends TestCase {
+
+  private static final int MAX_REQUEST_BYTES = 64;
+
+  private final BlockingQueue<String> requests = new LinkedBlockingQueue<String>();
+  private int port;
+  private NioIngress ingress;
+
+  @Override
+  protected void setUp() throws IOException {
+    ServerSocket probe = new ServerSocket(0);
+    port = probe.getLocalPort();
+    probe.close();
+    ingress = new NioIngress(new InetSocketAddress("127.0.0.1", port), 0, 4, MAX_REQUEST_BYTES,
+        60, 1024, 1, false, new Metrics());
+    // Echoes the request line, the X-Test header and the body, and answers 204 to /empty.
+    ingress.createContext("/echo", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        String request = exchange.getRequestMethod() + " " + exchange.getRequestURI() + " "
+            + exchange.getRequestHeaders().getFirst("X-Test") + " "
+            + new String(ByteStreams.toByteArray(exchange.getRequestBody()),
+                StandardCharsets.UTF_8);
+        requests.add(request);
+        byte[] body = request.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+      }
+    });
+    ingress.createContext("/empty", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+      }
+    });
+    ingress.start();
+  }
+
+  @Override
+  protected void tearDown() {
+    ingress.stop();
+  }
+
+  public void testParsesRequest() throws IOException {
+    Socket socket = connect();
+    send(socket, "POST /echo?a=b HTTP/1.1\r\nX-Test: value\r\nContent-Length: 5\r\n\r\nhello");
+    String response = readResponse(socket.getInputStream());
+    assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+    assertTrue(response, response.contains("\r\nContent-Length: 26\r\n"));
+    assertTrue(response, response.endsWith("\r\n\r\nPOST /echo?a=b value hello"));
+    socket.close();
+  }
+
+  public void testReadsRequestSentInPieces() throws Exception {
+    Socket socket = connect();
+    send(socket, "POST /echo HTTP/1.1\r\nContent-");
+    Thread.sleep(20);
+    send(socket, "Length: 5\r\n\r\nhe");
+    Thread.sleep(20);
+    send(socket, "llo");
+    String response = readResponse(socket.getInputStream());
+    assertTrue(response, response.endsWith("POST /echo null hello"));
+    socket.close();
+  }
+
+  public void testAnswersPipelinedRequestsInOrder() throws IOException {
+    Socket socket = connect();
+    send(socket, "POST /echo HTTP/1.1\r\nContent-Length: 3\r\n\r\none"
+        + "POST /echo HTTP/1.1\r\nContent-Length: 3\r\n\r\ntwo"
+        + "GET /echo HTTP/1.1\r\n\r\n");
+    InputStream in = socket.getInputStream();
+    assertTrue(readResponse(in).endsWith("POST /echo null one"));
+    assertTrue(readResponse(in).endsWith("POST /echo null two"));
+    assertTrue(readResponse(in).endsWith("GET /echo null "));
+    socket.close();
+  }
+
+  public void testOmitsContentLengthOnNoContent() throws IOException {
+    Socket socket = connect();
+    send(socket, "GET /empty HTTP/1.1\r\n\r\n");
+    String response = readResponse(socket.getInputStream());
+    assertTrue(response, response.startsWith("HTTP/1.1 204 No Content\r\n"));
+    assertFalse(response, response.contains("Content-Length"));
+    socket.close();
+  }
+
+  public void testClosesHttp10ConnectionAfterResponse() throws IOException {
+    Socket socket = connect();
+    send(socket, "GET /echo HTTP/1.0\r\n\r\n");
+    String response = new String(ByteStreams.toByteArray(socket.getInputStream()),
+        StandardCharsets.ISO_8859_1);
+    assertTrue(response, response.contains("\r\nConnection: close\r\n"));
+    socket.close();
+  }
+
+  public void testAnswersUnknownPathAndKeepsConnection() throws IOException {
+    Socket socket = connect();
+    send(socket, "GET /other HTTP/1.1\r\n\r\nGET /echo HTTP/1.1\r\n\r\n");
+    InputStream in = socket.getInputStream();
+    assertTrue(readResponse(in).startsWith("HTTP/1.1 404 Not Found\r\n"));
+    assertTrue(readResponse(in).startsWith("HTTP/1.1 200 OK\r\n"));
+    socket.close();
+  }
+
+  public void testRejectsMalformedRequestLine() throws IOException {
+    assertEquals("HTTP/1.1 400 Bad Request", statusLine("GET /echo\r\n\r\n"));
+  }
+
+  public void testRejectsMalformedHeader() throws IOException {
+    assertEquals("HTTP/1.1 400 Bad Request", statusLine("GET /echo HTTP/1.1\r\nNoColon\r\n\r\n"));
+  }
+
+  public void testRejectsBadContentLength() throws IOException {
+    assertEquals("HTTP/1.1 400 Bad Request",
+        statusLine("POST /echo HTTP/1.1\r\nContent-Length: -1\r\n\r\n"));
+  }
+
+  public void testRejectsChunkedRequest() throws IOException {
+    assertEquals("HTTP/1.1 501 Not Implemented",
+        statusLine("POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"));
+  }
+
+  public void testRejectsTooLargeRequest() throws IOException {
+    assertEquals("HTTP/1.1 413 Payload Too Large", statusLine(
+        "POST /echo HTTP/1.1\r\nContent-Length: " + (MAX_REQUEST_BYTES + 1) + "\r\n\r\n"));
+  }
+
+  public void testRejectsTooLargeHead() throws IOException {
+    StringBuilder request = new StringBuilder("GET /echo HTTP/1.1\r\nX-Test: ");
+    for (int i = 0; i < 1024; i++) {
+      request.append('x');
+    }
+    assertEquals("HTTP/1.1 431 Request Header Fields Too Large",
+        statusLine(request.append("\r\n\r\n").toString()));
+  }
+
+  public void testDrainWaitsForRequestInFlight() throws Exception {
+    Socket socket = connect();
+    send(socket, "POST /echo HTTP/1.1\r\nContent-Length: 5\r\n\r\nhel");
+    Thread.sleep(20);
+    Thread drainer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          ingress.drain(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    drainer.start();
+    while (!ingress.isDraining()) {
+      Thread.sleep(1);
+    }
+    send(socket, "lo");
+    String response = readResponse(socket.getInputStream());
+    assertTrue(response, response.contains("\r\nConnection: close\r\n"));
+    assertTrue(response, response.endsWith("POST /echo null hello"));
+    drainer.join(5000);
+    assertFalse(drainer.isAlive());
+    socket.close();
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket("127.0.0.1", port);
+    socket.setSoTimeout(5000);
+    return socket;
+  }
+
+  /** Returns the status line of a request answered by the ingress itself. */
+  private String statusLine(String request) throws IOException {
+    Socket socket = connect();
+    try {
+      send(socket, request);
+      String response = new String(ByteStreams.toByteArray(socket.getInputStream()),
+          StandardCharsets.ISO_8859_1);
+      assertTrue(response, response.contains("\r\nConnection: close\r\n"));
+      return response.substring(0, response.indexOf("\r\n"));
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static void send(Socket socket, String request) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+    out.flush();
+  }
+
+  /** Reads one response, using its Content-Length to find its end. */
+  private static String readResponse(InputStream in) throws IOException {
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    while (!head.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+      int b = in.read();
+      if (b < 0) {
+        throw new IOException("Connection closed in the response head: " + head);
+      }
+      head.write(b);
+    }
+    String text = head.toString("ISO-8859-1");
+    int length = 0;
+    int index = text.indexOf("Content-Length: ");
+    if (index >= 0) {
+      length = Integer.parseInt(text.substring(index + 16, text.indexOf("\r\n", index)));
+    }
+    byte[] body = new byte[length];
+    ByteStreams.readFully(in, body);
+    return text + new String(body, StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.AppUpdateEvent;
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+import com.google.common.io.BaseEncoding;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+public class NotificationLogTest extends TestCase {
+
+  private static final byte[] PAYLOAD = MdmPushNotification.newBuilder()
+      .setEnterpriseId("LC0123abcd")
+      .setEventNotificationSentTimestampMillis(1450000000000L)
+      .addAppUpdateEvent(AppUpdateEvent.newBuilder().setProductId("app:com.example.one"))
+      .addAppUpdateEvent(AppUpdateEvent.newBuilder().setProductId("app:com.example.two"))
+      .build()
+      .toByteArray();
+
+  private File directory;
+  private Metrics metrics;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("notification-log").toFile();
+    metrics = new Metrics();
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testWritesJsonLine() throws Exception {
+    NotificationLog log = newLog(16, 0);
+    log.start();
+    PushMessage message = push("42", PAYLOAD);
+    log.log(message, NotificationView.parse(message));
+    log.close();
+
+    List<String> lines = readLines();
+    assertEquals(1, lines.size());
+    String line = lines.get(0);
+    assertTrue(line, line.startsWith("{\"received\":"));
+    assertTrue(line, line.contains("\"messageId\":\"42\""));
+    assertTrue(line, line.contains("\"publishTime\":\"2015-12-13T09:46:40Z\""));
+    assertTrue(line, line.contains("\"subscription\":\"projects/test/subscriptions/emm\""));
+    assertTrue(line, line.contains("\"enterpriseId\":\"LC0123abcd\""));
+    assertTrue(line, line.contains("\"sent\":1450000000000"));
+    assertTrue(line, line.contains("\"events\":{\"APP_UPDATE\":2}"));
+    assertFalse(line, line.contains("payload"));
+    assertEquals(1, metrics.counter("emm_notification_log_written_total", "").get());
+  }
+
+  public void testLogsPayloadOfUndecodableNotification() throws Exception {
+    NotificationLog log = newLog(16, 0);
+    log.start();
+    byte[] garbage = {0x02, 0x00};
+    log.log(push("43", garbage), null);
+    log.close();
+
+    String line = readLines().get(0);
+    assertTrue(line, line.contains("\"undecodable\":true"));
+    assertTrue(line, line.contains("\"payload\":\"" + base64(garbage) + "\""));
+    assertFalse(line, line.contains("enterpriseId"));
+  }
+
+  public void testLogsSampledPayloads() throws Exception {
+    NotificationLog log = newLog(16, 1);
+    log.start();
+    PushMessage message = push("44", PAYLOAD);
+    log.log(message, NotificationView.parse(message));
+    log.close();
+
+    String line = readLines().get(0);
+    assertTrue(line, line.contains("\"payload\":\"" + base64(PAYLOAD) + "\""));
+  }
+
+  public void testDropsWhenBufferIsFull() throws Exception {
+    // Not started, so nothing is written until closed.
+    NotificationLog log = newLog(2, 0);
+    for (int i = 0; i < 3; i++) {
+      PushMessage message = push(Integer.toString(i), PAYLOAD);
+      log.log(message, NotificationView.parse(message));
+    }
+    assertEquals(1, metrics.counter("emm_notification_log_dropped_total", "").get());
+
+    log.start();
+    log.close();
+    List<String> lines = readLines();
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(0), lines.get(0).contains("\"messageId\":\"0\""));
+    assertTrue(lines.get(1), lines.get(1).contains("\"messageId\":\"1\""));
+    assertEquals(2, metrics.counter("emm_notification_log_written_total", "").get());
+  }
+
+  public void testRejectsInvalidSampleRate() throws IOException {
+    NotificationLog log = newLog(2, 0);
+    try {
+      log.setPayloadSampleRate(1.5);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      NotificationLog.checkPayloadSampleRate(-0.1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    log.setPayloadSampleRate(0.5);
+  }
+
+  private NotificationLog newLog(int bufferCapacity, double payloadSampleRate)
+      throws IOException {
+    return new NotificationLog(new File(directory, "notifications-%g.log").getPath(), 1 << 20, 2,
+        bufferCapacity, payloadSampleRate, metrics);
+  }
+
+  private List<String> readLines() throws IOException {
+    return Files.readAllLines(
+        new File(directory, "notifications-0.log").toPath(), StandardCharsets.UTF_8);
+  }
+
+  private static PushMessage push(String messageId, byte[] data) throws IOException {
+    String body = "{\"message\": {\"data\": \"" + base64(data)
+        + "\", \"messageId\": \"" + messageId
+        + "\", \"publishTime\": \"2015-12-13T09:46:40Z\"},"
+        + " \"subscription\": \"projects/test/subscriptions/emm\"}";
+    return PushMessageDecoder.decode(
+        new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static String base64(byte[] data) {
+    return BaseEncoding.base64().encode(data);
+  }
+}
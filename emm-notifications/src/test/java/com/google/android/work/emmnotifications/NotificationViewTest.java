@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.AppUpdateEvent;
+import com.google.android.work.pubsub.EmmPubsub.InstallFailureEvent;
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+import com.google.android.work.pubsub.EmmPubsub.ProductApprovalEvent;
+import com.google.android.work.pubsub.EmmPubsub.TestPushNotification;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+public class NotificationViewTest extends TestCase {
+
+  private static final MdmPushNotification NOTIFICATION = MdmPushNotification.newBuilder()
+      .setEnterpriseId("LC0123abcd")
+      .setEventNotificationSentTimestampMillis(1450000000000L)
+      .addProductApprovalEvent(ProductApprovalEvent.newBuilder()
+          .setProductId("app:com.example.one")
+          .setApproved(ProductApprovalEvent.ApprovalStatus.APPROVED))
+      .addAppUpdateEvent(AppUpdateEvent.newBuilder().setProductId("app:com.example.one"))
+      .addAppUpdateEvent(AppUpdateEvent.newBuilder().setProductId("app:com.example.two"))
+      .addInstallFailureEvent(InstallFailureEvent.newBuilder()
+          .setProductId("app:com.example.two")
+          .setDeviceId("device")
+          .setUserId("user")
+          .setFailureReason(InstallFailureEvent.InstallFailureReason.TIMEOUT))
+      .build();
+
+  public void testReadsRoutingFields() throws IOException {
+    NotificationView view = NotificationView.parse(NOTIFICATION.toByteArray());
+    assertEquals("LC0123abcd", view.getEnterpriseId());
+    assertEquals(1450000000000L, view.getSentTimestampMillis());
+    assertEquals(1, view.getEventCount(EventType.PRODUCT_APPROVAL));
+    assertEquals(2, view.getEventCount(EventType.APP_UPDATE));
+    assertEquals(1, view.getEventCount(EventType.INSTALL_FAILURE));
+    assertEquals(0, view.getEventCount(EventType.NEW_PERMISSIONS));
+    assertFalse(view.hasEvents(EventType.TEST_PUSH_NOTIFICATION));
+    assertEquals(
+        EnumSet.of(EventType.PRODUCT_APPROVAL, EventType.APP_UPDATE, EventType.INSTALL_FAILURE),
+        view.getEventTypes());
+    assertEquals(NOTIFICATION, view.getNotification());
+  }
+
+  public void testMatchesDecodedNotification() throws IOException {
+    NotificationView scanned = NotificationView.parse(NOTIFICATION.toByteArray());
+    NotificationView decoded = NotificationView.of(NOTIFICATION);
+    assertEquals(decoded.getEnterpriseId(), scanned.getEnterpriseId());
+    assertEquals(decoded.getSentTimestampMillis(), scanned.getSentTimestampMillis());
+    for (EventType type : EventType.values()) {
+      assertEquals(type.name(), decoded.getEventCount(type), scanned.getEventCount(type));
+    }
+    assertEquals(decoded.toString(), scanned.toString());
+  }
+
+  public void testDefaultsWhenFieldsAreAbsent() throws IOException {
+    NotificationView view = NotificationView.parse(MdmPushNotification.newBuilder()
+        .addTestPushNotification(TestPushNotification.getDefaultInstance())
+        .build()
+        .toByteArray());
+    assertEquals("", view.getEnterpriseId());
+    assertEquals(0, view.getSentTimestampMillis());
+    assertEquals(EnumSet.of(EventType.TEST_PUSH_NOTIFICATION), view.getEventTypes());
+
+    NotificationView empty = NotificationView.parse(new byte[0]);
+    assertEquals("", empty.getEnterpriseId());
+    assertTrue(empty.getEventTypes().isEmpty());
+  }
+
+  public void testReadsFieldsInAnyOrderAndSkipsUnknownOnes() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeMessage(MdmPushNotification.APP_UPDATE_EVENT_FIELD_NUMBER,
+        AppUpdateEvent.newBuilder().setProductId("app:com.example.one").build());
+    out.writeUInt64(100, 42);
+    out.writeString(101, "unknown");
+    out.writeString(MdmPushNotification.ENTERPRISE_ID_FIELD_NUMBER, "LC0123abcd");
+    out.writeInt64(MdmPushNotification.EVENT_NOTIFICATION_SENT_TIMESTAMP_MILLIS_FIELD_NUMBER, 7);
+    out.writeMessage(MdmPushNotification.APP_UPDATE_EVENT_FIELD_NUMBER,
+        AppUpdateEvent.newBuilder().setProductId("app:com.example.two").build());
+    out.flush();
+
+    NotificationView view = NotificationView.parse(bytes.toByteArray());
+    assertEquals("LC0123abcd", view.getEnterpriseId());
+    assertEquals(7, view.getSentTimestampMillis());
+    assertEquals(2, view.getEventCount(EventType.APP_UPDATE));
+    assertEquals(EnumSet.of(EventType.APP_UPDATE), view.getEventTypes());
+  }
+
+  public void testIgnoresEventFieldWithWrongWireType() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeUInt64(MdmPushNotification.APP_UPDATE_EVENT_FIELD_NUMBER, 1);
+    out.writeString(MdmPushNotification.ENTERPRISE_ID_FIELD_NUMBER, "LC0123abcd");
+    out.flush();
+
+    NotificationView view = NotificationView.parse(bytes.toByteArray());
+    assertEquals("LC0123abcd", view.getEnterpriseId());
+    assertEquals(0, view.getEventCount(EventType.APP_UPDATE));
+  }
+
+  public void testRejectsTruncatedMessage() {
+    byte[] bytes = NOTIFICATION.toByteArray();
+    try {
+      NotificationView.parse(Arrays.copyOf(bytes, bytes.length - 1));
+      fail("Expected the truncated event to be rejected");
+    } catch (InvalidProtocolBufferException expected) {
+    }
+  }
+
+  public void testRejectsMalformedTag() {
+    try {
+      // Field number 0 is never valid.
+      NotificationView.parse(new byte[] {0x02, 0x00});
+      fail("Expected the malformed tag to be rejected");
+    } catch (InvalidProtocolBufferException expected) {
+    }
+  }
+
+  public void testReadsOnlyThePayloadOfAPushMessage() throws IOException {
+    byte[] bytes = NOTIFICATION.toByteArray();
+    // A decoder buffer, longer than the payload and with leftovers of a previous push.
+    byte[] buffer = new byte[bytes.length + 16];
+    Arrays.fill(buffer, (byte) 0xff);
+    System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+    PushMessage message = new PushMessage("1", null, null, null, buffer, bytes.length);
+
+    NotificationView view = NotificationView.parse(message);
+    assertEquals("LC0123abcd", view.getEnterpriseId());
+    assertEquals(2, view.getEventCount(EventType.APP_UPDATE));
+    assertEquals(NOTIFICATION, view.getNotification());
+  }
+
+  public void testCopyOutlivesTheBuffer() throws IOException {
+    byte[] buffer = NOTIFICATION.toByteArray();
+    PushMessage message = new PushMessage("1", null, null, null, buffer, buffer.length);
+    NotificationView copy = NotificationView.parse(message).copy();
+    // The decoder reuses its buffer for the next push.
+    Arrays.fill(buffer, (byte) 0);
+
+    assertEquals("LC0123abcd", copy.getEnterpriseId());
+    assertEquals(NOTIFICATION, copy.getNotification());
+    assertSame(copy, copy.copy());
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+import com.google.android.work.pubsub.EmmPubsub.ProductApprovalEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductApprovalEvent.ApprovalStatus;
+import com.google.android.work.pubsub.EmmPubsub.ProductAvailabilityChangeEvent;
+import com.google.android.work.pubsub.EmmPubsub.ProductAvailabilityChangeEvent.AvailabilityStatus;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ProductStateViewTest extends TestCase {
+
+  private File snapshot;
+
+  @Override
+  protected void setUp() throws Exception {
+    snapshot = File.createTempFile("product-state", ".snapshot");
+    snapshot.delete();
+  }
+
+  @Override
+  protected void tearDown() {
+    snapshot.delete();
+  }
+
+  public void testApprovalLeavesAvailabilityUnknown() {
+    ProductStateView view = new ProductStateView(new Metrics());
+    approve(view, "E", "app:one", ApprovalStatus.APPROVED);
+
+    ProductStateView.ProductState state = view.getProductState("E", "app:one");
+    assertEquals(ApprovalStatus.APPROVED, state.getApprovalStatus());
+    assertEquals(AvailabilityStatus.UNKNOWN, state.getAvailabilityStatus());
+    assertTrue(state.isApprovedAndAvailable());
+  }
+
+  public void testAvailabilityLeavesApprovalUnchanged() {
+    ProductStateView view = new ProductStateView(new Metrics());
+    approve(view, "E", "app:one", ApprovalStatus.APPROVED);
+    changeAvailability(view, "E", "app:one", AvailabilityStatus.REMOVED);
+
+    ProductStateView.ProductState state = view.getProductState("E", "app:one");
+    assertEquals(ApprovalStatus.APPROVED, state.getApprovalStatus());
+    assertEquals(AvailabilityStatus.REMOVED, state.getAvailabilityStatus());
+    assertFalse(state.isApprovedAndAvailable());
+
+    changeAvailability(view, "E", "app:two", AvailabilityStatus.AVAILABLE);
+    state = view.getProductState("E", "app:two");
+    assertEquals(ApprovalStatus.UNKNOWN, state.getApprovalStatus());
+    assertEquals(AvailabilityStatus.AVAILABLE, state.getAvailabilityStatus());
+    assertFalse(state.isApprovedAndAvailable());
+
+    approve(view, "E", "app:one", ApprovalStatus.UNAPPROVED);
+    state = view.getProductState("E", "app:one");
+    assertEquals(ApprovalStatus.UNAPPROVED, state.getApprovalStatus());
+    assertEquals(AvailabilityStatus.REMOVED, state.getAvailabilityStatus());
+  }
+
+  public void testKeepsEnterprisesApart() {
+    ProductStateView view = new ProductStateView(new Metrics());
+    approve(view, "E1", "app:one", ApprovalStatus.APPROVED);
+    approve(view, "E2", "app:one", ApprovalStatus.UNAPPROVED);
+
+    assertEquals(ApprovalStatus.APPROVED,
+        view.getProductState("E1", "app:one").getApprovalStatus());
+    assertEquals(ApprovalStatus.UNAPPROVED,
+        view.getProductState("E2", "app:one").getApprovalStatus());
+    assertNull(view.getProductState("E1", "app:two"));
+    assertNull(view.getProductState("E3", "app:one"));
+    assertEquals(Arrays.asList("E1", "E2"), view.getEnterpriseIds());
+  }
+
+  public void testReturnsProductStatesOrderedById() {
+    ProductStateView view = new ProductStateView(new Metrics());
+    approve(view, "E", "app:c", ApprovalStatus.APPROVED);
+    approve(view, "E", "app:a", ApprovalStatus.UNAPPROVED);
+    changeAvailability(view, "E", "app:b", AvailabilityStatus.UNPUBLISHED);
+
+    SortedMap<String, ProductStateView.ProductState> states = view.getProductStates("E");
+    assertEquals(Arrays.asList("app:a", "app:b", "app:c"),
+        new ArrayList<String>(states.keySet()));
+    assertEquals(ApprovalStatus.UNAPPROVED, states.get("app:a").getApprovalStatus());
+    assertEquals(AvailabilityStatus.UNPUBLISHED, states.get("app:b").getAvailabilityStatus());
+    assertEquals(ApprovalStatus.APPROVED, states.get("app:c").getApprovalStatus());
+    assertTrue(view.getProductStates("other").isEmpty());
+  }
+
+  public void testResizesTables() {
+    ProductStateView view = new ProductStateView(new Metrics());
+    // Well past the initial 8 slots of an enterprise and 1024 entries of the dictionary.
+    for (int i = 0; i < 5000; i++) {
+      approve(view, "E", "app:" + i,
+          i % 2 == 0 ? ApprovalStatus.APPROVED : ApprovalStatus.UNAPPROVED);
+    }
+    for (int i = 0; i < 5000; i += 3) {
+      changeAvailability(view, "E", "app:" + i, AvailabilityStatus.REMOVED);
+    }
+
+    assertEquals(5000, view.getProductStates("E").size());
+    for (int i = 0; i < 5000; i++) {
+      ProductStateView.ProductState state = view.getProductState("E", "app:" + i);
+      assertEquals("app:" + i,
+          i % 2 == 0 ? ApprovalStatus.APPROVED : ApprovalStatus.UNAPPROVED,
+          state.getApprovalStatus());
+      assertEquals("app:" + i,
+          i % 3 == 0 ? AvailabilityStatus.REMOVED : AvailabilityStatus.UNKNOWN,
+          state.getAvailabilityStatus());
+    }
+  }
+
+  public void testSnapshotRoundTrip() throws Exception {
+    ProductStateView view = new ProductStateView(new Metrics());
+    approve(view, "E1", "app:one", ApprovalStatus.APPROVED);
+    changeAvailability(view, "E1", "app:one", AvailabilityStatus.UNPUBLISHED);
+    approve(view, "E2", "app:two", ApprovalStatus.UNAPPROVED);
+    view.writeSnapshot(snapshot);
+
+    // Product indexes of the snapshot differ from the ones of the view loading it.
+    ProductStateView loaded = new ProductStateView(new Metrics());
+    approve(loaded, "E3", "app:three", ApprovalStatus.APPROVED);
+    loaded.startSnapshots(snapshot, 3600);
+    try {
+      assertEquals(Arrays.asList("E1", "E2", "E3"), loaded.getEnterpriseIds());
+      ProductStateView.ProductState one = loaded.getProductState("E1", "app:one");
+      assertEquals(ApprovalStatus.APPROVED, one.getApprovalStatus());
+      assertEquals(AvailabilityStatus.UNPUBLISHED, one.getAvailabilityStatus());
+      assertEquals(ApprovalStatus.UNAPPROVED,
+          loaded.getProductState("E2", "app:two").getApprovalStatus());
+      assertEquals(ApprovalStatus.APPROVED,
+          loaded.getProductState("E3", "app:three").getApprovalStatus());
+    } finally {
+      loaded.close();
+    }
+  }
+
+  public void testSnapshotWhileProductsAreAdded() throws Exception {
+    final ProductStateView view = new ProductStateView(new Metrics());
+    final int productCount = 20000;
+    final AtomicInteger added = new AtomicInteger();
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        // New product IDs, so that the dictionary grows while the snapshots are written.
+        for (int i = 0; i < productCount; i++) {
+          approve(view, "E" + (i % 3), "app:" + i, ApprovalStatus.APPROVED);
+          added.incrementAndGet();
+        }
+      }
+    });
+    writer.start();
+    boolean done;
+    do {
+      done = !writer.isAlive();
+      int before = added.get();
+      view.writeSnapshot(snapshot);
+
+      ProductStateView loaded = new ProductStateView(new Metrics());
+      loaded.startSnapshots(snapshot, 3600);
+      int products = 0;
+      for (String enterpriseId : loaded.getEnterpriseIds()) {
+        for (Map.Entry<String, ProductStateView.ProductState> product
+            : loaded.getProductStates(enterpriseId).entrySet()) {
+          // Each product is found under its enterprise, with the state it was added with.
+          int i = Integer.parseInt(product.getKey().substring("app:".length()));
+          assertEquals("E" + (i % 3), enterpriseId);
+          assertEquals(ApprovalStatus.APPROVED, product.getValue().getApprovalStatus());
+          products++;
+        }
+      }
+      assertTrue(products >= before);
+      loaded.close();
+    } while (!done);
+    writer.join();
+    assertEquals(productCount, added.get());
+  }
+
+  private static void approve(
+      ProductStateView view, String enterpriseId, String productId, ApprovalStatus status) {
+    view.onProductApproval(
+        MdmPushNotification.newBuilder().setEnterpriseId(enterpriseId).build(),
+        ProductApprovalEvent.newBuilder().setProductId(productId).setApproved(status).build());
+  }
+
+  private static void changeAvailability(ProductStateView view, String enterpriseId,
+      String productId, AvailabilityStatus status) {
+    view.onProductAvailabilityChange(
+        MdmPushNotification.newBuilder().setEnterpriseId(enterpriseId).build(),
+        ProductAvailabilityChangeEvent.newBuilder()
+            .setProductId(productId)
+            .setAvailabilityStatus(status)
+            .build());
+  }
+}
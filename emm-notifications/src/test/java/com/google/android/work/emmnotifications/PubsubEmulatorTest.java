@@ -0,0 +1,291 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.android.work.pubsub.EmmPubsub.MdmPushNotification;
+import com.google.android.work.pubsub.EmmPubsub.TestPushNotification;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.pubsub.Pubsub;
+import com.google.api.services.pubsub.model.AcknowledgeRequest;
+import com.google.api.services.pubsub.model.ModifyAckDeadlineRequest;
+import com.google.api.services.pubsub.model.PublishRequest;
+import com.google.api.services.pubsub.model.PubsubMessage;
+import com.google.api.services.pubsub.model.PullRequest;
+import com.google.api.services.pubsub.model.PushConfig;
+import com.google.api.services.pubsub.model.ReceivedMessage;
+import com.google.api.services.pubsub.model.Subscription;
+import com.google.api.services.pubsub.model.Topic;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class PubsubEmulatorTest extends TestCase {
+
+  private static final String TOPIC = "projects/test/topics/emm";
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  private final Metrics metrics = new Metrics();
+  private PubsubEmulator emulator;
+  private String rootUrl;
+  private Pubsub client;
+  private HttpServer endpoint;
+  private File settingsFile;
+  private Thread subscriberShutdown;
+
+  @Override
+  protected void setUp() throws IOException {
+    int port = freePort();
+    emulator = new PubsubEmulator(port, 2, metrics);
+    emulator.start();
+    rootUrl = "http://localhost:" + port + "/";
+    client = new Pubsub.Builder(new NetHttpTransport(), JacksonFactory.getDefaultInstance(), null)
+        .setRootUrl(rootUrl)
+        .setApplicationName("test")
+        .build();
+    client.projects().topics().create(TOPIC, new Topic()).execute();
+  }
+
+  @Override
+  protected void tearDown() {
+    if (subscriberShutdown != null) {
+      subscriberShutdown.run();
+    }
+    if (settingsFile != null) {
+      settingsFile.delete();
+    }
+    if (endpoint != null) {
+      endpoint.stop(0);
+    }
+    emulator.stop();
+  }
+
+  public void testPushesUntilAnswered2xx() throws Exception {
+    // Answers 503 twice, then 204.
+    final List<String> pushes = Collections.synchronizedList(new ArrayList<String>());
+    endpoint = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    endpoint.createContext("/push", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        pushes.add(new String(
+            ByteStreams.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8));
+        exchange.sendResponseHeaders(pushes.size() <= 2 ? 503 : 204, -1);
+        exchange.close();
+      }
+    });
+    endpoint.start();
+    String subscription = "projects/test/subscriptions/push";
+    client.projects().subscriptions().create(subscription, new Subscription()
+        .setTopic(TOPIC)
+        .setPushConfig(new PushConfig().setPushEndpoint(
+            "http://localhost:" + endpoint.getAddress().getPort() + "/push")))
+        .execute();
+
+    String messageId = publish("hello".getBytes(StandardCharsets.UTF_8));
+    awaitCount("emm_emulator_pushed_total", 1);
+    assertEquals(2, count("emm_emulator_push_failures_total"));
+    assertEquals(3, pushes.size());
+    for (String push : pushes) {
+      assertTrue(push, push.contains("\"messageId\":\"" + messageId + "\""));
+      assertTrue(push, push.contains("\"subscription\":\"" + subscription + "\""));
+      assertTrue(push, push.contains("\"data\":\"aGVsbG8"));
+    }
+    // Not pushed again once answered 2xx.
+    Thread.sleep(300);
+    assertEquals(3, pushes.size());
+  }
+
+  public void testRedeliversPullsOnceAckDeadlineExpired() throws Exception {
+    String subscription = "projects/test/subscriptions/pull";
+    client.projects().subscriptions().create(subscription, new Subscription()
+        .setTopic(TOPIC)
+        .setAckDeadlineSeconds(1))
+        .execute();
+    String messageId = publish(new byte[] {1});
+
+    ReceivedMessage first = pullOne(subscription);
+    assertEquals(messageId, first.getMessage().getMessageId());
+    assertNull(pullImmediately(subscription));
+
+    // Redelivered with another ack ID once the deadline expired, as it wasn't acknowledged.
+    ReceivedMessage second = pullOne(subscription);
+    assertEquals(messageId, second.getMessage().getMessageId());
+    assertFalse(first.getAckId().equals(second.getAckId()));
+    assertEquals(1, count("emm_emulator_expired_total"));
+
+    client.projects().subscriptions().acknowledge(subscription,
+        new AcknowledgeRequest().setAckIds(ImmutableList.of(second.getAckId()))).execute();
+    assertEquals(1, count("emm_emulator_acknowledged_total"));
+    Thread.sleep(2500);
+    assertNull(pullImmediately(subscription));
+  }
+
+  public void testRedeliversNackedPullsAtOnce() throws Exception {
+    String subscription = "projects/test/subscriptions/pull";
+    client.projects().subscriptions().create(subscription, new Subscription()
+        .setTopic(TOPIC)
+        .setAckDeadlineSeconds(60))
+        .execute();
+    String messageId = publish(new byte[] {1});
+
+    ReceivedMessage first = pullOne(subscription);
+    client.projects().subscriptions().modifyAckDeadline(subscription,
+        new ModifyAckDeadlineRequest()
+            .setAckIds(ImmutableList.of(first.getAckId()))
+            .setAckDeadlineSeconds(0))
+        .execute();
+    ReceivedMessage second = pullImmediately(subscription);
+    assertNotNull(second);
+    assertEquals(messageId, second.getMessage().getMessageId());
+  }
+
+  public void testPushSubscriberEndToEnd() throws Exception {
+    int port = freePort();
+    // One push per second for each enterprise, so that a second one is throttled and redelivered.
+    settingsFile = File.createTempFile("settings", ".properties");
+    Writer writer =
+        new OutputStreamWriter(new FileOutputStream(settingsFile), StandardCharsets.UTF_8);
+    try {
+      writer.write("ServiceAccountEmail=test@example.iam.gserviceaccount.com\n"
+          + "ServiceAccountP12KeyFile=/tmp/test.p12\n"
+          + "TopicName=" + TOPIC + "\n"
+          + "SubscriptionName=projects/test/subscriptions/emm\n"
+          + "ProjectName=test\n"
+          + "PushEndpoint=http://localhost:" + port + "/push\n"
+          + "PushPath=/push\n"
+          + "Port=" + port + "\n"
+          + "PubsubRootUrl=" + rootUrl + "\n"
+          + "EnterpriseRateLimit=1\n"
+          + "EnterpriseBurstSeconds=1\n");
+    } finally {
+      writer.close();
+    }
+    Metrics.Counter events = Metrics.getDefault().counter(
+        "emm_events_total", "", "type", EventType.TEST_PUSH_NOTIFICATION.name());
+    long eventsBefore = events.get();
+
+    // Creates the push subscription on the emulator before accepting pushes.
+    subscriberShutdown = PushSubscriber.start(Settings.load(settingsFile.getPath()));
+    Subscription created =
+        client.projects().subscriptions().get("projects/test/subscriptions/emm").execute();
+    assertEquals(TOPIC, created.getTopic());
+    assertEquals("http://localhost:" + port + "/push", created.getPushConfig().getPushEndpoint());
+
+    publish(notification("E1"));
+    publish(notification("E1"));
+    awaitCount("emm_emulator_pushed_total", 2);
+    assertTrue(count("emm_emulator_push_failures_total") >= 1);
+    assertEquals(2, events.get() - eventsBefore);
+
+    // A push, with its data in standard Base64 as Pub/Sub sends it, is answered 204 once processed.
+    HttpURLConnection connection = (HttpURLConnection)
+        new URL("http://localhost:" + port + "/push").openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    OutputStream out = connection.getOutputStream();
+    out.write(("{\"message\": {\"data\": \""
+        + BaseEncoding.base64().encode(notification("E2"))
+        + "\", \"messageId\": \"direct\"}, \"subscription\": \"projects/test/subscriptions/emm\"}")
+        .getBytes(StandardCharsets.UTF_8));
+    out.close();
+    assertEquals(204, connection.getResponseCode());
+    assertEquals(3, events.get() - eventsBefore);
+  }
+
+  private String publish(byte[] data) throws IOException {
+    PubsubMessage message = new PubsubMessage()
+        .encodeData(data)
+        .setAttributes(ImmutableMap.of("k", "v"));
+    return client.projects().topics()
+        .publish(TOPIC, new PublishRequest().setMessages(ImmutableList.of(message)))
+        .execute()
+        .getMessageIds()
+        .get(0);
+  }
+
+  private ReceivedMessage pullOne(String subscription) throws IOException {
+    // Waits up to 5s for a message.
+    List<ReceivedMessage> received = client.projects().subscriptions()
+        .pull(subscription, new PullRequest().setMaxMessages(10).setReturnImmediately(false))
+        .execute()
+        .getReceivedMessages();
+    assertEquals(1, received.size());
+    return received.get(0);
+  }
+
+  private ReceivedMessage pullImmediately(String subscription) throws IOException {
+    List<ReceivedMessage> received = client.projects().subscriptions()
+        .pull(subscription, new PullRequest().setMaxMessages(10).setReturnImmediately(true))
+        .execute()
+        .getReceivedMessages();
+    if (received == null || received.isEmpty()) {
+      return null;
+    }
+    assertEquals(1, received.size());
+    return received.get(0);
+  }
+
+  private long count(String name) {
+    return metrics.counter(name, "").get();
+  }
+
+  private void awaitCount(String name, long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (count(name) < count) {
+      assertTrue("Expected " + name + " to reach " + count,
+          System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private static byte[] notification(String enterpriseId) {
+    return MdmPushNotification.newBuilder()
+        .setEnterpriseId(enterpriseId)
+        .setEventNotificationSentTimestampMillis(System.currentTimeMillis())
+        .addTestPushNotification(TestPushNotification.getDefaultInstance())
+        .build()
+        .toByteArray();
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket socket = new ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+}
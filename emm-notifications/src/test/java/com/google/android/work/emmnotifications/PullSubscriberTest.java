@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.services.pubsub.model.AcknowledgeRequest;
+import com.google.api.services.pubsub.model.ModifyAckDeadlineRequest;
+import com.google.api.services.pubsub.model.PullRequest;
+import com.google.common.io.BaseEncoding;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PullSubscriberTest extends TestCase {
+
+  private static final String SUBSCRIPTION = "projects/test/subscriptions/emm";
+
+  private final RecordingPubsubTransport transport = new RecordingPubsubTransport();
+  private final List<PushMessage> processed =
+      Collections.synchronizedList(new ArrayList<PushMessage>());
+  private CountDownLatch received;
+  private File file;
+  private PullSubscriber subscriber;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("settings", ".properties");
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    try {
+      writer.write("ServiceAccountEmail=test@example.iam.gserviceaccount.com\n"
+          + "ServiceAccountP12KeyFile=/tmp/test.p12\n"
+          + "TopicName=projects/test/topics/emm\n"
+          + "SubscriptionName=" + SUBSCRIPTION + "\n"
+          + "ProjectName=test\n"
+          + "PushEndpoint=https://push.example.com\n"
+          + "Port=8093\n"
+          + "PullConcurrency=1\n"
+          + "PullMaxMessages=10\n"
+          + "AckFlushMillis=10\n"
+          + "WorkerThreads=2\n");
+    } finally {
+      writer.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() {
+    if (subscriber != null) {
+      subscriber.stop();
+    }
+    file.delete();
+  }
+
+  public void testAcksProcessedMessages() throws Exception {
+    start(2);
+    transport.addPullResponse("{\"receivedMessages\": ["
+        + received("ack-1", "m1", "ok") + ", " + received("ack-2", "m2", "ok") + "]}");
+    assertTrue(received.await(10, TimeUnit.SECONDS));
+    subscriber.stop();
+    subscriber = null;
+
+    assertEquals(Arrays.asList("m1", "m2"), sortedMessageIds());
+    PushMessage message = processed.get(0);
+    assertEquals("2014-10-02T15:01:23.045123456Z", message.getPublishTime());
+    assertEquals("v", message.getAttributes().get("k"));
+    assertEquals("ok", new String(message.copyData(), StandardCharsets.UTF_8));
+    assertEquals(Arrays.asList("ack-1", "ack-2"), sorted(ackedIds()));
+    assertTrue(transport.getCalls("modifyAckDeadline").isEmpty());
+
+    PullRequest pull = transport.getCalls("pull").get(0).parse(PullRequest.class);
+    assertEquals(10, pull.getMaxMessages().intValue());
+    assertFalse(pull.getReturnImmediately());
+  }
+
+  public void testNacksFailedMessages() throws Exception {
+    start(2);
+    transport.addPullResponse("{\"receivedMessages\": ["
+        + received("ack-1", "m1", "fail") + ", " + received("ack-2", "m2", "ok") + "]}");
+    assertTrue(received.await(10, TimeUnit.SECONDS));
+    subscriber.stop();
+    subscriber = null;
+
+    assertEquals(Arrays.asList("ack-2"), ackedIds());
+    List<RecordingPubsubTransport.Call> calls = transport.getCalls("modifyAckDeadline");
+    assertEquals(1, calls.size());
+    ModifyAckDeadlineRequest nack = calls.get(0).parse(ModifyAckDeadlineRequest.class);
+    assertEquals(Arrays.asList("ack-1"), nack.getAckIds());
+    assertEquals(0, nack.getAckDeadlineSeconds().intValue());
+  }
+
+  public void testNeitherAcksNorNacksMessagesInFlight() throws Exception {
+    start(1);
+    transport.addPullResponse("{\"receivedMessages\": [" + received("ack-1", "m1", "busy") + "]}");
+    assertTrue(received.await(10, TimeUnit.SECONDS));
+    subscriber.stop();
+    subscriber = null;
+
+    // Redelivered once its lease expired, when the outcome of the other delivery is known.
+    assertTrue(ackedIds().isEmpty());
+    assertTrue(transport.getCalls("modifyAckDeadline").isEmpty());
+  }
+
+  private void start(int messages) throws IOException {
+    received = new CountDownLatch(messages);
+    NotificationProcessor processor = new NotificationProcessor() {
+      @Override
+      public void process(PushMessage message) throws IOException {
+        try {
+          String data = new String(message.copyData(), StandardCharsets.UTF_8);
+          if (data.equals("fail")) {
+            throw new IOException("Expected by the test");
+          }
+          if (data.equals("busy")) {
+            throw new MessageInFlightException("Expected by the test");
+          }
+          processed.add(message);
+        } finally {
+          received.countDown();
+        }
+      }
+    };
+    subscriber = new PullSubscriber(
+        transport.newClient(), SUBSCRIPTION, 30, processor, Settings.load(file.getPath()));
+    subscriber.start();
+  }
+
+  private List<String> ackedIds() throws IOException {
+    List<String> ackIds = new ArrayList<String>();
+    for (RecordingPubsubTransport.Call call : transport.getCalls("acknowledge")) {
+      ackIds.addAll(call.parse(AcknowledgeRequest.class).getAckIds());
+    }
+    return ackIds;
+  }
+
+  private List<String> sortedMessageIds() {
+    List<String> messageIds = new ArrayList<String>();
+    for (PushMessage message : processed) {
+      messageIds.add(message.getMessageId());
+    }
+    return sorted(messageIds);
+  }
+
+  private static List<String> sorted(List<String> strings) {
+    List<String> sorted = new ArrayList<String>(strings);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  private static String received(String ackId, String messageId, String data) {
+    return "{\"ackId\": \"" + ackId + "\", \"message\": {"
+        + "\"data\": \"" + BaseEncoding.base64().encode(data.getBytes(StandardCharsets.UTF_8))
+        + "\", \"messageId\": \"" + messageId + "\", "
+        + "\"publishTime\": \"2014-10-02T15:01:23.045123456Z\", "
+        + "\"attributes\": {\"k\": \"v\"}}}";
+  }
+}
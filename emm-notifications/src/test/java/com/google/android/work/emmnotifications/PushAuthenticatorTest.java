@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+public class PushAuthenticatorTest extends TestCase {
+
+  private static final String AUDIENCE = "https://push.example.com/push";
+  private static final String EMAIL = "pubsub@example.iam.gserviceaccount.com";
+  private static final List<String> NONE = Collections.emptyList();
+
+  private final PushTokenIssuer issuer = new PushTokenIssuer();
+  private final Metrics metrics = new Metrics();
+  private HttpServer server;
+  private URL certsUrl;
+  private PushAuthenticator authenticator;
+
+  @Override
+  protected void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(PushTokenIssuer.CERTS_PATH, issuer);
+    server.start();
+    certsUrl = new URL("http://127.0.0.1:" + server.getAddress().getPort()
+        + PushTokenIssuer.CERTS_PATH);
+  }
+
+  @Override
+  protected void tearDown() {
+    if (authenticator != null) {
+      authenticator.stop();
+    }
+    server.stop(0);
+  }
+
+  public void testAcceptsValidToken() {
+    start(NONE, PushAuthenticator.GOOGLE_ISSUERS, ImmutableList.of(EMAIL));
+    String token = issuer.mint(AUDIENCE, EMAIL, 3600);
+    assertNull(authenticator.authenticate("Bearer " + token, null));
+    // Checked from the cache the second time.
+    assertNull(authenticator.authenticate("bearer " + token, null));
+    assertEquals(1, metrics.counter("emm_push_auth_cache_hits_total", "").get());
+  }
+
+  public void testRejectsMissingToken() {
+    start(NONE, PushAuthenticator.GOOGLE_ISSUERS, NONE);
+    assertEquals(PushAuthenticator.Rejection.MISSING_CREDENTIALS,
+        authenticator.authenticate(null, null));
+    assertEquals(PushAuthenticator.Rejection.MISSING_CREDENTIALS,
+        authenticator.authenticate("Basic dXNlcjpwYXNz", null));
+    assertEquals(2, rejected(PushAuthenticator.Rejection.MISSING_CREDENTIALS));
+  }
+
+  public void testRejectsExpiredToken() {
+    start(NONE, PushAuthenticator.GOOGLE_ISSUERS, NONE);
+    // Beyond the minute of clock skew allowed.
+    String token = issuer.mint(AUDIENCE, EMAIL, -120);
+    assertEquals(PushAuthenticator.Rejection.EXPIRED_TOKEN,
+        authenticator.authenticate("Bearer " + token, null));
+    assertEquals(1, rejected(PushAuthenticator.Rejection.EXPIRED_TOKEN));
+  }
+
+  public void testRejectsWrongIssuer() {
+    start(NONE, ImmutableList.of("https://issuer.example.com"), NONE);
+    assertEquals(PushAuthenticator.Rejection.WRONG_ISSUER,
+        authenticator.authenticate("Bearer " + issuer.mint(AUDIENCE, EMAIL, 3600), null));
+  }
+
+  public void testRejectsWrongAudience() {
+    start(NONE, PushAuthenticator.GOOGLE_ISSUERS, NONE);
+    String token = issuer.mint("https://other.example.com/push", EMAIL, 3600);
+    assertEquals(PushAuthenticator.Rejection.WRONG_AUDIENCE,
+        authenticator.authenticate("Bearer " + token, null));
+  }
+
+  public void testRejectsWrongEmail() {
+    start(NONE, PushAuthenticator.GOOGLE_ISSUERS, ImmutableList.of(EMAIL));
+    assertEquals(PushAuthenticator.Rejection.WRONG_EMAIL, authenticator.authenticate(
+        "Bearer " + issuer.mint(AUDIENCE, "other@example.iam.gserviceaccount.com", 3600), null));
+    assertEquals(PushAuthenticator.Rejection.WRONG_EMAIL,
+        authenticator.authenticate("Bearer " + issuer.mint(AUDIENCE, null, 3600), null));
+  }
+
+  public void testAcceptsAnyEmailWhenNoneConfigured() {
+    start(NONE, PushAuthenticator.GOOGLE_ISSUERS, NONE);
+    assertNull(authenticator.authenticate("Bearer " + issuer.mint(AUDIENCE, null, 3600), null));
+  }
+
+  public void testRejectsUnknownKey() {
+    start(NONE, PushAuthenticator.GOOGLE_ISSUERS, NONE);
+    // The authenticator only knows the keys it fetched when starting.
+    issuer.rotate();
+    String token = issuer.mint(AUDIENCE, EMAIL, 3600);
+    assertEquals(PushAuthenticator.Rejection.UNKNOWN_KEY,
+        authenticator.authenticate("Bearer " + token, null));
+    assertEquals(PushAuthenticator.Rejection.UNKNOWN_KEY,
+        authenticator.authenticate("Bearer " + token, null));
+    assertEquals(0, metrics.counter("emm_push_auth_cache_hits_total", "").get());
+  }
+
+  public void testRejectsBadSignature() {
+    start(NONE, PushAuthenticator.GOOGLE_ISSUERS, NONE);
+    String[] token = issuer.mint(AUDIENCE, EMAIL, 3600).split("\\.");
+    String[] other = issuer.mint(AUDIENCE, null, 3600).split("\\.");
+    // Claims of one token with the signature of another.
+    String forged = token[0] + "." + other[1] + "." + token[2];
+    assertEquals(PushAuthenticator.Rejection.BAD_SIGNATURE,
+        authenticator.authenticate("Bearer " + forged, null));
+    assertEquals(1, rejected(PushAuthenticator.Rejection.BAD_SIGNATURE));
+  }
+
+  public void testRejectsMalformedToken() {
+    start(NONE, PushAuthenticator.GOOGLE_ISSUERS, NONE);
+    assertEquals(PushAuthenticator.Rejection.MALFORMED_TOKEN,
+        authenticator.authenticate("Bearer abc.def", null));
+    assertEquals(PushAuthenticator.Rejection.MALFORMED_TOKEN,
+        authenticator.authenticate("Bearer !!!.???.***", null));
+  }
+
+  public void testRejectsDeeplyNestedToken() {
+    start(NONE, PushAuthenticator.GOOGLE_ISSUERS, NONE);
+    // Otherwise a valid header, read before the signature is checked.
+    StringBuilder header = new StringBuilder("{\"alg\":\"RS256\",\"kid\":\"k\",\"x\":");
+    for (int i = 0; i < 900; i++) {
+      header.append('[');
+    }
+    for (int i = 0; i < 900; i++) {
+      header.append(']');
+    }
+    header.append('}');
+    String claims = issuer.mint(AUDIENCE, EMAIL, 3600).split("\\.")[1];
+    String token = BaseEncoding.base64Url().omitPadding().encode(
+        header.toString().getBytes(StandardCharsets.US_ASCII)) + "." + claims + ".c2ln";
+    assertEquals(PushAuthenticator.Rejection.MALFORMED_TOKEN,
+        authenticator.authenticate("Bearer " + token, null));
+  }
+
+  public void testChecksSecret() {
+    authenticator = new PushAuthenticator(ImmutableList.of("s1", "s2"), null,
+        PushAuthenticator.GOOGLE_ISSUERS, NONE, certsUrl, metrics);
+    authenticator.start();
+    assertNull(authenticator.authenticate(null, "token=s2"));
+    assertNull(authenticator.authenticate(null, "other=x&token=s1"));
+    assertEquals(PushAuthenticator.Rejection.WRONG_SECRET,
+        authenticator.authenticate(null, "token=wrong"));
+    assertEquals(PushAuthenticator.Rejection.WRONG_SECRET,
+        authenticator.authenticate(null, "token=%zz"));
+    assertEquals(PushAuthenticator.Rejection.MISSING_CREDENTIALS,
+        authenticator.authenticate(null, null));
+    assertEquals(2, rejected(PushAuthenticator.Rejection.WRONG_SECRET));
+  }
+
+  public void testRotatesSecrets() {
+    authenticator = new PushAuthenticator(ImmutableList.of("s1"), null,
+        PushAuthenticator.GOOGLE_ISSUERS, NONE, certsUrl, metrics);
+    authenticator.setSecrets(ImmutableList.of("s2"));
+    assertEquals(PushAuthenticator.Rejection.WRONG_SECRET,
+        authenticator.authenticate(null, "token=s1"));
+    assertNull(authenticator.authenticate(null, "token=s2"));
+  }
+
+  public void testChecksSecretAndToken() {
+    start(ImmutableList.of("s1"), PushAuthenticator.GOOGLE_ISSUERS, NONE);
+    String token = "Bearer " + issuer.mint(AUDIENCE, EMAIL, 3600);
+    assertNull(authenticator.authenticate(token, "token=s1"));
+    assertEquals(PushAuthenticator.Rejection.WRONG_SECRET,
+        authenticator.authenticate(token, "token=wrong"));
+    assertEquals(PushAuthenticator.Rejection.MISSING_CREDENTIALS,
+        authenticator.authenticate(null, "token=s1"));
+  }
+
+  private void start(Collection<String> secrets, Collection<String> issuers,
+      Collection<String> emails) {
+    authenticator =
+        new PushAuthenticator(secrets, AUDIENCE, issuers, emails, certsUrl, metrics);
+    authenticator.start();
+  }
+
+  private long rejected(PushAuthenticator.Rejection rejection) {
+    return metrics.counter("emm_push_auth_rejected_total", "", "reason", rejection.name()).get();
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class PushCaptureTest extends TestCase {
+
+  private File file;
+  private Metrics metrics;
+  private HttpServer server;
+  private final List<String> received = new ArrayList<String>();
+  private final List<Long> receivedNanos = new ArrayList<Long>();
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("pushes", ".capture");
+    metrics = new Metrics();
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        String body = new String(
+            ByteStreams.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8);
+        synchronized (received) {
+          received.add(exchange.getRequestURI().getPath() + " " + body);
+          receivedNanos.add(System.nanoTime());
+        }
+        exchange.sendResponseHeaders(body.startsWith("fail") ? 500 : 204, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() {
+    server.stop(0);
+    file.delete();
+  }
+
+  public void testReadsRecordsAsWritten() throws Exception {
+    PushCapture capture = new PushCapture(file, 1 << 20, 16, metrics);
+    long start = System.nanoTime();
+    capture.start();
+    capture.record("/a", start + 5000, bytes("first"));
+    capture.record("/b", start + 1000, bytes("second"));
+    capture.close();
+    assertEquals(2, metrics.counter("emm_capture_recorded_total", "").get());
+
+    PushCapture.Reader reader = new PushCapture.Reader(file);
+    try {
+      assertTrue(Math.abs(reader.getStartMillis() - System.currentTimeMillis()) < 60000);
+      PushCapture.Record first = reader.next();
+      PushCapture.Record second = reader.next();
+      assertNull(reader.next());
+      assertEquals("/a", first.getPath());
+      assertEquals("first", new String(first.getEnvelope(), StandardCharsets.UTF_8));
+      assertEquals("/b", second.getPath());
+      assertEquals("second", new String(second.getEnvelope(), StandardCharsets.UTF_8));
+      assertEquals(4000, first.getOffsetNanos() - second.getOffsetNanos());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testTruncatedRecordEndsTheCapture() throws Exception {
+    PushCapture capture = new PushCapture(file, 1 << 20, 16, metrics);
+    capture.start();
+    capture.record("/", System.nanoTime(), bytes("kept"));
+    capture.record("/", System.nanoTime(), bytes("cut short"));
+    capture.close();
+    RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+    try {
+      truncated.setLength(truncated.length() - 3);
+    } finally {
+      truncated.close();
+    }
+
+    PushCapture.Reader reader = new PushCapture.Reader(file);
+    try {
+      assertEquals("kept", new String(reader.next().getEnvelope(), StandardCharsets.UTF_8));
+      assertNull(reader.next());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testRejectsOtherFiles() throws IOException {
+    RandomAccessFile other = new RandomAccessFile(file, "rw");
+    try {
+      other.writeInt(0x12345678);
+      other.writeInt(PushCapture.VERSION);
+      other.writeLong(0);
+    } finally {
+      other.close();
+    }
+    try {
+      new PushCapture.Reader(file);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testStopsCapturingOnceFull() throws Exception {
+    PushCapture capture = new PushCapture(file, 100, 16, metrics);
+    capture.start();
+    for (int i = 0; i < 5; i++) {
+      capture.record("/", System.nanoTime(), new byte[40]);
+    }
+    capture.close();
+    // The record crossing the limit is still written.
+    assertEquals(2, metrics.counter("emm_capture_recorded_total", "").get());
+    assertEquals(3, metrics.counter("emm_capture_dropped_total", "").get());
+  }
+
+  public void testReplaysInArrivalOrderAtPace() throws Exception {
+    long millis = TimeUnit.MILLISECONDS.toNanos(1);
+    PushCapture capture = new PushCapture(file, 1 << 20, 16, metrics);
+    long start = System.nanoTime();
+    capture.start();
+    // Written in the order the bodies were read rather than received.
+    capture.record("/push", start + 2000 * millis, bytes("third"));
+    capture.record("/push", start, bytes("first"));
+    capture.record("/other", start + 1000 * millis, bytes("second"));
+    capture.close();
+
+    long replayStart = System.nanoTime();
+    replay(4);
+    assertEquals("/push first", received.get(0));
+    assertEquals("/other second", received.get(1));
+    assertEquals("/push third", received.get(2));
+    // Received a second apart, replayed four times as fast: never early, and well before the
+    // recorded pace.
+    long second = receivedNanos.get(1) - replayStart;
+    long third = receivedNanos.get(2) - replayStart;
+    assertTrue(String.valueOf(second), second >= 250 * millis);
+    assertTrue(String.valueOf(third), third >= 500 * millis && third < 1500 * millis);
+  }
+
+  public void testReplaysAsFastAsPossible() throws Exception {
+    long seconds = TimeUnit.SECONDS.toNanos(1);
+    PushCapture capture = new PushCapture(file, 1 << 20, 16, metrics);
+    long start = System.nanoTime();
+    capture.start();
+    for (int i = 0; i < 10; i++) {
+      capture.record("/push", start + i * seconds, bytes(i == 3 ? "fail" : "push " + i));
+    }
+    capture.close();
+
+    long replayStart = System.nanoTime();
+    replay(0);
+    assertTrue(System.nanoTime() - replayStart < 5 * seconds);
+    // A failed push doesn't stop the replay.
+    assertEquals(10, received.size());
+    assertEquals("/push push 0", received.get(0));
+    assertEquals("/push push 9", received.get(9));
+  }
+
+  private void replay(double speed) throws Exception {
+    new PushReplayer(file, new URL("http://localhost:" + server.getAddress().getPort()), speed,
+        1, 60).run();
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+}
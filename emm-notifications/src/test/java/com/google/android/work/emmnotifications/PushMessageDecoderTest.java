@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.io.BaseEncoding;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class PushMessageDecoderTest extends TestCase {
+
+  public void testDecodesEnvelope() throws IOException {
+    PushMessage message = decode("{\"message\": {"
+        + "\"data\": \"" + base64("payload") + "\", "
+        + "\"attributes\": {\"a\": \"1\", \"b\": \"2\"}, "
+        + "\"messageId\": \"42\", "
+        + "\"publishTime\": \"2015-02-27T13:40:02.123Z\"}, "
+        + "\"subscription\": \"projects/p/subscriptions/s\"}");
+    assertEquals("42", message.getMessageId());
+    assertEquals("2015-02-27T13:40:02.123Z", message.getPublishTime());
+    assertEquals("projects/p/subscriptions/s", message.getSubscription());
+    assertEquals("1", message.getAttributes().get("a"));
+    assertEquals("2", message.getAttributes().get("b"));
+    assertEquals("payload", new String(message.copyData(), StandardCharsets.UTF_8));
+  }
+
+  public void testDecodesSnakeCaseFields() throws IOException {
+    PushMessage message = decode(
+        "{\"message\": {\"message_id\": \"42\", \"publish_time\": \"2015-02-27T13:40:02Z\"}}");
+    assertEquals("42", message.getMessageId());
+    assertEquals("2015-02-27T13:40:02Z", message.getPublishTime());
+    assertNull(message.getSubscription());
+  }
+
+  public void testMissingOrNullDataIsEmpty() throws IOException {
+    assertEquals(0, decode("{\"message\": {\"messageId\": \"1\"}}").getDataLength());
+    assertEquals(0, decode("{\"message\": {\"data\": null}}").getDataLength());
+    assertTrue(decode("{\"message\": {}}").getAttributes().isEmpty());
+  }
+
+  public void testSkipsUnknownFields() throws IOException {
+    PushMessage message = decode("{\"extra\": {\"nested\": [1, {\"data\": \"x\"}]}, "
+        + "\"message\": {\"extra\": [{\"messageId\": \"0\"}], \"messageId\": \"42\", "
+        + "\"data\": \"" + base64("payload") + "\"}, \"other\": true}");
+    assertEquals("42", message.getMessageId());
+    assertEquals("payload", new String(message.copyData(), StandardCharsets.UTF_8));
+  }
+
+  public void testReusesBufferAcrossMessages() throws IOException {
+    byte[] large = new byte[3 << 20];
+    Arrays.fill(large, (byte) 7);
+    PushMessage first = decode(
+        "{\"message\": {\"data\": \"" + BaseEncoding.base64().encode(large) + "\"}}");
+    assertEquals(large.length, first.getDataLength());
+    assertTrue(Arrays.equals(large, first.copyData()));
+
+    PushMessage second = decode("{\"message\": {\"data\": \"" + base64("small") + "\"}}");
+    assertEquals("small", new String(second.copyData(), StandardCharsets.UTF_8));
+  }
+
+  public void testRejectsMissingMessage() {
+    assertMalformed("{\"subscription\": \"projects/p/subscriptions/s\"}");
+  }
+
+  public void testRejectsMessageThatIsNotAnObject() {
+    assertMalformed("{\"message\": \"text\"}");
+    assertMalformed("[{\"message\": {}}]");
+  }
+
+  public void testRejectsMalformedJson() {
+    assertMalformed("");
+    assertMalformed("{\"message\": {\"data\": \"" + base64("payload"));
+    assertMalformed("{\"message\": {\"messageId\": 42,}}");
+    assertMalformed("{\"message\" {}}");
+    assertMalformed("not json");
+  }
+
+  public void testRejectsMalformedBase64() {
+    assertMalformed("{\"message\": {\"data\": \"not*base64\"}}");
+    assertMalformed("{\"message\": {\"data\": \"YWJj=ZA\"}}");
+    assertMalformed("{\"message\": {\"data\": 42}}");
+  }
+
+  private static PushMessage decode(String body) throws IOException {
+    return PushMessageDecoder.decode(
+        new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static void assertMalformed(String body) {
+    try {
+      decode(body);
+      fail("Decoded malformed push: " + body);
+    } catch (IOException expected) {
+    }
+  }
+
+  private static String base64(String text) {
+    return BaseEncoding.base64().encode(text.getBytes(StandardCharsets.UTF_8));
+  }
+}
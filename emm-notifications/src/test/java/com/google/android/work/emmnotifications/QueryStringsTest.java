@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+public class QueryStringsTest extends TestCase {
+
+  public void testNullQueryHasNoParameters() {
+    assertTrue(QueryStrings.parse(null).isEmpty());
+  }
+
+  public void testDecodesNamesAndValues() {
+    Map<String, String> parameters =
+        QueryStrings.parse("enterprise=E%201&product=app%3Acom.example&token=a+b");
+    assertEquals(3, parameters.size());
+    assertEquals("E 1", parameters.get("enterprise"));
+    assertEquals("app:com.example", parameters.get("product"));
+    assertEquals("a b", parameters.get("token"));
+  }
+
+  public void testIgnoresParametersWithoutName() {
+    Map<String, String> parameters = QueryStrings.parse("flag&=value&limit=5");
+    assertEquals(1, parameters.size());
+    assertEquals("5", parameters.get("limit"));
+  }
+
+  public void testKeepsEmptyValue() {
+    assertEquals("", QueryStrings.parse("to=").get("to"));
+  }
+
+  public void testLastRepeatedParameterWins() {
+    assertEquals("2", QueryStrings.parse("limit=1&limit=2").get("limit"));
+  }
+
+  public void testRejectsMalformedEncoding() {
+    try {
+      QueryStrings.parse("token=%zz");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
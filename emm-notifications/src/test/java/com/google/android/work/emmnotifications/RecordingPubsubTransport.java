@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.pubsub.Pubsub;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stands in for the Pub/Sub API in tests: records the calls of a {@link Pubsub} client and
+ * answers them with an empty response, or pulls with the responses queued by the test.
+ */
+class RecordingPubsubTransport extends MockHttpTransport {
+
+  static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  // A pull with nothing queued waits this long before returning no message, as a long poll does.
+  private static final long PULL_WAIT_MILLIS = 20;
+
+  private final List<Call> calls = new ArrayList<Call>();
+  private final BlockingQueue<String> pullResponses = new LinkedBlockingQueue<String>();
+  private volatile int statusCode = 200;
+
+  /** A call to the API: its custom method, e.g. pull, and the request's JSON. */
+  static final class Call {
+    final String method;
+    final String content;
+
+    Call(String method, String content) {
+      this.method = method;
+      this.content = content;
+    }
+
+    <T> T parse(Class<T> requestClass) throws IOException {
+      return JSON_FACTORY.fromString(content, requestClass);
+    }
+  }
+
+  Pubsub newClient() {
+    return new Pubsub.Builder(this, JSON_FACTORY, null).setApplicationName("test").build();
+  }
+
+  /** Queues the JSON response of a pull. */
+  void addPullResponse(String json) {
+    pullResponses.add(json);
+  }
+
+  /** Answers the calls from now on with the status code. */
+  void setStatusCode(int statusCode) {
+    this.statusCode = statusCode;
+  }
+
+  /** Returns the calls of the method made so far. */
+  synchronized List<Call> getCalls(String method) {
+    List<Call> matching = new ArrayList<Call>();
+    for (Call call : calls) {
+      if (call.method.equals(method)) {
+        matching.add(call);
+      }
+    }
+    return matching;
+  }
+
+  /** Waits until at least the given number of calls of the method were made, and returns them. */
+  synchronized List<Call> awaitCalls(String method, int count, long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    List<Call> matching = getCalls(method);
+    while (matching.size() < count) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        throw new AssertionError(
+            "Expected " + count + " " + method + " calls, got " + matching.size());
+      }
+      wait(remaining);
+      matching = getCalls(method);
+    }
+    return matching;
+  }
+
+  private synchronized void record(Call call) {
+    calls.add(call);
+    notifyAll();
+  }
+
+  @Override
+  public LowLevelHttpRequest buildRequest(String method, final String url) {
+    return new MockLowLevelHttpRequest(url) {
+      @Override
+      public LowLevelHttpResponse execute() throws IOException {
+        // Custom methods follow a colon, e.g. projects/p/subscriptions/s:pull.
+        String path = url.substring(url.lastIndexOf('/') + 1);
+        String apiMethod = path.substring(path.indexOf(':') + 1);
+        record(new Call(apiMethod, getContentAsString()));
+        String json = "{}";
+        if (apiMethod.equals("pull")) {
+          try {
+            String queued = pullResponses.poll(PULL_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            if (queued != null) {
+              json = queued;
+            }
+          } catch (InterruptedException e) {
+            throw new IOException("Interrupted while pulling");
+          }
+        }
+        return new MockLowLevelHttpResponse()
+            .setStatusCode(statusCode)
+            .setContentType("application/json")
+            .setContent(json);
+      }
+    };
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import junit.framework.TestCase;
+
+public class RetryBudgetTest extends TestCase {
+
+  public void testStartsWithFullBurst() {
+    RetryBudget budget = new RetryBudget("test", 0.1, 3, new Metrics());
+    assertTrue(budget.tryAcquireRetry());
+    assertTrue(budget.tryAcquireRetry());
+    assertTrue(budget.tryAcquireRetry());
+    assertFalse(budget.tryAcquireRetry());
+  }
+
+  public void testRequestsDepositTheirShare() {
+    RetryBudget budget = new RetryBudget("test", 0.1, 3, new Metrics());
+    while (budget.tryAcquireRetry()) {
+      // Drain the burst.
+    }
+    for (int i = 0; i < 9; i++) {
+      budget.onRequest();
+    }
+    assertFalse(budget.tryAcquireRetry());
+    budget.onRequest();
+    assertTrue(budget.tryAcquireRetry());
+    assertFalse(budget.tryAcquireRetry());
+  }
+
+  public void testBalanceIsCapped() {
+    RetryBudget budget = new RetryBudget("test", 0.5, 2, new Metrics());
+    for (int i = 0; i < 100; i++) {
+      budget.onRequest();
+    }
+    assertEquals(2.0, budget.getTokens(), 0);
+  }
+
+  public void testZeroRatioNeverRefills() {
+    RetryBudget budget = new RetryBudget("test", 0, 1, new Metrics());
+    assertTrue(budget.tryAcquireRetry());
+    for (int i = 0; i < 100; i++) {
+      budget.onRequest();
+    }
+    assertFalse(budget.tryAcquireRetry());
+  }
+}
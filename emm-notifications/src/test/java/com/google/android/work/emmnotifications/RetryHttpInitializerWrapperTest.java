@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.Sleeper;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RetryHttpInitializerWrapperTest extends TestCase {
+
+  private static final Sleeper NO_SLEEP = new Sleeper() {
+    public void sleep(long millis) {
+    }
+  };
+
+  public void testRetriesServerErrors() throws IOException {
+    StatusTransport transport = new StatusTransport(503, 503, 200);
+    assertEquals(200, newFactory(transport).buildGetRequest(url()).execute().getStatusCode());
+    assertEquals(3, transport.attempts.get());
+  }
+
+  public void testDoesNotRetryClientErrors() throws IOException {
+    StatusTransport transport = new StatusTransport(404);
+    try {
+      newFactory(transport).buildGetRequest(url()).execute();
+      fail("Expected the 404 to fail the request");
+    } catch (HttpResponseException e) {
+      assertEquals(404, e.getStatusCode());
+    }
+    assertEquals(1, transport.attempts.get());
+  }
+
+  public void testCircuitBreakerCountsEveryAttempt() throws IOException {
+    // Every attempt answers 503. The first request gives up after its 10 retries; the breaker
+    // opens on the 20th failed attempt, in the middle of the second request, which stops its
+    // retries and fails the third request before it is sent.
+    StatusTransport transport = new StatusTransport(503);
+    HttpRequestFactory factory = newFactory(transport);
+    for (int i = 0; i < 2; i++) {
+      try {
+        factory.buildGetRequest(url()).execute();
+        fail("Expected the 503 to fail the request");
+      } catch (HttpResponseException e) {
+        assertEquals(503, e.getStatusCode());
+      }
+    }
+    assertEquals(20, transport.attempts.get());
+    try {
+      factory.buildGetRequest(url());
+      fail("Expected the circuit breaker to be open");
+    } catch (IOException expected) {
+    }
+    assertEquals(20, transport.attempts.get());
+  }
+
+  public void testClientErrorsDoNotOpenTheCircuitBreaker() throws IOException {
+    StatusTransport transport = new StatusTransport(404);
+    HttpRequestFactory factory = newFactory(transport);
+    for (int i = 0; i < 30; i++) {
+      try {
+        factory.buildGetRequest(url()).execute();
+        fail("Expected the 404 to fail the request");
+      } catch (HttpResponseException expected) {
+      }
+    }
+    assertEquals(30, transport.attempts.get());
+  }
+
+  private static HttpRequestFactory newFactory(MockHttpTransport transport) {
+    Credential credential =
+        new Credential(BearerToken.authorizationHeaderAccessMethod()).setAccessToken("token");
+    return transport.createRequestFactory(
+        new RetryHttpInitializerWrapper(credential, NO_SLEEP, new Metrics()));
+  }
+
+  private static GenericUrl url() {
+    return new GenericUrl("https://pubsub.example.com/v1/projects/p/topics/t");
+  }
+
+  /** Answers with the given status codes in turn, repeating the last one. */
+  private static final class StatusTransport extends MockHttpTransport {
+    final int[] statusCodes;
+    final AtomicInteger attempts = new AtomicInteger();
+
+    StatusTransport(int... statusCodes) {
+      this.statusCodes = statusCodes;
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() {
+          int attempt = attempts.getAndIncrement();
+          return new MockLowLevelHttpResponse()
+              .setStatusCode(statusCodes[Math.min(attempt, statusCodes.length - 1)])
+              .setContent("{}");
+        }
+      };
+    }
+  }
+}
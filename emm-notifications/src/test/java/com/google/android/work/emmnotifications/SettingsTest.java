@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class SettingsTest extends TestCase {
+
+  private static final String REQUIRED =
+      "ServiceAccountEmail=test@example.iam.gserviceaccount.com\n"
+      + "ServiceAccountP12KeyFile=/tmp/test.p12\n"
+      + "TopicName=projects/test/topics/emm\n"
+      + "SubscriptionName=projects/test/subscriptions/emm\n"
+      + "ProjectName=test\n"
+      + "PushEndpoint=https://push.example.com\n"
+      + "Port=8093\n";
+
+  private File file;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("settings", ".properties");
+  }
+
+  @Override
+  protected void tearDown() {
+    file.delete();
+  }
+
+  public void testTopLevelSettingsWithoutSubscriptions() throws IOException {
+    Settings settings = load("WorkerThreads=4\n");
+    List<Settings> subscriptions = settings.getSubscriptions();
+    assertEquals(1, subscriptions.size());
+    assertSame(settings, subscriptions.get(0));
+    assertNull(settings.getSubscriptionKey());
+    assertEquals("/", settings.getPushPath());
+    assertSame(settings, settings.getSubscription(null));
+    assertNull(settings.getSubscription("production"));
+  }
+
+  public void testSubscriptionsInheritTopLevelSettings() throws IOException {
+    Settings settings = load("Subscriptions=production, staging\nWorkerThreads=4\n");
+    List<Settings> subscriptions = settings.getSubscriptions();
+    assertEquals(2, subscriptions.size());
+    Settings production = subscriptions.get(0);
+    Settings staging = subscriptions.get(1);
+    assertEquals("production", production.getSubscriptionKey());
+    assertEquals("staging", staging.getSubscriptionKey());
+    for (Settings subscription : subscriptions) {
+      assertEquals(4, subscription.getWorkerThreads());
+      assertEquals("projects/test/topics/emm", subscription.getTopicName());
+      assertEquals(8093, subscription.getPort());
+      assertEquals("/" + subscription.getSubscriptionKey(), subscription.getPushPath());
+    }
+    assertEquals("staging", settings.getSubscription("staging").getSubscriptionKey());
+    assertNull(settings.getSubscription(null));
+  }
+
+  public void testSubscriptionOverrides() throws IOException {
+    Settings settings = load("Subscriptions=production,staging\n"
+        + "WorkerThreads=4\n"
+        + "Subscription.production.WorkerThreads=16\n"
+        + "Subscription.production.PushPath=/push\n"
+        + "Subscription.staging.SubscriptionName=projects/test/subscriptions/staging\n"
+        + "Subscription.stale.WorkerThreads=1\n");
+    Settings production = settings.getSubscription("production");
+    Settings staging = settings.getSubscription("staging");
+    assertEquals(16, production.getWorkerThreads());
+    assertEquals("/push", production.getPushPath());
+    assertEquals("projects/test/subscriptions/emm", production.getSubscriptionName());
+    assertEquals(4, staging.getWorkerThreads());
+    assertEquals("/staging", staging.getPushPath());
+    assertEquals("projects/test/subscriptions/staging", staging.getSubscriptionName());
+    // The prefixed settings only apply to their subscription.
+    assertNull(production.getProperty("Subscription.production.WorkerThreads"));
+    assertNull(production.getProperty("Subscriptions"));
+    assertEquals(4, settings.getWorkerThreads());
+  }
+
+  public void testSuffixesFilesWithSubscriptionKey() throws IOException {
+    Settings settings = load("Subscriptions=production,staging\n"
+        + "JournalDirectory=/var/emm/journal\n"
+        + "DedupeSnapshotFile=/var/emm/dedupe\n"
+        + "SubscriptionCacheFile=/var/emm/subscription\n"
+        + "ProductStateSnapshotFile=/var/emm/products\n"
+        + "EventStoreDirectory=/var/emm/events\n"
+        + "Subscription.staging.DedupeSnapshotFile=/tmp/dedupe\n");
+    Settings production = settings.getSubscription("production");
+    assertEquals("/var/emm/journal" + File.separator + "production",
+        production.getJournalDirectory());
+    assertEquals("/var/emm/dedupe.production", production.getDedupeSnapshotFile());
+    assertEquals("/var/emm/subscription.production", production.getSubscriptionCacheFile());
+    assertEquals("/var/emm/products.production", production.getProductStateSnapshotFile());
+    assertEquals("/var/emm/events" + File.separator + "production",
+        production.getEventStoreDirectory());
+
+    // An override is used as given.
+    Settings staging = settings.getSubscription("staging");
+    assertEquals("/tmp/dedupe", staging.getDedupeSnapshotFile());
+    assertEquals("/var/emm/journal" + File.separator + "staging", staging.getJournalDirectory());
+
+    // Unset files stay unset, and the top-level settings are not suffixed.
+    assertEquals("/var/emm/dedupe", settings.getDedupeSnapshotFile());
+    assertNull(load("Subscriptions=production\n").getSubscription("production")
+        .getJournalDirectory());
+  }
+
+  public void testRejectsDuplicatePushPaths() throws IOException {
+    try {
+      load("Subscriptions=production,staging\nSubscription.staging.PushPath=/production\n");
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage(), expected.getMessage().contains("/production"));
+    }
+    // Distinct overrides are accepted.
+    load("Subscriptions=production,staging\n"
+        + "Subscription.production.PushPath=/a\n"
+        + "Subscription.staging.PushPath=/b\n");
+  }
+
+  public void testRejectsMalformedSubscriptionSetting() throws IOException {
+    try {
+      load("Subscriptions=production,staging\nSubscription.staging.WorkerThreads=many\n");
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // The subscription's settings are validated when the file is loaded.
+    }
+  }
+
+  private Settings load(String properties) throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    try {
+      writer.write(REQUIRED + properties);
+    } finally {
+      writer.close();
+    }
+    return Settings.load(file.getPath());
+  }
+}
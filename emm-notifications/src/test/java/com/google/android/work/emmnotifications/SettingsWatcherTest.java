@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.common.base.Preconditions;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SettingsWatcherTest extends TestCase {
+
+  private static final String REQUIRED =
+      "ServiceAccountEmail=test@example.iam.gserviceaccount.com\n"
+      + "ServiceAccountP12KeyFile=/tmp/test.p12\n"
+      + "TopicName=projects/test/topics/emm\n"
+      + "SubscriptionName=projects/test/subscriptions/emm\n"
+      + "ProjectName=test\n"
+      + "PushEndpoint=https://push.example.com\n"
+      + "Port=8093\n";
+
+  private File directory;
+  private File file;
+  private Metrics metrics;
+  private SettingsWatcher watcher;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("settings").toFile();
+    file = new File(directory, "settings.properties");
+    metrics = new Metrics();
+  }
+
+  @Override
+  protected void tearDown() {
+    file.delete();
+    directory.delete();
+  }
+
+  public void testAppliesChangedKeys() throws IOException {
+    start("WorkerThreads=4\n");
+    RecordingListener listener = new RecordingListener();
+    watcher.addListener(null, listener, Settings.WORKER_THREADS);
+
+    write("WorkerThreads=8\n");
+    assertTrue(watcher.reload());
+    assertEquals(1, listener.validated.size());
+    assertEquals(1, listener.applied.size());
+    assertEquals(8, listener.applied.get(0).getWorkerThreads());
+    assertEquals(8, Settings.getSettings().getWorkerThreads());
+    assertEquals(1, reloads("applied"));
+    assertEquals(0, reloads("rejected"));
+  }
+
+  public void testSkipsListenersOfUnchangedKeys() throws IOException {
+    start("WorkerThreads=4\nShutdownDrainSeconds=10\n");
+    RecordingListener listener = new RecordingListener();
+    watcher.addListener(null, listener, Settings.WORKER_THREADS);
+
+    write("WorkerThreads=4\nShutdownDrainSeconds=20\n");
+    assertTrue(watcher.reload());
+    assertTrue(listener.validated.isEmpty());
+    assertTrue(listener.applied.isEmpty());
+    assertEquals(20, Settings.getSettings().getShutdownDrainSeconds());
+  }
+
+  public void testIgnoresMalformedFile() throws IOException {
+    start("WorkerThreads=4\n");
+    RecordingListener listener = new RecordingListener();
+    watcher.addListener(null, listener, Settings.WORKER_THREADS);
+
+    write("WorkerThreads=many\n");
+    assertFalse(watcher.reload());
+    assertTrue(listener.validated.isEmpty());
+    assertEquals(4, Settings.getSettings().getWorkerThreads());
+    assertEquals(1, reloads("rejected"));
+  }
+
+  public void testIgnoresFileWhenAListenerRejectsIt() throws IOException {
+    start("WorkerThreads=4\nShutdownDrainSeconds=10\n");
+    RecordingListener threads = new RecordingListener() {
+      @Override
+      public void validate(Settings settings) {
+        super.validate(settings);
+        Preconditions.checkArgument(settings.getWorkerThreads() > 0, "No workers");
+      }
+    };
+    RecordingListener drain = new RecordingListener();
+    watcher.addListener(null, drain, Settings.SHUTDOWN_DRAIN_SECONDS);
+    watcher.addListener(null, threads, Settings.WORKER_THREADS);
+
+    write("WorkerThreads=0\nShutdownDrainSeconds=20\n");
+    assertFalse(watcher.reload());
+    // Neither listener applied its change, not even the one validated first.
+    assertTrue(drain.applied.isEmpty());
+    assertTrue(threads.applied.isEmpty());
+    assertEquals(4, Settings.getSettings().getWorkerThreads());
+    assertEquals(10, Settings.getSettings().getShutdownDrainSeconds());
+    assertEquals(0, reloads("applied"));
+    assertEquals(1, reloads("rejected"));
+
+    // The next valid file is compared to the settings still in effect.
+    write("WorkerThreads=2\nShutdownDrainSeconds=20\n");
+    assertTrue(watcher.reload());
+    assertEquals(1, drain.applied.size());
+    assertEquals(1, threads.applied.size());
+    assertEquals(1, reloads("applied"));
+  }
+
+  public void testCountsListenerFailureAsRejected() throws IOException {
+    start("WorkerThreads=4\n");
+    watcher.addListener(null, new RecordingListener() {
+      @Override
+      public void settingsChanged(Settings settings) {
+        throw new IllegalStateException("Failed to apply");
+      }
+    }, Settings.WORKER_THREADS);
+
+    write("WorkerThreads=8\n");
+    assertTrue(watcher.reload());
+    assertEquals(8, Settings.getSettings().getWorkerThreads());
+    assertEquals(0, reloads("applied"));
+    assertEquals(1, reloads("rejected"));
+  }
+
+  public void testCallsListenersOfChangedSubscriptionOnly() throws IOException {
+    start("Subscriptions=a,b\nSubscription.a.WorkerThreads=2\n");
+    RecordingListener a = new RecordingListener();
+    RecordingListener b = new RecordingListener();
+    watcher.addListener("a", a, Settings.WORKER_THREADS);
+    watcher.addListener("b", b, Settings.WORKER_THREADS);
+
+    write("Subscriptions=a,b\nSubscription.a.WorkerThreads=3\n");
+    assertTrue(watcher.reload());
+    assertEquals(1, a.applied.size());
+    assertEquals(3, a.applied.get(0).getWorkerThreads());
+    assertTrue(b.applied.isEmpty());
+  }
+
+  private void start(String properties) throws IOException {
+    write(properties);
+    Settings settings = Settings.load(file.getPath());
+    Settings.replace(settings);
+    watcher = new SettingsWatcher(settings, metrics);
+  }
+
+  private void write(String properties) throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    try {
+      writer.write(REQUIRED + properties);
+    } finally {
+      writer.close();
+    }
+  }
+
+  private long reloads(String result) throws IOException {
+    StringBuilder text = new StringBuilder();
+    metrics.writeTo(text);
+    String prefix = "emm_settings_reloads_total{result=\"" + result + "\"} ";
+    int start = text.indexOf(prefix);
+    if (start < 0) {
+      return 0;
+    }
+    start += prefix.length();
+    return Long.parseLong(text.substring(start, text.indexOf("\n", start)));
+  }
+
+  private static class RecordingListener implements SettingsWatcher.Listener {
+    final List<Settings> validated = new ArrayList<Settings>();
+    final List<Settings> applied = new ArrayList<Settings>();
+
+    public void validate(Settings settings) {
+      validated.add(settings);
+    }
+
+    public void settingsChanged(Settings settings) {
+      applied.add(settings);
+    }
+  }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.pubsub.Pubsub;
+import com.google.api.services.pubsub.model.Subscription;
+import com.google.api.services.pubsub.model.Topic;
+import com.google.common.io.ByteStreams;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+public class SubscriptionVerifierTest extends TestCase {
+
+  private static final String TOPIC = "projects/test/topics/emm";
+  private static final String SUBSCRIPTION = "projects/test/subscriptions/emm";
+  private static final String PUSH_ENDPOINT = "https://push.example.com/push";
+  private static final long CACHE_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private PubsubEmulator emulator;
+  private String rootUrl;
+  private Pubsub client;
+  private File directory;
+  private File cacheFile;
+  private Thread subscriberShutdown;
+
+  @Override
+  protected void setUp() throws IOException {
+    int port = freePort();
+    emulator = new PubsubEmulator(port, 1, new Metrics());
+    emulator.start();
+    rootUrl = "http://localhost:" + port + "/";
+    client = newClient(rootUrl);
+    directory = Files.createTempDirectory("verifier").toFile();
+    cacheFile = new File(directory, "subscription.cache");
+  }
+
+  @Override
+  protected void tearDown() {
+    if (subscriberShutdown != null) {
+      subscriberShutdown.run();
+    }
+    emulator.stop();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testCreatesMissingSubscription() throws IOException {
+    createTopic(TOPIC);
+    SubscriptionVerifier verifier = newVerifier(settings(PUSH_ENDPOINT, ""));
+    assertEquals(SubscriptionVerifier.Status.PENDING, verifier.getStatus());
+
+    assertTrue(verifier.verify());
+    assertEquals(SubscriptionVerifier.Status.READY, verifier.getStatus());
+    Subscription created = client.projects().subscriptions().get(SUBSCRIPTION).execute();
+    assertEquals(TOPIC, created.getTopic());
+    assertEquals(PUSH_ENDPOINT, created.getPushConfig().getPushEndpoint());
+    assertTrue(cacheFile.exists());
+  }
+
+  public void testReusesExistingSubscription() throws IOException {
+    createTopic(TOPIC);
+    client.projects().subscriptions()
+        .create(SUBSCRIPTION, new Subscription().setTopic(TOPIC).setAckDeadlineSeconds(30))
+        .execute();
+    SubscriptionVerifier verifier = newVerifier(settings(PUSH_ENDPOINT, ""));
+    assertTrue(verifier.verify());
+    assertEquals(SubscriptionVerifier.Status.READY, verifier.getStatus());
+    assertEquals(30, client.projects().subscriptions().get(SUBSCRIPTION).execute()
+        .getAckDeadlineSeconds().intValue());
+  }
+
+  public void testSkipsVerificationWhileCacheIsRecent() throws IOException {
+    createTopic(TOPIC);
+    assertTrue(newVerifier(settings(PUSH_ENDPOINT, "")).verify());
+
+    // A second Pub/Sub only gets the subscription if it is asked for it.
+    PubsubEmulator other = startOtherEmulator();
+    try {
+      Settings otherSettings = settings(PUSH_ENDPOINT, "");
+      SubscriptionVerifier cached = newVerifier(otherSettings);
+      assertTrue(cached.verify());
+      assertEquals(SubscriptionVerifier.Status.READY, cached.getStatus());
+      assertTrue(cached.getDetail(), cached.getDetail().contains("minutes ago"));
+      assertFalse(hasSubscription());
+
+      // Unless the cache is too old.
+      assertTrue(new SubscriptionVerifier(otherSettings, cacheFile, -1).verify());
+      assertTrue(hasSubscription());
+    } finally {
+      other.stop();
+    }
+  }
+
+  public void testIgnoresCacheOfOtherSettings() throws IOException {
+    createTopic(TOPIC);
+    assertTrue(newVerifier(settings(PUSH_ENDPOINT, "")).verify());
+
+    PubsubEmulator other = startOtherEmulator();
+    try {
+      SubscriptionVerifier verifier = newVerifier(settings("https://other.example.com/push", ""));
+      assertTrue(verifier.verify());
+      assertEquals("https://other.example.com/push", client.projects().subscriptions()
+          .get(SUBSCRIPTION).execute().getPushConfig().getPushEndpoint());
+    } finally {
+      other.stop();
+    }
+  }
+
+  public void testRetriesUntilTopicExists() throws IOException {
+    SubscriptionVerifier verifier = newVerifier(settings(PUSH_ENDPOINT, ""));
+    assertFalse(verifier.verify());
+    assertEquals(SubscriptionVerifier.Status.RETRYING, verifier.getStatus());
+    assertFalse(cacheFile.exists());
+
+    createTopic(TOPIC);
+    assertTrue(verifier.verify());
+    assertEquals(SubscriptionVerifier.Status.READY, verifier.getStatus());
+  }
+
+  public void testFailsOnTopicMismatch() throws Exception {
+    createTopic(TOPIC);
+    createTopic("projects/test/topics/other");
+    client.projects().subscriptions()
+        .create(SUBSCRIPTION, new Subscription().setTopic("projects/test/topics/other"))
+        .execute();
+    SubscriptionVerifier verifier = newVerifier(settings(PUSH_ENDPOINT, ""));
+    assertFalse(verifier.verify());
+    assertEquals(SubscriptionVerifier.Status.FAILED, verifier.getStatus());
+    assertTrue(verifier.getDetail(), verifier.getDetail().contains("projects/test/topics/other"));
+    assertFalse(cacheFile.exists());
+  }
+
+  public void testAcceptsPushesBeforeVerifying() throws Exception {
+    int port = freePort();
+    // The topic is missing, so that the verification keeps failing until it is created.
+    subscriberShutdown = PushSubscriber.start(Settings.load(
+        writeSettings("http://localhost:" + port + "/push",
+            "Port=" + port + "\nPushPath=/push\nStartupMode=BACKGROUND\n").getPath()));
+
+    HttpURLConnection readiness = get(port, HealthHandler.READINESS_PATH);
+    assertEquals(503, readiness.getResponseCode());
+    assertEquals(200, get(port, HealthHandler.LIVENESS_PATH).getResponseCode());
+
+    HttpURLConnection push =
+        (HttpURLConnection) new URL("http://localhost:" + port + "/push").openConnection();
+    push.setRequestMethod("POST");
+    push.setDoOutput(true);
+    OutputStream out = push.getOutputStream();
+    out.write(("{\"message\": {\"data\": \"\", \"messageId\": \"1\"},"
+        + " \"subscription\": \"" + SUBSCRIPTION + "\"}").getBytes(StandardCharsets.UTF_8));
+    out.close();
+    assertEquals(204, push.getResponseCode());
+
+    // Ready once a background retry found the topic.
+    createTopic(TOPIC);
+    long deadline = System.currentTimeMillis() + 15000;
+    while ((readiness = get(port, HealthHandler.READINESS_PATH)).getResponseCode() != 200) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(100);
+    }
+    String body = new String(
+        ByteStreams.toByteArray(readiness.getInputStream()), StandardCharsets.UTF_8);
+    assertTrue(body, body.startsWith("READY"));
+    assertEquals(TOPIC, client.projects().subscriptions().get(SUBSCRIPTION).execute().getTopic());
+  }
+
+  /**
+   * Starts another emulator with the topic but no subscription, and points {@link #rootUrl} and
+   * {@link #client} at it.
+   */
+  private PubsubEmulator startOtherEmulator() throws IOException {
+    int port = freePort();
+    PubsubEmulator other = new PubsubEmulator(port, 1, new Metrics());
+    other.start();
+    rootUrl = "http://localhost:" + port + "/";
+    client = newClient(rootUrl);
+    createTopic(TOPIC);
+    return other;
+  }
+
+  private boolean hasSubscription() throws IOException {
+    try {
+      client.projects().subscriptions().get(SUBSCRIPTION).execute();
+      return true;
+    } catch (HttpResponseException e) {
+      assertEquals(404, e.getStatusCode());
+      return false;
+    }
+  }
+
+  private static Pubsub newClient(String rootUrl) {
+    return new Pubsub.Builder(new NetHttpTransport(), JacksonFactory.getDefaultInstance(), null)
+        .setRootUrl(rootUrl)
+        .setApplicationName("test")
+        .build();
+  }
+
+  private SubscriptionVerifier newVerifier(Settings settings) {
+    return new SubscriptionVerifier(settings, cacheFile, CACHE_MAX_AGE_MILLIS);
+  }
+
+  private Settings settings(String pushEndpoint, String properties) throws IOException {
+    return Settings.load(writeSettings(pushEndpoint, properties).getPath());
+  }
+
+  private File writeSettings(String pushEndpoint, String properties) throws IOException {
+    File file = File.createTempFile("settings", ".properties", directory);
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    try {
+      writer.write("ServiceAccountEmail=test@example.iam.gserviceaccount.com\n"
+          + "ServiceAccountP12KeyFile=/tmp/test.p12\n"
+          + "TopicName=" + TOPIC + "\n"
+          + "SubscriptionName=" + SUBSCRIPTION + "\n"
+          + "ProjectName=test\n"
+          + "PushEndpoint=" + pushEndpoint + "\n"
+          + "PubsubRootUrl=" + rootUrl + "\n"
+          + "Port=8093\n"
+          + properties);
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+
+  private void createTopic(String name) throws IOException {
+    client.projects().topics().create(name, new Topic()).execute();
+  }
+
+  private static HttpURLConnection get(int port, String path) throws IOException {
+    return (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket socket = new ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+}
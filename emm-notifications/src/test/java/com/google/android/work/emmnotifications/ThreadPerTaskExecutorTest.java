@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ThreadPerTaskExecutorTest extends TestCase {
+
+  // Counts the threads started, one per task.
+  private final AtomicInteger started = new AtomicInteger();
+  private final ThreadFactory threadFactory = new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      started.incrementAndGet();
+      return Executors.defaultThreadFactory().newThread(runnable);
+    }
+  };
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Override
+  protected void tearDown() {
+    release.countDown();
+  }
+
+  public void testStartsThreadPerTask() throws InterruptedException {
+    ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor(threadFactory, 2, 0);
+    final CountDownLatch done = new CountDownLatch(5);
+    for (int i = 0; i < 5; i++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          done.countDown();
+        }
+      });
+      // Without a queue, a task is only accepted while fewer than two run.
+      awaitIdle(executor);
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(5, started.get());
+  }
+
+  public void testBoundsRunningAndWaitingTasks() throws InterruptedException {
+    ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor(threadFactory, 2, 1);
+    executor.execute(blocking());
+    executor.execute(blocking());
+    executor.execute(blocking());
+    awaitCounts(executor, 2, 1);
+    try {
+      executor.execute(blocking());
+      fail();
+    } catch (RejectedExecutionException expected) {
+    }
+
+    release.countDown();
+    awaitIdle(executor);
+    executor.execute(blocking());
+  }
+
+  public void testResize() throws InterruptedException {
+    ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor(threadFactory, 1, 10);
+    for (int i = 0; i < 4; i++) {
+      executor.execute(blocking());
+    }
+    awaitCounts(executor, 1, 3);
+    executor.resize(3);
+    awaitCounts(executor, 3, 1);
+
+    // The running tasks finish, but no more than one runs from now on.
+    executor.resize(1);
+    final CountDownLatch gate = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    awaitCounts(executor, 3, 2);
+    release.countDown();
+    awaitCounts(executor, 1, 0);
+    gate.countDown();
+    awaitIdle(executor);
+
+    try {
+      executor.resize(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testShutdownWaitsForAcceptedTasks() throws InterruptedException {
+    ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor(threadFactory, 1, 1);
+    executor.execute(blocking());
+    executor.execute(blocking());
+    executor.shutdown();
+    assertTrue(executor.isShutdown());
+    try {
+      executor.execute(blocking());
+      fail();
+    } catch (RejectedExecutionException expected) {
+    }
+    assertFalse(executor.awaitTermination(50, TimeUnit.MILLISECONDS));
+    assertFalse(executor.isTerminated());
+
+    release.countDown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    assertTrue(executor.isTerminated());
+    assertEquals(2, started.get());
+  }
+
+  public void testWorkerPoolResizesAndExportsIt() throws Exception {
+    ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor(threadFactory, 1, 5);
+    Metrics metrics = new Metrics();
+    WorkerPool.exportMetrics(executor, "test", metrics);
+    executor.execute(blocking());
+    executor.execute(blocking());
+    awaitCounts(executor, 1, 1);
+    StringBuilder out = new StringBuilder();
+    metrics.writeTo(out);
+    assertTrue(out.toString(), out.toString().contains("emm_worker_active{pool=\"test\"} 1"));
+    assertTrue(out.toString(), out.toString().contains("emm_worker_queued{pool=\"test\"} 1"));
+
+    WorkerPool.resize(executor, 2);
+    awaitCounts(executor, 2, 0);
+  }
+
+  public void testFallsBackToFixedPoolWithoutVirtualThreads() {
+    boolean virtual;
+    try {
+      Thread.class.getMethod("ofVirtual");
+      virtual = true;
+    } catch (NoSuchMethodException e) {
+      virtual = false;
+    }
+    ExecutorService pool = WorkerPool.create("test", WorkerPool.Type.VIRTUAL, 2, 4);
+    try {
+      assertEquals(virtual, pool instanceof ThreadPerTaskExecutor);
+      assertEquals(!virtual, pool instanceof ThreadPoolExecutor);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private Runnable blocking() {
+    return new Runnable() {
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+  }
+
+  private static void awaitCounts(ThreadPerTaskExecutor executor, int running, int waiting)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (executor.getRunningCount() != running || executor.getWaitingCount() != waiting) {
+      assertTrue("Expected " + running + " running and " + waiting + " waiting, but "
+              + executor.getRunningCount() + " running and " + executor.getWaitingCount()
+              + " waiting",
+          System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  private static void awaitIdle(ThreadPerTaskExecutor executor) throws InterruptedException {
+    awaitCounts(executor, 0, 0);
+  }
+}
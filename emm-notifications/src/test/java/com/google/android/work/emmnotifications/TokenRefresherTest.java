@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package com.google.android.work.emmnotifications;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.TokenResponse;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TokenRefresherTest extends TestCase {
+
+  private Metrics metrics;
+  private TokenRefresher refresher;
+
+  @Override
+  protected void setUp() {
+    metrics = new Metrics();
+  }
+
+  @Override
+  protected void tearDown() {
+    if (refresher != null) {
+      refresher.stop();
+    }
+  }
+
+  public void testFetchesTokenOnStart() throws IOException {
+    FakeCredential credential = new FakeCredential(3600);
+    refresher = new TokenRefresher(credential, 300, metrics);
+    refresher.start();
+    assertEquals(1, credential.refreshes.get());
+    assertEquals("token-1", credential.getAccessToken());
+    assertEquals(1, metrics.counter("emm_token_refreshes_total", "").get());
+    assertEquals(0, metrics.counter("emm_token_refresh_failures_total", "").get());
+    assertEquals(3600, expiresIn("emm_token_expires_in_seconds"), 1);
+  }
+
+  public void testRenewsBeforeExpiry() throws InterruptedException {
+    // Renewed one second before it expires, every second.
+    FakeCredential credential = new FakeCredential(2);
+    refresher = new TokenRefresher(credential, 1, metrics);
+    refresher.start();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (credential.refreshes.get() < 3) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    assertTrue(metrics.counter("emm_token_refreshes_total", "").get() >= 3);
+  }
+
+  public void testCountsFailures() throws IOException {
+    FakeCredential credential = new FakeCredential(3600);
+    credential.fail = true;
+    refresher = new TokenRefresher(credential, 300, metrics);
+    refresher.start();
+    assertEquals(0, metrics.counter("emm_token_refreshes_total", "").get());
+    assertEquals(1, metrics.counter("emm_token_refresh_failures_total", "").get());
+    assertEquals(0.0, expiresIn("emm_token_expires_in_seconds"));
+  }
+
+  public void testSeriesOfSeveralCredentials() throws IOException {
+    TokenRefresher first = new TokenRefresher(
+        new FakeCredential(100), 10, metrics.withLabel("account", "first@example.com"));
+    TokenRefresher second = new TokenRefresher(
+        new FakeCredential(200), 10, metrics.withLabel("account", "second@example.com"));
+    try {
+      first.start();
+      second.start();
+      assertEquals(100, expiresIn(
+          "emm_token_expires_in_seconds{account=\"first@example.com\"}"), 1);
+      assertEquals(200, expiresIn(
+          "emm_token_expires_in_seconds{account=\"second@example.com\"}"), 1);
+      assertEquals(1, metrics.withLabel("account", "first@example.com")
+          .counter("emm_token_refreshes_total", "").get());
+    } finally {
+      first.stop();
+      second.stop();
+    }
+  }
+
+  /** Returns the value of the series in the exported metrics. */
+  private double expiresIn(String series) throws IOException {
+    StringBuilder out = new StringBuilder();
+    metrics.writeTo(out);
+    for (String line : out.toString().split("\n")) {
+      if (line.startsWith(series + " ")) {
+        return Double.parseDouble(line.substring(series.length() + 1));
+      }
+    }
+    throw new AssertionError(series + " not found in " + out);
+  }
+
+  /** Hands out numbered tokens valid for a fixed time, or fails. */
+  private static final class FakeCredential extends Credential {
+    final AtomicInteger refreshes = new AtomicInteger();
+    final long lifetimeSeconds;
+    volatile boolean fail;
+
+    FakeCredential(long lifetimeSeconds) {
+      super(BearerToken.authorizationHeaderAccessMethod());
+      this.lifetimeSeconds = lifetimeSeconds;
+    }
+
+    @Override
+    protected TokenResponse executeRefreshToken() throws IOException {
+      if (fail) {
+        throw new IOException("Token server unavailable");
+      }
+      return new TokenResponse()
+          .setAccessToken("token-" + refreshes.incrementAndGet())
+          .setExpiresInSeconds(lifetimeSeconds);
+    }
+  }
+}